@@ -0,0 +1,123 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.fhir.stu3.proto.Annotations;
+import com.google.fhir.stu3.proto.ObservationStatusCode;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares converting between FHIR codes and the enum values of specialized code types using
+ * {@link CodeEnumMap}, against the previous implementation in {@link CodeWrapper}, which looked up
+ * the upper-cased code by name, and then scanned all enum values for a matching
+ * fhir_original_code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodeEnumMapBenchmark {
+
+  /** The code type from codes.proto, and the code. */
+  @Param({
+    "ObservationStatusCode:final",
+    "ObservationStatusCode:entered-in-error",
+    "FHIRDefinedTypeCode:Address",
+    "FHIRDefinedTypeCode:Observation",
+  })
+  public String input;
+
+  private EnumDescriptor enumType;
+  private String code;
+  private EnumValueDescriptor value;
+
+  @Setup
+  public void setUp() {
+    String[] parts = input.split(":");
+    enumType =
+        ObservationStatusCode.getDescriptor()
+            .getFile()
+            .findMessageTypeByName(parts[0])
+            .findFieldByName("value")
+            .getEnumType();
+    code = parts[1];
+    value = CodeEnumMap.of(enumType).getValue(code);
+    if (value == null || !CodeEnumMap.of(enumType).getCode(value).equals(code)) {
+      throw new IllegalArgumentException("Invalid input: " + input);
+    }
+  }
+
+  @Benchmark
+  public EnumValueDescriptor codeToValue() {
+    return CodeEnumMap.of(enumType).getValue(code);
+  }
+
+  @Benchmark
+  public EnumValueDescriptor codeToValueByScanning() {
+    return ScanningLookup.getValue(enumType, code);
+  }
+
+  @Benchmark
+  public String valueToCode() {
+    return CodeEnumMap.of(enumType).getCode(value);
+  }
+
+  @Benchmark
+  public String valueToCodeByScanning() {
+    return ScanningLookup.getCode(value);
+  }
+
+  /** The lookups CodeWrapper used before CodeEnumMap. */
+  private static final class ScanningLookup {
+    static EnumValueDescriptor getValue(EnumDescriptor enumType, String code) {
+      EnumValueDescriptor enumValue =
+          enumType.findValueByName(code.toUpperCase().replace('-', '_'));
+      if (enumValue != null
+          && enumValue.getNumber() != 0
+          && !enumValue.getOptions().hasExtension(Annotations.fhirOriginalCode)) {
+        return enumValue;
+      }
+      for (EnumValueDescriptor value : enumType.getValues()) {
+        if (value.getOptions().hasExtension(Annotations.fhirOriginalCode)
+            && value.getOptions().getExtension(Annotations.fhirOriginalCode).equals(code)) {
+          return value;
+        }
+      }
+      return null;
+    }
+
+    static String getCode(EnumValueDescriptor value) {
+      if (value.getOptions().hasExtension(Annotations.fhirOriginalCode)) {
+        return value.getOptions().getExtension(Annotations.fhirOriginalCode);
+      }
+      return value.getName().toLowerCase().replace('_', '-');
+    }
+  }
+}
@@ -0,0 +1,148 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.fhir.stu3.proto.DateTime;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares parsing FHIR dateTimes with {@link DateTimeWrapper}, which uses {@link DateTimeScanner},
+ * against the previous implementation, which matched the value regex and then tried a series of
+ * java.time parsers, catching the exception of each one that failed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DateTimeParseBenchmark {
+
+  @Param({
+    "2018",
+    "2018-03",
+    "2018-03-28",
+    "2018-03-28T10:15:30+11:00",
+    "2018-03-28T10:15:30.123Z",
+  })
+  public String input;
+
+  private final ZoneId defaultTimeZone = ZoneId.of("Australia/Sydney");
+
+  @Benchmark
+  public DateTime scanner() {
+    return new DateTimeWrapper(input, defaultTimeZone).getWrapped();
+  }
+
+  @Benchmark
+  public DateTime javaTime() {
+    return JavaTimeParser.parse(input, defaultTimeZone);
+  }
+
+  /** The java.time based parser DateTimeWrapper used before DateTimeScanner. */
+  private static final class JavaTimeParser {
+    private static final Pattern DATE_TIME_PATTERN =
+        Pattern.compile(
+            AnnotationUtils.getValueRegexForPrimitiveType(DateTime.getDefaultInstance()));
+    private static final DateTimeFormatter SECOND_WITH_TZ =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX");
+
+    static DateTime parse(String input, ZoneId defaultTimeZone) {
+      if (!DATE_TIME_PATTERN.matcher(input).matches()) {
+        throw new IllegalArgumentException("Invalid input: " + input);
+      }
+      try {
+        return build(
+            Year.parse(input).atDay(1).atStartOfDay(), defaultTimeZone, DateTime.Precision.YEAR);
+      } catch (DateTimeParseException e) {
+        // Fall through.
+      }
+      try {
+        return build(
+            YearMonth.parse(input).atDay(1).atStartOfDay(),
+            defaultTimeZone,
+            DateTime.Precision.MONTH);
+      } catch (DateTimeParseException e) {
+        // Fall through.
+      }
+      try {
+        return build(
+            LocalDate.parse(input).atStartOfDay(), defaultTimeZone, DateTime.Precision.DAY);
+      } catch (DateTimeParseException e) {
+        // Fall through.
+      }
+      try {
+        OffsetDateTime offsetDateTime = OffsetDateTime.parse(input, SECOND_WITH_TZ);
+        return build(
+            offsetDateTime.toInstant().toEpochMilli() * 1000L,
+            timezone(input, offsetDateTime),
+            DateTime.Precision.SECOND);
+      } catch (DateTimeParseException e) {
+        // Fall through.
+      }
+      try {
+        OffsetDateTime offsetDateTime = OffsetDateTime.parse(input);
+        return build(
+            offsetDateTime.toInstant().toEpochMilli() * 1000L,
+            timezone(input, offsetDateTime),
+            DateTime.Precision.MILLISECOND);
+      } catch (DateTimeParseException e) {
+        // Fall through.
+      }
+      throw new IllegalArgumentException("Invalid DateTime: " + input);
+    }
+
+    private static String timezone(String input, OffsetDateTime offsetDateTime) {
+      return input.endsWith("+00:00")
+          ? "+00:00"
+          : (input.endsWith("-00:00") ? "-00:00" : offsetDateTime.getOffset().toString());
+    }
+
+    private static DateTime build(
+        LocalDateTime dateTime, ZoneId defaultTimeZone, DateTime.Precision precision) {
+      return build(
+          dateTime.atZone(defaultTimeZone).toInstant().toEpochMilli() * 1000L,
+          defaultTimeZone.toString(),
+          precision);
+    }
+
+    private static DateTime build(long valueUs, String timezone, DateTime.Precision precision) {
+      return DateTime.newBuilder()
+          .setValueUs(valueUs)
+          .setPrecision(precision)
+          .setTimezone(timezone)
+          .build();
+    }
+  }
+}
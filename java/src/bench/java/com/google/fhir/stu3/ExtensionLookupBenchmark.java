@@ -0,0 +1,122 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.fhir.stu3.proto.Base64SeparatorStride;
+import com.google.fhir.stu3.proto.Boolean;
+import com.google.fhir.stu3.proto.ElementDefinitionBindingName;
+import com.google.fhir.stu3.proto.Extension;
+import com.google.fhir.stu3.proto.Patient;
+import com.google.fhir.stu3.proto.PositiveInt;
+import com.google.fhir.stu3.proto.PrimitiveHasNoValue;
+import com.google.fhir.stu3.proto.Uri;
+import com.google.protobuf.Message;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures reading several extension types from the extensions of one resource, as profile code
+ * does for e.g. the race, ethnicity and birth sex extensions of a US Core Patient. The resource
+ * has three typed extensions among a number of others, and each of them is looked up the given
+ * number of times. One ExtensionWrapper serving all lookups, which keeps the typed results from
+ * the second lookup on, is compared against a new wrapper for each lookup, which scans and
+ * converts the extensions every time, as all lookups did before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtensionLookupBenchmark {
+
+  private static final Message[] TEMPLATES = {
+    PrimitiveHasNoValue.getDefaultInstance(),
+    Base64SeparatorStride.getDefaultInstance(),
+    ElementDefinitionBindingName.getDefaultInstance(),
+  };
+
+  /** The number of other extensions on the resource. */
+  @Param({"4", "32"})
+  public int otherExtensions;
+
+  /** How many times each of the typed extensions is looked up. */
+  @Param({"1", "4"})
+  public int lookups;
+
+  private Patient patient;
+
+  @Setup
+  public void setUp() {
+    Patient.Builder builder = Patient.newBuilder();
+    for (int i = 0; i < otherExtensions; i++) {
+      builder.addExtension(
+          Extension.newBuilder()
+              .setUrl(Uri.newBuilder().setValue("http://example.com/extension-" + i)));
+      if (i == otherExtensions / 2) {
+        builder.addAllExtension(
+            ExtensionWrapper.of()
+                .add(
+                    PrimitiveHasNoValue.newBuilder()
+                        .setValueBoolean(Boolean.newBuilder().setValue(true)))
+                .add(
+                    Base64SeparatorStride.newBuilder()
+                        .setSeparator(
+                            com.google.fhir.stu3.proto.String.newBuilder().setValue("  "))
+                        .setStride(PositiveInt.newBuilder().setValue(64)))
+                .add(
+                    ElementDefinitionBindingName.newBuilder()
+                        .setValueString(
+                            com.google.fhir.stu3.proto.String.newBuilder().setValue("name")))
+                .build());
+      }
+    }
+    patient = builder.build();
+  }
+
+  @Benchmark
+  public void oneWrapper(Blackhole blackhole) {
+    ExtensionWrapper wrapper = ExtensionWrapper.fromExtensionsIn(patient);
+    for (int i = 0; i < lookups; i++) {
+      for (Message template : TEMPLATES) {
+        List<Message> matching = wrapper.getMatchingExtensions(template);
+        blackhole.consume(matching);
+      }
+    }
+  }
+
+  @Benchmark
+  public void wrapperPerLookup(Blackhole blackhole) {
+    for (int i = 0; i < lookups; i++) {
+      for (Message template : TEMPLATES) {
+        List<Message> matching =
+            ExtensionWrapper.fromExtensionsIn(patient).getMatchingExtensions(template);
+        blackhole.consume(matching);
+      }
+    }
+  }
+}
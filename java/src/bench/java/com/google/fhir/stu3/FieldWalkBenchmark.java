@@ -0,0 +1,135 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.fhir.stu3.proto.ExplanationOfBenefit;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.fhir.stu3.proto.Patient;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares walking all set fields of a resource with {@link MessageFields}, against walking them
+ * with getAllFields(), and measures printing the resource, which walks its fields the same way.
+ * The resources are parsed from the json examples in testdata, relative to the working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldWalkBenchmark {
+
+  @Param({"explanationofbenefit-example", "observation-example", "patient-example"})
+  public String example;
+
+  private Message resource;
+  private JsonFormat.Printer printer;
+
+  @Setup
+  public void setUp() throws IOException {
+    Message.Builder builder;
+    if (example.startsWith("explanationofbenefit")) {
+      builder = ExplanationOfBenefit.newBuilder();
+    } else if (example.startsWith("observation")) {
+      builder = Observation.newBuilder();
+    } else if (example.startsWith("patient")) {
+      builder = Patient.newBuilder();
+    } else {
+      throw new IllegalArgumentException("Unknown example: " + example);
+    }
+    String json =
+        new String(
+            Files.readAllBytes(Paths.get("testdata/stu3/examples/" + example + ".json")),
+            StandardCharsets.UTF_8);
+    JsonFormat.getParser().merge(json, builder);
+    resource = builder.build();
+    printer = JsonFormat.getPrinter().withDefaultTimeZone(ZoneId.of("Australia/Sydney"));
+  }
+
+  @Benchmark
+  public int walkMessageFields() {
+    return walkMessageFields(resource);
+  }
+
+  @Benchmark
+  public int walkGetAllFields() {
+    return walkGetAllFields(resource);
+  }
+
+  @Benchmark
+  public String print() throws IOException {
+    return printer.print(resource);
+  }
+
+  private static int walkMessageFields(MessageOrBuilder message) {
+    int count = 0;
+    MessageFields fields = MessageFields.of(message.getDescriptorForType());
+    for (int i = 0; i < fields.size(); i++) {
+      if (fields.isSet(message, i)) {
+        count += walkValue(fields.get(i), message.getField(fields.get(i)), true);
+      }
+    }
+    return count;
+  }
+
+  private static int walkGetAllFields(MessageOrBuilder message) {
+    int count = 0;
+    for (Map.Entry<FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
+      count += walkValue(field.getKey(), field.getValue(), false);
+    }
+    return count;
+  }
+
+  private static int walkValue(FieldDescriptor field, Object value, boolean messageFields) {
+    if (field.getType() != FieldDescriptor.Type.MESSAGE) {
+      return 1;
+    }
+    if (!field.isRepeated()) {
+      return 1 + walk((Message) value, messageFields);
+    }
+    int count = 1;
+    List<?> values = (List<?>) value;
+    for (int i = 0; i < values.size(); i++) {
+      count += walk((Message) values.get(i), messageFields);
+    }
+    return count;
+  }
+
+  private static int walk(Message message, boolean messageFields) {
+    return messageFields ? walkMessageFields(message) : walkGetAllFields(message);
+  }
+}
@@ -0,0 +1,186 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.fhir.stu3.proto.ContainedResource;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures parsing and printing the json examples in testdata, which have a prototxt version and
+ * are therefore known to parse, for each resource type. One operation parses or prints all
+ * examples of the type, in either the compact or the pretty format; the input of the parse
+ * benchmark is the output of the print benchmark. The examples are read relative to the working
+ * directory.
+ *
+ * <p>Unless given other options, the main method runs all of these benchmarks with the gc profiler,
+ * which reports the allocation rate and the bytes allocated per operation, and writes the results
+ * as json to jsonformat-benchmark.json in the directory it was started from, for comparing runs on
+ * different commits. Running every resource type takes about an hour; select some with e.g.
+ *
+ * <pre>
+ *   bazel run //java:JsonFormatBenchmark -- -p resourceType=Patient,Observation
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class JsonFormatBenchmark {
+
+  private static final Path EXAMPLES = Paths.get("testdata/stu3/examples");
+  private static final String RESULT_FILE = "jsonformat-benchmark.json";
+
+  @Param({
+    "Account", "ActivityDefinition", "AdverseEvent", "AllergyIntolerance", "Appointment",
+    "AppointmentResponse", "AuditEvent", "Basic", "Binary", "BodySite", "Bundle",
+    "CapabilityStatement", "CarePlan", "CareTeam", "ChargeItem", "Claim", "ClaimResponse",
+    "ClinicalImpression", "CodeSystem", "Communication", "CommunicationRequest",
+    "CompartmentDefinition", "Composition", "ConceptMap", "Condition", "Consent", "Contract",
+    "Coverage", "DataElement", "DetectedIssue", "Device", "DeviceComponent", "DeviceMetric",
+    "DeviceRequest", "DeviceUseStatement", "DiagnosticReport", "DocumentManifest",
+    "DocumentReference", "EligibilityRequest", "EligibilityResponse", "Encounter", "Endpoint",
+    "EnrollmentRequest", "EnrollmentResponse", "EpisodeOfCare", "ExpansionProfile",
+    "ExplanationOfBenefit", "FamilyMemberHistory", "Flag", "Goal", "GraphDefinition", "Group",
+    "GuidanceResponse", "HealthcareService", "ImagingManifest", "ImagingStudy", "Immunization",
+    "ImmunizationRecommendation", "ImplementationGuide", "Library", "Linkage", "List", "Location",
+    "Measure", "MeasureReport", "Media", "Medication", "MedicationAdministration",
+    "MedicationDispense", "MedicationRequest", "MedicationStatement", "MessageDefinition",
+    "MessageHeader", "NamingSystem", "NutritionOrder", "Observation", "OperationDefinition",
+    "OperationOutcome", "Organization", "Parameters", "Patient", "PaymentNotice",
+    "PaymentReconciliation", "Person", "PlanDefinition", "Practitioner", "PractitionerRole",
+    "Procedure", "ProcedureRequest", "ProcessRequest", "ProcessResponse", "Provenance",
+    "Questionnaire", "QuestionnaireResponse", "ReferralRequest", "RelatedPerson", "RequestGroup",
+    "ResearchStudy", "ResearchSubject", "RiskAssessment", "Schedule", "SearchParameter", "Sequence",
+    "ServiceDefinition", "Slot", "Specimen", "StructureDefinition", "StructureMap", "Subscription",
+    "Substance", "SupplyDelivery", "SupplyRequest", "Task", "TestReport", "TestScript", "ValueSet",
+    "VisionPrescription"
+  })
+  public String resourceType;
+
+  @Param({"compact", "pretty"})
+  public String format;
+
+  private final List<ContainedResource> resources = new ArrayList<>();
+  private final List<String> json = new ArrayList<>();
+  private JsonFormat.Parser parser;
+  private JsonFormat.Printer printer;
+
+  @Setup
+  public void setUp() throws IOException {
+    ZoneId defaultTimeZone = ZoneId.of("Australia/Sydney");
+    parser = JsonFormat.Parser.newBuilder().withDefaultTimeZone(defaultTimeZone).build();
+    printer = JsonFormat.getPrinter().withDefaultTimeZone(defaultTimeZone);
+    if (format.equals("compact")) {
+      printer = printer.omittingInsignificantWhitespace();
+    } else if (!format.equals("pretty")) {
+      throw new IllegalArgumentException("Unknown format: " + format);
+    }
+    // Sorted, so that every run benchmarks the same examples in the same order.
+    TreeSet<Path> files = new TreeSet<>();
+    try (DirectoryStream<Path> examples = Files.newDirectoryStream(EXAMPLES, "*.json")) {
+      for (Path file : examples) {
+        files.add(file);
+      }
+    }
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      String prototxt = name.substring(0, name.length() - ".json".length()) + ".prototxt";
+      if (!Files.exists(file.resolveSibling(prototxt))) {
+        continue;
+      }
+      ContainedResource.Builder builder = ContainedResource.newBuilder();
+      parser.merge(new String(Files.readAllBytes(file), UTF_8), builder);
+      ContainedResource resource = builder.build();
+      if (ResourceUtils.getResourceType(ResourceUtils.getContainedResource(resource))
+          .equals(resourceType)) {
+        resources.add(resource);
+        json.add(printer.print(resource));
+      }
+    }
+    if (resources.isEmpty()) {
+      throw new IllegalArgumentException("No examples of type " + resourceType);
+    }
+  }
+
+  @Benchmark
+  public void parse(Blackhole blackhole) {
+    for (int i = 0; i < json.size(); i++) {
+      ContainedResource.Builder resource = ContainedResource.newBuilder();
+      parser.merge(json.get(i), resource);
+      blackhole.consume(resource.build());
+    }
+  }
+
+  @Benchmark
+  public void print(Blackhole blackhole) throws IOException {
+    for (int i = 0; i < resources.size(); i++) {
+      blackhole.consume(printer.print(resources.get(i)));
+    }
+  }
+
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+    if (commandLine.getIncludes().isEmpty()) {
+      options.include(JsonFormatBenchmark.class.getName());
+    }
+    if (commandLine.getProfilers().isEmpty()) {
+      options.addProfiler(GCProfiler.class);
+    }
+    if (!commandLine.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    if (!commandLine.getResult().hasValue()) {
+      // Under bazel run, the working directory is the runfiles tree.
+      String directory = System.getenv("BUILD_WORKING_DIRECTORY");
+      options.result(
+          directory == null ? RESULT_FILE : Paths.get(directory, RESULT_FILE).toString());
+    }
+    new Runner(options.build()).run();
+  }
+}
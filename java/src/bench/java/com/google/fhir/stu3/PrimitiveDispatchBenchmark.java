@@ -0,0 +1,173 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.fhir.stu3.proto.Code;
+import com.google.fhir.stu3.proto.DateTime;
+import com.google.fhir.stu3.proto.Decimal;
+import com.google.fhir.stu3.proto.ObservationStatusCode;
+import com.google.fhir.stu3.proto.Uri;
+import com.google.fhir.stu3.proto.Xhtml;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares looking up how to wrap a primitive value in {@link PrimitiveWrappers}, against the
+ * previous implementation in {@link JsonFormat}, which checked for a valueset annotation and then
+ * switched on the name of the type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveDispatchBenchmark {
+
+  @Param({"Code", "DateTime", "Decimal", "Uri", "Xhtml", "ObservationStatusCode"})
+  public String type;
+
+  private final ZoneId defaultTimeZone = ZoneId.of("Australia/Sydney");
+  private Message message;
+  private Descriptor descriptor;
+
+  @Setup
+  public void setUp() {
+    switch (type) {
+      case "Code":
+        message = Code.newBuilder().setValue("final").build();
+        break;
+      case "DateTime":
+        message = new DateTimeWrapper("2018-03-28T10:15:30Z", defaultTimeZone).getWrapped();
+        break;
+      case "Decimal":
+        message = Decimal.newBuilder().setValue("1.5").build();
+        break;
+      case "Uri":
+        message = Uri.newBuilder().setValue("http://loinc.org").build();
+        break;
+      case "Xhtml":
+        message = Xhtml.newBuilder().setValue("<div>text</div>").build();
+        break;
+      case "ObservationStatusCode":
+        message =
+            ObservationStatusCode.newBuilder().setValue(ObservationStatusCode.Value.FINAL).build();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown type: " + type);
+    }
+    descriptor = message.getDescriptorForType();
+  }
+
+  @Benchmark
+  public PrimitiveWrappers.Factory dispatch() {
+    return PrimitiveWrappers.forType(descriptor);
+  }
+
+  @Benchmark
+  public int dispatchBySwitch() {
+    return SwitchDispatch.dispatch(descriptor);
+  }
+
+  @Benchmark
+  public PrimitiveWrapper<?> wrap() {
+    return PrimitiveWrappers.forType(message.getDescriptorForType()).wrap(message, defaultTimeZone);
+  }
+
+  @Benchmark
+  public PrimitiveWrapper<?> wrapBySwitch() {
+    return SwitchDispatch.wrap(message, defaultTimeZone);
+  }
+
+  /** The dispatch JsonFormat.primitiveWrapperOf used before PrimitiveWrappers. */
+  private static final class SwitchDispatch {
+    static int dispatch(Descriptor descriptor) {
+      if (AnnotationUtils.getValuesetUrl(descriptor) != null) {
+        return 0;
+      }
+      switch (descriptor.getName()) {
+        case "Base64Binary":
+          return 1;
+        case "Boolean":
+          return 2;
+        case "Code":
+          return 3;
+        case "Date":
+          return 4;
+        case "DateTime":
+          return 5;
+        case "Decimal":
+          return 6;
+        case "Id":
+          return 7;
+        case "Instant":
+          return 8;
+        case "Integer":
+          return 9;
+        case "Markdown":
+          return 10;
+        case "Oid":
+          return 11;
+        case "PositiveInt":
+          return 12;
+        case "String":
+          return 13;
+        case "Time":
+          return 14;
+        case "UnsignedInt":
+          return 15;
+        case "Uri":
+          return 16;
+        case "Xhtml":
+          return 17;
+        default:
+          throw new IllegalArgumentException(
+              "Unexpected primitive FHIR type: " + descriptor.getName());
+      }
+    }
+
+    static PrimitiveWrapper<?> wrap(Message message, ZoneId defaultTimeZone) {
+      switch (dispatch(message.getDescriptorForType())) {
+        case 0:
+          return CodeWrapper.of(message);
+        case 3:
+          return new CodeWrapper((Code) message);
+        case 5:
+          return new DateTimeWrapper((DateTime) message, defaultTimeZone);
+        case 6:
+          return new DecimalWrapper((Decimal) message);
+        case 16:
+          return new UriWrapper((Uri) message);
+        case 17:
+          return new XhtmlWrapper((Xhtml) message);
+        default:
+          throw new IllegalArgumentException("Not benchmarked: " + message.getDescriptorForType());
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.CaseFormat;
+import com.google.fhir.stu3.proto.Code;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the leaf paths of the json parser and printer for each primitive type: parse, which
+ * turns a json value into the proto with {@link PrimitiveWrappers.Factory#parse}, and print, which
+ * wraps the proto and prints its json value like the printer does. The inputs are the non-null
+ * values of the valid ndjson files in testdata/stu3/validation, read relative to the working
+ * directory. One operation parses or prints one value; successive operations cycle through the
+ * values of the type.
+ *
+ * <p>Unless given other options, the main method runs all of these benchmarks with the gc profiler,
+ * whose gc.alloc.rate.norm is the number of bytes allocated per operation, and writes the results
+ * as json to primitivewrapper-benchmark.json in the directory it was started from. Select types
+ * with e.g.
+ *
+ * <pre>
+ *   bazel run //java:PrimitiveWrapperBenchmark -- -p type=date_time,decimal
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveWrapperBenchmark {
+
+  private static final Path VALIDATION = Paths.get("testdata/stu3/validation");
+  private static final String RESULT_FILE = "primitivewrapper-benchmark.json";
+
+  /** The name of the ndjson files of the type, which is the type name in lower_underscore. */
+  @Param({
+    "base64_binary", "boolean", "code", "date", "date_time", "decimal", "id", "instant", "integer",
+    "markdown", "oid", "positive_int", "string", "time", "unsigned_int", "uri", "xhtml"
+  })
+  public String type;
+
+  private final ZoneId defaultTimeZone = ZoneId.of("Australia/Sydney");
+  private PrimitiveWrappers.Factory factory;
+  private String[] values;
+  private Message[] messages;
+  private int next = 0;
+  private final StringTextGenerator generator = new StringTextGenerator();
+
+  @Setup
+  public void setUp() throws IOException {
+    String typeName = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, type);
+    Descriptor descriptor = Code.getDescriptor().getFile().findMessageTypeByName(typeName);
+    if (descriptor == null) {
+      throw new IllegalArgumentException("Unknown primitive type: " + type);
+    }
+    factory = PrimitiveWrappers.forType(descriptor);
+    List<String> jsonValues = new ArrayList<>();
+    JsonParser jsonParser = new JsonParser();
+    for (String line : Files.readAllLines(VALIDATION.resolve(type + ".valid.ndjson"), UTF_8)) {
+      JsonElement json = jsonParser.parse(line);
+      // Nulls only test that primitives may have no value, and are not parsed by the wrappers.
+      if (json.isJsonPrimitive()) {
+        jsonValues.add(json.getAsString());
+      }
+    }
+    if (jsonValues.isEmpty()) {
+      throw new IllegalArgumentException("No valid values of type " + type);
+    }
+    values = jsonValues.toArray(new String[0]);
+    messages = new Message[values.length];
+    for (int i = 0; i < values.length; i++) {
+      messages[i] = factory.parse(values[i], defaultTimeZone).getWrapped();
+    }
+  }
+
+  private int nextIndex() {
+    int index = next;
+    next = index + 1 == values.length ? 0 : index + 1;
+    return index;
+  }
+
+  @Benchmark
+  public Message parse() {
+    return factory.parse(values[nextIndex()], defaultTimeZone).getWrapped();
+  }
+
+  @Benchmark
+  public CharSequence print() throws IOException {
+    generator.output.setLength(0);
+    factory.wrap(messages[nextIndex()], defaultTimeZone).writeJson(generator);
+    return generator.output;
+  }
+
+  /**
+   * Collects the printed value. Strings are not escaped, since escaping is done by the printer's
+   * own generators, and measured with the rest of the printer by {@link JsonFormatBenchmark}.
+   */
+  private static final class StringTextGenerator implements JsonFormat.TextGenerator {
+    private final StringBuilder output = new StringBuilder();
+
+    @Override
+    public void indent() {}
+
+    @Override
+    public void outdent() {}
+
+    @Override
+    public void print(CharSequence text) {
+      output.append(text);
+    }
+
+    @Override
+    public void print(JsonFormat.Token token) {
+      output.append(token);
+    }
+
+    @Override
+    public void printString(CharSequence text) {
+      output.append('"').append(text).append('"');
+    }
+  }
+
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+    if (commandLine.getIncludes().isEmpty()) {
+      options.include(PrimitiveWrapperBenchmark.class.getName());
+    }
+    if (commandLine.getProfilers().isEmpty()) {
+      options.addProfiler(GCProfiler.class);
+    }
+    if (!commandLine.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    if (!commandLine.getResult().hasValue()) {
+      // Under bazel run, the working directory is the runfiles tree.
+      String directory = System.getenv("BUILD_WORKING_DIRECTORY");
+      options.result(
+          directory == null ? RESULT_FILE : Paths.get(directory, RESULT_FILE).toString());
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -16,19 +16,28 @@ package com.google.fhir.examples;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.beust.jcommander.Parameter;
 import com.google.fhir.stu3.JsonFormat.Parser;
 import com.google.fhir.stu3.ResourceUtils;
 import com.google.fhir.stu3.proto.ContainedResource;
 import com.google.protobuf.Message;
 import com.google.protobuf.util.JsonFormat;
 import com.google.protobuf.util.JsonFormat.Printer;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * This example reads FHIR resources in standard ndjson format, containing one message per line, and
@@ -39,31 +48,369 @@ import java.util.Map;
  */
 public class ConvertNdJsonForBigQueryMain {
 
+  /**
+   * Splits an input stream into lines of bytes, without decoding them. Like {@link
+   * java.io.BufferedReader#readLine}, a line ends at "\n", "\r" or "\r\n".
+   */
+  private static class LineReader {
+    private final InputStream input;
+    private byte[] buffer = new byte[64 * 1024];
+    // The unread bytes are buffer[start, end).
+    private int start = 0;
+    private int end = 0;
+    private boolean endOfInput = false;
+    // Set after a line ended at a '\r', so that a '\n' right after it is skipped.
+    private boolean skipLineFeed = false;
+
+    LineReader(InputStream input) {
+      this.input = input;
+    }
+
+    /**
+     * Returns the next line, without its line terminator, or null at the end of the input. The
+     * returned buffer is only valid until the next call.
+     */
+    ByteBuffer readLine() throws IOException {
+      int scanned = start;
+      while (true) {
+        if (skipLineFeed && scanned < end) {
+          skipLineFeed = false;
+          if (buffer[scanned] == '\n') {
+            start = ++scanned;
+          }
+        }
+        for (; scanned < end; scanned++) {
+          byte b = buffer[scanned];
+          if (b == '\n' || b == '\r') {
+            ByteBuffer line = ByteBuffer.wrap(buffer, start, scanned - start);
+            start = scanned + 1;
+            skipLineFeed = b == '\r';
+            return line;
+          }
+        }
+        if (endOfInput) {
+          if (start == end) {
+            return null;
+          }
+          ByteBuffer line = ByteBuffer.wrap(buffer, start, end - start);
+          start = end;
+          return line;
+        }
+        // Make room for more input, moving the partial line to the front of the buffer.
+        if (start > 0) {
+          System.arraycopy(buffer, start, buffer, 0, end - start);
+          scanned -= start;
+          end -= start;
+          start = 0;
+        } else if (end == buffer.length) {
+          buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+        int read = input.read(buffer, end, buffer.length - end);
+        if (read == -1) {
+          endOfInput = true;
+        } else {
+          end += read;
+        }
+      }
+    }
+
+    void close() throws IOException {
+      input.close();
+    }
+  }
+
+  /** Flags for running the conversion in parallel. */
+  private static class PipelineArgs {
+    @Parameter(
+      names = {"--threads"},
+      description =
+          "Number of threads parsing and printing resources. With more than one, each file is read,"
+              + " converted and written by separate threads. Zero uses one per processor."
+    )
+    private int threads = 1;
+
+    @Parameter(
+      names = {"--virtual_threads"},
+      description = "Convert on virtual threads instead of a thread pool; requires Java 21"
+    )
+    private boolean virtualThreads = false;
+
+    @Parameter(
+      names = {"--unordered_output"},
+      description = "Write converted resources as soon as they are ready, in any order"
+    )
+    private boolean unorderedOutput = false;
+  }
+
+  // Lines are handed to the workers in batches of about this size, to amortize the hand-off cost.
+  private static final int BATCH_SIZE_BYTES = 256 * 1024;
+  private static final int BATCH_SIZE_LINES = 1024;
+
+  // The number of batches each worker may have in flight, which bounds the memory used.
+  private static final int BATCHES_PER_THREAD = 4;
+
+  /** A batch of input lines, stored back to back. */
+  private static class Batch {
+    final long sequence;
+    byte[] data = new byte[BATCH_SIZE_BYTES];
+    int size = 0;
+    int[] lineEnds = new int[BATCH_SIZE_LINES];
+    int lineCount = 0;
+
+    Batch(long sequence) {
+      this.sequence = sequence;
+    }
+
+    void add(ByteBuffer line) {
+      if (size + line.remaining() > data.length) {
+        data = Arrays.copyOf(data, Math.max(2 * data.length, size + line.remaining()));
+      }
+      int length = line.remaining();
+      line.get(data, size, length);
+      size += length;
+      lineEnds[lineCount++] = size;
+    }
+
+    boolean isFull() {
+      return size >= BATCH_SIZE_BYTES || lineCount == lineEnds.length;
+    }
+
+    ByteBuffer getLine(int index) {
+      int lineStart = index == 0 ? 0 : lineEnds[index - 1];
+      return ByteBuffer.wrap(data, lineStart, lineEnds[index] - lineStart);
+    }
+  }
+
+  /** The converted output of a batch, or the failure converting it. */
+  private static class Result {
+    final long sequence;
+    final StringBuilder output = new StringBuilder();
+    // Counts are kept per batch and merged by the writer, so the workers never share them.
+    final Map<String, Integer> counts = new HashMap<>();
+    Throwable failure = null;
+    // Set on the result the reader queues at the end of the input, whose sequence is the number of
+    // batches.
+    boolean endOfInput = false;
+
+    Result(long sequence) {
+      this.sequence = sequence;
+    }
+  }
+
+  private final Parser fhirParser;
+  private final Printer protoPrinter;
+
+  private ConvertNdJsonForBigQueryMain(Parser fhirParser, Printer protoPrinter) {
+    this.fhirParser = fhirParser;
+    this.protoPrinter = protoPrinter;
+  }
+
+  /** Converts one line of input, and returns the type of the resource it contained. */
+  private String convertLine(ByteBuffer line, Appendable output) throws IOException {
+    // We parse as a ContainedResource, because we don't know what type of resource this is.
+    ContainedResource.Builder builder = ContainedResource.newBuilder();
+    fhirParser.merge(line, builder);
+    // Extract and print the (one) parsed resource.
+    Message parsed = ResourceUtils.getContainedResource(builder.build());
+    protoPrinter.appendTo(parsed, output);
+    return parsed.getDescriptorForType().getName();
+  }
+
+  private static void count(Map<String, Integer> counts, String resourceType, int count) {
+    Integer existing = counts.get(resourceType);
+    counts.put(resourceType, existing == null ? count : existing + count);
+  }
+
+  /** Converts the input on the calling thread. */
+  private void convert(LineReader input, BufferedWriter output, Map<String, Integer> counts)
+      throws IOException {
+    for (ByteBuffer line = input.readLine(); line != null; line = input.readLine()) {
+      count(counts, convertLine(line, output), 1);
+      output.newLine();
+    }
+  }
+
+  /**
+   * Converts the input with a pipeline: a reader thread splits the input into batches, the workers
+   * convert the batches, and the calling thread writes the results, either in input order or as
+   * they complete. The number of batches in flight is bounded, so that slow workers or a slow
+   * writer hold up the reader instead of letting it buffer the input.
+   */
+  private void convert(
+      LineReader input,
+      BufferedWriter output,
+      Map<String, Integer> counts,
+      ExecutorService workers,
+      int maxBatchesInFlight,
+      boolean ordered)
+      throws IOException {
+    Semaphore batchesInFlight = new Semaphore(maxBatchesInFlight);
+    // Holds at most the batches in flight, plus the end of input.
+    BlockingQueue<Result> results = new ArrayBlockingQueue<>(maxBatchesInFlight + 1);
+    ExecutorService readerThread = Executors.newSingleThreadExecutor();
+    Future<?> reader =
+        readerThread.submit(
+            () -> {
+              read(input, workers, batchesInFlight, results);
+              return null;
+            });
+    readerThread.shutdown();
+
+    Map<Long, Result> pending = new HashMap<>();
+    long written = 0;
+    long batchCount = -1;
+    try {
+      while (batchCount == -1 || written < batchCount) {
+        Result result = results.take();
+        if (result.failure instanceof IOException) {
+          throw (IOException) result.failure;
+        } else if (result.failure instanceof RuntimeException) {
+          throw (RuntimeException) result.failure;
+        } else if (result.failure != null) {
+          throw (Error) result.failure;
+        }
+        if (result.endOfInput) {
+          batchCount = result.sequence;
+        } else if (!ordered) {
+          write(result, output, counts);
+          batchesInFlight.release();
+          written++;
+        } else {
+          pending.put(result.sequence, result);
+          for (result = pending.remove(written); result != null; result = pending.remove(written)) {
+            write(result, output, counts);
+            batchesInFlight.release();
+            written++;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while converting", e);
+    } finally {
+      // Stops the reader if we fail before reaching the end of the input.
+      reader.cancel(true /* mayInterruptIfRunning */);
+    }
+  }
+
+  /** Splits the input into batches, and hands them to the workers. */
+  private void read(
+      LineReader input,
+      ExecutorService workers,
+      Semaphore batchesInFlight,
+      BlockingQueue<Result> results)
+      throws InterruptedException {
+    long sequence = 0;
+    Result end;
+    try {
+      Batch batch = new Batch(sequence);
+      for (ByteBuffer line = input.readLine(); line != null; line = input.readLine()) {
+        batch.add(line);
+        if (batch.isFull()) {
+          submit(batch, workers, batchesInFlight, results);
+          batch = new Batch(++sequence);
+        }
+      }
+      if (batch.lineCount > 0) {
+        submit(batch, workers, batchesInFlight, results);
+        sequence++;
+      }
+      end = new Result(sequence);
+    } catch (IOException e) {
+      end = new Result(sequence);
+      end.failure = e;
+    }
+    end.endOfInput = true;
+    results.put(end);
+  }
+
+  private void submit(
+      Batch batch,
+      ExecutorService workers,
+      Semaphore batchesInFlight,
+      BlockingQueue<Result> results)
+      throws InterruptedException {
+    batchesInFlight.acquire();
+    workers.execute(
+        () -> {
+          Result result = new Result(batch.sequence);
+          try {
+            for (int i = 0; i < batch.lineCount; i++) {
+              count(result.counts, convertLine(batch.getLine(i), result.output), 1);
+              result.output.append(System.lineSeparator());
+            }
+          } catch (IOException | RuntimeException | Error e) {
+            result.failure = e;
+          }
+          // There is always room, since the queue holds all batches in flight.
+          results.add(result);
+        });
+  }
+
+  private static void write(Result result, BufferedWriter output, Map<String, Integer> counts)
+      throws IOException {
+    output.append(result.output);
+    for (Map.Entry<String, Integer> count : result.counts.entrySet()) {
+      count(counts, count.getKey(), count.getValue());
+    }
+  }
+
+  private static ExecutorService newWorkers(PipelineArgs pipelineArgs, int threads) {
+    if (!pipelineArgs.virtualThreads) {
+      return Executors.newFixedThreadPool(threads);
+    }
+    // Looked up reflectively, so that this example still builds and runs on older JDKs.
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("--virtual_threads requires Java 21 or later", e);
+    }
+  }
+
   public static void main(String[] argv) throws IOException {
-    JsonParserArgs args = new JsonParserArgs(argv);
-    Parser fhirParser = Parser.newBuilder().withDefaultTimeZone(args.getDefaultTimezone()).build();
+    PipelineArgs pipelineArgs = new PipelineArgs();
+    JsonParserArgs args = new JsonParserArgs(argv, pipelineArgs);
+    Parser fhirParser =
+        Parser.newBuilder()
+            .withDefaultTimeZone(args.getDefaultTimezone())
+            .withStreaming()
+            .build();
     Printer protoPrinter = JsonFormat.printer().omittingInsignificantWhitespace();
+    ConvertNdJsonForBigQueryMain converter =
+        new ConvertNdJsonForBigQueryMain(fhirParser, protoPrinter);
+    int threads =
+        pipelineArgs.threads > 0
+            ? pipelineArgs.threads
+            : Runtime.getRuntime().availableProcessors();
+    ExecutorService workers = threads > 1 ? newWorkers(pipelineArgs, threads) : null;
 
     // Process the input files one by one, and count the number of processed resources.
     Map<String, Integer> counts = new HashMap<>();
-    for (JsonParserArgs.InputOutputFilePair entry : args.getInputOutputFilePairs()) {
-      System.out.println("Processing " + entry.input + "...");
-      BufferedReader input = Files.newBufferedReader(Paths.get(entry.input.toString()), UTF_8);
-      BufferedWriter output = Files.newBufferedWriter(Paths.get(entry.output.toString()), UTF_8);
-      for (String line = input.readLine(); line != null; line = input.readLine()) {
-        // We parse as a ContainedResource, because we don't know what type of resource this is.
-        ContainedResource.Builder builder = ContainedResource.newBuilder();
-        fhirParser.merge(line, builder);
-        // Extract and print the (one) parsed resource.
-        Message parsed = ResourceUtils.getContainedResource(builder.build());
-        protoPrinter.appendTo(parsed, output);
-        output.newLine();
-        // Count the number of parsed resources.
-        String resourceType = parsed.getDescriptorForType().getName();
-        int count = counts.containsKey(resourceType) ? counts.get(resourceType) : 0;
-        counts.put(resourceType, count + 1);
+    try {
+      for (JsonParserArgs.InputOutputFilePair entry : args.getInputOutputFilePairs()) {
+        System.out.println("Processing " + entry.input + "...");
+        // The input lines are handed to the parser as raw UTF-8 bytes, which it decodes as it goes.
+        LineReader input = new LineReader(Files.newInputStream(Paths.get(entry.input.toString())));
+        BufferedWriter output = Files.newBufferedWriter(Paths.get(entry.output.toString()), UTF_8);
+        if (workers == null) {
+          converter.convert(input, output, counts);
+        } else {
+          converter.convert(
+              input,
+              output,
+              counts,
+              workers,
+              BATCHES_PER_THREAD * threads,
+              !pipelineArgs.unorderedOutput);
+        }
+        input.close();
+        output.close();
+      }
+    } finally {
+      if (workers != null) {
+        workers.shutdownNow();
       }
-      output.close();
     }
     System.out.println(
         "Processed "
@@ -0,0 +1,62 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.examples;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.fhir.stu3.FieldAccessorPrinter;
+import com.google.fhir.stu3.proto.AccountStatusCode;
+import com.google.fhir.stu3.proto.ElementDefinition;
+import com.google.fhir.stu3.proto.ElementDefinitionBindingName;
+import com.google.fhir.stu3.proto.Extension;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * This example generates the FieldAccessor classes for the STU3 protos, which JsonFormat uses in
+ * place of protobuf reflection when they are on the classpath. The sources are saved into a
+ * .srcjar, given as the only argument.
+ */
+public class GenerateFieldAccessorsMain {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      throw new IllegalArgumentException("Usage: GenerateFieldAccessors <output.srcjar>");
+    }
+    FileDescriptor[] files = {
+      Extension.getDescriptor().getFile(),
+      AccountStatusCode.getDescriptor().getFile(),
+      ElementDefinition.getDescriptor().getFile(),
+      ElementDefinitionBindingName.getDescriptor().getFile(),
+      Observation.getDescriptor().getFile(),
+    };
+    FieldAccessorPrinter printer = new FieldAccessorPrinter();
+    try (ZipOutputStream output = new ZipOutputStream(new FileOutputStream(args[0]))) {
+      for (FileDescriptor file : files) {
+        System.out.println("Generating field accessors for " + file.getName() + "...");
+        for (Map.Entry<String, String> accessor : printer.print(file.toProto()).entrySet()) {
+          output.putNextEntry(new ZipEntry(accessor.getKey().replace('.', '/') + ".java"));
+          output.write(accessor.getValue().getBytes(UTF_8));
+          output.closeEntry();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,261 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.examples;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.fhir.stu3.JsonFormat;
+import com.google.fhir.stu3.ResourceGenerator;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This example generates a synthetic corpus of FHIR resources, for load and throughput tests of
+ * the parser and printer, or of pipelines built on them, without downloading a real corpus. The
+ * output is split into shards, which are generated independently, so they can be generated in
+ * parallel. Shard i uses the seed --seed + i, so the output only depends on the flags, not on the
+ * number of threads. In ndjson format, each shard is written as one file of resources, one per
+ * line, whose references point to earlier resources of the shard. In bundle format, each shard is
+ * written as Bundle files of --bundle_size entries, whose references are "urn:uuid:" references
+ * to earlier entries of the same Bundle, such as SplitBundleMain resolves.
+ */
+public class GenerateSyntheticCorpusMain {
+
+  private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+
+  private static class Args {
+    @Parameter(
+      names = {"--output_directory"},
+      description = "Directory where generated output will be saved"
+    )
+    private String outputDirectory = ".";
+
+    @Parameter(
+      names = {"--format"},
+      description = "Either ndjson, for files of one resource per line, or bundle, for Bundle files"
+    )
+    private String format = "ndjson";
+
+    @Parameter(
+      names = {"--resources"},
+      description = "Total number of resources to generate"
+    )
+    private long resources = 1000;
+
+    @Parameter(
+      names = {"--bundle_size"},
+      description = "Number of entries of each Bundle, in bundle format"
+    )
+    private int bundleSize = 100;
+
+    @Parameter(
+      names = {"--shards"},
+      description = "Number of shards the resources are split into, each with its own seed"
+    )
+    private int shards = 1;
+
+    @Parameter(
+      names = {"--threads"},
+      description = "Number of threads generating shards. Zero uses one per processor."
+    )
+    private int threads = 1;
+
+    @Parameter(
+      names = {"--seed"},
+      description =
+          "Seed of the first shard, which together with the other flags determines the output"
+    )
+    private long seed = 0;
+
+    @Parameter(
+      names = {"--max_depth"},
+      description = "Depth of nested elements from which only required fields are set"
+    )
+    private int maxDepth = 3;
+
+    @Parameter(
+      names = {"--field_probability"},
+      description = "Probability that an optional field is set"
+    )
+    private double fieldProbability = 0.3;
+
+    @Parameter(
+      names = {"--max_repeated"},
+      description = "Maximum number of values of a repeated field"
+    )
+    private int maxRepeated = 3;
+
+    @Parameter(
+      names = {"--extension_density"},
+      description = "Probability that an element has an extension, and then another one"
+    )
+    private double extensionDensity = 0.05;
+
+    @Parameter(
+      names = {"--reference_fan_out"},
+      description = "Maximum number of references from one resource to other resources"
+    )
+    private int referenceFanOut = 4;
+
+    @Parameter(
+      names = {"--resource_types"},
+      description = "Resource types to generate, such as Patient; defaults to all but Bundle"
+    )
+    private List<String> resourceTypes = new ArrayList<>();
+
+    @Parameter(
+      names = {"--default_timezone"},
+      description = "Default timezone of generated dates, which are printed without one"
+    )
+    private String defaultTimezone = "Australia/Sydney";
+  }
+
+  private final Args args;
+  private final ResourceGenerator.Builder generatorSettings;
+  private final JsonFormat.Printer printer;
+
+  private GenerateSyntheticCorpusMain(Args args) {
+    this.args = args;
+    ZoneId defaultTimeZone = ZoneId.of(args.defaultTimezone);
+    ResourceGenerator.Builder settings =
+        ResourceGenerator.newBuilder()
+            .withMaxDepth(args.maxDepth)
+            .withFieldProbability(args.fieldProbability)
+            .withMaxRepeated(args.maxRepeated)
+            .withExtensionDensity(args.extensionDensity)
+            .withReferenceFanOut(args.referenceFanOut)
+            .withDefaultTimeZone(defaultTimeZone);
+    if (!args.resourceTypes.isEmpty()) {
+      settings = settings.withResourceTypes(args.resourceTypes);
+    }
+    this.generatorSettings = settings;
+    this.printer =
+        JsonFormat.getPrinter()
+            .withDefaultTimeZone(defaultTimeZone)
+            .omittingInsignificantWhitespace();
+  }
+
+  /** Generates one shard of the given number of resources, and returns the bytes written. */
+  private long generateShard(int shard, long resourceCount) throws IOException {
+    ResourceGenerator generator = generatorSettings.withSeed(args.seed + shard).build();
+    Path outputDirectory = Paths.get(args.outputDirectory);
+    long bytes = 0;
+    if (args.format.equals("ndjson")) {
+      Path file = outputDirectory.resolve("synthetic-" + shard + ".ndjson");
+      try (OutputStream output = newOutputStream(file)) {
+        for (long i = 0; i < resourceCount; i++) {
+          printer.writeTo(generator.nextResource(), output);
+          output.write('\n');
+        }
+      }
+      bytes += Files.size(file);
+    } else {
+      long bundleCount = (resourceCount + args.bundleSize - 1) / args.bundleSize;
+      for (long i = 0; i < bundleCount; i++) {
+        int entryCount = (int) Math.min(args.bundleSize, resourceCount - i * args.bundleSize);
+        Path file = outputDirectory.resolve("synthetic-" + shard + "-" + i + ".json");
+        try (OutputStream output = newOutputStream(file)) {
+          printer.writeTo(generator.nextBundle(entryCount), output);
+        }
+        bytes += Files.size(file);
+      }
+    }
+    return bytes;
+  }
+
+  private static OutputStream newOutputStream(Path file) throws IOException {
+    return new BufferedOutputStream(Files.newOutputStream(file), OUTPUT_BUFFER_SIZE);
+  }
+
+  /** Generates all shards, spreading the resources evenly, and returns the bytes written. */
+  private long run() throws IOException {
+    int threads = args.threads > 0 ? args.threads : Runtime.getRuntime().availableProcessors();
+    ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, args.shards));
+    try {
+      List<Future<Long>> shards = new ArrayList<>();
+      for (int i = 0; i < args.shards; i++) {
+        int shard = i;
+        long resourceCount =
+            args.resources / args.shards + (i < args.resources % args.shards ? 1 : 0);
+        shards.add(workers.submit(() -> generateShard(shard, resourceCount)));
+      }
+      long bytes = 0;
+      for (Future<Long> shard : shards) {
+        bytes += shard.get();
+      }
+      return bytes;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while generating", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException("Failed to generate a shard", e.getCause());
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  private static void checkArgs(Args args) {
+    if (!args.format.equals("ndjson") && !args.format.equals("bundle")) {
+      throw new ParameterException("--format must be ndjson or bundle, not " + args.format);
+    }
+    if (args.resources < 0) {
+      throw new ParameterException("--resources must not be negative");
+    }
+    if (args.bundleSize < 1) {
+      throw new ParameterException("--bundle_size must be positive");
+    }
+    if (args.shards < 1) {
+      throw new ParameterException("--shards must be positive");
+    }
+    if (args.threads < 0) {
+      throw new ParameterException("--threads must not be negative");
+    }
+  }
+
+  public static void main(String[] argv) throws IOException {
+    Args args = new Args();
+    JCommander jcommander = new JCommander(args);
+    try {
+      jcommander.parse(argv);
+      checkArgs(args);
+    } catch (ParameterException exception) {
+      System.err.printf("Invalid usage: %s\n", exception.getMessage());
+      jcommander.usage();
+      System.exit(1);
+    }
+
+    long start = System.nanoTime();
+    long bytes = new GenerateSyntheticCorpusMain(args).run();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf(
+        "Generated %d resources in %d shards, %d bytes in %.1f seconds (%.1f MB/s).\n",
+        args.resources, args.shards, bytes, seconds, bytes / seconds / 1e6);
+  }
+}
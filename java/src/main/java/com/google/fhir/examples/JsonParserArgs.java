@@ -53,9 +53,16 @@ public class JsonParserArgs {
   @Parameter(description = "List of input files")
   private List<String> inputFiles = new ArrayList<>();
 
-  /** Create a JsonParserArgs, initialized from command-line arguments. */
-  public JsonParserArgs(String[] argv) {
-    JCommander jcommander = new JCommander(this);
+  /**
+   * Create a JsonParserArgs, initialized from command-line arguments. Flags specific to one example
+   * can be declared on additional objects, which are initialized from the same arguments.
+   */
+  public JsonParserArgs(String[] argv, Object... additionalArgs) {
+    JCommander jcommander = new JCommander();
+    jcommander.addObject(this);
+    for (Object args : additionalArgs) {
+      jcommander.addObject(args);
+    }
     try {
       jcommander.parse(argv);
     } catch (ParameterException exception) {
@@ -22,6 +22,7 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.google.common.base.Splitter;
 import com.google.common.io.Files;
+import com.google.fhir.stu3.FieldAccessorPrinter;
 import com.google.fhir.stu3.JsonFormat;
 import com.google.fhir.stu3.ProtoFilePrinter;
 import com.google.fhir.stu3.ProtoGenerator;
@@ -42,7 +43,7 @@ import java.util.Map;
 /**
  * A class that runs ProtoGenerator on the specified inputs, turning FHIR StructureDefinition files
  * into proto descriptors. Depending on settings, either the descriptors, the .proto file, or both
- * will be emitted.
+ * will be emitted, optionally along with Java FieldAccessor classes for the generated messages.
  */
 class ProtoGeneratorMain {
 
@@ -73,6 +74,22 @@ class ProtoGeneratorMain {
     )
     private Boolean emitProto = false;
 
+    @Parameter(
+      names = {"--emit_field_accessors"},
+      description =
+          "Emit Java FieldAccessor classes for the generated messages, which JsonFormat uses in "
+              + "place of protobuf reflection"
+    )
+    private Boolean emitFieldAccessors = false;
+
+    @Parameter(
+      names = {"--field_accessor_directory"},
+      description =
+          "Source root where generated FieldAccessor classes will be saved, defaults to "
+              + "--output_directory"
+    )
+    private String fieldAccessorDirectory = null;
+
     @Parameter(
       names = {"--include_contained_resource"},
       description =
@@ -204,6 +221,20 @@ class ProtoGeneratorMain {
         Files.asCharSink(outputFile, UTF_8).write(TextFormat.printToString(descriptor));
       }
     }
+
+    if (args.emitFieldAccessors) {
+      // Save one .java file per accessor, laid out by package below the source root.
+      String sourceRoot =
+          args.fieldAccessorDirectory != null ? args.fieldAccessorDirectory : args.outputDirectory;
+      writer.println("Writing field accessors to " + sourceRoot + "...");
+      writer.flush();
+      for (Map.Entry<String, String> accessor :
+          new FieldAccessorPrinter().print(proto).entrySet()) {
+        File outputFile = new File(sourceRoot, accessor.getKey().replace('.', '/') + ".java");
+        Files.createParentDirs(outputFile);
+        Files.asCharSink(outputFile, UTF_8).write(accessor.getValue());
+      }
+    }
   }
 
   private StructureDefinition readStructureDefinition(String filename, JsonFormat.Parser jsonParser)
@@ -16,9 +16,10 @@ package com.google.fhir.examples;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.fhir.stu3.BundleEntryReader;
+import com.google.fhir.stu3.CorpusReferenceResolver;
 import com.google.fhir.stu3.JsonFormat.Parser;
 import com.google.fhir.stu3.ResourceUtils;
-import com.google.fhir.stu3.proto.Bundle;
 import com.google.protobuf.Message;
 import com.google.protobuf.util.JsonFormat.Printer;
 import java.io.BufferedWriter;
@@ -35,7 +36,7 @@ import java.util.Map;
 public class SplitBundleMain {
 
   public static void main(String[] args) throws IOException {
-    Parser fhirParser = com.google.fhir.stu3.JsonFormat.getParser();
+    Parser fhirParser = Parser.newBuilder().withStreaming().build();
     Printer protoPrinter =
         com.google.protobuf.util.JsonFormat.printer().omittingInsignificantWhitespace();
 
@@ -43,43 +44,56 @@ public class SplitBundleMain {
     Map<String, Integer> counts = new HashMap<>();
     // We create one file per output resource type.
     Map<String, BufferedWriter> output = new HashMap<>();
-    for (String file : args) {
-      System.out.println("Processing " + file + "...");
-      String input = new String(Files.readAllBytes(Paths.get(file)), UTF_8);
-
-      // Parse the input bundle.
-      Bundle.Builder builder = Bundle.newBuilder();
-      fhirParser.merge(input, builder);
-
-      // Some FHIR implementations use absolute urls for references, such as urn:uuid:<identifier>,
-      // we'd like to resolve them to for example Patient/<identifier> instead. Here we do it in an
-      // ad-hoc way, creating a map of full url to relative reference, and then apply that mapping
-      // directly to the input string. It's fragile and slow, but enough for an example application.
-      // For more details on resolving references in bundles, see
-      // https://www.hl7.org/fhir/bundle.html#references
-      Bundle bundle = ResourceUtils.resolveBundleReferences(builder.build());
-
-      // Split the bundle.
-      for (Bundle.Entry entry : bundle.getEntryList()) {
-        Message resource = ResourceUtils.getContainedResource(entry.getResource());
-        String resourceType = ResourceUtils.getResourceType(resource);
-        int count = counts.containsKey(resourceType) ? counts.get(resourceType) : 0;
-        counts.put(resourceType, count + 1);
-        if (!output.containsKey(resourceType)) {
-          output.put(
-              resourceType, Files.newBufferedWriter(Paths.get(resourceType + ".ndjson"), UTF_8));
+    // Some FHIR implementations use absolute urls for references, such as urn:uuid:<identifier>,
+    // we'd like to resolve them to for example Patient/<identifier> instead. These may refer to
+    // entries of any of the input bundles, so we first make a pass over all files to map each
+    // entry's full url to a relative reference, and then stream the entries one by one, applying
+    // that mapping to each of them. The mapping is kept in temporary files, so memory stays
+    // bounded even for very large inputs.
+    // For more details on resolving references in bundles, see
+    // https://www.hl7.org/fhir/bundle.html#references
+    try (CorpusReferenceResolver resolver =
+        CorpusReferenceResolver.create(Paths.get(System.getProperty("java.io.tmpdir")))) {
+      for (String file : args) {
+        System.out.println("Indexing " + file + "...");
+        resolver.indexBundle(Paths.get(file));
+      }
+      try {
+        for (String file : args) {
+          System.out.println("Processing " + file + "...");
+          try (BundleEntryReader bundle = resolver.newEntryReader(fhirParser, Paths.get(file))) {
+            // Split the bundle.
+            while (bundle.hasNext()) {
+              Message resource = bundle.nextResource();
+              String resourceType = ResourceUtils.getResourceType(resource);
+              int count = counts.containsKey(resourceType) ? counts.get(resourceType) : 0;
+              counts.put(resourceType, count + 1);
+              if (!output.containsKey(resourceType)) {
+                output.put(
+                    resourceType,
+                    Files.newBufferedWriter(Paths.get(resourceType + ".ndjson"), UTF_8));
+              }
+              BufferedWriter resourceOutput = output.get(resourceType);
+              protoPrinter.appendTo(resource, resourceOutput);
+              resourceOutput.newLine();
+            }
+          }
+        }
+      } finally {
+        for (BufferedWriter writer : output.values()) {
+          writer.close();
         }
-        BufferedWriter resourceOutput = output.get(resourceType);
-        protoPrinter.appendTo(resource, resourceOutput);
-        resourceOutput.newLine();
       }
-    }
-    for (BufferedWriter writer : output.values()) {
-      writer.close();
-    }
-    System.out.println("Processed " + args.length + " input files. Total number of resources:");
-    for (Map.Entry<String, Integer> count : counts.entrySet()) {
-      System.out.println(count.getKey() + ": " + count.getValue());
+      System.out.println("Processed " + args.length + " input files. Total number of resources:");
+      for (Map.Entry<String, Integer> count : counts.entrySet()) {
+        System.out.println(count.getKey() + ": " + count.getValue());
+      }
+      System.out.println(
+          "Resolved "
+              + resolver.getResolvedCount()
+              + " references, "
+              + resolver.getUnresolvedCount()
+              + " urn:uuid references were not found in the input.");
     }
   }
 }
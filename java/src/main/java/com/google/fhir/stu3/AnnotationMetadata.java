@@ -0,0 +1,127 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.collect.ImmutableList;
+import com.google.fhir.stu3.proto.Annotations;
+import com.google.fhir.stu3.proto.Annotations.StructureDefinitionKindValue;
+import com.google.protobuf.DescriptorProtos.MessageOptions;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.util.List;
+
+/**
+ * The FHIR annotations of one message type, read from its options once, so that checking an
+ * annotation never requires building a DescriptorProto.
+ */
+final class AnnotationMetadata {
+
+  private static final DescriptorCache<Descriptor, AnnotationMetadata> CACHE =
+      new DescriptorCache<>(AnnotationMetadata::new);
+
+  private final StructureDefinitionKindValue structureDefinitionKind;
+  private final ImmutableList<String> referenceTypes;
+  private final String valueRegex;
+  private final String valuesetUrl;
+  private final String profileBase;
+  private final String structureDefinitionUrl;
+  private final boolean[] isChoiceTypeField;
+  private final boolean[] isRequiredField;
+
+  private AnnotationMetadata(Descriptor descriptor) {
+    MessageOptions options = descriptor.getOptions();
+    this.structureDefinitionKind =
+        options.hasExtension(Annotations.structureDefinitionKind)
+            ? options.getExtension(Annotations.structureDefinitionKind)
+            : StructureDefinitionKindValue.KIND_UNKNOWN;
+    this.referenceTypes = ImmutableList.copyOf(options.getExtension(Annotations.fhirReferenceType));
+    this.valueRegex =
+        structureDefinitionKind == StructureDefinitionKindValue.KIND_PRIMITIVE_TYPE
+                && options.hasExtension(Annotations.valueRegex)
+            ? options.getExtension(Annotations.valueRegex)
+            : null;
+    this.valuesetUrl =
+        options.hasExtension(Annotations.fhirValuesetUrl)
+            ? options.getExtension(Annotations.fhirValuesetUrl)
+            : null;
+    this.profileBase = options.getExtension(Annotations.fhirProfileBase);
+    this.structureDefinitionUrl =
+        options.hasExtension(Annotations.fhirStructureDefinitionUrl)
+            ? options.getExtension(Annotations.fhirStructureDefinitionUrl)
+            : null;
+    List<FieldDescriptor> fields = descriptor.getFields();
+    this.isChoiceTypeField = new boolean[fields.size()];
+    this.isRequiredField = new boolean[fields.size()];
+    for (FieldDescriptor field : fields) {
+      isChoiceTypeField[field.getIndex()] =
+          field.getOptions().getExtension(Annotations.isChoiceType);
+      isRequiredField[field.getIndex()] =
+          field.getOptions().getExtension(Annotations.validationRequirement)
+              == Annotations.Requirement.REQUIRED_BY_FHIR;
+    }
+  }
+
+  /** Returns the (shared) metadata for the given message type. */
+  static AnnotationMetadata of(Descriptor descriptor) {
+    return CACHE.get(descriptor);
+  }
+
+  /** Returns true if the given field is annotated as a wrapper around a choice type. */
+  static boolean isChoiceType(FieldDescriptor field) {
+    if (field.isExtension()) {
+      return field.getOptions().getExtension(Annotations.isChoiceType);
+    }
+    return of(field.getContainingType()).isChoiceTypeField[field.getIndex()];
+  }
+
+  /** Returns true if the given field is annotated as required by FHIR. */
+  static boolean isRequiredByFhir(FieldDescriptor field) {
+    if (field.isExtension()) {
+      return field.getOptions().getExtension(Annotations.validationRequirement)
+          == Annotations.Requirement.REQUIRED_BY_FHIR;
+    }
+    return of(field.getContainingType()).isRequiredField[field.getIndex()];
+  }
+
+  /** The structure_definition_kind annotation, or KIND_UNKNOWN if there is none. */
+  StructureDefinitionKindValue getStructureDefinitionKind() {
+    return structureDefinitionKind;
+  }
+
+  /** The fhir_reference_type annotations, which are only present on Reference types. */
+  ImmutableList<String> getReferenceTypes() {
+    return referenceTypes;
+  }
+
+  /** The value_regex annotation of a primitive type, or null if there is none. */
+  String getValueRegex() {
+    return valueRegex;
+  }
+
+  /** The fhir_valueset_url annotation of a specialized code type, or null if there is none. */
+  String getValuesetUrl() {
+    return valuesetUrl;
+  }
+
+  /** The fhir_profile_base annotation, or the empty string if there is none. */
+  String getProfileBase() {
+    return profileBase;
+  }
+
+  /** The fhir_structure_definition_url annotation, or null if there is none. */
+  String getStructureDefinitionUrl() {
+    return structureDefinitionUrl;
+  }
+}
@@ -18,9 +18,14 @@ import com.google.fhir.stu3.proto.Annotations;
 import com.google.fhir.stu3.proto.Annotations.StructureDefinitionKindValue;
 import com.google.protobuf.DescriptorProtos.DescriptorProto;
 import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.MessageOrBuilder;
+import java.util.List;
 
-/** Helper methods for dealing with FHIR protocol buffer annotations. */
+/**
+ * Helper methods for dealing with FHIR protocol buffer annotations. Lookups on Descriptors are
+ * served from a per-type cache, and are cheap enough to use for every field of every message.
+ */
 public final class AnnotationUtils {
 
   public static boolean isResource(MessageOrBuilder message) {
@@ -28,7 +33,8 @@ public final class AnnotationUtils {
   }
 
   public static boolean isResource(Descriptor descriptor) {
-    return isResource(descriptor.toProto());
+    return AnnotationMetadata.of(descriptor).getStructureDefinitionKind()
+        == StructureDefinitionKindValue.KIND_RESOURCE;
   }
 
   public static boolean isResource(DescriptorProto descriptor) {
@@ -42,7 +48,8 @@ public final class AnnotationUtils {
   }
 
   public static boolean isPrimitiveType(Descriptor descriptor) {
-    return isPrimitiveType(descriptor.toProto());
+    return AnnotationMetadata.of(descriptor).getStructureDefinitionKind()
+        == StructureDefinitionKindValue.KIND_PRIMITIVE_TYPE;
   }
 
   public static boolean isPrimitiveType(DescriptorProto descriptor) {
@@ -56,7 +63,7 @@ public final class AnnotationUtils {
   }
 
   public static boolean isReference(Descriptor descriptor) {
-    return isReference(descriptor.toProto());
+    return !AnnotationMetadata.of(descriptor).getReferenceTypes().isEmpty();
   }
 
   public static boolean isReference(DescriptorProto descriptor) {
@@ -68,7 +75,7 @@ public final class AnnotationUtils {
   }
 
   public static String getValueRegexForPrimitiveType(Descriptor descriptor) {
-    return getValueRegexForPrimitiveType(descriptor.toProto());
+    return AnnotationMetadata.of(descriptor).getValueRegex();
   }
 
   public static String getValueRegexForPrimitiveType(DescriptorProto descriptor) {
@@ -78,4 +85,37 @@ public final class AnnotationUtils {
     }
     return descriptor.getOptions().getExtension(Annotations.valueRegex);
   }
+
+  public static StructureDefinitionKindValue getStructureDefinitionKind(Descriptor descriptor) {
+    return AnnotationMetadata.of(descriptor).getStructureDefinitionKind();
+  }
+
+  /** Returns the resource types a Reference type may point to, or an empty list. */
+  public static List<String> getReferenceTypes(Descriptor descriptor) {
+    return AnnotationMetadata.of(descriptor).getReferenceTypes();
+  }
+
+  /** Returns the valueset url of a specialized code type, or null for all other types. */
+  public static String getValuesetUrl(Descriptor descriptor) {
+    return AnnotationMetadata.of(descriptor).getValuesetUrl();
+  }
+
+  /** Returns the name of the base type of a profiled type, or the empty string. */
+  public static String getProfileBase(Descriptor descriptor) {
+    return AnnotationMetadata.of(descriptor).getProfileBase();
+  }
+
+  /** Returns the url of the StructureDefinition the type was generated from, or null. */
+  public static String getStructureDefinitionUrl(Descriptor descriptor) {
+    return AnnotationMetadata.of(descriptor).getStructureDefinitionUrl();
+  }
+
+  public static boolean isChoiceType(FieldDescriptor field) {
+    return AnnotationMetadata.isChoiceType(field);
+  }
+
+  /** Returns true if the field has a minimum cardinality of one in FHIR. */
+  public static boolean isRequiredByFhir(FieldDescriptor field) {
+    return AnnotationMetadata.isRequiredByFhir(field);
+  }
 }
@@ -68,14 +68,16 @@ public class Base64BinaryWrapper extends PrimitiveWrapper<Base64Binary> {
   @Override
   protected java.lang.String printValue() {
     BaseEncoding encoding = BaseEncoding.base64();
-    List<Base64SeparatorStride> strideExtension =
-        ExtensionWrapper.fromExtensionsIn(getWrapped())
-            .getMatchingExtensions(Base64SeparatorStride.getDefaultInstance());
-    if (!strideExtension.isEmpty()) {
-      encoding =
-          encoding.withSeparator(
-              strideExtension.get(0).getSeparator().getValue(),
-              strideExtension.get(0).getStride().getValue());
+    if (getWrapped().getExtensionCount() > 0) {
+      List<Base64SeparatorStride> strideExtension =
+          ExtensionWrapper.fromExtensionsIn(getWrapped())
+              .getMatchingExtensions(Base64SeparatorStride.getDefaultInstance());
+      if (!strideExtension.isEmpty()) {
+        encoding =
+            encoding.withSeparator(
+                strideExtension.get(0).getSeparator().getValue(),
+                strideExtension.get(0).getStride().getValue());
+      }
     }
     return encoding.encode(getWrapped().getValue().toByteArray());
   }
@@ -16,12 +16,12 @@ package com.google.fhir.stu3;
 
 import com.google.fhir.stu3.proto.Boolean;
 import com.google.gson.JsonPrimitive;
-import java.util.regex.Pattern;
+import java.io.IOException;
 
 /** A wrapper around the Boolean FHIR primitive type. */
 public class BooleanWrapper extends PrimitiveWrapper<Boolean> {
 
-  private static final Pattern BOOLEAN_PATTERN = Pattern.compile("true|false");
+  private static final DfaMatcher BOOLEAN_PATTERN = DfaMatcher.compile("true|false");
   private static final Boolean NULL_BOOLEAN =
       Boolean.newBuilder().addExtension(getNoValueExtension()).build();
 
@@ -49,4 +49,9 @@ public class BooleanWrapper extends PrimitiveWrapper<Boolean> {
   public JsonPrimitive toJson() {
     return new JsonPrimitive(getWrapped().getValue());
   }
+
+  @Override
+  void printJson(JsonFormat.TextGenerator generator) throws IOException {
+    generator.print(printValue());
+  }
 }
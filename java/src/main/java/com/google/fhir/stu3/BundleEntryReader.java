@@ -0,0 +1,239 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.fhir.stu3.proto.Bundle;
+import com.google.fhir.stu3.proto.ContainedResource;
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.Message;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Reads the entries of a json encoded Bundle one at a time, so that the memory used does not depend
+ * on the size of the bundle. Fields of the Bundle other than its entries are skipped.
+ *
+ * <p>References between the entries, such as "urn:uuid:..." references to an entry's fullUrl, can
+ * be rewritten into relative references as in {@link ResourceUtils#resolveBundleReferences}. Since
+ * an entry may refer to any other entry in the bundle, this takes a separate pass over the input,
+ * see {@link #readReferenceMap}, which only tokenizes the input and keeps nothing but the map.
+ */
+public final class BundleEntryReader implements Closeable {
+
+  private final JsonFormat.Parser parser;
+  private final JsonReader reader;
+  private final Function<String, String> referenceLookup;
+  private boolean inEntries = false;
+  private boolean done = false;
+
+  /** Create a BundleEntryReader which does not rewrite references. */
+  public BundleEntryReader(JsonFormat.Parser parser, Reader input) throws IOException {
+    this(parser, input, (Function<String, String>) null);
+  }
+
+  /**
+   * Create a BundleEntryReader which rewrites the references found in the reference map, e.g. as
+   * returned by {@link #readReferenceMap} for the same bundle.
+   */
+  public BundleEntryReader(
+      JsonFormat.Parser parser, Reader input, Map<String, String> referenceMap)
+      throws IOException {
+    this(parser, input, referenceMap == null ? null : referenceMap::get);
+  }
+
+  /**
+   * Create a BundleEntryReader which rewrites the references for which the lookup function
+   * returns a relative reference.
+   */
+  BundleEntryReader(
+      JsonFormat.Parser parser, Reader input, Function<String, String> referenceLookup)
+      throws IOException {
+    this.parser = parser;
+    this.reader = newJsonReader(parser.countingInput(input));
+    this.referenceLookup = referenceLookup;
+    reader.beginObject();
+  }
+
+  /**
+   * Create a BundleEntryReader for the bundle in the given UTF-8 encoded file, which rewrites the
+   * references between its entries. The file is read twice: once to build the reference map, and
+   * once to read the entries.
+   */
+  public static BundleEntryReader resolvingReferences(JsonFormat.Parser parser, Path file)
+      throws IOException {
+    Map<String, String> referenceMap;
+    try (Reader input = Files.newBufferedReader(file, UTF_8)) {
+      referenceMap = readReferenceMap(input);
+    }
+    Reader input = Files.newBufferedReader(file, UTF_8);
+    try {
+      return new BundleEntryReader(parser, input, referenceMap);
+    } catch (IOException | RuntimeException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the map of each entry's fullUrl to the relative reference, like "Patient/example", of
+   * its resource. Entries without a fullUrl, or whose resource has no id, are not included. Only
+   * the fullUrl, resourceType and id fields are decoded; all other values are skipped.
+   */
+  public static Map<String, String> readReferenceMap(Reader input) throws IOException {
+    Map<String, String> referenceMap = new HashMap<>();
+    readReferenceMap(input, referenceMap::put);
+    return referenceMap;
+  }
+
+  /** Like {@link #readReferenceMap(Reader)}, but hands each mapping to the given consumer. */
+  static void readReferenceMap(Reader input, ReferenceConsumer referenceMap) throws IOException {
+    JsonReader reader = newJsonReader(input);
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("entry")) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          readReferenceMapEntry(reader, referenceMap);
+        }
+        reader.endArray();
+      } else if (name.equals("resourceType")) {
+        checkResourceType(reader.nextString());
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  /** Receives the relative reference of each fullUrl. */
+  interface ReferenceConsumer {
+    void accept(String fullUrl, String relativeReference) throws IOException;
+  }
+
+  private static void readReferenceMapEntry(JsonReader reader, ReferenceConsumer referenceMap)
+      throws IOException {
+    String fullUrl = null;
+    String resourceType = null;
+    String resourceId = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("fullUrl")) {
+        fullUrl = reader.nextString();
+      } else if (name.equals("resource")) {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String resourceField = reader.nextName();
+          if (resourceField.equals("resourceType")) {
+            resourceType = reader.nextString();
+          } else if (resourceField.equals("id")) {
+            resourceId = reader.nextString();
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (fullUrl != null && resourceType != null && resourceId != null) {
+      referenceMap.accept(fullUrl, resourceType + "/" + resourceId);
+    }
+  }
+
+  /** Returns true if there are more entries to read. */
+  public boolean hasNext() throws IOException {
+    if (done) {
+      return false;
+    }
+    if (inEntries) {
+      if (reader.hasNext()) {
+        return true;
+      }
+      reader.endArray();
+      inEntries = false;
+    }
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("entry")) {
+        reader.beginArray();
+        if (reader.hasNext()) {
+          inEntries = true;
+          return true;
+        }
+        reader.endArray();
+      } else if (name.equals("resourceType")) {
+        checkResourceType(reader.nextString());
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    done = true;
+    return false;
+  }
+
+  /** Reads the next entry, rewriting its references if this reader has a reference map. */
+  public Bundle.Entry next() throws IOException {
+    if (!hasNext()) {
+      throw new IllegalStateException("No more entries in the bundle");
+    }
+    Bundle.Entry.Builder builder = Bundle.Entry.newBuilder();
+    parser.merge(reader, builder);
+    if (referenceLookup != null) {
+      ResourceUtils.resolveReferences(builder, referenceLookup);
+    }
+    return builder.build();
+  }
+
+  /** Reads the resource of the next entry. */
+  public ContainedResource nextContainedResource() throws IOException {
+    return next().getResource();
+  }
+
+  /** Reads the resource of the next entry, as the typed resource message. */
+  public Message nextResource() throws IOException {
+    return ResourceUtils.getContainedResource(nextContainedResource());
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  private static JsonReader newJsonReader(Reader input) {
+    JsonReader reader = JsonFormat.Parser.newJsonReader(input);
+    // Accept the same inputs as JsonFormat.Parser.
+    reader.setLenient(true);
+    return reader;
+  }
+
+  private static void checkResourceType(String resourceType) {
+    if (!resourceType.equals("Bundle")) {
+      throw new IllegalArgumentException("Expected a Bundle, found " + resourceType);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.fhir.stu3.proto.Bundle;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The references of one Bundle which the parser kept as a uri, recorded with their path from the
+ * Bundle while it is parsed. Once the fullUrls of all entries are known, {@link #resolve} rewrites
+ * just these references, instead of walking the Bundle for them. Used by one parse only.
+ */
+final class BundleReferences {
+
+  // The path to the value being parsed: the field and index (-1 for singular fields) of the value
+  // at each depth in its parent.
+  private FieldDescriptor[] pathFields = new FieldDescriptor[16];
+  private int[] pathIndices = new int[16];
+  private int depth;
+  // The path and uri of each reference recorded so far.
+  private final List<FieldDescriptor[]> referenceFields = new ArrayList<>();
+  private final List<int[]> referenceIndices = new ArrayList<>();
+  private final List<String> referenceUris = new ArrayList<>();
+
+  /** Enters the value at the given index of a field of the current value, -1 if singular. */
+  void enter(FieldDescriptor field, int index) {
+    if (depth == pathFields.length) {
+      pathFields = Arrays.copyOf(pathFields, depth * 2);
+      pathIndices = Arrays.copyOf(pathIndices, depth * 2);
+    }
+    pathFields[depth] = field;
+    pathIndices[depth] = index;
+    depth++;
+  }
+
+  /** Returns to the parent of the current value. */
+  void exit() {
+    depth--;
+  }
+
+  /** Records that the current value is a reference with the given uri. */
+  void add(String uri) {
+    referenceFields.add(Arrays.copyOf(pathFields, depth));
+    referenceIndices.add(Arrays.copyOf(pathIndices, depth));
+    referenceUris.add(uri);
+  }
+
+  /**
+   * Rewrites the recorded references whose uri is the fullUrl of an entry into relative references
+   * to that entry, as {@link ResourceUtils#resolveBundleReferences} does. If a recorded path does
+   * not lead to its reference anymore, e.g. because the extensions of a primitive value and of its
+   * "_" element were merged, the whole Bundle is walked instead.
+   */
+  void resolve(Bundle.Builder bundle) {
+    if (referenceUris.isEmpty()) {
+      return;
+    }
+    Map<String, String> referenceMap = ResourceUtils.getReferenceMap(bundle);
+    if (referenceMap.isEmpty()) {
+      return;
+    }
+    for (int i = 0; i < referenceUris.size(); i++) {
+      if (!isAt(bundle, referenceFields.get(i), referenceIndices.get(i), referenceUris.get(i))) {
+        ResourceUtils.resolveReferences(bundle, referenceMap);
+        return;
+      }
+    }
+    for (int i = 0; i < referenceUris.size(); i++) {
+      String relativeReference = referenceMap.get(referenceUris.get(i));
+      if (relativeReference != null) {
+        Message.Builder reference = bundle;
+        FieldDescriptor[] fields = referenceFields.get(i);
+        int[] indices = referenceIndices.get(i);
+        for (int n = 0; n < fields.length; n++) {
+          reference =
+              indices[n] < 0
+                  ? reference.getFieldBuilder(fields[n])
+                  : reference.getRepeatedFieldBuilder(fields[n], indices[n]);
+        }
+        ResourceUtils.setRelativeReference(reference, relativeReference);
+      }
+    }
+  }
+
+  /** Whether the given path leads to a reference with the given uri. */
+  private static boolean isAt(
+      MessageOrBuilder message, FieldDescriptor[] fields, int[] indices, String uri) {
+    for (int n = 0; n < fields.length; n++) {
+      if (!fields[n].getContainingType().equals(message.getDescriptorForType())) {
+        return false;
+      }
+      if (indices[n] < 0) {
+        if (!FieldAccessors.hasField(message, fields[n])) {
+          return false;
+        }
+        message = (Message) message.getField(fields[n]);
+      } else {
+        if (indices[n] >= FieldAccessors.getRepeatedFieldCount(message, fields[n])) {
+          return false;
+        }
+        message = (Message) message.getRepeatedField(fields[n], indices[n]);
+      }
+    }
+    if (!AnnotationUtils.isReference(message.getDescriptorForType())) {
+      return false;
+    }
+    FieldDescriptor uriField = ReferenceFields.of(message.getDescriptorForType()).getUriField();
+    return FieldAccessors.hasField(message, uriField)
+        && ((com.google.fhir.stu3.proto.String) message.getField(uriField))
+            .getValue()
+            .equals(uri);
+  }
+}
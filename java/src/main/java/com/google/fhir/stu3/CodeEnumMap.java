@@ -0,0 +1,111 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.fhir.stu3.proto.Annotations;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A lookup table between the FHIR code strings and the values of the enum of one specialized code
+ * type, in both directions. A value's code is its fhir_original_code annotation if it has one, and
+ * otherwise its lower-cased name with '_' replaced by '-'.
+ */
+final class CodeEnumMap {
+
+  private static final DescriptorCache<EnumDescriptor, CodeEnumMap> CACHE =
+      new DescriptorCache<>(CodeEnumMap::new);
+
+  private final EnumDescriptor enumType;
+  // The code of each value, indexed by EnumValueDescriptor.getIndex().
+  private final String[] codes;
+  // The value found for each code, which is not always the value of that code.
+  private final ImmutableMap<String, EnumValueDescriptor> values;
+  private final ImmutableMap<String, EnumValueDescriptor> originalCodes;
+
+  private CodeEnumMap(EnumDescriptor enumType) {
+    this.enumType = enumType;
+    List<EnumValueDescriptor> enumValues = enumType.getValues();
+    this.codes = new String[enumValues.size()];
+    Map<String, EnumValueDescriptor> originalCodes = new HashMap<>();
+    for (EnumValueDescriptor value : enumValues) {
+      codes[value.getIndex()] = computeCode(value);
+      if (value.getOptions().hasExtension(Annotations.fhirOriginalCode)) {
+        originalCodes.putIfAbsent(
+            value.getOptions().getExtension(Annotations.fhirOriginalCode), value);
+      }
+    }
+    this.originalCodes = ImmutableMap.copyOf(originalCodes);
+    Map<String, EnumValueDescriptor> values = new HashMap<>();
+    for (String code : codes) {
+      EnumValueDescriptor value = find(code);
+      if (value != null) {
+        values.put(code, value);
+      }
+    }
+    this.values = ImmutableMap.copyOf(values);
+  }
+
+  /** Returns the (shared) CodeEnumMap for the given enum type. */
+  static CodeEnumMap of(EnumDescriptor enumType) {
+    return CACHE.get(enumType);
+  }
+
+  /**
+   * Returns the enum value for the given code, or null if there is none. Besides the code of each
+   * value, this accepts the names of values without a fhir_original_code annotation in any case,
+   * with '-' in place of '_'.
+   */
+  EnumValueDescriptor getValue(String code) {
+    EnumValueDescriptor value = values.get(code);
+    return value != null ? value : find(code);
+  }
+
+  /** Returns the code of the given enum value. */
+  String getCode(EnumValueDescriptor value) {
+    int index = value.getIndex();
+    if (value.getType() == enumType
+        && index >= 0
+        && index < codes.length
+        && enumType.getValues().get(index) == value) {
+      return codes[index];
+    }
+    // Unknown values are not part of the enum type.
+    return computeCode(value);
+  }
+
+  private EnumValueDescriptor find(String code) {
+    // TODO(sundberg): improve strictness of this parsing step.
+    EnumValueDescriptor value = enumType.findValueByName(code.toUpperCase().replace('-', '_'));
+    if (value != null
+        && value.getNumber() != 0
+        && !value.getOptions().hasExtension(Annotations.fhirOriginalCode)) {
+      return value;
+    }
+    // Try again, explicitly looking for original codes.
+    return originalCodes.get(code);
+  }
+
+  private static String computeCode(EnumValueDescriptor value) {
+    if (value.getOptions().hasExtension(Annotations.fhirOriginalCode)) {
+      return value.getOptions().getExtension(Annotations.fhirOriginalCode);
+    }
+    return value.getName().toLowerCase().replace('_', '-');
+  }
+}
@@ -14,7 +14,6 @@
 
 package com.google.fhir.stu3;
 
-import com.google.fhir.stu3.proto.Annotations;
 import com.google.fhir.stu3.proto.Code;
 import com.google.fhir.stu3.proto.Extension;
 import com.google.protobuf.Descriptors.Descriptor;
@@ -22,7 +21,6 @@ import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageOrBuilder;
-import java.util.regex.Pattern;
 
 /**
  * A wrapper around the Code FHIR primitive type. This wrapper also supports reading from and
@@ -30,8 +28,8 @@ import java.util.regex.Pattern;
  */
 public class CodeWrapper extends PrimitiveWrapper<Code> {
 
-  private static final Pattern CODE_PATTERN =
-      Pattern.compile(AnnotationUtils.getValueRegexForPrimitiveType(Code.getDefaultInstance()));
+  private static final DfaMatcher CODE_PATTERN =
+      DfaMatcher.compile(AnnotationUtils.getValueRegexForPrimitiveType(Code.getDefaultInstance()));
   private static final Code NULL_CODE =
       Code.newBuilder().addExtension(getNoValueExtension()).build();
 
@@ -49,19 +47,21 @@ public class CodeWrapper extends PrimitiveWrapper<Code> {
   public static CodeWrapper of(MessageOrBuilder code) {
     Descriptor descriptor = code.getDescriptorForType();
     // Handle specialized codes.
-    if (!descriptor.getOptions().hasExtension(Annotations.fhirValuesetUrl)) {
+    if (AnnotationUtils.getValuesetUrl(descriptor) == null) {
       throw new IllegalArgumentException(
           "Type " + descriptor.getFullName() + " is not a FHIR code type");
     }
     Code.Builder builder = Code.newBuilder();
     // Copy the Element parts.
-    FieldDescriptor idField = descriptor.findFieldByName("id");
-    if (code.hasField(idField)) {
-      builder.setId((com.google.fhir.stu3.proto.String) code.getField(idField));
+    MessageFields fields = MessageFields.of(descriptor);
+    if (fields.hasId(code)) {
+      builder.setId((com.google.fhir.stu3.proto.String) code.getField(fields.getIdField()));
+    }
+    if (fields.hasExtensions(code)) {
+      builder.addAllExtension(ExtensionWrapper.fromExtensionsIn(code).build());
     }
-    builder.addAllExtension(ExtensionWrapper.fromExtensionsIn(code).build());
 
-    FieldDescriptor valueField = descriptor.findFieldByName("value");
+    FieldDescriptor valueField = fields.getValueField();
     if (!code.hasField(valueField)) {
       // We're done.
       return new CodeWrapper(builder.build());
@@ -73,15 +73,8 @@ public class CodeWrapper extends PrimitiveWrapper<Code> {
       throw new IllegalArgumentException("Invalid source message: " + descriptor.getFullName());
     }
     EnumValueDescriptor enumValue = (EnumValueDescriptor) code.getField(valueField);
-    if (enumValue.getOptions().hasExtension(Annotations.fhirOriginalCode)) {
-      return new CodeWrapper(
-          builder
-              .setValue(enumValue.getOptions().getExtension(Annotations.fhirOriginalCode))
-              .build());
-    } else {
-      return new CodeWrapper(
-          builder.setValue(enumValue.getName().toLowerCase().replace('_', '-')).build());
-    }
+    return new CodeWrapper(
+        builder.setValue(CodeEnumMap.of(enumValue.getType()).getCode(enumValue)).build());
   }
 
   @Override
@@ -89,7 +82,7 @@ public class CodeWrapper extends PrimitiveWrapper<Code> {
   public <B extends Message.Builder> B copyInto(B builder) {
     Descriptor descriptor = builder.getDescriptorForType();
     // Handle standard codes.
-    if (!descriptor.getOptions().hasExtension(Annotations.fhirValuesetUrl)) {
+    if (AnnotationUtils.getValuesetUrl(descriptor) == null) {
       if (!builder.getDescriptorForType().equals(Code.getDescriptor())) {
         throw new IllegalArgumentException(
             "Type " + descriptor.getFullName() + " is not a FHIR code type");
@@ -97,17 +90,18 @@ public class CodeWrapper extends PrimitiveWrapper<Code> {
       return super.copyInto(builder);
     }
     // Handle specialized codes.
+    MessageFields fields = MessageFields.of(descriptor);
     if (getWrapped().hasId()) {
-      builder.setField(descriptor.findFieldByName("id"), getWrapped().getId());
+      builder.setField(fields.getIdField(), getWrapped().getId());
     }
     for (Extension e : getWrapped().getExtensionList()) {
-      builder.addRepeatedField(descriptor.findFieldByName("extension"), e);
+      builder.addRepeatedField(fields.getExtensionField(), e);
     }
     if (!hasValue()) {
       // We're done if there is no value to parse.
       return builder;
     }
-    FieldDescriptor valueField = descriptor.findFieldByName("value");
+    FieldDescriptor valueField = fields.getValueField();
     if (valueField.getType() == FieldDescriptor.Type.STRING) {
       return (B) builder.setField(valueField, getWrapped().getValue());
     }
@@ -115,27 +109,11 @@ public class CodeWrapper extends PrimitiveWrapper<Code> {
       throw new IllegalArgumentException("Invalid target message: " + descriptor.getFullName());
     }
 
-    // TODO(sundberg): improve strictness of this parsing step.
     EnumValueDescriptor enumValue =
-        valueField
-            .getEnumType()
-            .findValueByName(getWrapped().getValue().toUpperCase().replace('-', '_'));
-    if (enumValue != null
-        && enumValue.getNumber() != 0
-        && !enumValue.getOptions().hasExtension(Annotations.fhirOriginalCode)) {
+        CodeEnumMap.of(valueField.getEnumType()).getValue(getWrapped().getValue());
+    if (enumValue != null) {
       return (B) builder.setField(valueField, enumValue);
     }
-
-    // Try again, explicitly looking for original codes.
-    for (EnumValueDescriptor value : valueField.getEnumType().getValues()) {
-      if (value.getOptions().hasExtension(Annotations.fhirOriginalCode)
-          && value
-              .getOptions()
-              .getExtension(Annotations.fhirOriginalCode)
-              .equals(getWrapped().getValue())) {
-        return (B) builder.setField(valueField, value);
-      }
-    }
     throw new IllegalArgumentException(
         "Failed to convert to "
             + descriptor.getFullName()
@@ -0,0 +1,133 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.protobuf.Message;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves references between the entries of a set of json Bundles, such as the files of a bulk
+ * export, in which "urn:uuid:..." references may point to entries of other Bundles. This takes two
+ * passes over the input: first each Bundle is indexed with {@link #indexBundle}, which records the
+ * fullUrl of each entry, and then the entries are read with {@link #newEntryReader}, which
+ * rewrites the references to indexed fullUrls into relative references, like {@link
+ * ResourceUtils#resolveBundleReferences} does within one Bundle.
+ *
+ * <p>The index is kept in temporary files on disk, not on the heap, so the size of the input is
+ * only limited by the available disk space. The files are deleted when the resolver is closed.
+ *
+ * <p>The resolver counts the references it rewrote, and the "urn:uuid:" references it found no
+ * entry for. Other absolute references which are not indexed, such as references to resources on
+ * other servers, are kept as they are and not counted. The resolver may be used by several
+ * threads once all input has been indexed.
+ */
+public final class CorpusReferenceResolver implements Closeable {
+
+  private static final String UUID_PREFIX = "urn:uuid:";
+
+  private final ReferenceIndex index;
+  private final LongAdder resolvedCount = new LongAdder();
+  private final LongAdder unresolvedCount = new LongAdder();
+
+  private CorpusReferenceResolver(ReferenceIndex index) {
+    this.index = index;
+  }
+
+  /** Create a resolver which keeps its index in temporary files in the given directory. */
+  public static CorpusReferenceResolver create(Path directory) throws IOException {
+    return new CorpusReferenceResolver(ReferenceIndex.create(directory));
+  }
+
+  /** Records the fullUrl of each entry of the given Bundle. Only the entries are read. */
+  public void indexBundle(Reader input) throws IOException {
+    BundleEntryReader.readReferenceMap(input, index::put);
+  }
+
+  /** Records the fullUrl of each entry of the Bundle in the given UTF-8 encoded file. */
+  public void indexBundle(Path file) throws IOException {
+    try (Reader input = Files.newBufferedReader(file, UTF_8)) {
+      indexBundle(input);
+    }
+  }
+
+  /** The number of fullUrls indexed so far. */
+  public long getIndexedCount() {
+    return index.size();
+  }
+
+  /** Create a reader for the entries of the given Bundle, which resolves their references. */
+  public BundleEntryReader newEntryReader(JsonFormat.Parser parser, Reader input)
+      throws IOException {
+    return new BundleEntryReader(parser, input, this::lookup);
+  }
+
+  /**
+   * Create a reader for the entries of the Bundle in the given UTF-8 encoded file, which resolves
+   * their references.
+   */
+  public BundleEntryReader newEntryReader(JsonFormat.Parser parser, Path file)
+      throws IOException {
+    Reader input = Files.newBufferedReader(file, UTF_8);
+    try {
+      return newEntryReader(parser, input);
+    } catch (IOException | RuntimeException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+  /** Resolves the references in a message read some other way, such as a parsed resource. */
+  public Message resolveReferences(Message message) {
+    return ResourceUtils.resolveReferences(message, this::lookup);
+  }
+
+  /** The number of references rewritten so far. */
+  public long getResolvedCount() {
+    return resolvedCount.sum();
+  }
+
+  /** The number of "urn:uuid:" references found so far which are not in the index. */
+  public long getUnresolvedCount() {
+    return unresolvedCount.sum();
+  }
+
+  private String lookup(String uri) {
+    String relativeReference;
+    try {
+      relativeReference = index.get(uri);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (relativeReference != null) {
+      resolvedCount.increment();
+    } else if (uri.startsWith(UUID_PREFIX)) {
+      unresolvedCount.increment();
+    }
+    return relativeReference;
+  }
+
+  @Override
+  public void close() throws IOException {
+    index.close();
+  }
+}
@@ -0,0 +1,389 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+
+/**
+ * A single pass scanner for the FHIR date, dateTime, instant and time formats, which validates the
+ * input against the value_regex of the type and decodes its fields without throwing or catching
+ * exceptions. The decoded values are the same as those of the java.time parsers the wrappers used
+ * before, including their quirks: for example, a dateTime with second precision is resolved
+ * leniently, so "2018-02-30T10:00:00Z" is read as February 28th, whereas with fractional seconds
+ * the same date is rejected.
+ *
+ * <p>Instances are not thread safe; a scanner is meant to be created for each input.
+ */
+final class DateTimeScanner {
+
+  /** The scan result: the input did not match the value_regex of the type. */
+  static final int MALFORMED = -1;
+  /** The scan result: the input matched the value_regex, but is not a valid date or time. */
+  static final int INVALID = -2;
+
+  // Precisions, ordered from coarse to fine.
+  static final int YEAR = 0;
+  static final int MONTH = 1;
+  static final int DAY = 2;
+  static final int SECOND = 3;
+  static final int MILLISECOND = 4;
+
+  private static final long DAYS_0000_TO_1970 = (146097L * 5L) - (30L * 365L + 7L);
+  private static final int MAX_FRACTION_DIGITS = 9;
+  private static final int MAX_OFFSET_MINUTES = 14 * 60;
+  // The timezone strings seen so far, indexed by offset minutes, with negative offsets after the
+  // positive ones.
+  private static final String[] TIMEZONES = new String[2 * (MAX_OFFSET_MINUTES + 1)];
+
+  private final String input;
+  private int position = 0;
+
+  // The decoded fields.
+  private boolean negativeYear;
+  private int year;
+  private int month = 1;
+  private int day = 1;
+  private int hour;
+  private int minute;
+  private int second;
+  private int nanos;
+  private int fractionDigits;
+  private int offsetSeconds;
+
+  DateTimeScanner(String input) {
+    this.input = input;
+  }
+
+  /**
+   * Scans a FHIR dateTime, and returns its precision, or MALFORMED or INVALID. Dates are also
+   * dateTimes.
+   */
+  int scanDateTime() {
+    return scanDateTime(false /* requireTime */);
+  }
+
+  /** Scans a FHIR instant, and returns its precision, or MALFORMED or INVALID. */
+  int scanInstant() {
+    return scanDateTime(true /* requireTime */);
+  }
+
+  /** Scans a FHIR date, and returns its precision, or MALFORMED or INVALID. */
+  int scanDate() {
+    int precision = scanDatePart();
+    if (precision < 0 || position != input.length()) {
+      return MALFORMED;
+    }
+    return checkDate(precision);
+  }
+
+  private int scanDateTime(boolean requireTime) {
+    int precision = scanDatePart();
+    if (precision < 0) {
+      return precision;
+    }
+    if (position == input.length()) {
+      return requireTime ? MALFORMED : checkDate(precision);
+    }
+    if (precision != DAY || !scanChar('T')) {
+      return MALFORMED;
+    }
+    precision = scanTimeOfDay();
+    if (precision < 0 || !scanTimezone() || position != input.length()) {
+      return MALFORMED;
+    }
+    if (!isValidDateTime(precision)) {
+      return INVALID;
+    }
+    if (precision == SECOND && day > monthLength()) {
+      // The second precision format is resolved leniently, which moves invalid days of the month
+      // to the last day of the month.
+      day = monthLength();
+    }
+    return precision;
+  }
+
+  /** Scans a year, optionally followed by a month and a day. */
+  private int scanDatePart() {
+    negativeYear = scanChar('-');
+    year = scanDigits(4);
+    if (year < 0) {
+      return MALFORMED;
+    }
+    if (negativeYear) {
+      year = -year;
+    }
+    if (!scanChar('-')) {
+      return YEAR;
+    }
+    month = scanDigits(2);
+    if (month < 1 || month > 12) {
+      return MALFORMED;
+    }
+    if (!scanChar('-')) {
+      return MONTH;
+    }
+    day = scanDigits(2);
+    if (day < 0 || day > 31) {
+      return MALFORMED;
+    }
+    return DAY;
+  }
+
+  /** Returns the precision of a scanned date, or INVALID if java.time does not accept it. */
+  private int checkDate(int precision) {
+    switch (precision) {
+      case YEAR:
+        return YEAR;
+      case MONTH:
+        // Only years may be negative zero.
+        return isNegativeZero() ? INVALID : MONTH;
+      default:
+        return isValidDate() ? DAY : INVALID;
+    }
+  }
+
+  /** Scans a FHIR time, and returns its precision, or MALFORMED or INVALID. */
+  int scanTime() {
+    int precision = scanTimeOfDay();
+    if (precision >= 0 && position != input.length()) {
+      return MALFORMED;
+    }
+    if (fractionDigits > MAX_FRACTION_DIGITS) {
+      return INVALID;
+    }
+    return precision;
+  }
+
+  /** Scans hh:mm:ss with optional fractional seconds. */
+  private int scanTimeOfDay() {
+    hour = scanDigits(2);
+    if (hour < 0 || hour > 23 || !scanChar(':')) {
+      return MALFORMED;
+    }
+    minute = scanDigits(2);
+    if (minute < 0 || minute > 59 || !scanChar(':')) {
+      return MALFORMED;
+    }
+    second = scanDigits(2);
+    if (second < 0 || second > 59) {
+      return MALFORMED;
+    }
+    if (!scanChar('.')) {
+      return SECOND;
+    }
+    int fractionStart = position;
+    int fraction = 0;
+    while (position < input.length() && isDigit(input.charAt(position))) {
+      if (position - fractionStart < MAX_FRACTION_DIGITS) {
+        fraction = fraction * 10 + input.charAt(position) - '0';
+      }
+      position++;
+    }
+    fractionDigits = position - fractionStart;
+    if (fractionDigits == 0) {
+      return MALFORMED;
+    }
+    for (int i = fractionDigits; i < MAX_FRACTION_DIGITS; i++) {
+      fraction *= 10;
+    }
+    nanos = fraction;
+    return MILLISECOND;
+  }
+
+  /** Scans Z, or an offset from +-00:00 to +-13:59 or +-14:00. */
+  private boolean scanTimezone() {
+    if (scanChar('Z')) {
+      offsetSeconds = 0;
+      return true;
+    }
+    boolean negative = scanChar('-');
+    if (!negative && !scanChar('+')) {
+      return false;
+    }
+    int hours = scanDigits(2);
+    if (hours < 0 || hours > 14 || !scanChar(':')) {
+      return false;
+    }
+    int minutes = scanDigits(2);
+    if (minutes < 0 || minutes > 59 || (hours == 14 && minutes != 0)) {
+      return false;
+    }
+    offsetSeconds = (negative ? -1 : 1) * (hours * 3600 + minutes * 60);
+    return true;
+  }
+
+  /** Whether the java.time parser for the given dateTime precision accepts the decoded fields. */
+  private boolean isValidDateTime(int precision) {
+    if (day == 0) {
+      return false;
+    }
+    if (precision == MILLISECOND || negativeYear || year == 0) {
+      // These are read with the ISO parser, which is strict about days of the month, does not
+      // allow "-0000", and decodes at most nanoseconds.
+      return isValidDate() && fractionDigits <= MAX_FRACTION_DIGITS;
+    }
+    return true;
+  }
+
+  /** Whether the strict ISO parser accepts the decoded date. */
+  private boolean isValidDate() {
+    return day > 0 && day <= monthLength() && !isNegativeZero();
+  }
+
+  private boolean isNegativeZero() {
+    return negativeYear && year == 0;
+  }
+
+  /**
+   * Returns the precision a dateTime is reported with: second precision inputs that the original
+   * second precision parser does not accept are handled by the ISO parser, and reported with
+   * millisecond precision.
+   */
+  int getReportedPrecision(int precision) {
+    return precision == SECOND && (negativeYear || year == 0) ? MILLISECOND : precision;
+  }
+
+  /**
+   * Returns the instant the scanned dateTime or instant (with a timezone) represents, in
+   * microseconds since the epoch, truncated to milliseconds.
+   */
+  long getEpochMicros() {
+    long epochSecond =
+        toEpochDay() * 86400L + hour * 3600L + minute * 60L + second - offsetSeconds;
+    return (epochSecond * 1000L + nanos / 1000000) * 1000L;
+  }
+
+  /**
+   * Returns the start of the scanned date in the given timezone, in microseconds since the epoch.
+   */
+  long getEpochMicros(ZoneId timezone) {
+    ZoneOffset offset = null;
+    if (timezone instanceof ZoneOffset) {
+      offset = (ZoneOffset) timezone;
+    } else {
+      ZoneRules rules = timezone.getRules();
+      if (rules.isFixedOffset()) {
+        offset = rules.getOffset(java.time.Instant.EPOCH);
+      }
+    }
+    if (offset != null) {
+      return (toEpochDay() * 86400L - offset.getTotalSeconds()) * 1000000L;
+    }
+    // Transitions may affect the start of the day, so let java.time resolve it.
+    return LocalDateTime.of(year, month, day, 0, 0)
+            .atZone(timezone)
+            .toInstant()
+            .toEpochMilli()
+        * 1000L;
+  }
+
+  /** Returns the scanned time of day in microseconds. */
+  long getMicrosOfDay() {
+    return (hour * 3600L + minute * 60L + second) * 1000000L + nanos / 1000;
+  }
+
+  /**
+   * Returns the scanned timezone, as java.time would report it, except that "+00:00" and "-00:00"
+   * are kept as they are.
+   */
+  String getTimezone() {
+    if (offsetSeconds == 0 && input.charAt(input.length() - 1) == 'Z') {
+      return "Z";
+    }
+    // Offsets are shared between all parsed values, so that in-memory protos do not each hold a
+    // copy. Races only cause the same string to be created more than once.
+    int index = Math.abs(offsetSeconds) / 60;
+    if (input.charAt(input.length() - 6) == '-') {
+      index += MAX_OFFSET_MINUTES + 1;
+    }
+    String timezone = TIMEZONES[index];
+    if (timezone == null) {
+      timezone = input.substring(input.length() - 6);
+      TIMEZONES[index] = timezone;
+    }
+    return timezone;
+  }
+
+  private int monthLength() {
+    switch (month) {
+      case 2:
+        return isLeapYear() ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  private boolean isLeapYear() {
+    return ((year & 3) == 0) && ((year % 100) != 0 || (year % 400) == 0);
+  }
+
+  // Same as LocalDate.toEpochDay().
+  private long toEpochDay() {
+    long y = year;
+    long m = month;
+    long total = 365 * y;
+    if (y >= 0) {
+      total += (y + 3) / 4 - (y + 99) / 100 + (y + 399) / 400;
+    } else {
+      total -= y / -4 - y / -100 + y / -400;
+    }
+    total += ((367 * m - 362) / 12);
+    total += day - 1;
+    if (m > 2) {
+      total--;
+      if (!isLeapYear()) {
+        total--;
+      }
+    }
+    return total - DAYS_0000_TO_1970;
+  }
+
+  private boolean scanChar(char c) {
+    if (position < input.length() && input.charAt(position) == c) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  /** Scans exactly the given number of ascii digits, and returns their value, or -1. */
+  private int scanDigits(int count) {
+    if (position + count > input.length()) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = 0; i < count; i++) {
+      char c = input.charAt(position + i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      value = value * 10 + c - '0';
+    }
+    position += count;
+    return value;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
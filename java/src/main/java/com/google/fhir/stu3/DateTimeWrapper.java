@@ -17,21 +17,12 @@ package com.google.fhir.stu3;
 import com.google.common.collect.ImmutableMap;
 import com.google.fhir.stu3.proto.DateTime;
 import java.time.Instant;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
-import java.time.Year;
-import java.time.YearMonth;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
-import java.util.regex.Pattern;
 
 /** A wrapper around the DateTime FHIR primitive type. */
 public class DateTimeWrapper extends PrimitiveWrapper<DateTime> {
 
-  private static final Pattern DATE_TIME_PATTERN =
-      Pattern.compile(AnnotationUtils.getValueRegexForPrimitiveType(DateTime.getDefaultInstance()));
   private static final DateTime NULL_DATE_TIME =
       DateTime.newBuilder().addExtension(getNoValueExtension()).build();
 
@@ -48,6 +39,15 @@ public class DateTimeWrapper extends PrimitiveWrapper<DateTime> {
           DateTime.Precision.SECOND, SECOND_WITH_TZ,
           DateTime.Precision.MILLISECOND, MILLISECOND_WITH_TZ);
 
+  // Indexed by DateTimeScanner precision.
+  private static final DateTime.Precision[] PRECISIONS = {
+    DateTime.Precision.YEAR,
+    DateTime.Precision.MONTH,
+    DateTime.Precision.DAY,
+    DateTime.Precision.SECOND,
+    DateTime.Precision.MILLISECOND
+  };
+
   /** Create a DateTimeWrapper from a DateTime. */
   public DateTimeWrapper(DateTime dateTime) {
     super(dateTime);
@@ -68,60 +68,26 @@ public class DateTimeWrapper extends PrimitiveWrapper<DateTime> {
   }
 
   private static DateTime parseAndValidate(String input, ZoneId defaultTimeZone) {
-    validateUsingPattern(DATE_TIME_PATTERN, input);
-
-    // Dates, no provided timezone.
-    try {
-      return buildDateTime(
-          Year.parse(input).atDay(1).atStartOfDay(), defaultTimeZone, DateTime.Precision.YEAR);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+    DateTimeScanner scanner = new DateTimeScanner(input);
+    int precision = scanner.scanDateTime();
+    if (precision == DateTimeScanner.MALFORMED) {
+      throw new IllegalArgumentException("Invalid input: " + input);
     }
-    try {
-      return buildDateTime(
-          YearMonth.parse(input).atDay(1).atStartOfDay(),
-          defaultTimeZone,
-          DateTime.Precision.MONTH);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+    if (precision == DateTimeScanner.INVALID) {
+      throw new IllegalArgumentException("Invalid DateTime: " + input);
     }
-    try {
+    if (precision < DateTimeScanner.SECOND) {
+      // Dates, no provided timezone.
       return buildDateTime(
-          LocalDate.parse(input).atStartOfDay(), defaultTimeZone, DateTime.Precision.DAY);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+          scanner.getEpochMicros(defaultTimeZone),
+          defaultTimeZone.toString(),
+          PRECISIONS[precision]);
     }
-
     // DateTime, with timezone offset.
-    try {
-      OffsetDateTime offsetDateTime = OffsetDateTime.parse(input, SECOND_WITH_TZ);
-      String timezone = extractFhirTimezone(input, offsetDateTime);
-      return buildDateTime(
-          offsetDateTime.toInstant().toEpochMilli() * 1000L, timezone, DateTime.Precision.SECOND);
-    } catch (DateTimeParseException e) {
-      // Fall through.
-    }
-    try {
-      OffsetDateTime offsetDateTime = OffsetDateTime.parse(input);
-      String timezone = extractFhirTimezone(input, offsetDateTime);
-      return buildDateTime(
-          offsetDateTime.toInstant().toEpochMilli() * 1000L,
-          timezone,
-          DateTime.Precision.MILLISECOND);
-    } catch (DateTimeParseException e) {
-      // Fall through.
-    }
-    throw new IllegalArgumentException("Invalid DateTime: " + input);
-  }
-
-  private static DateTime buildDateTime(
-      LocalDateTime dateTime, ZoneId defaultTimeZone, DateTime.Precision precision) {
-    String timezone = defaultTimeZone.toString();
-    return DateTime.newBuilder()
-        .setValueUs(dateTime.atZone(defaultTimeZone).toInstant().toEpochMilli() * 1000L)
-        .setTimezone(timezone)
-        .setPrecision(precision)
-        .build();
+    return buildDateTime(
+        scanner.getEpochMicros(),
+        scanner.getTimezone(),
+        PRECISIONS[scanner.getReportedPrecision(precision)]);
   }
 
   private static DateTime buildDateTime(
@@ -17,19 +17,12 @@ package com.google.fhir.stu3;
 import com.google.common.collect.ImmutableMap;
 import com.google.fhir.stu3.proto.Date;
 import java.time.Instant;
-import java.time.LocalDate;
-import java.time.Year;
-import java.time.YearMonth;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
-import java.util.regex.Pattern;
 
 /** A wrapper around the Date FHIR primitive type. */
 public class DateWrapper extends PrimitiveWrapper<Date> {
 
-  private static final Pattern DATE_PATTERN =
-      Pattern.compile(AnnotationUtils.getValueRegexForPrimitiveType(Date.getDefaultInstance()));
   private static final Date NULL_DATE =
       Date.newBuilder().addExtension(getNoValueExtension()).build();
 
@@ -39,6 +32,10 @@ public class DateWrapper extends PrimitiveWrapper<Date> {
           Date.Precision.MONTH, DateTimeFormatter.ofPattern("yyyy-MM"),
           Date.Precision.DAY, DateTimeFormatter.ofPattern("yyyy-MM-dd"));
 
+  // Indexed by DateTimeScanner precision.
+  private static final Date.Precision[] PRECISIONS = {
+    Date.Precision.YEAR, Date.Precision.MONTH, Date.Precision.DAY
+  };
 
   /** Create an DateWrapper from a Date. */
   public DateWrapper(Date date) {
@@ -60,31 +57,18 @@ public class DateWrapper extends PrimitiveWrapper<Date> {
   }
 
   private static Date parseAndValidate(String input, ZoneId defaultTimeZone) {
-    validateUsingPattern(DATE_PATTERN, input);
-    try {
-      return buildDate(Year.parse(input).atDay(1), defaultTimeZone, Date.Precision.YEAR);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+    DateTimeScanner scanner = new DateTimeScanner(input);
+    int precision = scanner.scanDate();
+    if (precision == DateTimeScanner.MALFORMED) {
+      throw new IllegalArgumentException("Invalid input: " + input);
     }
-    try {
-      return buildDate(YearMonth.parse(input).atDay(1), defaultTimeZone, Date.Precision.MONTH);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+    if (precision == DateTimeScanner.INVALID) {
+      throw new IllegalArgumentException("Invalid Date: " + input);
     }
-    try {
-      return buildDate(LocalDate.parse(input), defaultTimeZone, Date.Precision.DAY);
-    } catch (DateTimeParseException e) {
-      // Fall through.
-    }
-    throw new IllegalArgumentException("Invalid Date: " + input);
-  }
-
-  private static Date buildDate(LocalDate date, ZoneId defaultTimeZone, Date.Precision precision) {
-    String timezone = defaultTimeZone.toString();
     return Date.newBuilder()
-        .setValueUs(date.atStartOfDay().atZone(defaultTimeZone).toInstant().toEpochMilli() * 1000L)
-        .setPrecision(precision)
-        .setTimezone(timezone)
+        .setValueUs(scanner.getEpochMicros(defaultTimeZone))
+        .setPrecision(PRECISIONS[precision])
+        .setTimezone(defaultTimeZone.toString())
         .build();
   }
 
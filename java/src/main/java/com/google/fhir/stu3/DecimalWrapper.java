@@ -16,13 +16,13 @@ package com.google.fhir.stu3;
 
 import com.google.fhir.stu3.proto.Decimal;
 import java.math.BigDecimal;
-import java.util.regex.Pattern;
 
 /** A wrapper around the Decimal FHIR primitive type. */
 public class DecimalWrapper extends NumericTypeWrapper<Decimal> {
 
-  private static final Pattern DECIMAL_PATTERN =
-      Pattern.compile(AnnotationUtils.getValueRegexForPrimitiveType(Decimal.getDefaultInstance()));
+  private static final DfaMatcher DECIMAL_PATTERN =
+      DfaMatcher.compile(
+          AnnotationUtils.getValueRegexForPrimitiveType(Decimal.getDefaultInstance()));
   private static final Decimal NULL_DECIMAL =
       Decimal.newBuilder().addExtension(getNoValueExtension()).build();
 
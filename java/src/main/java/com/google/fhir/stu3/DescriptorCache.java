@@ -0,0 +1,56 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A cache of values computed from protobuf descriptors, such as the lookup tables of a message
+ * type, which are computed on first use and then shared between threads. The values must be
+ * immutable.
+ *
+ * <p>Entries are never evicted. The descriptors of generated messages live as long as their
+ * classes, so for them this retains nothing extra. Descriptors built at runtime, e.g. for
+ * DynamicMessage, stay reachable from the caches of this package for as long as it is loaded, so
+ * applications which build an unbounded number of them should not use these classes with them.
+ * Weak keys would not help, since most values refer to their descriptor.
+ */
+final class DescriptorCache<K, V> {
+
+  private final ConcurrentMap<K, V> values = new ConcurrentHashMap<>();
+  private final Function<? super K, ? extends V> compute;
+
+  DescriptorCache(Function<? super K, ? extends V> compute) {
+    this.compute = compute;
+  }
+
+  /** Returns the value for the given descriptor, computing it if it is not cached yet. */
+  V get(K descriptor) {
+    V value = values.get(descriptor);
+    if (value == null) {
+      // Computing a value may look up others in the same cache, e.g. for nested types, so this
+      // can't use computeIfAbsent. Concurrent callers may compute the same value twice, but only
+      // one of them is ever returned.
+      value = compute.apply(descriptor);
+      V existing = values.putIfAbsent(descriptor, value);
+      if (existing != null) {
+        value = existing;
+      }
+    }
+    return value;
+  }
+}
@@ -0,0 +1,557 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A regular expression compiled into a deterministic finite automaton, used to validate primitives
+ * against their value_regex annotation. Unlike {@link java.util.regex.Pattern}, matching never
+ * backtracks: it reads each char of the input once, so it takes linear time, and does not
+ * allocate. Instances are immutable and thread safe.
+ *
+ * <p>Only the subset of the java regex syntax that value_regex annotations use is supported:
+ * literal and escaped characters, ".", the predefined classes \s, \S, \d, \D, \w and \W, character
+ * classes with ranges and negation, capturing and non-capturing groups, alternation, and the greedy
+ * and lazy quantifiers ?, *, +, {n}, {n,} and {n,m}. Since the whole input has to match, the
+ * matched language is the same as that of {@link java.util.regex.Matcher#matches}.
+ */
+final class DfaMatcher {
+
+  private static final int CHAR_COUNT = Character.MAX_VALUE + 1;
+  private static final int MAX_STATES = 4096;
+  private static final int MAX_REPETITIONS = 1000;
+
+  private final String regex;
+  // The first char of each class of chars which the automaton does not distinguish.
+  private final char[] classStarts;
+  private final int[] asciiClasses = new int[128];
+  // The next state for each state and char class, or -1 if the input can no longer match.
+  private final int[] transitions;
+  private final boolean[] accepting;
+
+  private DfaMatcher(String regex, char[] classStarts, int[] transitions, boolean[] accepting) {
+    this.regex = regex;
+    this.classStarts = classStarts;
+    this.transitions = transitions;
+    this.accepting = accepting;
+    for (char c = 0; c < asciiClasses.length; c++) {
+      asciiClasses[c] = classOf(c);
+    }
+  }
+
+  /**
+   * Compiles the given regular expression. Throws an IllegalArgumentException if the expression
+   * uses unsupported syntax, or if its automaton would be too large.
+   */
+  static DfaMatcher compile(String regex) {
+    Node node = new Parser(regex).parse();
+    Nfa nfa = new Nfa();
+    int start = nfa.newState();
+    int end = node.addTo(nfa, start);
+    return nfa.toDfa(regex, start, end);
+  }
+
+  /** Returns true if the entire input matches the regular expression. */
+  boolean matches(CharSequence input) {
+    int classCount = classStarts.length;
+    int state = 0;
+    for (int i = 0; i < input.length(); i++) {
+      char c = input.charAt(i);
+      state = transitions[state * classCount + (c < 128 ? asciiClasses[c] : classOf(c))];
+      if (state < 0) {
+        return false;
+      }
+    }
+    return accepting[state];
+  }
+
+  /** Returns the regular expression this was compiled from. */
+  String pattern() {
+    return regex;
+  }
+
+  @Override
+  public String toString() {
+    return regex;
+  }
+
+  private int classOf(char c) {
+    int index = Arrays.binarySearch(classStarts, c);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  /** A parsed regular expression. */
+  private abstract static class Node {
+    /** Adds states matching this node after the start state, and returns the end state. */
+    abstract int addTo(Nfa nfa, int start);
+  }
+
+  private static final class CharSetNode extends Node {
+    private final BitSet chars;
+
+    CharSetNode(BitSet chars) {
+      this.chars = chars;
+    }
+
+    @Override
+    int addTo(Nfa nfa, int start) {
+      int end = nfa.newState();
+      nfa.addEdge(start, chars, end);
+      return end;
+    }
+  }
+
+  private static final class ConcatenationNode extends Node {
+    private final List<Node> nodes;
+
+    ConcatenationNode(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    @Override
+    int addTo(Nfa nfa, int start) {
+      int end = start;
+      for (Node node : nodes) {
+        end = node.addTo(nfa, end);
+      }
+      return end;
+    }
+  }
+
+  private static final class AlternationNode extends Node {
+    private final List<Node> alternatives;
+
+    AlternationNode(List<Node> alternatives) {
+      this.alternatives = alternatives;
+    }
+
+    @Override
+    int addTo(Nfa nfa, int start) {
+      int end = nfa.newState();
+      for (Node alternative : alternatives) {
+        int alternativeStart = nfa.newState();
+        nfa.addEdge(start, null, alternativeStart);
+        nfa.addEdge(alternative.addTo(nfa, alternativeStart), null, end);
+      }
+      return end;
+    }
+  }
+
+  private static final class RepetitionNode extends Node {
+    private final Node node;
+    private final int min;
+    // -1 if unbounded.
+    private final int max;
+
+    RepetitionNode(Node node, int min, int max) {
+      this.node = node;
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    int addTo(Nfa nfa, int start) {
+      int end = start;
+      for (int i = 0; i < min; i++) {
+        end = node.addTo(nfa, end);
+      }
+      if (max < 0) {
+        int loop = nfa.newState();
+        nfa.addEdge(end, null, loop);
+        nfa.addEdge(node.addTo(nfa, loop), null, loop);
+        return loop;
+      }
+      int optionalEnd = nfa.newState();
+      for (int i = min; i < max; i++) {
+        nfa.addEdge(end, null, optionalEnd);
+        end = node.addTo(nfa, end);
+      }
+      nfa.addEdge(end, null, optionalEnd);
+      return optionalEnd;
+    }
+  }
+
+  /** A nondeterministic automaton, with edges that match a set of chars, or no input. */
+  private static final class Nfa {
+    private final List<List<BitSet>> edgeChars = new ArrayList<>();
+    private final List<List<Integer>> edgeTargets = new ArrayList<>();
+
+    int newState() {
+      edgeChars.add(new ArrayList<>());
+      edgeTargets.add(new ArrayList<>());
+      return edgeChars.size() - 1;
+    }
+
+    /** Adds an edge matching one of the given chars, or no input if chars is null. */
+    void addEdge(int from, BitSet chars, int to) {
+      edgeChars.get(from).add(chars);
+      edgeTargets.get(from).add(to);
+    }
+
+    /** Adds the states reachable without input to the given set of states. */
+    private void addClosure(BitSet states) {
+      List<Integer> pending = new ArrayList<>();
+      states.stream().forEach(pending::add);
+      while (!pending.isEmpty()) {
+        int state = pending.remove(pending.size() - 1);
+        List<BitSet> chars = edgeChars.get(state);
+        for (int i = 0; i < chars.size(); i++) {
+          int target = edgeTargets.get(state).get(i);
+          if (chars.get(i) == null && !states.get(target)) {
+            states.set(target);
+            pending.add(target);
+          }
+        }
+      }
+    }
+
+    /** Returns the states reached from the given states by reading the given char. */
+    private BitSet step(BitSet states, char c) {
+      BitSet next = new BitSet();
+      for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+        List<BitSet> chars = edgeChars.get(state);
+        for (int i = 0; i < chars.size(); i++) {
+          if (chars.get(i) != null && chars.get(i).get(c)) {
+            next.set(edgeTargets.get(state).get(i));
+          }
+        }
+      }
+      addClosure(next);
+      return next;
+    }
+
+    /**
+     * Splits the chars into classes, such that all chars of a class have the same edges, and
+     * returns the first char of each class.
+     */
+    private char[] getClassStarts() {
+      BitSet starts = new BitSet(CHAR_COUNT);
+      starts.set(0);
+      for (List<BitSet> stateChars : edgeChars) {
+        for (BitSet chars : stateChars) {
+          if (chars == null) {
+            continue;
+          }
+          for (int i = chars.nextSetBit(0); i >= 0; i = chars.nextSetBit(i)) {
+            starts.set(i);
+            i = chars.nextClearBit(i);
+            if (i < CHAR_COUNT) {
+              starts.set(i);
+            }
+          }
+        }
+      }
+      char[] classStarts = new char[starts.cardinality()];
+      int index = 0;
+      for (int i = starts.nextSetBit(0); i >= 0; i = starts.nextSetBit(i + 1)) {
+        classStarts[index++] = (char) i;
+      }
+      return classStarts;
+    }
+
+    /** Builds the equivalent deterministic automaton, by the subset construction. */
+    DfaMatcher toDfa(String regex, int start, int end) {
+      char[] classStarts = getClassStarts();
+      Map<BitSet, Integer> stateIds = new HashMap<>();
+      List<BitSet> states = new ArrayList<>();
+      BitSet initial = new BitSet();
+      initial.set(start);
+      addClosure(initial);
+      stateIds.put(initial, 0);
+      states.add(initial);
+      List<int[]> rows = new ArrayList<>();
+      for (int i = 0; i < states.size(); i++) {
+        int[] row = new int[classStarts.length];
+        for (int charClass = 0; charClass < classStarts.length; charClass++) {
+          BitSet next = step(states.get(i), classStarts[charClass]);
+          if (next.isEmpty()) {
+            row[charClass] = -1;
+            continue;
+          }
+          Integer id = stateIds.get(next);
+          if (id == null) {
+            if (states.size() == MAX_STATES) {
+              throw new IllegalArgumentException("Regex is too complex: " + regex);
+            }
+            id = states.size();
+            stateIds.put(next, id);
+            states.add(next);
+          }
+          row[charClass] = id;
+        }
+        rows.add(row);
+      }
+      int[] transitions = new int[states.size() * classStarts.length];
+      boolean[] accepting = new boolean[states.size()];
+      for (int i = 0; i < states.size(); i++) {
+        System.arraycopy(rows.get(i), 0, transitions, i * classStarts.length, classStarts.length);
+        accepting[i] = states.get(i).get(end);
+      }
+      return new DfaMatcher(regex, classStarts, transitions, accepting);
+    }
+  }
+
+  /** A recursive descent parser for the supported regex syntax. */
+  private static final class Parser {
+    private final String regex;
+    private int position = 0;
+
+    Parser(String regex) {
+      this.regex = regex;
+    }
+
+    Node parse() {
+      Node node = parseAlternation();
+      if (position != regex.length()) {
+        throw error("unmatched )");
+      }
+      return node;
+    }
+
+    private Node parseAlternation() {
+      List<Node> alternatives = new ArrayList<>();
+      alternatives.add(parseConcatenation());
+      while (consume('|')) {
+        alternatives.add(parseConcatenation());
+      }
+      return alternatives.size() == 1 ? alternatives.get(0) : new AlternationNode(alternatives);
+    }
+
+    private Node parseConcatenation() {
+      List<Node> nodes = new ArrayList<>();
+      while (position < regex.length() && peek() != '|' && peek() != ')') {
+        nodes.add(parseRepetition());
+      }
+      return nodes.size() == 1 ? nodes.get(0) : new ConcatenationNode(nodes);
+    }
+
+    private Node parseRepetition() {
+      Node node = parseAtom();
+      while (position < regex.length()) {
+        char c = peek();
+        if (c == '?') {
+          node = new RepetitionNode(node, 0, 1);
+        } else if (c == '*') {
+          node = new RepetitionNode(node, 0, -1);
+        } else if (c == '+') {
+          node = new RepetitionNode(node, 1, -1);
+        } else if (c == '{') {
+          node = parseBounds(node);
+          continue;
+        } else {
+          break;
+        }
+        position++;
+        // Lazy quantifiers match the same inputs, but possessive ones may not.
+        consume('?');
+        if (position < regex.length() && peek() == '+') {
+          throw error("possessive quantifiers are not supported");
+        }
+      }
+      return node;
+    }
+
+    private Node parseBounds(Node node) {
+      position++;
+      int min = parseNumber();
+      int max = min;
+      if (consume(',')) {
+        max = position < regex.length() && peek() == '}' ? -1 : parseNumber();
+      }
+      if (!consume('}') || (max >= 0 && max < min)) {
+        throw error("invalid repetition");
+      }
+      consume('?');
+      if (position < regex.length() && peek() == '+') {
+        throw error("possessive quantifiers are not supported");
+      }
+      return new RepetitionNode(node, min, max);
+    }
+
+    private int parseNumber() {
+      int start = position;
+      while (position < regex.length() && isDigit(peek()) && position - start < 4) {
+        position++;
+      }
+      if (position == start || (position < regex.length() && isDigit(peek()))) {
+        throw error("invalid repetition");
+      }
+      int value = Integer.parseInt(regex.substring(start, position));
+      if (value > MAX_REPETITIONS) {
+        throw error("too many repetitions");
+      }
+      return value;
+    }
+
+    private Node parseAtom() {
+      char c = regex.charAt(position++);
+      switch (c) {
+        case '(':
+          if (consume('?') && !consume(':')) {
+            throw error("only non-capturing groups are supported");
+          }
+          Node node = parseAlternation();
+          if (!consume(')')) {
+            throw error("missing )");
+          }
+          return node;
+        case '[':
+          return new CharSetNode(parseCharClass());
+        case '.':
+          BitSet any = new BitSet(CHAR_COUNT);
+          any.set(0, CHAR_COUNT);
+          for (char lineTerminator : new char[] {'\n', '\r', '\u0085', '\u2028', '\u2029'}) {
+            any.clear(lineTerminator);
+          }
+          return new CharSetNode(any);
+        case '\\':
+          return new CharSetNode(parseEscape());
+        case '?':
+        case '*':
+        case '+':
+        case '{':
+          throw error("dangling quantifier");
+        case '^':
+        case '$':
+          throw error("anchors are not supported");
+        default:
+          return new CharSetNode(of(c, c));
+      }
+    }
+
+    private BitSet parseCharClass() {
+      boolean negated = consume('^');
+      BitSet chars = new BitSet(CHAR_COUNT);
+      while (!consume(']')) {
+        if (position == regex.length()) {
+          throw error("missing ]");
+        }
+        char c = regex.charAt(position++);
+        if (c == '[' || (c == '&' && position < regex.length() && peek() == '&')) {
+          throw error("nested character classes are not supported");
+        }
+        int low = c;
+        if (c == '\\') {
+          BitSet escaped = parseEscape();
+          if (escaped.cardinality() != 1) {
+            chars.or(escaped);
+            continue;
+          }
+          low = escaped.nextSetBit(0);
+        }
+        if (position + 1 < regex.length() && peek() == '-' && regex.charAt(position + 1) != ']') {
+          position++;
+          char high = regex.charAt(position++);
+          if (high == '\\') {
+            BitSet escaped = parseEscape();
+            if (escaped.cardinality() != 1) {
+              throw error("invalid range");
+            }
+            high = (char) escaped.nextSetBit(0);
+          }
+          if (high < low) {
+            throw error("invalid range");
+          }
+          chars.set(low, high + 1);
+        } else {
+          chars.set(low);
+        }
+      }
+      if (chars.isEmpty() && !negated) {
+        throw error("empty character class");
+      }
+      if (negated) {
+        chars.flip(0, CHAR_COUNT);
+      }
+      return chars;
+    }
+
+    private BitSet parseEscape() {
+      if (position == regex.length()) {
+        throw error("trailing \\");
+      }
+      char c = regex.charAt(position++);
+      switch (c) {
+        case 's':
+        case 'S':
+          BitSet whitespace = of(' ', ' ');
+          whitespace.set('\t', '\r' + 1);
+          return c == 's' ? whitespace : complement(whitespace);
+        case 'd':
+        case 'D':
+          BitSet digits = of('0', '9');
+          return c == 'd' ? digits : complement(digits);
+        case 'w':
+        case 'W':
+          BitSet word = of('a', 'z');
+          word.set('A', 'Z' + 1);
+          word.set('0', '9' + 1);
+          word.set('_');
+          return c == 'w' ? word : complement(word);
+        case 't':
+          return of('\t', '\t');
+        case 'n':
+          return of('\n', '\n');
+        case 'r':
+          return of('\r', '\r');
+        case 'f':
+          return of('\f', '\f');
+        default:
+          if (isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            throw error("unsupported escape \\" + c);
+          }
+          return of(c, c);
+      }
+    }
+
+    private boolean consume(char c) {
+      if (position < regex.length() && regex.charAt(position) == c) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private char peek() {
+      return regex.charAt(position);
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(
+          "Unsupported regex " + regex + " at index " + position + ": " + message);
+    }
+
+    private static BitSet of(char low, char high) {
+      BitSet chars = new BitSet(CHAR_COUNT);
+      chars.set(low, high + 1);
+      return chars;
+    }
+
+    private static BitSet complement(BitSet chars) {
+      chars.flip(0, CHAR_COUNT);
+      return chars;
+    }
+
+    private static boolean isDigit(char c) {
+      return c >= '0' && c <= '9';
+    }
+  }
+}
@@ -14,39 +14,58 @@
 
 package com.google.fhir.stu3;
 
-import com.google.fhir.stu3.proto.Annotations;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.fhir.stu3.proto.Extension;
 import com.google.fhir.stu3.proto.Uri;
-import com.google.protobuf.DescriptorProtos.MessageOptions;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.OneofDescriptor;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageOrBuilder;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
-/** Helper methods for handling extensions. */
+/**
+ * Helper methods for handling extensions.
+ *
+ * <p>Lookups scan the extensions by url. From the second lookup on, which is rare for wrappers
+ * made for one message, the typed messages returned by {@link #getMatchingExtensions} are kept
+ * until the extensions change, so further lookups of the same type do not convert the extensions
+ * again. Not thread-safe.
+ */
 public final class ExtensionWrapper {
   private List<Extension> content;
+  // Whether content is a private list of this wrapper, which it may modify. Otherwise it is the
+  // immutable extension list of a message, and is copied on the first modification.
+  private boolean ownsContent;
+  // The number of lookups by url since content was last set.
+  private int lookups;
+  // The results of getMatchingExtensions from the second lookup on, by template type.
+  private Map<Descriptor, List<?>> matchingExtensions;
 
-  private ExtensionWrapper(List<Extension> content) {
+  private ExtensionWrapper(List<Extension> content, boolean ownsContent) {
     this.content = content;
+    this.ownsContent = ownsContent;
   }
 
   /** Create an empty ExtensionWrapper. */
   public static ExtensionWrapper of() {
-    return new ExtensionWrapper(new ArrayList<Extension>());
+    return new ExtensionWrapper(new ArrayList<Extension>(), true);
   }
 
   /** Create from a List of Extensions, making a copy. */
   public static ExtensionWrapper of(List<Extension> input) {
-    return new ExtensionWrapper(new ArrayList<Extension>(input));
+    return new ExtensionWrapper(new ArrayList<Extension>(input), true);
   }
 
-  /** Create from the extension field in a message. */
+  /**
+   * Create from the extension field in a message. The extensions of a Message are shared until
+   * they are modified, those of a Builder are copied.
+   */
   @SuppressWarnings("unchecked")
   public static ExtensionWrapper fromExtensionsIn(MessageOrBuilder input) {
     FieldDescriptor field = input.getDescriptorForType().findFieldByName("extension");
@@ -60,7 +79,9 @@ public final class ExtensionWrapper {
               + " is not a valid FHIR type with extensions");
     }
     List<Extension> extensions = (List<Extension>) input.getField(field);
-    return ExtensionWrapper.of(extensions);
+    return input instanceof Message
+        ? new ExtensionWrapper(extensions, false)
+        : ExtensionWrapper.of(extensions);
   }
 
   /** Clear all extensions matching the template type from this. */
@@ -68,64 +89,94 @@ public final class ExtensionWrapper {
     if (content.isEmpty()) {
       return this;
     }
-    validateFhirExtension(template);
+    String type = getExtensionUrl(template.getDescriptorForType());
+    if (indicesOf(type).isEmpty()) {
+      return this;
+    }
     List<Extension> result = new ArrayList<>();
-    String type =
-        template
-            .getDescriptorForType()
-            .getOptions()
-            .getExtension(Annotations.fhirStructureDefinitionUrl);
     for (Extension e : content) {
       if (!e.getUrl().getValue().equals(type)) {
         result.add(e);
       }
     }
-    content = result;
+    setContent(result);
     return this;
   }
 
-  /** Return a version of the content suitable for inclusion in protocol messages. * */
+  /**
+   * Return a version of the content suitable for inclusion in protocol messages. The list is
+   * modifiable, like that of a wrapper created from a list; it is a copy while the wrapper still
+   * shares the immutable extension list of a message.
+   */
   public List<Extension> build() {
-    return content;
+    return ownsContent ? content : new ArrayList<>(content);
+  }
+
+  private void setContent(List<Extension> newContent) {
+    content = newContent;
+    ownsContent = true;
+    lookups = 0;
+    matchingExtensions = null;
+  }
+
+  /** Returns the positions of the extensions with the given url in content. */
+  private List<Integer> indicesOf(String url) {
+    lookups++;
+    List<Integer> indices = new ArrayList<>();
+    for (int i = 0; i < content.size(); i++) {
+      if (content.get(i).getUrl().getValue().equals(url)) {
+        indices.add(i);
+      }
+    }
+    return indices;
+  }
+
+  // The structure definition urls of the extension types seen so far.
+  private static final DescriptorCache<Descriptor, String> EXTENSION_URLS =
+      new DescriptorCache<>(ExtensionWrapper::readExtensionUrl);
+
+  /**
+   * Returns the url of the given FHIR extension type, throwing an IllegalArgumentException if it is
+   * not a valid FHIR extension.
+   */
+  private static String getExtensionUrl(Descriptor descriptor) {
+    return EXTENSION_URLS.get(descriptor);
+  }
+
+  private static String readExtensionUrl(Descriptor descriptor) {
+    validateFhirExtension(descriptor);
+    return AnnotationUtils.getStructureDefinitionUrl(descriptor);
   }
 
   /**
-   * Verify that the given message is a valid fhir extension, throwing an IllegalArgumentException
-   * otherwise.
+   * Verify that the given message type is a valid fhir extension, throwing an
+   * IllegalArgumentException otherwise.
    */
-  private void validateFhirExtension(MessageOrBuilder message) {
-    MessageOptions options = message.getDescriptorForType().getOptions();
+  private static void validateFhirExtension(Descriptor descriptor) {
     // Note that this method checks proto extensions, which are different from FHIR extensions.
-    String baseType = options.getExtension(Annotations.fhirProfileBase);
+    String baseType = AnnotationUtils.getProfileBase(descriptor);
     // TODO(nickgeorge): This would reject profiles on profiles on extensions (and so on).
     // If we want to support that, we'll probably need a "fhir_is_extension" annotation.
     if (!baseType.equals("Extension")) {
       throw new IllegalArgumentException(
           "Message type "
-              + message.getDescriptorForType().getFullName()
+              + descriptor.getFullName()
               + " is not a FHIR extension.  Base Profile: "
               + baseType);
     }
-    if (!options.hasExtension(Annotations.fhirStructureDefinitionUrl)) {
+    if (AnnotationUtils.getStructureDefinitionUrl(descriptor) == null) {
       throw new IllegalArgumentException(
           "Message type "
-              + message.getDescriptorForType().getFullName()
+              + descriptor.getFullName()
               + " is an invalid FHIR extension: Missing fhir_structure_definition_url annotation.");
     }
   }
 
   /** Add a new message, converting it to a FHIR Extension. */
   public <T extends MessageOrBuilder> ExtensionWrapper add(T message) {
-    validateFhirExtension(message);
     Extension.Builder extension =
         Extension.newBuilder()
-            .setUrl(
-                Uri.newBuilder()
-                    .setValue(
-                        message
-                            .getDescriptorForType()
-                            .getOptions()
-                            .getExtension(Annotations.fhirStructureDefinitionUrl)));
+            .setUrl(Uri.newBuilder().setValue(getExtensionUrl(message.getDescriptorForType())));
     List<FieldDescriptor> messageFields = message.getDescriptorForType().getFields();
     boolean isSingleValueExtension =
         messageFields.size() == 1
@@ -139,7 +190,9 @@ public final class ExtensionWrapper {
     } else {
       addMessageToExtension(message, extension);
     }
-    content.add(extension.build());
+    List<Extension> newContent = ownsContent ? content : new ArrayList<>(content);
+    newContent.add(extension.build());
+    setContent(newContent);
     return this;
   }
 
@@ -149,38 +202,52 @@ public final class ExtensionWrapper {
    */
   @SuppressWarnings("unchecked")
   public <T extends Message> List<T> getMatchingExtensions(T template) {
-    validateFhirExtension(template);
+    Descriptor descriptor = template.getDescriptorForType();
+    String type = getExtensionUrl(descriptor);
     if (content.isEmpty()) {
       return Collections.<T>emptyList();
     }
-    List<T> result = new ArrayList<T>();
-    String type =
-        template
-            .getDescriptorForType()
-            .getOptions()
-            .getExtension(Annotations.fhirStructureDefinitionUrl);
-    for (Extension e : content) {
-      if (e.getUrl().getValue().equals(type)) {
-        Message.Builder builder = template.newBuilderForType();
-        addExtensionToMessage(e, builder);
-        result.add((T) builder.build());
+    if (matchingExtensions != null && matchingExtensions.containsKey(descriptor)) {
+      // The caller may modify the result, so it gets a copy of the kept messages.
+      return new ArrayList<>((List<T>) matchingExtensions.get(descriptor));
+    }
+    List<T> result = new ArrayList<>();
+    for (int index : indicesOf(type)) {
+      Message.Builder messageBuilder = template.newBuilderForType();
+      addExtensionToMessage(content.get(index), messageBuilder);
+      result.add((T) messageBuilder.build());
+    }
+    if (lookups > 1) {
+      if (matchingExtensions == null) {
+        matchingExtensions = new HashMap<>();
       }
+      matchingExtensions.put(descriptor, ImmutableList.copyOf(result));
     }
     return result;
   }
 
   // Internal implementation details from here on.
 
-  private static final List<FieldDescriptor> EXTENSION_VALUE_FIELDS =
-      Extension.Value.getDescriptor().getOneofs().get(0).getFields();
+  private static final OneofDescriptor EXTENSION_VALUE_ONEOF =
+      Extension.Value.getDescriptor().getOneofs().get(0);
+
+  // The Extension.Value field for each type of value.
+  private static final ImmutableMap<Descriptor, FieldDescriptor> EXTENSION_VALUE_FIELDS =
+      createExtensionValueFields();
+
+  private static ImmutableMap<Descriptor, FieldDescriptor> createExtensionValueFields() {
+    Map<Descriptor, FieldDescriptor> fields = new HashMap<>();
+    for (FieldDescriptor field : EXTENSION_VALUE_ONEOF.getFields()) {
+      fields.putIfAbsent(field.getMessageType(), field);
+    }
+    return ImmutableMap.copyOf(fields);
+  }
 
   private static void addValueToExtension(MessageOrBuilder value, Extension.Builder result) {
-    // TODO(sundberg): use a map
-    for (FieldDescriptor field : EXTENSION_VALUE_FIELDS) {
-      if (field.getMessageType().equals(value.getDescriptorForType())) {
-        result.setValue(Extension.Value.newBuilder().setField(field, value).build());
-        return;
-      }
+    FieldDescriptor field = EXTENSION_VALUE_FIELDS.get(value.getDescriptorForType());
+    if (field != null) {
+      result.setValue(Extension.Value.newBuilder().setField(field, value).build());
+      return;
     }
     // Fall back to adding the value as a message.
     addMessageToExtension(value, result);
@@ -195,15 +262,35 @@ public final class ExtensionWrapper {
   }
 
   private static void addMessageToExtension(MessageOrBuilder message, Extension.Builder result) {
-    for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
-      if (entry.getKey().isRepeated()) {
-        for (Object o : (List) entry.getValue()) {
-          addFieldToExtension(entry.getKey().getName(), (MessageOrBuilder) o, result);
-        }
-      } else {
-        addFieldToExtension(entry.getKey().getName(), (MessageOrBuilder) entry.getValue(), result);
+    MessageFields.forEachSetField(
+        message,
+        (field, value) -> {
+          if (field.isRepeated()) {
+            for (Object o : (List) value) {
+              addFieldToExtension(field.getName(), (MessageOrBuilder) o, result);
+            }
+          } else {
+            addFieldToExtension(field.getName(), (MessageOrBuilder) value, result);
+          }
+        });
+  }
+
+  /**
+   * Returns the only field of the given type other than id and extension, if it is a message, and
+   * null otherwise.
+   */
+  private static FieldDescriptor getSimpleValueField(Descriptor descriptor) {
+    FieldDescriptor result = null;
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (field.getName().equals("extension") || field.getName().equals("id")) {
+        continue;
+      }
+      if (result != null) {
+        return null;
       }
+      result = field;
     }
+    return result != null && result.getType() == FieldDescriptor.Type.MESSAGE ? result : null;
   }
 
   // TODO(nickgeorge): This should handle the id and extension fields.
@@ -211,30 +298,19 @@ public final class ExtensionWrapper {
     if (extension.hasValue()) {
       // We only hit this case for simple extensions. The output type had better have just one
       // field other than extension and id, and it had better be of the right type.
-      List<FieldDescriptor> fields =
-          builder
-              .getDescriptorForType()
-              .getFields()
-              .stream()
-              .filter(
-                  field -> !field.getName().equals("extension") && !field.getName().equals("id"))
-              .collect(Collectors.toList());
-      if (fields.size() == 1 && fields.get(0).getType() == FieldDescriptor.Type.MESSAGE) {
-        FieldDescriptor targetField = fields.get(0);
-        for (Map.Entry<FieldDescriptor, Object> entry :
-            extension.getValue().getAllFields().entrySet()) {
-          if (entry.getKey().getContainingOneof() != null) {
-            if (entry.getKey().getMessageType().equals(targetField.getMessageType())) {
-              builder.setField(targetField, entry.getValue());
-              return;
-            } else {
-              throw new IllegalArgumentException(
-                  "Unable to find field of type "
-                      + entry.getKey().getMessageType().getName()
-                      + " in "
-                      + builder.getDescriptorForType().getFullName());
-            }
-          }
+      FieldDescriptor targetField = getSimpleValueField(builder.getDescriptorForType());
+      FieldDescriptor valueField =
+          extension.getValue().getOneofFieldDescriptor(EXTENSION_VALUE_ONEOF);
+      if (targetField != null && valueField != null) {
+        if (valueField.getMessageType().equals(targetField.getMessageType())) {
+          builder.setField(targetField, extension.getValue().getField(valueField));
+          return;
+        } else {
+          throw new IllegalArgumentException(
+              "Unable to find field of type "
+                  + valueField.getMessageType().getName()
+                  + " in "
+                  + builder.getDescriptorForType().getFullName());
         }
       }
       throw new IllegalArgumentException(
@@ -280,10 +356,12 @@ public final class ExtensionWrapper {
   }
 
   private static void addValueToMessage(Extension.Value value, Message.Builder builder) {
-    for (Map.Entry<FieldDescriptor, Object> field : value.getAllFields().entrySet()) {
-      if (field.getKey().getContainingOneof() != null) {
-        builder.mergeFrom((Message) field.getValue());
-      }
-    }
+    MessageFields.forEachSetField(
+        value,
+        (field, fieldValue) -> {
+          if (field.getContainingOneof() != null) {
+            builder.mergeFrom((Message) fieldValue);
+          }
+        });
   }
 }
@@ -0,0 +1,68 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import java.util.Map;
+
+/**
+ * Field access for a single message type, as used by {@link JsonFormat}. Each method behaves like
+ * the protobuf reflection method of the same name. Implementations for FHIR messages can be
+ * generated with {@link FieldAccessorPrinter}, in which case they call the typed accessors of the
+ * generated message classes directly; message types without a generated accessor are handled
+ * through protobuf reflection.
+ */
+public interface FieldAccessor {
+
+  /** Receives the fields which are set on a message, with their values. */
+  interface FieldVisitor<X extends Exception> {
+    void visit(FieldDescriptor field, Object value) throws X;
+  }
+
+  /** The message type this accessor handles. */
+  Descriptor getDescriptor();
+
+  /** Returns the fields set on the message, ordered by field number. */
+  Map<FieldDescriptor, Object> getAllFields(MessageOrBuilder message);
+
+  /**
+   * Calls the visitor for each field which is set on the message, in field number order, with the
+   * same values as getAllFields() but without building a map. This is how JsonFormat prints a
+   * message.
+   */
+  <X extends Exception> void forEachSetField(MessageOrBuilder message, FieldVisitor<X> visitor)
+      throws X;
+
+  /** Returns the value of the given field, which is a List for repeated fields. */
+  Object getField(MessageOrBuilder message, FieldDescriptor field);
+
+  /** Returns true if the given singular field is set on the message. */
+  boolean hasField(MessageOrBuilder message, FieldDescriptor field);
+
+  /** Returns the number of elements of the given repeated field. */
+  int getRepeatedFieldCount(MessageOrBuilder message, FieldDescriptor field);
+
+  /** Returns a new builder for the message type of the given field of the builder. */
+  Message.Builder newBuilderForField(Message.Builder builder, FieldDescriptor field);
+
+  /** Sets the given field to the value, replacing all elements if the field is repeated. */
+  void setField(Message.Builder builder, FieldDescriptor field, Object value);
+
+  /** Appends the value to the given repeated field. */
+  void addRepeatedField(Message.Builder builder, FieldDescriptor field, Object value);
+}
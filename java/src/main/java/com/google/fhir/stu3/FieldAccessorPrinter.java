@@ -0,0 +1,544 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A utility to turn protocol message descriptors into Java sources for {@link FieldAccessor}
+ * implementations. The generated accessors call the typed methods of the protoc-generated message
+ * classes, which lets {@link JsonFormat} avoid protobuf reflection for these types.
+ *
+ * <p>One source file is printed for each top-level message of the file, with the accessors of
+ * nested messages as nested classes. Messages that use features the generated code does not
+ * support, such as map fields or references to types from other proto packages, are skipped and
+ * will be handled through reflection.
+ */
+public class FieldAccessorPrinter {
+
+  // Field names that protoc suffixes with an underscore, since the generated accessors would clash
+  // with methods of the message base classes.
+  private static final ImmutableSet<String> RESERVED_FIELD_NAMES =
+      ImmutableSet.of("cached_size", "class", "serialized_size");
+
+  /**
+   * Generates accessor sources for the provided FileDescriptorProto. The result maps the fully
+   * qualified name of each top-level accessor class to its source.
+   */
+  public ImmutableMap<String, String> print(FileDescriptorProto fileDescriptor) {
+    if (!fileDescriptor.getOptions().getJavaMultipleFiles()) {
+      throw new IllegalArgumentException(
+          "Field accessors require java_multiple_files: " + fileDescriptor.getName());
+    }
+    String javaPackage = fileDescriptor.getOptions().getJavaPackage();
+    ImmutableMap.Builder<String, String> accessors = ImmutableMap.builder();
+    for (DescriptorProto descriptor : fileDescriptor.getMessageTypeList()) {
+      String source = printAccessorFile(descriptor, fileDescriptor);
+      if (source != null) {
+        accessors.put(
+            FieldAccessors.getAccessorClassName(javaPackage, descriptor.getName()), source);
+      }
+    }
+    return accessors.build();
+  }
+
+  /**
+   * Returns the name protoc uses for the accessors of a field, e.g. "ValueUs" for the field
+   * "value_us", which gives getValueUs() and setValueUs().
+   */
+  static String getJavaName(FieldDescriptorProto field) {
+    StringBuilder name = new StringBuilder();
+    boolean capitalizeNext = true;
+    for (char c : field.getName().toCharArray()) {
+      if (Ascii.isLowerCase(c)) {
+        name.append(capitalizeNext ? Ascii.toUpperCase(c) : c);
+        capitalizeNext = false;
+      } else if (Ascii.isUpperCase(c)) {
+        name.append(c);
+        capitalizeNext = false;
+      } else if (c >= '0' && c <= '9') {
+        name.append(c);
+        capitalizeNext = true;
+      } else {
+        capitalizeNext = true;
+      }
+    }
+    if (RESERVED_FIELD_NAMES.contains(field.getName())) {
+      name.append('_');
+    }
+    return name.toString();
+  }
+
+  private static boolean isSupported(DescriptorProto descriptor, FileDescriptorProto file) {
+    boolean isProto3 = "proto3".equals(file.getSyntax());
+    for (DescriptorProto nested : descriptor.getNestedTypeList()) {
+      if (nested.getOptions().getMapEntry()) {
+        return false;
+      }
+    }
+    for (FieldDescriptorProto field : descriptor.getFieldList()) {
+      boolean isRepeated = field.getLabel() == FieldDescriptorProto.Label.LABEL_REPEATED;
+      switch (field.getType()) {
+        case TYPE_MESSAGE:
+          if (getJavaType(field.getTypeName(), file) == null) {
+            return false;
+          }
+          break;
+        case TYPE_GROUP:
+          return false;
+        case TYPE_ENUM:
+          if (!isProto3 || isRepeated || field.hasOneofIndex()) {
+            return false;
+          }
+          break;
+        default:
+          if (!isProto3 || field.hasOneofIndex()) {
+            return false;
+          }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the Java class of a message type defined in the given file's package, or null if the
+   * type is defined elsewhere.
+   */
+  private static String getJavaType(String typeName, FileDescriptorProto file) {
+    String packagePrefix = "." + file.getPackage() + ".";
+    if (!typeName.startsWith(packagePrefix)) {
+      return null;
+    }
+    String javaPackage = file.getOptions().getJavaPackage();
+    String relativeName = typeName.substring(packagePrefix.length());
+    return javaPackage.isEmpty() ? relativeName : javaPackage + "." + relativeName;
+  }
+
+  private static String getBoxedScalarType(FieldDescriptorProto field) {
+    switch (field.getType()) {
+      case TYPE_STRING:
+        return "java.lang.String";
+      case TYPE_BYTES:
+        return "com.google.protobuf.ByteString";
+      case TYPE_BOOL:
+        return "java.lang.Boolean";
+      case TYPE_FLOAT:
+        return "java.lang.Float";
+      case TYPE_DOUBLE:
+        return "java.lang.Double";
+      case TYPE_INT64:
+      case TYPE_UINT64:
+      case TYPE_SINT64:
+      case TYPE_FIXED64:
+      case TYPE_SFIXED64:
+        return "java.lang.Long";
+      default:
+        return "java.lang.Integer";
+    }
+  }
+
+  /** Returns an expression which is true if the singular proto3 scalar field is set on m. */
+  private static String getScalarHasExpression(FieldDescriptorProto field, String javaName) {
+    String value = "m.get" + javaName + "()";
+    switch (field.getType()) {
+      case TYPE_STRING:
+      case TYPE_BYTES:
+        return "!" + value + ".isEmpty()";
+      case TYPE_BOOL:
+        return value;
+      case TYPE_FLOAT:
+        return "java.lang.Float.floatToRawIntBits(" + value + ") != 0";
+      case TYPE_DOUBLE:
+        return "java.lang.Double.doubleToRawLongBits(" + value + ") != 0";
+      case TYPE_ENUM:
+        return "m.get" + javaName + "Value() != 0";
+      default:
+        return value + " != 0";
+    }
+  }
+
+  private static String getConstantName(FieldDescriptorProto field) {
+    return Ascii.toUpperCase(field.getName()) + "_FIELD";
+  }
+
+  private static String printAccessorFile(DescriptorProto descriptor, FileDescriptorProto file) {
+    String accessorClass = printAccessorClass(descriptor, file, descriptor.getName(), false);
+    if (accessorClass == null) {
+      return null;
+    }
+    String javaPackage = file.getOptions().getJavaPackage();
+    return "// Generated by ProtoGenerator from "
+        + file.getName()
+        + ". Do not edit.\n\n"
+        + "package "
+        + (javaPackage.isEmpty() ? "accessor" : javaPackage + ".accessor")
+        + ";\n\n"
+        + "import com.google.fhir.stu3.FieldAccessor;\n"
+        + "import com.google.protobuf.Descriptors.Descriptor;\n"
+        + "import com.google.protobuf.Descriptors.FieldDescriptor;\n"
+        + "import com.google.protobuf.Message;\n"
+        + "import com.google.protobuf.MessageOrBuilder;\n"
+        + "import java.util.Collections;\n"
+        + "import java.util.LinkedHashMap;\n"
+        + "import java.util.Map;\n\n"
+        + accessorClass;
+  }
+
+  /**
+   * Prints the accessor class for a message, with the accessors of its nested messages as static
+   * nested classes. Returns null if neither the message nor any nested message is supported.
+   */
+  private static String printAccessorClass(
+      DescriptorProto descriptor, FileDescriptorProto file, String relativeName, boolean isNested) {
+    StringBuilder nestedClasses = new StringBuilder();
+    for (DescriptorProto nested : descriptor.getNestedTypeList()) {
+      if (nested.getOptions().getMapEntry()) {
+        continue;
+      }
+      String nestedClass =
+          printAccessorClass(nested, file, relativeName + "." + nested.getName(), true);
+      if (nestedClass != null) {
+        nestedClasses.append("\n").append(nestedClass.replaceAll("(?m)^(?=.)", "  "));
+      }
+    }
+    boolean isSupported = isSupported(descriptor, file);
+    if (!isSupported && nestedClasses.length() == 0) {
+      return null;
+    }
+
+    StringBuilder source = new StringBuilder();
+    source
+        .append("/** Field access for ")
+        .append(file.getPackage())
+        .append(".")
+        .append(relativeName)
+        .append(isSupported ? " without protobuf reflection. */\n" : ". */\n")
+        .append(isNested ? "public static final class " : "public final class ")
+        .append(descriptor.getName())
+        .append("Accessor");
+    if (isSupported) {
+      source.append(" implements FieldAccessor {\n\n");
+      printAccessorBody(descriptor, file, relativeName, source);
+    } else {
+      source.append(" {\n");
+    }
+    source.append(nestedClasses).append("}\n");
+    return source.toString();
+  }
+
+  private static void printAccessorBody(
+      DescriptorProto descriptor,
+      FileDescriptorProto file,
+      String relativeName,
+      StringBuilder source) {
+    String messageType = getJavaType("." + file.getPackage() + "." + relativeName, file);
+    List<FieldDescriptorProto> fields = new ArrayList<>(descriptor.getFieldList());
+    // Reflection orders fields by number, so we do the same.
+    fields.sort(Comparator.comparingInt(FieldDescriptorProto::getNumber));
+
+    source
+        .append("  private static final Descriptor DESCRIPTOR =\n      ")
+        .append(messageType)
+        .append(".getDescriptor();\n");
+    for (FieldDescriptorProto field : fields) {
+      source
+          .append("  private static final FieldDescriptor ")
+          .append(getConstantName(field))
+          .append(" = DESCRIPTOR.findFieldByNumber(")
+          .append(field.getNumber())
+          .append(");\n");
+    }
+    source.append("\n");
+
+    source
+        .append("  @Override\n")
+        .append("  public Descriptor getDescriptor() {\n")
+        .append("    return DESCRIPTOR;\n")
+        .append("  }\n\n");
+
+    // getAllFields
+    source
+        .append("  @Override\n")
+        .append("  public Map<FieldDescriptor, Object> getAllFields(MessageOrBuilder message) {\n")
+        .append(printOrBuilderCast(messageType, "return message.getAllFields();"))
+        .append("    Map<FieldDescriptor, Object> fields = new LinkedHashMap<>();\n")
+        .append(printSetFields(fields, "fields.put"))
+        .append("    return Collections.unmodifiableMap(fields);\n")
+        .append("  }\n\n");
+
+    // forEachSetField
+    source
+        .append("  @Override\n")
+        .append("  public <X extends Exception> void forEachSetField(\n")
+        .append("      MessageOrBuilder message, FieldVisitor<X> visitor) throws X {\n")
+        .append("    if (!(message instanceof ")
+        .append(messageType)
+        .append("OrBuilder)) {\n")
+        .append(
+            "      for (Map.Entry<FieldDescriptor, Object> entry :"
+                + " message.getAllFields().entrySet()) {\n")
+        .append("        visitor.visit(entry.getKey(), entry.getValue());\n")
+        .append("      }\n")
+        .append("      return;\n")
+        .append("    }\n")
+        .append("    ")
+        .append(messageType)
+        .append("OrBuilder m = (")
+        .append(messageType)
+        .append("OrBuilder) message;\n")
+        .append(printSetFields(fields, "visitor.visit"))
+        .append("  }\n\n");
+
+    // getField
+    source
+        .append("  @Override\n")
+        .append("  public Object getField(MessageOrBuilder message, FieldDescriptor field) {\n")
+        .append(printOrBuilderCast(messageType, "return message.getField(field);"))
+        .append("    switch (field.getNumber()) {\n");
+    for (FieldDescriptorProto field : fields) {
+      source.append(printCase(field)).append("        return ").append(printValue(field));
+      source.append(";\n");
+    }
+    source.append(printDefaultCase()).append("    }\n").append("  }\n\n");
+
+    // hasField
+    source
+        .append("  @Override\n")
+        .append("  public boolean hasField(MessageOrBuilder message, FieldDescriptor field) {\n")
+        .append(printOrBuilderCast(messageType, "return message.hasField(field);"))
+        .append("    switch (field.getNumber()) {\n");
+    for (FieldDescriptorProto field : fields) {
+      String javaName = getJavaName(field);
+      source.append(printCase(field));
+      if (isRepeated(field)) {
+        source.append(
+            "        throw new IllegalArgumentException(\n"
+                + "            \"hasField() called on a repeated field.\");\n");
+      } else if (field.getType() == FieldDescriptorProto.Type.TYPE_MESSAGE) {
+        source.append("        return m.has").append(javaName).append("();\n");
+      } else {
+        source
+            .append("        return ")
+            .append(getScalarHasExpression(field, javaName))
+            .append(";\n");
+      }
+    }
+    source.append(printDefaultCase()).append("    }\n").append("  }\n\n");
+
+    // getRepeatedFieldCount
+    source
+        .append("  @Override\n")
+        .append(
+            "  public int getRepeatedFieldCount("
+                + "MessageOrBuilder message, FieldDescriptor field) {\n")
+        .append(printOrBuilderCast(messageType, "return message.getRepeatedFieldCount(field);"))
+        .append("    switch (field.getNumber()) {\n");
+    for (FieldDescriptorProto field : fields) {
+      source.append(printCase(field));
+      if (isRepeated(field)) {
+        source.append("        return m.get").append(getJavaName(field)).append("Count();\n");
+      } else {
+        source.append(
+            "        throw new IllegalArgumentException(\n"
+                + "            \"getRepeatedFieldCount() called on a singular field.\");\n");
+      }
+    }
+    source.append(printDefaultCase()).append("    }\n").append("  }\n\n");
+
+    // newBuilderForField
+    source
+        .append("  @Override\n")
+        .append(
+            "  public Message.Builder newBuilderForField("
+                + "Message.Builder builder, FieldDescriptor field) {\n")
+        .append("    switch (field.getNumber()) {\n");
+    for (FieldDescriptorProto field : fields) {
+      source.append(printCase(field));
+      if (field.getType() == FieldDescriptorProto.Type.TYPE_MESSAGE) {
+        source
+            .append("        return ")
+            .append(getJavaType(field.getTypeName(), file))
+            .append(".newBuilder();\n");
+      } else {
+        source.append(
+            "        throw new UnsupportedOperationException(\n"
+                + "            \"newBuilderForField() called on a non-Message type.\");\n");
+      }
+    }
+    source.append(printDefaultCase()).append("    }\n").append("  }\n\n");
+
+    // setField
+    source
+        .append("  @Override\n")
+        .append("  @SuppressWarnings(\"unchecked\")\n")
+        .append(
+            "  public void setField("
+                + "Message.Builder builder, FieldDescriptor field, Object value) {\n")
+        .append(printBuilderCast(messageType, "builder.setField(field, value);"))
+        .append("    switch (field.getNumber()) {\n");
+    for (FieldDescriptorProto field : fields) {
+      String javaName = getJavaName(field);
+      String valueType = getValueType(field, file);
+      source.append(printCase(field));
+      if (isRepeated(field)) {
+        source
+            .append("        b.clear")
+            .append(javaName)
+            .append("().addAll")
+            .append(javaName)
+            .append("((Iterable<")
+            .append(valueType)
+            .append(">) value);\n");
+      } else if (field.getType() == FieldDescriptorProto.Type.TYPE_ENUM) {
+        source
+            .append("        b.set")
+            .append(javaName)
+            .append("Value(((com.google.protobuf.Descriptors.EnumValueDescriptor) value)")
+            .append(".getNumber());\n");
+      } else {
+        source
+            .append("        b.set")
+            .append(javaName)
+            .append("((")
+            .append(valueType)
+            .append(") value);\n");
+      }
+      source.append("        return;\n");
+    }
+    source.append(printDefaultCase()).append("    }\n").append("  }\n\n");
+
+    // addRepeatedField
+    source
+        .append("  @Override\n")
+        .append(
+            "  public void addRepeatedField("
+                + "Message.Builder builder, FieldDescriptor field, Object value) {\n")
+        .append(printBuilderCast(messageType, "builder.addRepeatedField(field, value);"))
+        .append("    switch (field.getNumber()) {\n");
+    for (FieldDescriptorProto field : fields) {
+      source.append(printCase(field));
+      if (isRepeated(field)) {
+        source
+            .append("        b.add")
+            .append(getJavaName(field))
+            .append("((")
+            .append(getValueType(field, file))
+            .append(") value);\n")
+            .append("        return;\n");
+      } else {
+        source.append(
+            "        throw new IllegalArgumentException(\n"
+                + "            \"addRepeatedField() called on a singular field.\");\n");
+      }
+    }
+    source.append(printDefaultCase()).append("    }\n").append("  }\n");
+  }
+
+  /**
+   * Prints a statement for each field, in the given order, which passes the field constant and
+   * the value of the field to the sink if the field is set on m, as getAllFields() would.
+   */
+  private static String printSetFields(List<FieldDescriptorProto> fields, String sink) {
+    StringBuilder source = new StringBuilder();
+    for (FieldDescriptorProto field : fields) {
+      String javaName = getJavaName(field);
+      if (isRepeated(field)) {
+        source.append("    if (m.get").append(javaName).append("Count() > 0) {\n");
+      } else if (field.getType() == FieldDescriptorProto.Type.TYPE_MESSAGE) {
+        source.append("    if (m.has").append(javaName).append("()) {\n");
+      } else {
+        source.append("    if (").append(getScalarHasExpression(field, javaName)).append(") {\n");
+      }
+      source
+          .append("      ")
+          .append(sink)
+          .append("(")
+          .append(getConstantName(field))
+          .append(", ")
+          .append(printValue(field))
+          .append(");\n")
+          .append("    }\n");
+    }
+    return source.toString();
+  }
+
+  /** Returns the expression for the value of the field on m, as protobuf reflection returns it. */
+  private static String printValue(FieldDescriptorProto field) {
+    String javaName = getJavaName(field);
+    if (isRepeated(field)) {
+      return "m.get" + javaName + "List()";
+    } else if (field.getType() == FieldDescriptorProto.Type.TYPE_ENUM) {
+      return getConstantName(field)
+          + ".getEnumType().findValueByNumberCreatingIfUnknown(m.get"
+          + javaName
+          + "Value())";
+    } else {
+      return "m.get" + javaName + "()";
+    }
+  }
+
+  private static boolean isRepeated(FieldDescriptorProto field) {
+    return field.getLabel() == FieldDescriptorProto.Label.LABEL_REPEATED;
+  }
+
+  private static String getValueType(FieldDescriptorProto field, FileDescriptorProto file) {
+    return field.getType() == FieldDescriptorProto.Type.TYPE_MESSAGE
+        ? getJavaType(field.getTypeName(), file)
+        : getBoxedScalarType(field);
+  }
+
+  private static String printOrBuilderCast(String messageType, String fallback) {
+    return "    if (!(message instanceof "
+        + messageType
+        + "OrBuilder)) {\n      "
+        + fallback
+        + "\n    }\n    "
+        + messageType
+        + "OrBuilder m = ("
+        + messageType
+        + "OrBuilder) message;\n";
+  }
+
+  private static String printBuilderCast(String messageType, String fallback) {
+    return "    if (!(builder instanceof "
+        + messageType
+        + ".Builder)) {\n      "
+        + fallback
+        + "\n      return;\n    }\n    "
+        + messageType
+        + ".Builder b = ("
+        + messageType
+        + ".Builder) builder;\n";
+  }
+
+  private static String printCase(FieldDescriptorProto field) {
+    return "      case " + field.getNumber() + ":\n";
+  }
+
+  private static String printDefaultCase() {
+    return "      default:\n"
+        + "        throw new IllegalArgumentException(\n"
+        + "            \"Field \" + field.getFullName() + \" is not a field of \""
+        + " + DESCRIPTOR.getFullName());\n";
+  }
+}
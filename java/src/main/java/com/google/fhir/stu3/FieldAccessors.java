@@ -0,0 +1,170 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import java.util.Map;
+
+/**
+ * Looks up the {@link FieldAccessor} for a message type. Generated accessors are found by class
+ * name, see {@link #getAccessorClassName}; if there is none on the classpath, or it was generated
+ * for a different version of the message, a reflection based accessor is used instead.
+ */
+final class FieldAccessors {
+
+  private static final DescriptorCache<Descriptor, FieldAccessor> CACHE =
+      new DescriptorCache<>(FieldAccessors::load);
+  // Accessors for the extension fields of a message type, which generated accessors don't know.
+  private static final DescriptorCache<Descriptor, FieldAccessor> EXTENSION_ACCESSORS =
+      new DescriptorCache<>(ReflectionAccessor::new);
+
+  private FieldAccessors() {}
+
+  /** Returns the (shared) accessor for the given message type. */
+  static FieldAccessor of(Descriptor descriptor) {
+    return CACHE.get(descriptor);
+  }
+
+  /** Returns the accessor to use for the given field, based on the type that contains it. */
+  private static FieldAccessor forField(FieldDescriptor field) {
+    return field.isExtension()
+        ? EXTENSION_ACCESSORS.get(field.getContainingType())
+        : of(field.getContainingType());
+  }
+
+  static Object getField(MessageOrBuilder message, FieldDescriptor field) {
+    return forField(field).getField(message, field);
+  }
+
+  static boolean hasField(MessageOrBuilder message, FieldDescriptor field) {
+    return forField(field).hasField(message, field);
+  }
+
+  static int getRepeatedFieldCount(MessageOrBuilder message, FieldDescriptor field) {
+    return forField(field).getRepeatedFieldCount(message, field);
+  }
+
+  static Message.Builder newBuilderForField(Message.Builder builder, FieldDescriptor field) {
+    return forField(field).newBuilderForField(builder, field);
+  }
+
+  static void setField(Message.Builder builder, FieldDescriptor field, Object value) {
+    forField(field).setField(builder, field, value);
+  }
+
+  static void addRepeatedField(Message.Builder builder, FieldDescriptor field, Object value) {
+    forField(field).addRepeatedField(builder, field, value);
+  }
+
+  /**
+   * Returns the binary name of the generated accessor class for a message defined in a .proto file
+   * with the given java_package. The message name is relative to the proto package, e.g.
+   * "Observation.Component", and nested messages map to nested accessor classes.
+   */
+  static String getAccessorClassName(String javaPackage, String messageName) {
+    String accessorPackage = javaPackage.isEmpty() ? "accessor" : javaPackage + ".accessor";
+    return accessorPackage + "." + messageName.replace(".", "Accessor$") + "Accessor";
+  }
+
+  private static FieldAccessor load(Descriptor descriptor) {
+    FileDescriptor file = descriptor.getFile();
+    if (!file.getOptions().getJavaMultipleFiles()) {
+      return new ReflectionAccessor(descriptor);
+    }
+    String messageName =
+        file.getPackage().isEmpty()
+            ? descriptor.getFullName()
+            : descriptor.getFullName().substring(file.getPackage().length() + 1);
+    String className = getAccessorClassName(file.getOptions().getJavaPackage(), messageName);
+    try {
+      FieldAccessor accessor =
+          Class.forName(className, true, FieldAccessors.class.getClassLoader())
+              .asSubclass(FieldAccessor.class)
+              .getConstructor()
+              .newInstance();
+      if (accessor.getDescriptor() == descriptor) {
+        return accessor;
+      }
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      // Fall through to the reflection based accessor.
+    }
+    return new ReflectionAccessor(descriptor);
+  }
+
+  /** A FieldAccessor which uses protobuf reflection. */
+  static final class ReflectionAccessor implements FieldAccessor {
+    private final Descriptor descriptor;
+
+    ReflectionAccessor(Descriptor descriptor) {
+      this.descriptor = descriptor;
+    }
+
+    @Override
+    public Descriptor getDescriptor() {
+      return descriptor;
+    }
+
+    @Override
+    public Map<FieldDescriptor, Object> getAllFields(MessageOrBuilder message) {
+      return message.getAllFields();
+    }
+
+    @Override
+    public <X extends Exception> void forEachSetField(
+        MessageOrBuilder message, FieldVisitor<X> visitor) throws X {
+      MessageFields fields = MessageFields.of(descriptor);
+      for (int i = 0; i < fields.size(); i++) {
+        if (fields.isSet(message, i)) {
+          FieldDescriptor field = fields.get(i);
+          visitor.visit(field, message.getField(field));
+        }
+      }
+    }
+
+    @Override
+    public Object getField(MessageOrBuilder message, FieldDescriptor field) {
+      return message.getField(field);
+    }
+
+    @Override
+    public boolean hasField(MessageOrBuilder message, FieldDescriptor field) {
+      return message.hasField(field);
+    }
+
+    @Override
+    public int getRepeatedFieldCount(MessageOrBuilder message, FieldDescriptor field) {
+      return message.getRepeatedFieldCount(field);
+    }
+
+    @Override
+    public Message.Builder newBuilderForField(Message.Builder builder, FieldDescriptor field) {
+      return builder.newBuilderForField(field);
+    }
+
+    @Override
+    public void setField(Message.Builder builder, FieldDescriptor field, Object value) {
+      builder.setField(field, value);
+    }
+
+    @Override
+    public void addRepeatedField(Message.Builder builder, FieldDescriptor field, Object value) {
+      builder.addRepeatedField(field, value);
+    }
+  }
+}
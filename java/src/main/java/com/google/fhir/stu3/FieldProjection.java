@@ -0,0 +1,210 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.fhir.stu3.proto.ContainedResource;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The set of fields a {@link JsonFormat.Parser} should materialize, as a tree over proto fields
+ * per root message type. A selected field includes everything below it. Instances are immutable.
+ */
+final class FieldProjection {
+
+  /** The selection below one message. */
+  static final class Node {
+    /** Selects all fields, recursively. */
+    static final Node ALL = new Node(null);
+    /** Selects no fields. */
+    static final Node NONE = new Node(ImmutableMap.of());
+
+    // Null if everything is selected.
+    private final ImmutableMap<FieldDescriptor, Node> children;
+
+    private Node(ImmutableMap<FieldDescriptor, Node> children) {
+      this.children = children;
+    }
+
+    /** Returns the selection below the given field, or null if the field is not selected. */
+    Node get(FieldDescriptor field) {
+      return children == null ? this : children.get(field);
+    }
+  }
+
+  /** A mutable Node, used while building the tree. */
+  private static final class NodeBuilder {
+    private final Map<FieldDescriptor, NodeBuilder> children = new HashMap<>();
+    private boolean all = false;
+
+    void add(List<FieldDescriptor> path) {
+      NodeBuilder node = this;
+      for (FieldDescriptor field : path) {
+        if (node.all) {
+          return;
+        }
+        node = node.children.computeIfAbsent(field, f -> new NodeBuilder());
+      }
+      node.all = true;
+      node.children.clear();
+    }
+
+    Node build() {
+      if (all) {
+        return Node.ALL;
+      }
+      ImmutableMap.Builder<FieldDescriptor, Node> built = ImmutableMap.builder();
+      for (Map.Entry<FieldDescriptor, NodeBuilder> child : children.entrySet()) {
+        built.put(child.getKey(), child.getValue().build());
+      }
+      return new Node(built.build());
+    }
+  }
+
+  private static final Splitter PATH_SPLITTER = Splitter.on('.');
+
+  private final ImmutableListMultimap<Descriptor, ImmutableList<FieldDescriptor>> paths;
+  private final ImmutableMap<Descriptor, Node> roots;
+  private final Node containedResourceRoot;
+
+  private FieldProjection(ImmutableListMultimap<Descriptor, ImmutableList<FieldDescriptor>> paths) {
+    this.paths = paths;
+    ImmutableMap.Builder<Descriptor, Node> roots = ImmutableMap.builder();
+    NodeBuilder containedResource = new NodeBuilder();
+    for (Descriptor type : paths.keySet()) {
+      NodeBuilder root = new NodeBuilder();
+      for (ImmutableList<FieldDescriptor> path : paths.get(type)) {
+        root.add(path);
+      }
+      Node node = root.build();
+      roots.put(type, node);
+      // Parsing into a ContainedResource selects the same fields of the contained resource.
+      FieldDescriptor resourceField = findContainedResourceField(type);
+      if (resourceField != null) {
+        containedResource.children.put(resourceField, root);
+      }
+    }
+    this.roots = roots.build();
+    this.containedResourceRoot = containedResource.build();
+  }
+
+  /** A projection which selects nothing yet. */
+  static FieldProjection empty() {
+    return new FieldProjection(ImmutableListMultimap.of());
+  }
+
+  /**
+   * Returns a projection that additionally selects the given FHIR path, such as
+   * "Observation.valueQuantity". The first element is the resource type, the others are json field
+   * names.
+   */
+  FieldProjection withFhirPath(String fhirPath) {
+    List<String> elements = PATH_SPLITTER.splitToList(fhirPath);
+    Descriptor root = findResourceType(elements.get(0));
+    if (root == null) {
+      throw new IllegalArgumentException("Unknown resource type in path " + fhirPath);
+    }
+    ImmutableList.Builder<FieldDescriptor> path = ImmutableList.builder();
+    Descriptor descriptor = root;
+    for (String element : elements.subList(1, elements.size())) {
+      if (descriptor == null) {
+        throw new IllegalArgumentException("Invalid path " + fhirPath + ": " + element);
+      }
+      JsonFieldMap.Entry entry = JsonFieldMap.of(descriptor).get(element);
+      if (entry == null) {
+        throw new IllegalArgumentException("Invalid path " + fhirPath + ": " + element);
+      }
+      FieldDescriptor field = entry.getField();
+      path.add(field);
+      if (entry.isChoiceType()) {
+        field = entry.getChoiceField();
+        path.add(field);
+      }
+      descriptor =
+          field.getType() == FieldDescriptor.Type.MESSAGE ? field.getMessageType() : null;
+    }
+    return with(root, path.build());
+  }
+
+  /**
+   * Returns a projection that additionally selects the paths of the field mask, which are proto
+   * field names relative to the given message type.
+   */
+  FieldProjection withFieldMask(Descriptor root, FieldMask fieldMask) {
+    FieldProjection projection = this;
+    for (String maskPath : fieldMask.getPathsList()) {
+      ImmutableList.Builder<FieldDescriptor> path = ImmutableList.builder();
+      Descriptor descriptor = root;
+      for (String name : PATH_SPLITTER.split(maskPath)) {
+        FieldDescriptor field = descriptor == null ? null : descriptor.findFieldByName(name);
+        if (field == null) {
+          throw new IllegalArgumentException(
+              "Invalid field mask path " + maskPath + " for " + root.getFullName());
+        }
+        path.add(field);
+        descriptor =
+            field.getType() == FieldDescriptor.Type.MESSAGE ? field.getMessageType() : null;
+      }
+      projection = projection.with(root, path.build());
+    }
+    return projection;
+  }
+
+  private FieldProjection with(Descriptor root, ImmutableList<FieldDescriptor> path) {
+    return new FieldProjection(
+        ImmutableListMultimap.<Descriptor, ImmutableList<FieldDescriptor>>builder()
+            .putAll(paths)
+            .put(root, path)
+            .build());
+  }
+
+  /**
+   * Returns the selection for a message of the given type that is parsed at the top level. Types
+   * without any selected path select nothing.
+   */
+  Node forType(Descriptor descriptor) {
+    Node root = roots.get(descriptor);
+    if (root != null) {
+      return root;
+    }
+    return descriptor.equals(ContainedResource.getDescriptor()) ? containedResourceRoot : Node.NONE;
+  }
+
+  private static FieldDescriptor findContainedResourceField(Descriptor type) {
+    for (FieldDescriptor field : ContainedResource.getDescriptor().getFields()) {
+      if (field.getMessageType().equals(type)) {
+        return field;
+      }
+    }
+    return null;
+  }
+
+  private static Descriptor findResourceType(String name) {
+    for (FieldDescriptor field : ContainedResource.getDescriptor().getFields()) {
+      if (field.getMessageType().getName().equals(name)) {
+        return field.getMessageType();
+      }
+    }
+    return null;
+  }
+}
@@ -15,13 +15,12 @@
 package com.google.fhir.stu3;
 
 import com.google.fhir.stu3.proto.Id;
-import java.util.regex.Pattern;
 
 /** A wrapper around the Id FHIR primitive type. */
 public class IdWrapper extends PrimitiveWrapper<Id> {
 
-  private static final Pattern ID_PATTERN =
-      Pattern.compile(AnnotationUtils.getValueRegexForPrimitiveType(Id.getDefaultInstance()));
+  private static final DfaMatcher ID_PATTERN =
+      DfaMatcher.compile(AnnotationUtils.getValueRegexForPrimitiveType(Id.getDefaultInstance()));
   private static final Id NULL_ID = Id.newBuilder().addExtension(getNoValueExtension()).build();
 
   /** Create an IdWrapper from an Id. */
@@ -16,18 +16,12 @@ package com.google.fhir.stu3;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.fhir.stu3.proto.Instant;
-import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
-import java.util.regex.Pattern;
 
 /** A wrapper around the Instant FHIR primitive type. */
 public class InstantWrapper extends PrimitiveWrapper<Instant> {
 
-  private static final Pattern INSTANT_PATTERN =
-      Pattern.compile(
-          "-?[0-9]{4}-(0[1-9]|1[0-2])-(0[0-9]|[1-2][0-9]|3[0-1])T([01][0-9]|2[0-3]):[0-5][0-9]:[0-5][0-9](\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00))");
   private static final Instant NULL_INSTANT =
       Instant.newBuilder().addExtension(getNoValueExtension()).build();
 
@@ -51,27 +45,20 @@ public class InstantWrapper extends PrimitiveWrapper<Instant> {
   }
 
   private static Instant parseAndValidate(String input) {
-    validateUsingPattern(INSTANT_PATTERN, input);
-    try {
-      OffsetDateTime offsetDateTime = OffsetDateTime.parse(input, SECOND_WITH_TZ);
-      String timezone = extractFhirTimezone(input, offsetDateTime);
-      return buildInstant(
-          offsetDateTime.toInstant().toEpochMilli() * 1000L, timezone, Instant.Precision.SECOND);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+    DateTimeScanner scanner = new DateTimeScanner(input);
+    int precision = scanner.scanInstant();
+    if (precision == DateTimeScanner.MALFORMED) {
+      throw new IllegalArgumentException("Invalid input: " + input);
     }
-    try {
-      // The default parser for OffsetDateTime handles fractional seconds.
-      OffsetDateTime offsetDateTime = OffsetDateTime.parse(input);
-      String timezone = extractFhirTimezone(input, offsetDateTime);
-      return buildInstant(
-          offsetDateTime.toInstant().toEpochMilli() * 1000L,
-          timezone,
-          Instant.Precision.MILLISECOND);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+    if (precision == DateTimeScanner.INVALID) {
+      throw new IllegalArgumentException("Invalid Instant: " + input);
     }
-    throw new IllegalArgumentException("Invalid Instant: " + input);
+    return buildInstant(
+        scanner.getEpochMicros(),
+        scanner.getTimezone(),
+        scanner.getReportedPrecision(precision) == DateTimeScanner.SECOND
+            ? Instant.Precision.SECOND
+            : Instant.Precision.MILLISECOND);
   }
 
   private static Instant buildInstant(long valueUs, String timezone, Instant.Precision precision) {
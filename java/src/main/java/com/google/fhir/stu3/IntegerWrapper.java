@@ -15,13 +15,13 @@
 package com.google.fhir.stu3;
 
 import com.google.fhir.stu3.proto.Integer;
-import java.util.regex.Pattern;
 
 /** A wrapper around the Integer FHIR primitive type. */
 public class IntegerWrapper extends NumericTypeWrapper<Integer> {
 
-  private static final Pattern INTEGER_PATTERN =
-      Pattern.compile(AnnotationUtils.getValueRegexForPrimitiveType(Integer.getDefaultInstance()));
+  private static final DfaMatcher INTEGER_PATTERN =
+      DfaMatcher.compile(
+          AnnotationUtils.getValueRegexForPrimitiveType(Integer.getDefaultInstance()));
   private static final Integer NULL_INTEGER =
       Integer.newBuilder().addExtension(getNoValueExtension()).build();
 
@@ -0,0 +1,115 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A lookup table from FHIR json field names to the proto fields of one message type. This covers
+ * regular fields, the "_"-prefixed names used for extensions on primitive fields, and the names of
+ * all choice type alternatives, such as "valueQuantity".
+ */
+final class JsonFieldMap {
+
+  /** A json field name, resolved to its proto field. */
+  static final class Entry {
+    private final FieldDescriptor field;
+    private final FieldDescriptor choiceField;
+
+    private Entry(FieldDescriptor field, FieldDescriptor choiceField) {
+      this.field = field;
+      this.choiceField = choiceField;
+    }
+
+    /** The field of the message this map was built for. */
+    FieldDescriptor getField() {
+      return field;
+    }
+
+    /**
+     * For choice types, the field within the choice type message that this name selects, for
+     * example Observation.Value.quantity for "valueQuantity". Null for all other fields.
+     */
+    FieldDescriptor getChoiceField() {
+      return choiceField;
+    }
+
+    boolean isChoiceType() {
+      return choiceField != null;
+    }
+  }
+
+  private static final DescriptorCache<Descriptor, JsonFieldMap> CACHE =
+      new DescriptorCache<>(JsonFieldMap::build);
+
+  private final ImmutableMap<String, Entry> entries;
+
+  private JsonFieldMap(ImmutableMap<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  /** Returns the (shared) JsonFieldMap for the given message type. */
+  static JsonFieldMap of(Descriptor descriptor) {
+    return CACHE.get(descriptor);
+  }
+
+  private static JsonFieldMap build(Descriptor descriptor) {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (AnnotationUtils.isChoiceType(field)) {
+        // All the contained fields go in this message.
+        for (Map.Entry<String, Entry> inner : of(field.getMessageType()).entries.entrySet()) {
+          String innerName = inner.getKey();
+          // Extensions on primitive alternatives go in e.g. "_valueString", not "value_string".
+          String prefix = "";
+          if (innerName.startsWith("_")) {
+            prefix = "_";
+            innerName = innerName.substring(1);
+          }
+          String name =
+              prefix
+                  + field.getJsonName()
+                  + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, innerName);
+          entries.put(name, new Entry(field, inner.getValue().getField()));
+        }
+      } else {
+        Entry entry = new Entry(field, null);
+        entries.put(field.getJsonName(), entry);
+        if (field.getType() == FieldDescriptor.Type.MESSAGE
+            && AnnotationUtils.isPrimitiveType(field.getMessageType())) {
+          // Handle extensions on primitive fields.
+          entries.put("_" + field.getJsonName(), entry);
+        }
+      }
+    }
+    return new JsonFieldMap(ImmutableMap.copyOf(entries));
+  }
+
+  /** Returns the entry for the given json field name, or null if there is no such field. */
+  Entry get(String jsonName) {
+    return entries.get(jsonName);
+  }
+
+  /** All json field names known for this message type. */
+  ImmutableSet<String> getNames() {
+    return entries.keySet();
+  }
+}
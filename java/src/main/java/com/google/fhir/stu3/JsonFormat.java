@@ -14,46 +14,51 @@
 
 package com.google.fhir.stu3;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.common.base.CaseFormat;
 import com.google.common.collect.ImmutableMap;
-import com.google.fhir.stu3.proto.Annotations;
-import com.google.fhir.stu3.proto.Base64Binary;
 import com.google.fhir.stu3.proto.Boolean;
-import com.google.fhir.stu3.proto.Code;
+import com.google.fhir.stu3.proto.Bundle;
 import com.google.fhir.stu3.proto.ContainedResource;
-import com.google.fhir.stu3.proto.Date;
-import com.google.fhir.stu3.proto.DateTime;
-import com.google.fhir.stu3.proto.Decimal;
 import com.google.fhir.stu3.proto.Element;
-import com.google.fhir.stu3.proto.Id;
-import com.google.fhir.stu3.proto.Instant;
-import com.google.fhir.stu3.proto.Integer;
-import com.google.fhir.stu3.proto.Markdown;
-import com.google.fhir.stu3.proto.Oid;
-import com.google.fhir.stu3.proto.PositiveInt;
 import com.google.fhir.stu3.proto.PrimitiveHasNoValue;
 import com.google.fhir.stu3.proto.ReferenceId;
-import com.google.fhir.stu3.proto.Time;
-import com.google.fhir.stu3.proto.UnsignedInt;
-import com.google.fhir.stu3.proto.Uri;
-import com.google.fhir.stu3.proto.Xhtml;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageOrBuilder;
+import java.io.FilterReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /** Parsers for FHIR data encoded as json or xml. */
 public final class JsonFormat {
@@ -132,7 +137,50 @@ public final class JsonFormat {
      * @throws IOException if writing to the output fails.
      */
     public void appendTo(MessageOrBuilder message, Appendable output) throws IOException {
-      new PrinterImpl(output, omittingInsignificantWhitespace, defaultTimeZone).print(message);
+      TextGenerator generator =
+          omittingInsignificantWhitespace
+              ? new CompactTextGenerator(output)
+              : new PrettyTextGenerator(output);
+      new PrinterImpl(generator, omittingInsignificantWhitespace, defaultTimeZone).print(message);
+    }
+
+    /**
+     * Converts a protobuf message to UTF-8 encoded JSON format, which is written to {@code output}
+     * as it is generated, without building a String of the whole message. This is the most
+     * efficient way to write ndjson files. The stream is neither flushed nor closed.
+     *
+     * @throws IOException if writing to the output fails.
+     */
+    public void writeTo(MessageOrBuilder message, OutputStream output) throws IOException {
+      Utf8TextGenerator generator =
+          new Utf8TextGenerator(output, !omittingInsignificantWhitespace);
+      new PrinterImpl(generator, omittingInsignificantWhitespace, defaultTimeZone).print(message);
+      generator.flush();
+    }
+
+    /**
+     * Converts a protobuf message to UTF-8 encoded JSON format, which is written to {@code output}
+     * at its current position, like {@link #writeTo(MessageOrBuilder, OutputStream)}. The
+     * position is advanced past the written bytes. If printing fails, for example with a
+     * BufferOverflowException because the message does not fit, the position is left unchanged,
+     * so that the same buffer can be reused.
+     */
+    public void writeTo(MessageOrBuilder message, ByteBuffer output) {
+      int start = output.position();
+      try {
+        new PrinterImpl(
+                new Utf8TextGenerator(output, !omittingInsignificantWhitespace),
+                omittingInsignificantWhitespace,
+                defaultTimeZone)
+            .print(message);
+      } catch (IOException e) {
+        // Only output streams can fail.
+        output.position(start);
+        throw new AssertionError(e);
+      } catch (RuntimeException e) {
+        output.position(start);
+        throw e;
+      }
     }
 
     /** Converts a protobuf message to JSON format. */
@@ -153,6 +201,121 @@ public final class JsonFormat {
     void outdent();
 
     void print(final CharSequence text) throws IOException;
+
+    /** Print a fixed piece of text, such as a field name. */
+    void print(final Token token) throws IOException;
+
+    /** Print text as a quoted json string, escaping it as it is written. */
+    void printString(final CharSequence text) throws IOException;
+  }
+
+  /** A fixed piece of json output, together with its UTF-8 encoding. */
+  static final class Token {
+    private final String text;
+    private final byte[] utf8;
+
+    Token(String text) {
+      this.text = text;
+      this.utf8 = text.getBytes(UTF_8);
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+  /**
+   * The names printed for a field, precomputed once per field: "name": before its value, and
+   * "_name": before the extensions of a primitive field. Choice type fields also hold the names of
+   * their alternatives, such as "valueQuantity":.
+   */
+  private static final class FieldName {
+    private static final DescriptorCache<FieldDescriptor, FieldName> CACHE =
+        new DescriptorCache<>(FieldName::create);
+
+    private final String jsonName;
+    private final Token value;
+    private final Token extension;
+    private final ConcurrentMap<FieldDescriptor, FieldName> choices = new ConcurrentHashMap<>();
+
+    private FieldName(String jsonName) {
+      this.jsonName = jsonName;
+      this.value = new Token("\"" + jsonName + "\":");
+      this.extension = new Token("\"_" + jsonName + "\":");
+    }
+
+    private static FieldName create(FieldDescriptor field) {
+      return new FieldName(field.getJsonName());
+    }
+
+    static FieldName of(FieldDescriptor field) {
+      return CACHE.get(field);
+    }
+
+    /** Returns the name of the given alternative of this choice type field. */
+    FieldName forChoice(FieldDescriptor choice) {
+      FieldName name = choices.get(choice);
+      if (name == null) {
+        name =
+            new FieldName(
+                jsonName + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, choice.getJsonName()));
+        FieldName existing = choices.putIfAbsent(choice, name);
+        if (existing != null) {
+          name = existing;
+        }
+      }
+      return name;
+    }
+  }
+
+  // The escape sequences of the ascii characters which json strings can not contain as they are,
+  // and null for all others. These match the default escaping of gson, which is not html safe, so
+  // that the output is the same as that of JsonPrimitive.toString().
+  private static final String[] JSON_ESCAPES = createJsonEscapes();
+
+  private static String[] createJsonEscapes() {
+    String[] escapes = new String[128];
+    for (int i = 0; i < 0x20; i++) {
+      escapes[i] = String.format("\\u%04x", i);
+    }
+    escapes['"'] = "\\\"";
+    escapes['\\'] = "\\\\";
+    escapes['\t'] = "\\t";
+    escapes['\b'] = "\\b";
+    escapes['\n'] = "\\n";
+    escapes['\r'] = "\\r";
+    escapes['\f'] = "\\f";
+    return escapes;
+  }
+
+  /** Returns the json escape sequence for the given character, or null if it needs none. */
+  private static String getJsonEscape(char c) {
+    if (c < 128) {
+      return JSON_ESCAPES[c];
+    }
+    if (c == '\u2028') {
+      return "\\u2028";
+    }
+    if (c == '\u2029') {
+      return "\\u2029";
+    }
+    return null;
+  }
+
+  /** Appends text to output as a quoted json string, without building an escaped copy first. */
+  private static void appendJsonString(CharSequence text, Appendable output) throws IOException {
+    output.append('"');
+    int length = text.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      String escape = getJsonEscape(text.charAt(i));
+      if (escape != null) {
+        output.append(text, start, i).append(escape);
+        start = i + 1;
+      }
+    }
+    output.append(text, start, length).append('"');
   }
 
   /** Format the json without indentation */
@@ -176,6 +339,16 @@ public final class JsonFormat {
     public void print(final CharSequence text) throws IOException {
       output.append(text);
     }
+
+    @Override
+    public void print(final Token token) throws IOException {
+      output.append(token.text);
+    }
+
+    @Override
+    public void printString(final CharSequence text) throws IOException {
+      appendJsonString(text, output);
+    }
   }
   /** A TextGenerator adds indentation when writing formatted text. */
   private static final class PrettyTextGenerator implements TextGenerator {
@@ -224,40 +397,249 @@ public final class JsonFormat {
       write(text.subSequence(pos, size));
     }
 
+    @Override
+    public void print(final Token token) throws IOException {
+      print(token.text);
+    }
+
+    @Override
+    public void printString(final CharSequence text) throws IOException {
+      // Escaped strings never contain line breaks.
+      startLine();
+      appendJsonString(text, output);
+    }
+
     private void write(final CharSequence data) throws IOException {
       if (data.length() == 0) {
         return;
       }
+      startLine();
+      output.append(data);
+    }
+
+    private void startLine() throws IOException {
       if (atStartOfLine) {
         atStartOfLine = false;
         output.append(indent);
       }
-      output.append(data);
+    }
+  }
+
+  /**
+   * A TextGenerator which encodes text as UTF-8 directly into a ByteBuffer, optionally adding
+   * indentation like {@link PrettyTextGenerator}. When the buffer is full, it is drained into the
+   * output stream if there is one; otherwise a BufferOverflowException is thrown.
+   */
+  private static final class Utf8TextGenerator implements TextGenerator {
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    private final ByteBuffer buffer;
+    private final OutputStream stream;
+    private final boolean indenting;
+    private int indent = 0;
+    private boolean atStartOfLine = true;
+
+    /** Writes to the given buffer, which needs to have room for the whole output. */
+    private Utf8TextGenerator(ByteBuffer buffer, boolean indenting) {
+      this.buffer = buffer;
+      this.stream = null;
+      this.indenting = indenting;
+    }
+
+    /** Writes to the given stream, through a buffer which is drained by {@link #flush}. */
+    private Utf8TextGenerator(OutputStream stream, boolean indenting) {
+      this.buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+      this.stream = stream;
+      this.indenting = indenting;
+    }
+
+    @Override
+    public void indent() {
+      if (indenting) {
+        indent += 2;
+      }
+    }
+
+    @Override
+    public void outdent() {
+      if (indenting) {
+        if (indent < 2) {
+          throw new IllegalArgumentException("Outdent() without matching Indent().");
+        }
+        indent -= 2;
+      }
+    }
+
+    @Override
+    public void print(final CharSequence text) throws IOException {
+      int length = text.length();
+      for (int i = 0; i < length; i++) {
+        startLine();
+        char c = text.charAt(i);
+        if (c < 0x80) {
+          writeAscii(c);
+        } else {
+          i = writeNonAscii(text, i);
+        }
+      }
+    }
+
+    @Override
+    public void print(final Token token) throws IOException {
+      for (byte b : token.utf8) {
+        startLine();
+        ensureRemaining(1);
+        buffer.put(b);
+        if (b == '\n') {
+          atStartOfLine = true;
+        }
+      }
+    }
+
+    @Override
+    public void printString(final CharSequence text) throws IOException {
+      startLine();
+      ensureRemaining(1);
+      buffer.put((byte) '"');
+      int length = text.length();
+      for (int i = 0; i < length; i++) {
+        char c = text.charAt(i);
+        String escape = getJsonEscape(c);
+        if (escape != null) {
+          ensureRemaining(escape.length());
+          for (int j = 0; j < escape.length(); j++) {
+            buffer.put((byte) escape.charAt(j));
+          }
+        } else if (c < 0x80) {
+          ensureRemaining(1);
+          buffer.put((byte) c);
+        } else {
+          i = writeNonAscii(text, i);
+        }
+      }
+      ensureRemaining(1);
+      buffer.put((byte) '"');
+    }
+
+    /** Writes any buffered output to the stream. */
+    void flush() throws IOException {
+      if (stream != null && buffer.position() > 0) {
+        stream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        buffer.clear();
+      }
+    }
+
+    private void startLine() throws IOException {
+      if (atStartOfLine) {
+        atStartOfLine = false;
+        for (int i = 0; i < indent; i++) {
+          ensureRemaining(1);
+          buffer.put((byte) ' ');
+        }
+      }
+    }
+
+    private void writeAscii(char c) throws IOException {
+      ensureRemaining(1);
+      buffer.put((byte) c);
+      if (c == '\n') {
+        atStartOfLine = true;
+      }
+    }
+
+    /**
+     * Writes the non-ascii character at the given index, and returns the index of its last char,
+     * which differs for surrogate pairs. Unpaired surrogates are written as '?', like {@link
+     * String#getBytes} does.
+     */
+    private int writeNonAscii(CharSequence text, int index) throws IOException {
+      char c = text.charAt(index);
+      ensureRemaining(c < 0x800 ? 2 : Character.isSurrogate(c) ? 4 : 3);
+      if (c < 0x800) {
+        buffer.put((byte) (0xc0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      } else if (!Character.isSurrogate(c)) {
+        buffer.put((byte) (0xe0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c)
+          && index + 1 < text.length()
+          && Character.isLowSurrogate(text.charAt(index + 1))) {
+        int codePoint = Character.toCodePoint(c, text.charAt(index + 1));
+        buffer.put((byte) (0xf0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+        return index + 1;
+      } else {
+        buffer.put((byte) '?');
+      }
+      return index;
+    }
+
+    private void ensureRemaining(int count) throws IOException {
+      if (buffer.remaining() < count) {
+        if (stream == null) {
+          throw new BufferOverflowException();
+        }
+        flush();
+      }
     }
   }
 
   /** A Printer converts protobuf messages to JSON format. */
   private static final class PrinterImpl {
     private final TextGenerator generator;
-    private final CharSequence blankOrSpace;
-    private final CharSequence blankOrNewLine;
+    private final Punctuation punctuation;
     private final ZoneId defaultTimeZone;
+    // Reused to print the references of split Reference fields.
+    private final StringBuilder referenceBuilder = new StringBuilder();
+    // Whether the message being printed by printMessage has printed a field yet.
+    private boolean printedField;
+    // Prints each set field of a message, as it is passed on by FieldAccessor.forEachSetField.
+    private final FieldAccessor.FieldVisitor<IOException> fieldPrinter = this::printSetField;
 
     PrinterImpl(
-        Appendable jsonOutput, boolean omittingInsignificantWhitespace, ZoneId defaultTimeZone) {
+        TextGenerator generator, boolean omittingInsignificantWhitespace, ZoneId defaultTimeZone) {
       // json format related properties, determined by printerType
-      if (omittingInsignificantWhitespace) {
-        this.generator = new CompactTextGenerator(jsonOutput);
-        this.blankOrSpace = "";
-        this.blankOrNewLine = "";
-      } else {
-        this.generator = new PrettyTextGenerator(jsonOutput);
-        this.blankOrSpace = " ";
-        this.blankOrNewLine = "\n";
-      }
+      this.generator = generator;
+      this.punctuation =
+          omittingInsignificantWhitespace ? Punctuation.COMPACT : Punctuation.PRETTY;
       this.defaultTimeZone = defaultTimeZone;
     }
 
+    /** The structural tokens of the json output, with or without insignificant whitespace. */
+    private static final class Punctuation {
+      static final Punctuation COMPACT = new Punctuation("", "");
+      static final Punctuation PRETTY = new Punctuation(" ", "\n");
+
+      final Token blankOrSpace;
+      final Token blankOrNewLine;
+      final Token objectStart;
+      final Token arrayStart;
+      final Token separator;
+
+      private Punctuation(String blankOrSpace, String blankOrNewLine) {
+        this.blankOrSpace = new Token(blankOrSpace);
+        this.blankOrNewLine = new Token(blankOrNewLine);
+        this.objectStart = new Token("{" + blankOrNewLine);
+        this.arrayStart = new Token("[" + blankOrNewLine);
+        this.separator = new Token("," + blankOrNewLine);
+      }
+    }
+
+    private static final Token OBJECT_END = new Token("}");
+    private static final Token ARRAY_END = new Token("]");
+    private static final Token NULL = new Token("null");
+
+    // The "resourceType" field printed for each resource type.
+    private static final DescriptorCache<Descriptor, Token> RESOURCE_TYPES =
+        new DescriptorCache<>(PrinterImpl::createResourceType);
+
+    private static Token createResourceType(Descriptor descriptor) {
+      return new Token("\"resourceType\": \"" + descriptor.getName() + "\"");
+    }
+
     void print(MessageOrBuilder message) throws IOException {
       WellKnownTypePrinter specialPrinter =
           wellKnownTypePrinters.get(message.getDescriptorForType().getFullName());
@@ -294,170 +676,196 @@ public final class JsonFormat {
 
     /** Prints a contained resource field. */
     private void printContainedResource(ContainedResource message) throws IOException {
-      for (Map.Entry<FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
-        print((Message) field.getValue());
-      }
+      MessageFields.forEachSetField(message, (field, value) -> print((Message) value));
     }
 
-    /** Prints a reference field. */
+    /**
+     * Prints a reference field. References which are split into their parts are printed with the
+     * "reference" they were split from, which is written directly instead of being set on a copy
+     * of the message.
+     */
     private void printReference(MessageOrBuilder reference) throws IOException {
-      FieldDescriptor uri = reference.getDescriptorForType().findFieldByName("uri");
-      if (reference.hasField(uri)) {
-        printMessage(reference);
-      } else {
-        // Restore the Uri field.
-        String newUri = null;
-        FieldDescriptor fragment = reference.getDescriptorForType().findFieldByName("fragment");
-        if (reference.hasField(fragment)) {
-          newUri =
-              "#" + ((com.google.fhir.stu3.proto.String) reference.getField(fragment)).getValue();
-        } else {
-          for (Map.Entry<FieldDescriptor, Object> field : reference.getAllFields().entrySet()) {
-            if (field.getKey().getContainingOneof() != null) {
-              // Convert to CamelCase and strip out the trailing "Id"
-              String type =
-                  CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, field.getKey().getName());
-              type = type.substring(0, type.length() - 2);
-              ReferenceId refId = (ReferenceId) field.getValue();
-              newUri = type + "/" + refId.getValue();
-              if (refId.hasHistory()) {
-                newUri = newUri + "/_history/" + refId.getHistory().getValue();
-              }
-            }
-          }
+      Descriptor descriptor = reference.getDescriptorForType();
+      ReferenceFields referenceFields = ReferenceFields.of(descriptor);
+      MessageFields fields = MessageFields.of(descriptor);
+      boolean printedField = false;
+      for (int i = 0; i < fields.size(); i++) {
+        if (!fields.isSet(reference, i)) {
+          continue;
         }
-        if (newUri != null) {
-          Message.Builder builder = ((Message) reference).toBuilder();
-          builder.setField(
-              uri, com.google.fhir.stu3.proto.String.newBuilder().setValue(newUri).build());
-          printMessage(builder);
+        printedField = maybeStartMessage(printedField);
+        FieldDescriptor field = fields.get(i);
+        Object value = FieldAccessors.getField(reference, field);
+        String resourceType = referenceFields.getResourceType(field);
+        if (field.equals(referenceFields.getFragmentField())) {
+          referenceBuilder.setLength(0);
+          referenceBuilder
+              .append('#')
+              .append(((com.google.fhir.stu3.proto.String) value).getValue());
+          printReferenceUri(referenceFields);
+        } else if (resourceType != null) {
+          ReferenceId refId = (ReferenceId) value;
+          referenceBuilder.setLength(0);
+          referenceBuilder.append(resourceType).append('/').append(refId.getValue());
+          if (refId.hasHistory()) {
+            referenceBuilder.append("/_history/").append(refId.getHistory().getValue());
+          }
+          printReferenceUri(referenceFields);
         } else {
-          printMessage(reference);
+          printField(field, value);
         }
       }
+      endMessage(printedField);
+    }
+
+    /** Prints the reference in referenceBuilder as the value of the uri field. */
+    private void printReferenceUri(ReferenceFields referenceFields) throws IOException {
+      generator.print(FieldName.of(referenceFields.getUriField()).value);
+      generator.print(punctuation.blankOrSpace);
+      generator.printString(referenceBuilder);
     }
 
     private boolean maybeStartMessage(boolean printedField) throws IOException {
       if (!printedField) {
-        generator.print("{" + blankOrNewLine);
+        generator.print(punctuation.objectStart);
         generator.indent();
       } else {
         // Add line-endings for the previous field.
-        generator.print("," + blankOrNewLine);
+        generator.print(punctuation.separator);
       }
       return true;
     }
 
     private boolean maybePrintFieldSeparator(boolean printedElement) throws IOException {
       if (printedElement) {
-        generator.print("," + blankOrNewLine);
+        generator.print(punctuation.separator);
       }
       return true;
     }
 
-    /** Prints a regular message. */
+    /**
+     * Prints a regular message. Its fields are read by the FieldAccessor of its type, which for
+     * generated accessors calls the typed getters of the message.
+     */
     private void printMessage(MessageOrBuilder message) throws IOException {
-      boolean printedField = false;
+      boolean enclosingPrintedField = printedField;
+      printedField = false;
 
-      if (AnnotationUtils.isResource(message.getDescriptorForType())) {
+      Descriptor descriptor = message.getDescriptorForType();
+      if (AnnotationUtils.isResource(descriptor)) {
         printedField = maybeStartMessage(printedField);
-        generator.print("\"resourceType\": \"" + message.getDescriptorForType().getName() + "\"");
+        generator.print(RESOURCE_TYPES.get(descriptor));
       }
 
-      for (Map.Entry<FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
-        printedField = maybeStartMessage(printedField);
-        String name = field.getKey().getJsonName();
-        if (field.getKey().getOptions().getExtension(Annotations.isChoiceType)) {
-          printChoiceField(field.getKey(), field.getValue());
-        } else if (isPrimitiveType(field.getKey())) {
-          printPrimitiveField(name, field.getKey(), field.getValue());
-        } else {
-          printMessageField(name, field.getKey(), field.getValue());
-        }
+      FieldAccessors.of(descriptor).forEachSetField(message, fieldPrinter);
+      endMessage(printedField);
+      printedField = enclosingPrintedField;
+    }
+
+    private void printSetField(FieldDescriptor field, Object value) throws IOException {
+      printedField = maybeStartMessage(printedField);
+      printField(field, value);
+    }
+
+    private void printField(FieldDescriptor field, Object value) throws IOException {
+      if (AnnotationUtils.isChoiceType(field)) {
+        printChoiceField(field, value);
+      } else if (isPrimitiveType(field)) {
+        printPrimitiveField(FieldName.of(field), field, value);
+      } else {
+        printMessageField(FieldName.of(field), field, value);
       }
+    }
 
+    private void endMessage(boolean printedField) throws IOException {
       if (printedField) {
-        generator.print(blankOrNewLine);
+        generator.print(punctuation.blankOrNewLine);
         generator.outdent();
-        generator.print("}");
+        generator.print(OBJECT_END);
       } else {
-        generator.print("null");
+        generator.print(NULL);
       }
     }
 
     private void printChoiceField(FieldDescriptor field, Object value) throws IOException {
       Message message = (Message) value;
-      if (message.getAllFields().size() != 1) {
+      FieldDescriptor choice = MessageFields.getOnlySetField(message);
+      if (choice == null) {
         throw new IllegalArgumentException(
             "Invalid value for choice field " + field.getName() + ": " + message);
       }
-      Map.Entry<FieldDescriptor, Object> entry =
-          message.getAllFields().entrySet().iterator().next();
-      String name =
-          field.getJsonName()
-              + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, entry.getKey().getJsonName());
-      if (isPrimitiveType(entry.getKey())) {
-        printPrimitiveField(name, entry.getKey(), entry.getValue());
+      FieldName name = FieldName.of(field).forChoice(choice);
+      Object choiceValue = FieldAccessors.getField(message, choice);
+      if (isPrimitiveType(choice)) {
+        printPrimitiveField(name, choice, choiceValue);
       } else {
-        printMessageField(name, entry.getKey(), entry.getValue());
+        printMessageField(name, choice, choiceValue);
       }
     }
 
     @SuppressWarnings("unchecked")
-    private void printPrimitiveField(String name, FieldDescriptor field, Object value)
+    private void printPrimitiveField(FieldName name, FieldDescriptor field, Object value)
         throws IOException {
       boolean printedElement = false;
       if (field.isRepeated()) {
+        // Wrappers are cheap to create, so they are created again for each pass over the list
+        // instead of being collected; the elements are only collected if there are any.
         boolean hasValue = false;
         boolean hasExtension = false;
         List<MessageOrBuilder> list = (List<MessageOrBuilder>) value;
-        List<PrimitiveWrapper> wrappers = new ArrayList<>();
-        List<MessageOrBuilder> elements = new ArrayList<>();
-        for (MessageOrBuilder message : list) {
-          PrimitiveWrapper wrapper = primitiveWrapperOf(message, defaultTimeZone);
-          wrappers.add(wrapper);
+        for (int i = 0; i < list.size() && !(hasValue && hasExtension); i++) {
+          PrimitiveWrapper<?> wrapper = primitiveWrapperOf(list.get(i), defaultTimeZone);
           hasValue = hasValue || wrapper.hasValue();
-          Element element = wrapper.getElement();
-          elements.add(element != null ? element : Element.getDefaultInstance());
-          hasExtension = hasExtension || (element != null);
+          hasExtension = hasExtension || wrapper.getElement() != null;
         }
         if (hasValue) {
-          generator.print("\"" + name + "\":" + blankOrSpace);
-          generator.print("[" + blankOrNewLine);
+          generator.print(name.value);
+          generator.print(punctuation.blankOrSpace);
+          generator.print(punctuation.arrayStart);
           generator.indent();
-          for (PrimitiveWrapper wrapper : wrappers) {
+          for (int i = 0; i < list.size(); i++) {
             printedElement = maybePrintFieldSeparator(printedElement);
-            generator.print(wrapper.toJson().toString());
+            primitiveWrapperOf(list.get(i), defaultTimeZone).writeJson(generator);
           }
-          generator.print(blankOrNewLine);
+          generator.print(punctuation.blankOrNewLine);
           generator.outdent();
-          generator.print("]");
+          generator.print(ARRAY_END);
         }
         if (hasExtension) {
+          List<MessageOrBuilder> elements = new ArrayList<>(list.size());
+          for (int i = 0; i < list.size(); i++) {
+            Element element = primitiveWrapperOf(list.get(i), defaultTimeZone).getElement();
+            elements.add(element != null ? element : Element.getDefaultInstance());
+          }
           printedElement = maybePrintFieldSeparator(printedElement);
-          generator.print("\"_" + name + "\":" + blankOrSpace);
+          generator.print(name.extension);
+          generator.print(punctuation.blankOrSpace);
           printRepeatedMessage(elements);
         }
       } else {
         Message message = (Message) value;
-        PrimitiveWrapper wrapper = primitiveWrapperOf(message, defaultTimeZone);
+        PrimitiveWrapper<?> wrapper = primitiveWrapperOf(message, defaultTimeZone);
         if (wrapper.hasValue()) {
-          generator.print("\"" + name + "\":" + blankOrSpace + wrapper.toJson());
+          generator.print(name.value);
+          generator.print(punctuation.blankOrSpace);
+          wrapper.writeJson(generator);
           printedElement = true;
         }
         Element element = wrapper.getElement();
         if (element != null) {
           printedElement = maybePrintFieldSeparator(printedElement);
-          generator.print("\"_" + name + "\":" + blankOrSpace);
+          generator.print(name.extension);
+          generator.print(punctuation.blankOrSpace);
           print(element);
         }
       }
     }
 
     @SuppressWarnings("unchecked")
-    private void printMessageField(String name, FieldDescriptor field, Object value)
+    private void printMessageField(FieldName name, FieldDescriptor field, Object value)
         throws IOException {
-      generator.print("\"" + name + "\":" + blankOrSpace);
+      generator.print(name.value);
+      generator.print(punctuation.blankOrSpace);
       if (field.isRepeated()) {
         printRepeatedMessage((List<MessageOrBuilder>) value);
       } else {
@@ -466,16 +874,16 @@ public final class JsonFormat {
     }
 
     private void printRepeatedMessage(List<MessageOrBuilder> value) throws IOException {
-      generator.print("[" + blankOrNewLine);
+      generator.print(punctuation.arrayStart);
       generator.indent();
       boolean printedElement = false;
       for (MessageOrBuilder element : value) {
         printedElement = maybePrintFieldSeparator(printedElement);
         print(element);
       }
-      generator.print(blankOrNewLine);
+      generator.print(punctuation.blankOrNewLine);
       generator.outdent();
-      generator.print("]");
+      generator.print(ARRAY_END);
     }
   }
 
@@ -497,26 +905,59 @@ public final class JsonFormat {
    */
   public static final class Parser {
     private final boolean useLenientJsonReader;
+    private final boolean streaming;
     private final JsonParser jsonParser;
     private final ZoneId defaultTimeZone;
-
-    private Parser(boolean useLenientJsonReader, ZoneId defaultTimeZone) {
+    private final FieldProjection projection;
+    private final ProjectionStats projectionStats = new ProjectionStats();
+    private final StringInternPool internPool;
+    private final boolean resolvingBundleReferences;
+
+    private Parser(
+        boolean useLenientJsonReader,
+        boolean streaming,
+        ZoneId defaultTimeZone,
+        FieldProjection projection,
+        StringInternPool.Scope internScope,
+        boolean resolvingBundleReferences) {
       this.useLenientJsonReader = useLenientJsonReader;
+      this.streaming = streaming;
       this.jsonParser = new JsonParser();
       this.defaultTimeZone = defaultTimeZone;
+      this.projection = projection;
+      this.internPool = internScope == null ? null : new StringInternPool(internScope);
+      this.resolvingBundleReferences = resolvingBundleReferences;
     }
 
     /** Returns a new instance of {@link Builder} with default parameters. */
     public static Builder newBuilder() {
-      return new Builder(ZoneId.systemDefault());
+      return new Builder(
+          ZoneId.systemDefault(),
+          false /* streaming */,
+          null /* projection */,
+          null /* internScope */,
+          false /* resolvingBundleReferences */);
     }
 
     /** Builder that can be used to obtain new instances of {@link Parser}. */
     public static final class Builder {
       private final ZoneId defaultTimeZone;
-
-      Builder(ZoneId defaultTimeZone) {
+      private final boolean streaming;
+      private final FieldProjection projection;
+      private final StringInternPool.Scope internScope;
+      private final boolean resolvingBundleReferences;
+
+      Builder(
+          ZoneId defaultTimeZone,
+          boolean streaming,
+          FieldProjection projection,
+          StringInternPool.Scope internScope,
+          boolean resolvingBundleReferences) {
         this.defaultTimeZone = defaultTimeZone;
+        this.streaming = streaming;
+        this.projection = projection;
+        this.internScope = internScope;
+        this.resolvingBundleReferences = resolvingBundleReferences;
       }
 
       /*
@@ -525,28 +966,285 @@ public final class JsonFormat {
        * assumed to be measured in the default timezone.
        */
       public Builder withDefaultTimeZone(ZoneId defaultTimeZone) {
-        return new Builder(defaultTimeZone);
+        return new Builder(
+            defaultTimeZone, streaming, projection, internScope, resolvingBundleReferences);
+      }
+
+      /**
+       * Create a new {@link Parser} which reads the json token stream directly into the target
+       * builder, instead of first building a complete JsonElement tree of the input. This keeps
+       * only one copy of each resource in memory, which matters for very large inputs such as
+       * Bundles. The parsed protos are identical to those produced by the default parser.
+       */
+      public Builder withStreaming() {
+        return new Builder(
+            defaultTimeZone, true, projection, internScope, resolvingBundleReferences);
+      }
+
+      /**
+       * Create a new {@link Parser} which only materializes the given FHIR paths, such as
+       * "Observation.code" or "Observation.valueQuantity", and skips all other fields without
+       * building or validating them. Each path starts with a resource type and selects a field
+       * with everything below it. Resources of a type without any selected path are parsed as
+       * empty messages. Use {@link Parser#getProjectionStats()} to see how much input was skipped.
+       */
+      public Builder withProjection(Iterable<String> fhirPaths) {
+        FieldProjection newProjection = projection == null ? FieldProjection.empty() : projection;
+        for (String path : fhirPaths) {
+          newProjection = newProjection.withFhirPath(path);
+        }
+        return new Builder(
+            defaultTimeZone, streaming, newProjection, internScope, resolvingBundleReferences);
+      }
+
+      /**
+       * Create a new {@link Parser} which only materializes the paths of the given field mask for
+       * messages of the given type, like {@link #withProjection(Iterable)}. Field mask paths use
+       * proto field names, such as "value.quantity".
+       */
+      public Builder withProjection(Descriptor descriptor, FieldMask fieldMask) {
+        FieldProjection newProjection = projection == null ? FieldProjection.empty() : projection;
+        return new Builder(
+            defaultTimeZone,
+            streaming,
+            newProjection.withFieldMask(descriptor, fieldMask),
+            internScope,
+            resolvingBundleReferences);
+      }
+
+      /**
+       * Create a new {@link Parser} which shares one copy of equal string values in the given
+       * FHIR paths, such as "Coding.system" or "Quantity.unit", and of the given FHIR primitive
+       * types, such as "uri" or "code", across everything it parses. This reduces the memory used
+       * by large sets of parsed resources, which often repeat the same systems, codes and units.
+       * A path starts with the name of a resource or data type, and must select a string-valued
+       * primitive field. At most maxSize distinct values are kept; values not yet seen when the
+       * pool is full are parsed as usual. Use {@link Parser#getInternStats()} to see how well the
+       * pool works for your data.
+       */
+      public Builder withStringInterning(int maxSize, Iterable<String> pathsAndTypes) {
+        return new Builder(
+            defaultTimeZone,
+            streaming,
+            projection,
+            StringInternPool.Scope.of(maxSize, pathsAndTypes),
+            resolvingBundleReferences);
+      }
+
+      /**
+       * Create a new {@link Parser} which converts the absolute references in each parsed Bundle
+       * to relative references to the entries of the Bundle, as {@link
+       * ResourceUtils#resolveBundleReferences} does. The parser records where it found each
+       * reference, and rewrites just those in the target builder once the whole Bundle has been
+       * read, so the Bundle is neither built nor walked again.
+       */
+      public Builder withBundleReferenceResolution() {
+        return new Builder(defaultTimeZone, streaming, projection, internScope, true);
       }
 
       public Parser build() {
-        return new Parser(false /*useLenientJsonReader */, defaultTimeZone);
+        return new Parser(
+            false /*useLenientJsonReader */,
+            streaming,
+            defaultTimeZone,
+            projection,
+            internScope,
+            resolvingBundleReferences);
       }
     }
 
+    /**
+     * How much of the input a parser with a projection has skipped. Sizes are in UTF-8 bytes.
+     * The counts accumulate over all inputs parsed by the parser. For entries read with a {@link
+     * BundleEntryReader}, the total is the size of the Bundle read so far, including the fields
+     * around its entries.
+     *
+     * <p>Without streaming, skipped values are measured on their compact json encoding, so any
+     * whitespace within them counts as materialized. With streaming, skipped values are not
+     * decoded, and the size of each is the input read while skipping it. This is approximate: the
+     * json reader reads up to 1024 characters ahead of the value it returns.
+     */
+    public static final class ProjectionStats {
+      private final LongAdder totalBytes = new LongAdder();
+      private final LongAdder skippedBytes = new LongAdder();
+
+      private ProjectionStats() {}
+
+      /** The total size of all parsed inputs. */
+      public long getTotalBytes() {
+        return totalBytes.sum();
+      }
+
+      /** The size of the input that was skipped because it was not selected. */
+      public long getSkippedBytes() {
+        return skippedBytes.sum();
+      }
+
+      /** The size of the input that was parsed into protos. */
+      public long getMaterializedBytes() {
+        return Math.max(0, getTotalBytes() - getSkippedBytes());
+      }
+    }
+
+    /**
+     * Returns the projection statistics of this parser. These stay at zero unless the parser was
+     * built with a projection.
+     */
+    public ProjectionStats getProjectionStats() {
+      return projectionStats;
+    }
+
+    /**
+     * How many string values a parser with string interning has found in its pool. The counts
+     * accumulate over all inputs parsed by the parser.
+     */
+    public static final class InternStats {
+      private final StringInternPool pool;
+
+      private InternStats(StringInternPool pool) {
+        this.pool = pool;
+      }
+
+      /** The number of values which were replaced by an equal value parsed before. */
+      public long getHits() {
+        return pool == null ? 0 : pool.getHits();
+      }
+
+      /** The number of values which were not in the pool. */
+      public long getMisses() {
+        return pool == null ? 0 : pool.getMisses();
+      }
+
+      /** The number of distinct values in the pool. */
+      public int getSize() {
+        return pool == null ? 0 : pool.getSize();
+      }
+    }
+
+    /**
+     * Returns the string interning statistics of this parser. These stay at zero unless the parser
+     * was built with string interning.
+     */
+    public InternStats getInternStats() {
+      return new InternStats(internPool);
+    }
+
     /**
      * Parse a text-format message from {@code input} and merge the contents into {@code builder}.
      */
     public void merge(final Reader input, final Message.Builder builder) {
-      JsonReader reader = new JsonReader(input);
+      BundleReferences references = newBundleReferences(builder);
+      if (projection == null) {
+        merge(input, builder, FieldProjection.Node.ALL, references);
+      } else {
+        merge(
+            new CountingReader(input, projectionStats.totalBytes),
+            builder,
+            projection.forType(builder.getDescriptorForType()),
+            references);
+      }
+      resolveBundleReferences(builder, references);
+    }
+
+    /**
+     * Returns the input, wrapped so that everything read from it counts towards the total of the
+     * projection statistics if this parser has a projection. This is for input which is parsed in
+     * parts with {@link #merge(JsonReader, Message.Builder)}, which does not count the size of the
+     * values it reads.
+     */
+    Reader countingInput(Reader input) {
+      return projection == null ? input : new CountingReader(input, projectionStats.totalBytes);
+    }
+
+    /**
+     * Returns where to record the references of the Bundle parsed into the given builder, or null
+     * if they are not resolved.
+     */
+    private BundleReferences newBundleReferences(Message.Builder builder) {
+      return resolvingBundleReferences && builder instanceof Bundle.Builder
+          ? new BundleReferences()
+          : null;
+    }
+
+    private static void resolveBundleReferences(
+        Message.Builder builder, BundleReferences references) {
+      if (references != null) {
+        references.resolve((Bundle.Builder) builder);
+      }
+    }
+
+    private static void enter(BundleReferences references, FieldDescriptor field, int index) {
+      if (references != null) {
+        references.enter(field, index);
+      }
+    }
+
+    private static void exit(BundleReferences references) {
+      if (references != null) {
+        references.exit();
+      }
+    }
+
+    /** Records the parsed reference if it kept its uri, i.e. it is not relative or a fragment. */
+    private static Message recordUnsplitReference(
+        Message reference, BundleReferences references) {
+      if (references != null) {
+        FieldDescriptor uri = ReferenceFields.of(reference.getDescriptorForType()).getUriField();
+        if (FieldAccessors.hasField(reference, uri)) {
+          references.add(
+              ((com.google.fhir.stu3.proto.String) FieldAccessors.getField(reference, uri))
+                  .getValue());
+        }
+      }
+      return reference;
+    }
+
+    private void merge(
+        Reader input,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references) {
+      JsonReader reader = newJsonReader(input);
+      if (streaming) {
+        // JsonParser.parse() always reads its input leniently, so we do the same here to accept
+        // exactly the same inputs in both modes.
+        reader.setLenient(true);
+        try {
+          mergeValue(reader, builder, selection, references);
+        } catch (MalformedJsonException e) {
+          throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+          throw new JsonIOException(e);
+        }
+        return;
+      }
       reader.setLenient(useLenientJsonReader);
       JsonElement json = jsonParser.parse(reader);
       if (json.isJsonObject()) {
-        mergeMessage(json.getAsJsonObject(), builder);
+        mergeMessage(json.getAsJsonObject(), builder, selection, references);
       } else {
         parseAndWrap(json, builder, defaultTimeZone).copyInto(builder);
       }
     }
 
+    /**
+     * Parse the next json value of {@code reader}, which may be positioned anywhere within a larger
+     * document, and merge it into {@code builder}. The value is always read with the streaming
+     * parser. Its size only counts towards the projection statistics if the reader reads from
+     * {@link #countingInput}.
+     */
+    void merge(JsonReader reader, Message.Builder builder) throws IOException {
+      BundleReferences references = newBundleReferences(builder);
+      mergeValue(
+          reader,
+          builder,
+          projection == null
+              ? FieldProjection.Node.ALL
+              : projection.forType(builder.getDescriptorForType()),
+          references);
+      resolveBundleReferences(builder, references);
+    }
+
     /**
      * Parse a text-format message from {@code input} and merge the contents into {@code builder}.
      */
@@ -554,111 +1252,320 @@ public final class JsonFormat {
       merge(new StringReader(input.toString()), builder);
     }
 
-    private Map<String, FieldDescriptor> getFieldMap(Descriptor descriptor) {
-      Map<String, FieldDescriptor> nameToDescriptorMap = new HashMap<>();
-      for (FieldDescriptor field : descriptor.getFields()) {
-        if (field.getOptions().getExtension(Annotations.isChoiceType)) {
-          // All the contained fields go in this message.
-          Map<String, FieldDescriptor> innerMap = getFieldMap(field.getMessageType());
-          for (Map.Entry<String, FieldDescriptor> entry : innerMap.entrySet()) {
-            nameToDescriptorMap.put(
-                field.getJsonName()
-                    + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, entry.getKey()),
-                field);
-          }
-        } else {
-          nameToDescriptorMap.put(field.getJsonName(), field);
-          if (isPrimitiveType(field)) {
-            // Handle extensions on primitive fields.
-            nameToDescriptorMap.put("_" + field.getJsonName(), field);
-          }
+    /**
+     * Parse a UTF-8 encoded message from {@code input} and merge the contents into {@code builder}.
+     * The input is decoded incrementally as it is parsed, so it is never copied into a String as a
+     * whole. The stream is not closed.
+     */
+    public void merge(final InputStream input, final Message.Builder builder) {
+      merge(new InputStreamReader(input, UTF_8), builder);
+    }
+
+    /**
+     * Parse a UTF-8 encoded message from the remaining bytes of {@code input} and merge the
+     * contents into {@code builder}. The bytes are decoded straight from the buffer into the
+     * buffer of the json reader as they are parsed, with a decoder which is reused by the calling
+     * thread. Heap, direct and memory-mapped buffers are all read this way. The position of
+     * {@code input} is not changed.
+     */
+    public void merge(final ByteBuffer input, final Message.Builder builder) {
+      merge(new ByteBufferReader(input.duplicate()), builder);
+    }
+
+    /**
+     * A Reader which decodes the remaining bytes of a UTF-8 encoded ByteBuffer into the arrays it
+     * is asked to fill. Malformed input is replaced, as by an InputStreamReader. The decoder of
+     * the thread is reset and used by the reader until it is read to the end, so a thread must
+     * only read one ByteBufferReader at a time.
+     */
+    private static final class ByteBufferReader extends Reader {
+      private static final ThreadLocal<CharsetDecoder> DECODER =
+          ThreadLocal.withInitial(
+              () ->
+                  UTF_8
+                      .newDecoder()
+                      .onMalformedInput(CodingErrorAction.REPLACE)
+                      .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+      private final ByteBuffer input;
+      private final CharsetDecoder decoder;
+      // A view of the array last read into, which is usually the same on every call.
+      private CharBuffer output = null;
+      // The low surrogate of a pair which was decoded when only one char was asked for, or -1.
+      private int pendingChar = -1;
+      private boolean flushed = false;
+
+      ByteBufferReader(ByteBuffer input) {
+        this.input = input;
+        this.decoder = DECODER.get().reset();
+      }
+
+      @Override
+      public int read(char[] chars, int offset, int length) {
+        if (length == 0) {
+          return 0;
+        }
+        if (pendingChar != -1) {
+          chars[offset] = (char) pendingChar;
+          pendingChar = -1;
+          return 1;
+        }
+        if (flushed) {
+          return -1;
+        }
+        if (output == null || output.array() != chars) {
+          output = CharBuffer.wrap(chars);
+        }
+        output.limit(offset + length).position(offset);
+        // All the input is in the buffer, so every call passes the end of the input.
+        decoder.decode(input, output, true);
+        if (!input.hasRemaining()) {
+          decoder.flush(output);
+          flushed = true;
+        }
+        int count = output.position() - offset;
+        if (count == 0 && input.hasRemaining()) {
+          // The next code point is a surrogate pair, which does not fit into a single char.
+          CharBuffer pair = CharBuffer.allocate(2);
+          decoder.decode(input, pair, true);
+          chars[offset] = pair.get(0);
+          pendingChar = pair.get(1);
+          count = 1;
+        }
+        return count == 0 ? -1 : count;
+      }
+
+      @Override
+      public void close() {}
+    }
+
+    /**
+     * A Reader which adds the UTF-8 encoded size of everything read through it to a counter, and
+     * keeps the size read through this reader alone.
+     */
+    private static final class CountingReader extends FilterReader {
+      private final LongAdder total;
+      private long size = 0;
+
+      CountingReader(Reader input, LongAdder total) {
+        super(input);
+        this.total = total;
+      }
+
+      @Override
+      public int read() throws IOException {
+        int c = super.read();
+        if (c != -1) {
+          int length = utf8Length((char) c);
+          size += length;
+          total.add(length);
+        }
+        return c;
+      }
+
+      @Override
+      public int read(char[] chars, int offset, int length) throws IOException {
+        int count = super.read(chars, offset, length);
+        long readSize = 0;
+        for (int i = offset; i < offset + count; i++) {
+          readSize += utf8Length(chars[i]);
+        }
+        size += readSize;
+        total.add(readSize);
+        return count;
+      }
+    }
+
+    /** A JsonReader over a CountingReader, so that the size of skipped values can be measured. */
+    private static final class CountingJsonReader extends JsonReader {
+      private final CountingReader input;
+
+      CountingJsonReader(CountingReader input) {
+        super(input);
+        this.input = input;
+      }
+    }
+
+    /**
+     * Returns a JsonReader over the input, which measures the values it skips if the input was
+     * returned by {@link #countingInput}.
+     */
+    static JsonReader newJsonReader(Reader input) {
+      return input instanceof CountingReader
+          ? new CountingJsonReader((CountingReader) input)
+          : new JsonReader(input);
+    }
+
+    private static int utf8Length(char c) {
+      // A surrogate pair takes four bytes, two for each half.
+      return c < 0x80 ? 1 : (c < 0x800 || Character.isSurrogate(c)) ? 2 : 3;
+    }
+
+    private static long utf8Length(String string) {
+      long length = 0;
+      for (int i = 0; i < string.length(); i++) {
+        length += utf8Length(string.charAt(i));
+      }
+      return length;
+    }
+
+    /** Returns the size of the compact json encoding of the value. */
+    private static long jsonSize(JsonElement json) {
+      if (json.isJsonObject()) {
+        long size = 2 + Math.max(0, json.getAsJsonObject().size() - 1);
+        for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+          size += jsonSize(entry.getKey(), entry.getValue());
+        }
+        return size;
+      } else if (json.isJsonArray()) {
+        long size = 2 + Math.max(0, json.getAsJsonArray().size() - 1);
+        for (JsonElement element : json.getAsJsonArray()) {
+          size += jsonSize(element);
         }
+        return size;
+      } else if (json.isJsonPrimitive()) {
+        JsonPrimitive primitive = json.getAsJsonPrimitive();
+        return primitive.isString()
+            ? utf8Length(primitive.getAsString()) + 2
+            : primitive.getAsString().length();
+      } else {
+        return 4; // null
       }
-      return nameToDescriptorMap;
     }
 
-    private void mergeMessage(JsonObject json, Message.Builder builder) {
+    /** Returns the size of the compact json encoding of an object member. */
+    private static long jsonSize(String name, JsonElement value) {
+      return utf8Length(name) + 3 + jsonSize(value);
+    }
+
+    /** Returns the selection below a json field, or null if the field should be skipped. */
+    private static FieldProjection.Node select(
+        JsonFieldMap.Entry field, FieldProjection.Node selection) {
+      FieldProjection.Node fieldSelection = selection.get(field.getField());
+      if (fieldSelection != null && field.isChoiceType()) {
+        fieldSelection = fieldSelection.get(field.getChoiceField());
+      }
+      return fieldSelection;
+    }
+
+    private void mergeMessage(
+        JsonObject json,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references) {
       if (builder.getDescriptorForType().equals(ContainedResource.getDescriptor())) {
         // We handle contained resources in a special way, since we need to inspect the input to
         // determine its type.
-        parseContainedResource(json, builder);
+        parseContainedResource(json, builder, selection, references);
         return;
       }
 
-      // Create a map of what to expect.
+      // Look up what to expect.
       Descriptor descriptor = builder.getDescriptorForType();
-      Map<String, FieldDescriptor> nameToDescriptorMap = getFieldMap(descriptor);
+      JsonFieldMap fieldMap = JsonFieldMap.of(descriptor);
 
       for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
-        if (nameToDescriptorMap.containsKey(entry.getKey())) {
-          FieldDescriptor field = nameToDescriptorMap.get(entry.getKey());
-          if (field.getOptions().getExtension(Annotations.isChoiceType)) {
-            mergeChoiceField(field, entry.getKey(), entry.getValue(), builder);
+        JsonFieldMap.Entry field = fieldMap.get(entry.getKey());
+        if (field != null) {
+          FieldProjection.Node fieldSelection = select(field, selection);
+          if (fieldSelection == null) {
+            projectionStats.skippedBytes.add(jsonSize(entry.getKey(), entry.getValue()));
+          } else if (field.isChoiceType()) {
+            mergeChoiceField(field, entry.getValue(), builder, fieldSelection, references);
           } else {
-            mergeField(field, entry.getValue(), builder);
+            mergeField(field.getField(), entry.getValue(), builder, fieldSelection, references);
           }
         } else if (entry.getKey().equals("resourceType")) {
-          String inputType = entry.getValue().getAsString();
-          if (!AnnotationUtils.isResource(descriptor) || !inputType.equals(descriptor.getName())) {
-            throw new IllegalArgumentException(
-                "Trying to parse a resource of type "
-                    + inputType
-                    + ", but the target field is of type "
-                    + descriptor.getFullName());
-          }
+          checkResourceType(entry.getValue().getAsString(), descriptor);
         } else {
-          String names = "";
-          for (Map.Entry<String, FieldDescriptor> e : nameToDescriptorMap.entrySet()) {
-            names = names + " " + e.getKey();
-          }
-          throw new IllegalArgumentException(
-              "Unknown field "
-                  + entry.getKey()
-                  + " in input of expected type "
-                  + builder.getDescriptorForType().getFullName()
-                  + ", known fields: "
-                  + names);
+          throw unknownField(entry.getKey(), descriptor, fieldMap);
         }
       }
     }
 
-    private void mergeChoiceField(
-        FieldDescriptor field, String fieldName, JsonElement json, Message.Builder builder) {
-      Descriptor descriptor = field.getMessageType();
-      Map<String, FieldDescriptor> nameToDescriptorMap = getFieldMap(descriptor);
-      String fieldNameSuffix =
-          CaseFormat.UPPER_CAMEL.to(
-              CaseFormat.LOWER_CAMEL, fieldName.substring(field.getJsonName().length()));
-      FieldDescriptor choiceField = nameToDescriptorMap.get(fieldNameSuffix);
-      if (choiceField == null) {
+    private static void checkResourceType(String inputType, Descriptor descriptor) {
+      if (!AnnotationUtils.isResource(descriptor) || !inputType.equals(descriptor.getName())) {
         throw new IllegalArgumentException(
-            "Can't find field: "
-                + fieldNameSuffix
-                + " in type "
-                + descriptor.getName()
-                + " for field "
-                + field.getName());
-      }
-      Message.Builder choiceTypeBuilder;
-      if (builder.hasField(field)) {
-        choiceTypeBuilder = ((Message) builder.getField(field)).toBuilder();
+            "Trying to parse a resource of type "
+                + inputType
+                + ", but the target field is of type "
+                + descriptor.getFullName());
+      }
+    }
+
+    private static IllegalArgumentException unknownField(
+        String name, Descriptor descriptor, JsonFieldMap fieldMap) {
+      String names = "";
+      for (String knownName : fieldMap.getNames()) {
+        names = names + " " + knownName;
+      }
+      return new IllegalArgumentException(
+          "Unknown field "
+              + name
+              + " in input of expected type "
+              + descriptor.getFullName()
+              + ", known fields: "
+              + names);
+    }
+
+    private void mergeChoiceField(
+        JsonFieldMap.Entry field,
+        JsonElement json,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references) {
+      Message.Builder choiceTypeBuilder = getChoiceTypeBuilder(field.getField(), builder);
+      enter(references, field.getField(), -1);
+      mergeField(field.getChoiceField(), json, choiceTypeBuilder, selection, references);
+      exit(references);
+      FieldAccessors.setField(builder, field.getField(), choiceTypeBuilder.build());
+    }
+
+    private static Message.Builder getChoiceTypeBuilder(
+        FieldDescriptor field, Message.Builder builder) {
+      if (FieldAccessors.hasField(builder, field)) {
+        return ((Message) FieldAccessors.getField(builder, field)).toBuilder();
       } else {
-        choiceTypeBuilder = builder.newBuilderForField(field);
+        return FieldAccessors.newBuilderForField(builder, field);
       }
-      mergeField(choiceField, json, choiceTypeBuilder);
-      builder.setField(field, choiceTypeBuilder.build());
     }
 
-    private void mergeField(FieldDescriptor field, JsonElement json, Message.Builder builder) {
+    private void mergeField(
+        FieldDescriptor field,
+        JsonElement json,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references) {
+      checkFieldCanBeSet(field, builder);
+      if (field.isRepeated()) {
+        mergeRepeatedField(field, json.getAsJsonArray(), builder, selection, references);
+      } else {
+        enter(references, field, -1);
+        Message value = parseFieldValue(field, json, builder, selection, references);
+        exit(references);
+        if (isPrimitiveType(field) && FieldAccessors.hasField(builder, field)) {
+          FieldAccessors.setField(
+              builder,
+              field,
+              mergePrimitiveField((Message) FieldAccessors.getField(builder, field), value));
+        } else {
+          FieldAccessors.setField(builder, field, value);
+        }
+      }
+    }
+
+    private static void checkFieldCanBeSet(FieldDescriptor field, Message.Builder builder) {
       if (!isPrimitiveType(field)
-          && ((field.isRepeated() && builder.getRepeatedFieldCount(field) > 0)
-              || (!field.isRepeated() && builder.hasField(field)))) {
+          && ((field.isRepeated() && FieldAccessors.getRepeatedFieldCount(builder, field) > 0)
+              || (!field.isRepeated() && FieldAccessors.hasField(builder, field)))) {
         throw new IllegalArgumentException(
             "Field " + field.getFullName() + " has already been set.");
       }
       if (field.getContainingOneof() != null) {
         FieldDescriptor existing = builder.getOneofFieldDescriptor(field.getContainingOneof());
-        if (existing != null) {
+        // A primitive may be set twice, by its value and by its extensions, e.g. "valueString"
+        // and "_valueString".
+        if (existing != null && !existing.equals(field)) {
           throw new IllegalArgumentException(
               "Cannot set field "
                   + field.getFullName()
@@ -667,16 +1574,6 @@ public final class JsonFormat {
                   + " belonging to the same oneof has already been set ");
         }
       }
-      if (field.isRepeated()) {
-        mergeRepeatedField(field, json.getAsJsonArray(), builder);
-      } else {
-        Message value = parseFieldValue(field, json, builder);
-        if (builder.hasField(field) && isPrimitiveType(field)) {
-          builder.setField(field, mergePrimitiveField((Message) builder.getField(field), value));
-        } else {
-          builder.setField(field, value);
-        }
-      }
     }
 
     private Message mergePrimitiveField(Message first, Message second) {
@@ -704,179 +1601,405 @@ public final class JsonFormat {
     }
 
     private void mergeRepeatedField(
-        FieldDescriptor field, JsonArray json, Message.Builder builder) {
-      boolean hasExistingField = builder.getRepeatedFieldCount(field) > 0;
-      if (hasExistingField && builder.getRepeatedFieldCount(field) != json.size()) {
+        FieldDescriptor field,
+        JsonArray json,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references) {
+      int existingCount = FieldAccessors.getRepeatedFieldCount(builder, field);
+      boolean hasExistingField = existingCount > 0;
+      if (hasExistingField && existingCount != json.size()) {
         throw new IllegalArgumentException("Repeated field length mismatch for field: " + field);
       }
 
       for (int i = 0; i < json.size(); ++i) {
-        Message value = parseFieldValue(field, json.get(i), builder);
+        enter(references, field, i);
+        Message value = parseFieldValue(field, json.get(i), builder, selection, references);
+        exit(references);
         if (hasExistingField) {
           builder.setRepeatedField(
               field, i, mergePrimitiveField(value, (Message) builder.getRepeatedField(field, i)));
         } else {
-          builder.addRepeatedField(field, value);
+          FieldAccessors.addRepeatedField(builder, field, value);
         }
       }
     }
 
-    private void parseContainedResource(JsonObject json, Message.Builder builder) {
+    private void parseContainedResource(
+        JsonObject json,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references) {
       String resourceType = json.get("resourceType").getAsString();
+      FieldDescriptor resource = getContainedResourceField(resourceType);
+      Message.Builder innerBuilder = FieldAccessors.newBuilderForField(builder, resource);
+      FieldProjection.Node resourceSelection = selection.get(resource);
+      if (resourceSelection != null) {
+        enter(references, resource, -1);
+        mergeMessage(json, innerBuilder, resourceSelection, references);
+        exit(references);
+      } else {
+        // Keep the (empty) resource, so that its type is still known.
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+          if (!entry.getKey().equals("resourceType")) {
+            projectionStats.skippedBytes.add(jsonSize(entry.getKey(), entry.getValue()));
+          }
+        }
+      }
+      FieldAccessors.setField(builder, resource, innerBuilder.build());
+    }
+
+    private static FieldDescriptor getContainedResourceField(String resourceType) {
       FieldDescriptor resource = RESOURCE_TYPES.get(resourceType);
       if (resource == null) {
         throw new IllegalArgumentException("Unsupported resource type: " + resourceType);
       }
-      Message.Builder innerBuilder = builder.newBuilderForField(resource);
-      mergeMessage(json, innerBuilder);
-      builder.setField(resource, innerBuilder.build()).build();
+      return resource;
     }
 
-    private Message parseReference(JsonObject json, Message.Builder builder) {
+    private Message parseReference(
+        JsonObject json,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references) {
       // Parse the standard fields.
-      mergeMessage(json, builder);
+      mergeMessage(json, builder, selection, references);
       // Special-case the "reference" field, which was parsed into the uri field.
-      return ResourceUtils.splitIfRelativeReference(builder);
+      return recordUnsplitReference(ResourceUtils.splitIfRelativeReference(builder), references);
     }
 
     private Message parseFieldValue(
-        FieldDescriptor field, JsonElement json, Message.Builder builder) {
+        FieldDescriptor field,
+        JsonElement json,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references) {
       // Everything at the fhir-spec level should be a Message.
       if (field.getType() != FieldDescriptor.Type.MESSAGE) {
         throw new IllegalArgumentException(
             "Error in FHIR proto definition: Field " + field + " is not a message.");
       }
 
-      Message.Builder subBuilder = builder.newBuilderForField(field);
+      Message.Builder subBuilder = FieldAccessors.newBuilderForField(builder, field);
 
       if (isPrimitiveType(field)) {
         if (json.isJsonObject()) {
           // Special-case primitive type extensions
-          mergeMessage((JsonObject) json, subBuilder);
+          mergeMessage((JsonObject) json, subBuilder, selection, references);
+        }
+        String jsonValue = primitiveJsonValue(json, subBuilder.getDescriptorForType());
+        if (internPool != null && internPool.covers(field)) {
+          jsonValue = internPool.intern(jsonValue);
         }
-        return parseAndWrap(json, subBuilder, defaultTimeZone).copyInto(subBuilder).build();
+        return parseAndWrap(jsonValue, subBuilder, defaultTimeZone).copyInto(subBuilder).build();
       } else if (AnnotationUtils.isReference(field.getMessageType())) {
         // We split relative references into components using a special parser.
-        return parseReference((JsonObject) json, subBuilder);
+        return parseReference((JsonObject) json, subBuilder, selection, references);
       }
 
       if (!(json instanceof JsonObject)) {
         throw new IllegalArgumentException("Expected JsonObject for field " + field);
       } else {
-        mergeMessage((JsonObject) json, subBuilder);
+        mergeMessage((JsonObject) json, subBuilder, selection, references);
         return subBuilder.build();
       }
     }
-  }
 
-  public static PrimitiveWrapper primitiveWrapperOf(
-      MessageOrBuilder message, ZoneId defaultTimeZone) {
-    Descriptor descriptor = message.getDescriptorForType();
-    if (descriptor.getOptions().hasExtension(Annotations.fhirValuesetUrl)) {
-      return CodeWrapper.of(message);
-    }
-    switch (descriptor.getName()) {
-      case "Base64Binary":
-        return new Base64BinaryWrapper((Base64Binary) message);
-      case "Boolean":
-        return new BooleanWrapper((Boolean) message);
-      case "Code":
-        return new CodeWrapper((Code) message);
-      case "Date":
-        return new DateWrapper((Date) message);
-      case "DateTime":
-        if (defaultTimeZone == null) {
-          return new DateTimeWrapper((DateTime) message);
+    /* Streaming parser implementation, reading directly from the json token stream. */
+
+    private void mergeValue(
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+        mergeMessage(reader, builder, selection, references);
+      } else {
+        parseAndWrap(readPrimitiveValue(reader, builder), builder, defaultTimeZone)
+            .copyInto(builder);
+      }
+    }
+
+    private void mergeMessage(
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      reader.beginObject();
+      if (builder.getDescriptorForType().equals(ContainedResource.getDescriptor())) {
+        // We handle contained resources in a special way, since we need to inspect the input to
+        // determine its type.
+        parseContainedResource(reader, builder, selection, references);
+      } else {
+        mergeFields(reader, builder, selection, references);
+      }
+      reader.endObject();
+    }
+
+    /** Merges the remaining fields of the current json object into the builder. */
+    private void mergeFields(
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      // Look up what to expect.
+      Descriptor descriptor = builder.getDescriptorForType();
+      JsonFieldMap fieldMap = JsonFieldMap.of(descriptor);
+
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        JsonFieldMap.Entry field = fieldMap.get(name);
+        if (field != null) {
+          FieldProjection.Node fieldSelection = select(field, selection);
+          if (fieldSelection == null) {
+            projectionStats.skippedBytes.add(utf8Length(name) + 3 + skipValue(reader));
+          } else if (field.isChoiceType()) {
+            mergeChoiceField(field, reader, builder, fieldSelection, references);
+          } else {
+            mergeField(field.getField(), reader, builder, fieldSelection, references);
+          }
+        } else if (name.equals("resourceType")) {
+          checkResourceType(reader.nextString(), descriptor);
         } else {
-          return new DateTimeWrapper((DateTime) message, defaultTimeZone);
-        }
-      case "Decimal":
-        return new DecimalWrapper((Decimal) message);
-      case "Id":
-        return new IdWrapper((Id) message);
-      case "Instant":
-        return new InstantWrapper((Instant) message);
-      case "Integer":
-        return new IntegerWrapper((Integer) message);
-      case "Markdown":
-        return new MarkdownWrapper((Markdown) message);
-      case "Oid":
-        return new OidWrapper((Oid) message);
-      case "PositiveInt":
-        return new PositiveIntWrapper((PositiveInt) message);
-      case "String":
-        return new StringWrapper((com.google.fhir.stu3.proto.String) message);
-      case "Time":
-        return new TimeWrapper((Time) message);
-      case "UnsignedInt":
-        return new UnsignedIntWrapper((UnsignedInt) message);
-      case "Uri":
-        return new UriWrapper((Uri) message);
-      case "Xhtml":
-        return new XhtmlWrapper((Xhtml) message);
-      default:
+          throw unknownField(name, descriptor, fieldMap);
+        }
+      }
+    }
+
+    private void mergeChoiceField(
+        JsonFieldMap.Entry field,
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      Message.Builder choiceTypeBuilder = getChoiceTypeBuilder(field.getField(), builder);
+      enter(references, field.getField(), -1);
+      mergeField(field.getChoiceField(), reader, choiceTypeBuilder, selection, references);
+      exit(references);
+      FieldAccessors.setField(builder, field.getField(), choiceTypeBuilder.build());
+    }
+
+    private void mergeField(
+        FieldDescriptor field,
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      checkFieldCanBeSet(field, builder);
+      if (field.isRepeated()) {
+        mergeRepeatedField(field, reader, builder, selection, references);
+      } else {
+        enter(references, field, -1);
+        Message value = parseFieldValue(field, reader, builder, selection, references);
+        exit(references);
+        if (isPrimitiveType(field) && FieldAccessors.hasField(builder, field)) {
+          FieldAccessors.setField(
+              builder,
+              field,
+              mergePrimitiveField((Message) FieldAccessors.getField(builder, field), value));
+        } else {
+          FieldAccessors.setField(builder, field, value);
+        }
+      }
+    }
+
+    private void mergeRepeatedField(
+        FieldDescriptor field,
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      // The length of the input is not known up front, so it is checked against any existing
+      // values, e.g. from a preceding primitive extension array, while reading.
+      int existingCount = FieldAccessors.getRepeatedFieldCount(builder, field);
+      reader.beginArray();
+      int i = 0;
+      for (; reader.hasNext(); ++i) {
+        if (existingCount > 0 && i >= existingCount) {
+          throw new IllegalArgumentException("Repeated field length mismatch for field: " + field);
+        }
+        enter(references, field, i);
+        Message value = parseFieldValue(field, reader, builder, selection, references);
+        exit(references);
+        if (existingCount > 0) {
+          builder.setRepeatedField(
+              field, i, mergePrimitiveField(value, (Message) builder.getRepeatedField(field, i)));
+        } else {
+          FieldAccessors.addRepeatedField(builder, field, value);
+        }
+      }
+      reader.endArray();
+      if (existingCount > 0 && i != existingCount) {
+        throw new IllegalArgumentException("Repeated field length mismatch for field: " + field);
+      }
+    }
+
+    private void parseContainedResource(
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      if (!reader.hasNext()) {
+        throw new IllegalArgumentException("Missing resourceType for contained resource");
+      }
+      String name = reader.nextName();
+      if (!name.equals("resourceType")) {
+        // The resource type is not known until we find it, so fall back to reading this one
+        // resource into a JsonObject.
+        JsonObject json = new JsonObject();
+        json.add(name, jsonParser.parse(reader));
+        while (reader.hasNext()) {
+          json.add(reader.nextName(), jsonParser.parse(reader));
+        }
+        parseContainedResource(json, builder, selection, references);
+        return;
+      }
+      FieldDescriptor resource = getContainedResourceField(reader.nextString());
+      Message.Builder innerBuilder = FieldAccessors.newBuilderForField(builder, resource);
+      FieldProjection.Node resourceSelection = selection.get(resource);
+      if (resourceSelection != null) {
+        enter(references, resource, -1);
+        mergeFields(reader, innerBuilder, resourceSelection, references);
+        exit(references);
+      } else {
+        // Keep the (empty) resource, so that its type is still known.
+        while (reader.hasNext()) {
+          projectionStats.skippedBytes.add(utf8Length(reader.nextName()) + 3 + skipValue(reader));
+        }
+      }
+      FieldAccessors.setField(builder, resource, innerBuilder.build());
+    }
+
+    private Message parseReference(
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      // Parse the standard fields.
+      mergeMessage(reader, builder, selection, references);
+      // Special-case the "reference" field, which was parsed into the uri field.
+      return recordUnsplitReference(ResourceUtils.splitIfRelativeReference(builder), references);
+    }
+
+    private Message parseFieldValue(
+        FieldDescriptor field,
+        JsonReader reader,
+        Message.Builder builder,
+        FieldProjection.Node selection,
+        BundleReferences references)
+        throws IOException {
+      // Everything at the fhir-spec level should be a Message.
+      if (field.getType() != FieldDescriptor.Type.MESSAGE) {
         throw new IllegalArgumentException(
-            "Unexpected primitive FHIR type: " + descriptor.getName());
+            "Error in FHIR proto definition: Field " + field + " is not a message.");
+      }
+
+      Message.Builder subBuilder = FieldAccessors.newBuilderForField(builder, field);
+
+      if (isPrimitiveType(field)) {
+        String jsonValue = null;
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+          // Special-case primitive type extensions
+          mergeMessage(reader, subBuilder, selection, references);
+        } else {
+          jsonValue = readPrimitiveValue(reader, subBuilder);
+          if (internPool != null && internPool.covers(field)) {
+            jsonValue = internPool.intern(jsonValue);
+          }
+        }
+        return parseAndWrap(jsonValue, subBuilder, defaultTimeZone).copyInto(subBuilder).build();
+      } else if (AnnotationUtils.isReference(field.getMessageType())) {
+        // We split relative references into components using a special parser.
+        return parseReference(reader, subBuilder, selection, references);
+      }
+
+      if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+        throw new IllegalArgumentException("Expected JsonObject for field " + field);
+      } else {
+        mergeMessage(reader, subBuilder, selection, references);
+        return subBuilder.build();
+      }
+    }
+
+    /**
+     * Skips the next json value without decoding it, and returns the size of the input read from
+     * the CountingReader while skipping it, or 0 if the reader does not count its input. The
+     * JsonReader reads ahead of the value it returns, so the size is off by up to the size of its
+     * buffer for each value.
+     */
+    private static long skipValue(JsonReader reader) throws IOException {
+      if (!(reader instanceof CountingJsonReader)) {
+        reader.skipValue();
+        return 0;
+      }
+      CountingReader input = ((CountingJsonReader) reader).input;
+      long start = input.size;
+      reader.skipValue();
+      return input.size - start;
+    }
+
+    /**
+     * Reads a json primitive as a String, following the same rules as {@link
+     * JsonFormat#parseAndWrap}.
+     */
+    private String readPrimitiveValue(JsonReader reader, MessageOrBuilder message)
+        throws IOException {
+      JsonToken token = reader.peek();
+      if (token == JsonToken.NULL) {
+        // Nulls can appear in repeated fields.
+        reader.nextNull();
+        return null;
+      }
+      boolean isBoolean = "Boolean".equals(message.getDescriptorForType().getName());
+      if (token == JsonToken.BOOLEAN) {
+        return java.lang.Boolean.toString(reader.nextBoolean());
+      }
+      if ((token == JsonToken.STRING || token == JsonToken.NUMBER) && !isBoolean) {
+        return reader.nextString();
+      }
+      // This value is a JsonArray, which is not allowed, or an invalid boolean.
+      throw new IllegalArgumentException("Invalid JsonElement type: " + jsonParser.parse(reader));
     }
   }
 
-  public static PrimitiveWrapper parseAndWrap(
+  public static PrimitiveWrapper<?> primitiveWrapperOf(
+      MessageOrBuilder message, ZoneId defaultTimeZone) {
+    return PrimitiveWrappers.forType(message.getDescriptorForType())
+        .wrap(message, defaultTimeZone);
+  }
+
+  public static PrimitiveWrapper<?> parseAndWrap(
       JsonElement json, MessageOrBuilder message, ZoneId defaultTimeZone) {
-    Descriptor descriptor = message.getDescriptorForType();
-    String jsonValue;
+    return parseAndWrap(
+        primitiveJsonValue(json, message.getDescriptorForType()), message, defaultTimeZone);
+  }
+
+  /** Returns the value of a json primitive of the given type as a String. */
+  private static String primitiveJsonValue(JsonElement json, Descriptor descriptor) {
     if (json.isJsonNull() || json.isJsonObject()) {
       // Nulls can appear in repeated fields, and jsonObjects appear when a primitive type has
       // extensions.
-      jsonValue = null;
+      return null;
     } else if (json.isJsonPrimitive()
         && (!"Boolean".equals(descriptor.getName()) || json.getAsJsonPrimitive().isBoolean())) {
-      jsonValue = json.getAsString();
+      return json.getAsString();
     } else {
       // This field is a JsonArray, which is not allowed, or an invalid boolean.
       throw new IllegalArgumentException("Invalid JsonElement type: " + json);
     }
+  }
 
-    if (descriptor.getOptions().hasExtension(Annotations.fhirValuesetUrl)) {
-      return new CodeWrapper(jsonValue);
-    }
-    switch (descriptor.getName()) {
-      case "Base64Binary":
-        return new Base64BinaryWrapper(jsonValue);
-      case "Boolean":
-        return new BooleanWrapper(jsonValue);
-      case "Code":
-        return new CodeWrapper(jsonValue);
-      case "Date":
-        return new DateWrapper(jsonValue, defaultTimeZone);
-      case "DateTime":
-        return new DateTimeWrapper(jsonValue, defaultTimeZone);
-      case "Decimal":
-        return new DecimalWrapper(jsonValue);
-      case "Id":
-        return new IdWrapper(jsonValue);
-      case "Instant":
-        return new InstantWrapper(jsonValue);
-      case "Integer":
-        return new IntegerWrapper(jsonValue);
-      case "Markdown":
-        return new MarkdownWrapper(jsonValue);
-      case "Oid":
-        return new OidWrapper(jsonValue);
-      case "PositiveInt":
-        return new PositiveIntWrapper(jsonValue);
-      case "String":
-        return new StringWrapper(jsonValue);
-      case "Time":
-        return new TimeWrapper(jsonValue);
-      case "UnsignedInt":
-        return new UnsignedIntWrapper(jsonValue);
-      case "Uri":
-        return new UriWrapper(jsonValue);
-      case "Xhtml":
-        return new XhtmlWrapper(jsonValue);
-      default:
-        throw new IllegalArgumentException(
-            "Unexpected primitive FHIR type: " + descriptor.getName());
-    }
+  private static PrimitiveWrapper<?> parseAndWrap(
+      String jsonValue, MessageOrBuilder message, ZoneId defaultTimeZone) {
+    return PrimitiveWrappers.forType(message.getDescriptorForType())
+        .parse(jsonValue, defaultTimeZone);
   }
 }
@@ -0,0 +1,239 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.fhir.stu3.proto.Extension;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.MessageOrBuilder;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The fields of one message type, ordered by field number, for walking the fields which are set
+ * on a message without calling getAllFields(), which builds a sorted map for every message.
+ * Fields are visited in the same order as the entries of that map, and a field is set if it would
+ * be one of them: a repeated field with at least one element, or a singular field for which
+ * hasField() is true.
+ *
+ * <p>Each instance also knows which of its fields are messages, so that code looking for messages
+ * of some type below a message, such as references, skips the scalar fields. It does not prune
+ * further by type: every FHIR data type has an extension field, and the value of an Extension can
+ * be a Reference, so a reference can be below any message field.
+ *
+ * <p>For primitive types, it also holds their id, extension and value fields, so that they are
+ * not looked up by name for every value; Descriptor.findFieldByName builds the full field name
+ * on each call. {@link #hasId} and {@link #hasExtensions} are called for every printed primitive,
+ * and do not allocate. For generated messages, they call the typed accessors of the message's
+ * OrBuilder interface, since protobuf reflection allocates an argument array per call.
+ */
+final class MessageFields {
+
+  private static final DescriptorCache<Descriptor, MessageFields> CACHE =
+      new DescriptorCache<>(MessageFields::new);
+
+  private final ImmutableList<FieldDescriptor> fields;
+  private final FieldAccessor accessor;
+  // The indices of the fields of message type.
+  private final int[] messageFields;
+  private final FieldDescriptor idField;
+  private final FieldDescriptor extensionField;
+  private final FieldDescriptor valueField;
+  // The generated OrBuilder interface of the type, and handles of type (MessageOrBuilder)boolean
+  // for hasId() and (MessageOrBuilder)int for getExtensionCount(). All null if not available.
+  private final Class<?> orBuilderType;
+  private final MethodHandle hasIdHandle;
+  private final MethodHandle extensionCountHandle;
+
+  private MessageFields(Descriptor descriptor) {
+    this.fields =
+        ImmutableList.sortedCopyOf(
+            Comparator.comparingInt(FieldDescriptor::getNumber), descriptor.getFields());
+    this.accessor = FieldAccessors.of(descriptor);
+    int[] messageFields = new int[fields.size()];
+    int count = 0;
+    for (int i = 0; i < fields.size(); i++) {
+      if (fields.get(i).getType() == FieldDescriptor.Type.MESSAGE) {
+        messageFields[count++] = i;
+      }
+    }
+    this.messageFields = Arrays.copyOf(messageFields, count);
+
+    this.idField = descriptor.findFieldByName("id");
+    FieldDescriptor extensionField = descriptor.findFieldByName("extension");
+    this.extensionField =
+        extensionField != null
+                && extensionField.isRepeated()
+                && extensionField.getType() == FieldDescriptor.Type.MESSAGE
+                && extensionField.getMessageType().equals(Extension.getDescriptor())
+            ? extensionField
+            : null;
+    this.valueField = descriptor.findFieldByName("value");
+
+    Class<?> orBuilderType = findOrBuilderType(descriptor);
+    MethodHandle hasIdHandle = null;
+    MethodHandle extensionCountHandle = null;
+    if (orBuilderType != null) {
+      try {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        if (idField != null) {
+          hasIdHandle =
+              lookup
+                  .findVirtual(orBuilderType, "hasId", MethodType.methodType(boolean.class))
+                  .asType(MethodType.methodType(boolean.class, MessageOrBuilder.class));
+        }
+        if (this.extensionField != null) {
+          extensionCountHandle =
+              lookup
+                  .findVirtual(orBuilderType, "getExtensionCount", MethodType.methodType(int.class))
+                  .asType(MethodType.methodType(int.class, MessageOrBuilder.class));
+        }
+      } catch (ReflectiveOperationException e) {
+        orBuilderType = null;
+        hasIdHandle = null;
+        extensionCountHandle = null;
+      }
+    }
+    this.orBuilderType = orBuilderType;
+    this.hasIdHandle = hasIdHandle;
+    this.extensionCountHandle = extensionCountHandle;
+  }
+
+  /** Returns the generated OrBuilder interface of the given type, or null if there is none. */
+  private static Class<?> findOrBuilderType(Descriptor descriptor) {
+    FileDescriptor file = descriptor.getFile();
+    if (!file.getOptions().getJavaMultipleFiles() || !file.getOptions().hasJavaPackage()) {
+      return null;
+    }
+    String messageName =
+        file.getPackage().isEmpty()
+            ? descriptor.getFullName()
+            : descriptor.getFullName().substring(file.getPackage().length() + 1);
+    String className =
+        file.getOptions().getJavaPackage() + "." + messageName.replace('.', '$') + "OrBuilder";
+    try {
+      return Class.forName(className, false, MessageFields.class.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  /** Returns the (shared) MessageFields for the given message type. */
+  static MessageFields of(Descriptor descriptor) {
+    return CACHE.get(descriptor);
+  }
+
+  /** Calls the visitor for each field which is set on the message, in field number order. */
+  static <X extends Exception> void forEachSetField(
+      MessageOrBuilder message, FieldAccessor.FieldVisitor<X> visitor) throws X {
+    FieldAccessors.of(message.getDescriptorForType()).forEachSetField(message, visitor);
+  }
+
+  /**
+   * Returns the only field which is set on the message, or null if there are no fields set or
+   * more than one.
+   */
+  static FieldDescriptor getOnlySetField(MessageOrBuilder message) {
+    MessageFields fields = of(message.getDescriptorForType());
+    FieldDescriptor result = null;
+    for (int i = 0; i < fields.size(); i++) {
+      if (fields.isSet(message, i)) {
+        if (result != null) {
+          return null;
+        }
+        result = fields.get(i);
+      }
+    }
+    return result;
+  }
+
+  /** The number of fields of the type. */
+  int size() {
+    return fields.size();
+  }
+
+  /** The field at the given index, in field number order. */
+  FieldDescriptor get(int index) {
+    return fields.get(index);
+  }
+
+  /** The number of fields of message type. */
+  int messageFieldCount() {
+    return messageFields.length;
+  }
+
+  /** The index of the n-th field of message type, in field number order. */
+  int messageFieldIndex(int n) {
+    return messageFields[n];
+  }
+
+  /** Whether the field at the given index is set on the message. */
+  boolean isSet(MessageOrBuilder message, int index) {
+    FieldDescriptor field = fields.get(index);
+    return field.isRepeated()
+        ? accessor.getRepeatedFieldCount(message, field) > 0
+        : accessor.hasField(message, field);
+  }
+
+  /** The id field, or null if the type has none. */
+  FieldDescriptor getIdField() {
+    return idField;
+  }
+
+  /** The repeated FHIR Extension field, or null if the type has no valid extension field. */
+  FieldDescriptor getExtensionField() {
+    return extensionField;
+  }
+
+  /** The value field, or null if the type has none. */
+  FieldDescriptor getValueField() {
+    return valueField;
+  }
+
+  /** Whether the given message has an id. */
+  boolean hasId(MessageOrBuilder message) {
+    if (hasIdHandle != null && orBuilderType.isInstance(message)) {
+      try {
+        return (boolean) hasIdHandle.invokeExact(message);
+      } catch (Throwable e) {
+        Throwables.throwIfUnchecked(e);
+        throw new IllegalStateException(e);
+      }
+    }
+    return idField != null && message.hasField(idField);
+  }
+
+  /**
+   * Whether the given message has any extensions. Types without a valid extension field are
+   * treated as having extensions, so that callers take the path which validates the type.
+   */
+  boolean hasExtensions(MessageOrBuilder message) {
+    if (extensionCountHandle != null && orBuilderType.isInstance(message)) {
+      try {
+        return (int) extensionCountHandle.invokeExact(message) > 0;
+      } catch (Throwable e) {
+        Throwables.throwIfUnchecked(e);
+        throw new IllegalStateException(e);
+      }
+    }
+    return extensionField == null || message.getRepeatedFieldCount(extensionField) > 0;
+  }
+}
@@ -16,6 +16,7 @@ package com.google.fhir.stu3;
 
 import com.google.gson.JsonPrimitive;
 import com.google.protobuf.Message;
+import java.io.IOException;
 import java.math.BigDecimal;
 
 /** An abstract wrapper class around numeric FHIR primitive types. */
@@ -33,4 +34,65 @@ public abstract class NumericTypeWrapper<T extends Message> extends PrimitiveWra
   public BigDecimal toBigDecimal() {
     return new BigDecimal(toString());
   }
+
+  @Override
+  void printJson(JsonFormat.TextGenerator generator) throws IOException {
+    String value = printValue();
+    // Most values are already written the way BigDecimal.toString() would write them.
+    generator.print(isCanonical(value) ? value : toBigDecimal().toString());
+  }
+
+  /**
+   * Whether BigDecimal.toString() returns the given number unchanged: it has no exponent, no
+   * leading zeros, no sign other than the minus of a non-zero number, and is not so small that
+   * BigDecimal would print it in scientific notation.
+   */
+  static boolean isCanonical(String value) {
+    int length = value.length();
+    int start = !value.isEmpty() && value.charAt(0) == '-' ? 1 : 0;
+    int i = start;
+    if (i < length && value.charAt(i) == '0') {
+      i++;
+    } else {
+      while (i < length && isDigit(value.charAt(i))) {
+        i++;
+      }
+    }
+    if (i == start) {
+      return false;
+    }
+    boolean integer = value.charAt(start) != '0';
+    // The number of fraction digits, and of the zeros before its first non-zero digit.
+    int fractionDigits = 0;
+    int leadingZeros = 0;
+    if (i < length && value.charAt(i) == '.') {
+      i++;
+      while (i < length && isDigit(value.charAt(i))) {
+        if (value.charAt(i) == '0' && leadingZeros == fractionDigits) {
+          leadingZeros++;
+        }
+        fractionDigits++;
+        i++;
+      }
+      if (fractionDigits == 0) {
+        return false;
+      }
+    }
+    if (i != length) {
+      return false;
+    }
+    if (integer) {
+      return true;
+    }
+    if (leadingZeros == fractionDigits) {
+      // Zero, which BigDecimal prints as 0E-7 from seven fraction digits on.
+      return start == 0 && fractionDigits <= 6;
+    }
+    // Numbers below 1e-6 are printed in scientific notation.
+    return leadingZeros <= 5;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
 }
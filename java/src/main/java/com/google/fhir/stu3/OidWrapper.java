@@ -15,13 +15,12 @@
 package com.google.fhir.stu3;
 
 import com.google.fhir.stu3.proto.Oid;
-import java.util.regex.Pattern;
 
 /** A wrapper around the Oid FHIR primitive type. */
 public class OidWrapper extends PrimitiveWrapper<Oid> {
 
-  private static final Pattern OID_PATTERN =
-      Pattern.compile(AnnotationUtils.getValueRegexForPrimitiveType(Oid.getDefaultInstance()));
+  private static final DfaMatcher OID_PATTERN =
+      DfaMatcher.compile(AnnotationUtils.getValueRegexForPrimitiveType(Oid.getDefaultInstance()));
   private static final Oid NULL_OID = Oid.newBuilder().addExtension(getNoValueExtension()).build();
 
   /** Create an OidWrapper from an Oid. */
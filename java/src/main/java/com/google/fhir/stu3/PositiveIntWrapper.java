@@ -15,13 +15,12 @@
 package com.google.fhir.stu3;
 
 import com.google.fhir.stu3.proto.PositiveInt;
-import java.util.regex.Pattern;
 
 /** A wrapper around the PositiveInt FHIR primitive type. */
 public class PositiveIntWrapper extends NumericTypeWrapper<PositiveInt> {
 
-  private static final Pattern POSITIVE_INT_PATTERN =
-      Pattern.compile(
+  private static final DfaMatcher POSITIVE_INT_PATTERN =
+      DfaMatcher.compile(
           AnnotationUtils.getValueRegexForPrimitiveType(PositiveInt.getDefaultInstance()));
   private static final PositiveInt NULL_POSITIVE_INT =
       PositiveInt.newBuilder().addExtension(getNoValueExtension()).build();
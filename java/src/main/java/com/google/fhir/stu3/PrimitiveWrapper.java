@@ -19,10 +19,9 @@ import com.google.fhir.stu3.proto.Element;
 import com.google.fhir.stu3.proto.Extension;
 import com.google.fhir.stu3.proto.PrimitiveHasNoValue;
 import com.google.gson.JsonPrimitive;
-import com.google.protobuf.Descriptors.Descriptor;
-import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageOrBuilder;
+import java.io.IOException;
 import java.time.OffsetDateTime;
 import java.util.Collections;
 import java.util.List;
@@ -37,6 +36,8 @@ public abstract class PrimitiveWrapper<T extends Message> {
 
   private static final PrimitiveHasNoValue PRIMITIVE_HAS_NO_VALUE =
       PrimitiveHasNoValue.newBuilder().setValueBoolean(Boolean.newBuilder().setValue(true)).build();
+  private static final String PRIMITIVE_HAS_NO_VALUE_URL =
+      AnnotationUtils.getStructureDefinitionUrl(PrimitiveHasNoValue.getDescriptor());
 
   protected static Extension getNoValueExtension() {
     return ExtensionWrapper.of().add(PRIMITIVE_HAS_NO_VALUE).build().get(0);
@@ -48,6 +49,16 @@ public abstract class PrimitiveWrapper<T extends Message> {
     }
   }
 
+  /**
+   * Validates the input like {@link #validateUsingPattern(Pattern, String)}, but in linear time,
+   * using a value_regex compiled with {@link DfaMatcher}.
+   */
+  static void validateUsingPattern(DfaMatcher pattern, String input) {
+    if (!pattern.matches(input)) {
+      throw new IllegalArgumentException("Invalid input: " + input);
+    }
+  }
+
   protected PrimitiveWrapper(T t) {
     wrapped = t;
   }
@@ -60,7 +71,31 @@ public abstract class PrimitiveWrapper<T extends Message> {
     return hasValue(wrapped);
   }
 
+  @SuppressWarnings("unchecked")
   public static boolean hasValue(MessageOrBuilder message) {
+    MessageFields fields = MessageFields.of(message.getDescriptorForType());
+    if (!fields.hasExtensions(message)) {
+      // Most primitives have no extensions at all, so check that before converting any.
+      return true;
+    }
+    if (fields.getExtensionField() != null) {
+      // Look for simple PrimitiveHasNoValue extensions directly, and only convert other forms.
+      List<Extension> extensions = (List<Extension>) message.getField(fields.getExtensionField());
+      boolean allSimple = true;
+      for (int i = 0; i < extensions.size(); i++) {
+        Extension extension = extensions.get(i);
+        if (extension.getUrl().getValue().equals(PRIMITIVE_HAS_NO_VALUE_URL)) {
+          if (!extension.getValue().hasBoolean()) {
+            allSimple = false;
+          } else if (extension.getValue().getBoolean().getValue()) {
+            return false;
+          }
+        }
+      }
+      if (allSimple) {
+        return true;
+      }
+    }
     List<PrimitiveHasNoValue> extensions =
         ExtensionWrapper.fromExtensionsIn(message).getMatchingExtensions(PRIMITIVE_HAS_NO_VALUE);
     for (PrimitiveHasNoValue e : extensions) {
@@ -91,26 +126,69 @@ public abstract class PrimitiveWrapper<T extends Message> {
     return new JsonPrimitive(toString());
   }
 
+  // Whether a wrapper class inherits toJson() from this package, whose wrappers override printJson
+  // to match. Wrappers outside of it can override toJson, but not the package-private printJson.
+  private static final ClassValue<java.lang.Boolean> PRINTS_JSON_DIRECTLY =
+      new ClassValue<java.lang.Boolean>() {
+        @Override
+        protected java.lang.Boolean computeValue(Class<?> type) {
+          try {
+            return type.getMethod("toJson").getDeclaringClass().getPackage()
+                == PrimitiveWrapper.class.getPackage();
+          } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+
+  /**
+   * Prints the json value of this primitive to the printer's output. This is {@link #printJson},
+   * unless the wrapper's class overrides {@link #toJson} outside of this package.
+   */
+  final void writeJson(JsonFormat.TextGenerator generator) throws IOException {
+    if (PRINTS_JSON_DIRECTLY.get(getClass())) {
+      printJson(generator);
+      return;
+    }
+    JsonPrimitive json = toJson();
+    if (json.isString()) {
+      generator.printString(json.getAsString());
+    } else {
+      generator.print(json.toString());
+    }
+  }
+
+  /**
+   * Prints the same json value as {@link #toJson}, directly to the printer's output. Strings are
+   * escaped while they are written, and no JsonPrimitive is built.
+   */
+  void printJson(JsonFormat.TextGenerator generator) throws IOException {
+    generator.printString(printValue());
+  }
+
   protected List<Message> getInternalExtensions() {
     return Collections.<Message>emptyList();
   }
 
   /** Get the Element part of this primitive, including any publicly visible extensions. */
   public Element getElement() {
-    Descriptor descriptor = wrapped.getDescriptorForType();
-    FieldDescriptor idField = descriptor.findFieldByName("id");
+    MessageFields fields = MessageFields.of(wrapped.getDescriptorForType());
+    boolean hasId = fields.hasId(wrapped);
+    if (!hasId && !fields.hasExtensions(wrapped)) {
+      return null;
+    }
     ExtensionWrapper extensionWrapper =
         ExtensionWrapper.fromExtensionsIn(wrapped).clearMatchingExtensions(PRIMITIVE_HAS_NO_VALUE);
     for (Message template : getInternalExtensions()) {
       extensionWrapper = extensionWrapper.clearMatchingExtensions(template);
     }
     List<Extension> extensions = extensionWrapper.build();
-    if (!wrapped.hasField(idField) && extensions.isEmpty()) {
+    if (!hasId && extensions.isEmpty()) {
       return null;
     }
     Element.Builder builder = Element.newBuilder();
-    if (wrapped.hasField(idField)) {
-      builder.setId((com.google.fhir.stu3.proto.String) wrapped.getField(idField));
+    if (hasId) {
+      builder.setId((com.google.fhir.stu3.proto.String) wrapped.getField(fields.getIdField()));
     }
     if (!extensions.isEmpty()) {
       builder.addAllExtension(extensions);
@@ -0,0 +1,209 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.fhir.stu3.proto.Base64Binary;
+import com.google.fhir.stu3.proto.Boolean;
+import com.google.fhir.stu3.proto.Code;
+import com.google.fhir.stu3.proto.Date;
+import com.google.fhir.stu3.proto.DateTime;
+import com.google.fhir.stu3.proto.Decimal;
+import com.google.fhir.stu3.proto.Id;
+import com.google.fhir.stu3.proto.Instant;
+import com.google.fhir.stu3.proto.Integer;
+import com.google.fhir.stu3.proto.Markdown;
+import com.google.fhir.stu3.proto.Oid;
+import com.google.fhir.stu3.proto.PositiveInt;
+import com.google.fhir.stu3.proto.Time;
+import com.google.fhir.stu3.proto.UnsignedInt;
+import com.google.fhir.stu3.proto.Uri;
+import com.google.fhir.stu3.proto.Xhtml;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.MessageOrBuilder;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * The registry of {@link PrimitiveWrapper} factories for FHIR primitive types, which {@link
+ * JsonFormat} uses to parse and print primitive values. It holds the core primitive types, and
+ * handles all specialized code types, that is types with a fhir_valueset_url annotation. Other
+ * primitive types, such as profiled primitives, can be added with {@link #register}; like all
+ * primitive types, they need a KIND_PRIMITIVE_TYPE structure_definition_kind annotation.
+ *
+ * <p>Factories are looked up by Descriptor identity. Types which are not registered themselves,
+ * e.g. because they are from a different DescriptorPool, are resolved by their name instead.
+ */
+public final class PrimitiveWrappers {
+
+  private PrimitiveWrappers() {}
+
+  /** Creates the PrimitiveWrapper for the values of one primitive type. */
+  public interface Factory {
+    /** Wraps the given message. */
+    PrimitiveWrapper<?> wrap(MessageOrBuilder message, ZoneId defaultTimeZone);
+
+    /** Parses the given json value, which is null for primitives which only have extensions. */
+    PrimitiveWrapper<?> parse(String jsonValue, ZoneId defaultTimeZone);
+  }
+
+  private static final Factory SPECIALIZED_CODE_FACTORY =
+      new Factory() {
+        @Override
+        public PrimitiveWrapper<?> wrap(MessageOrBuilder message, ZoneId defaultTimeZone) {
+          return CodeWrapper.of(message);
+        }
+
+        @Override
+        public PrimitiveWrapper<?> parse(String jsonValue, ZoneId defaultTimeZone) {
+          return new CodeWrapper(jsonValue);
+        }
+      };
+
+  private static final ImmutableMap<Descriptor, Factory> CORE_TYPES =
+      ImmutableMap.<Descriptor, Factory>builder()
+          .put(
+              Base64Binary.getDescriptor(),
+              of(Base64Binary.class, Base64BinaryWrapper::new, Base64BinaryWrapper::new))
+          .put(Boolean.getDescriptor(), of(Boolean.class, BooleanWrapper::new, BooleanWrapper::new))
+          .put(Code.getDescriptor(), of(Code.class, CodeWrapper::new, CodeWrapper::new))
+          .put(
+              Date.getDescriptor(),
+              new Factory() {
+                @Override
+                public PrimitiveWrapper<?> wrap(MessageOrBuilder message, ZoneId defaultTimeZone) {
+                  return new DateWrapper((Date) message);
+                }
+
+                @Override
+                public PrimitiveWrapper<?> parse(String jsonValue, ZoneId defaultTimeZone) {
+                  return new DateWrapper(jsonValue, defaultTimeZone);
+                }
+              })
+          .put(
+              DateTime.getDescriptor(),
+              new Factory() {
+                @Override
+                public PrimitiveWrapper<?> wrap(MessageOrBuilder message, ZoneId defaultTimeZone) {
+                  return defaultTimeZone == null
+                      ? new DateTimeWrapper((DateTime) message)
+                      : new DateTimeWrapper((DateTime) message, defaultTimeZone);
+                }
+
+                @Override
+                public PrimitiveWrapper<?> parse(String jsonValue, ZoneId defaultTimeZone) {
+                  return new DateTimeWrapper(jsonValue, defaultTimeZone);
+                }
+              })
+          .put(Decimal.getDescriptor(), of(Decimal.class, DecimalWrapper::new, DecimalWrapper::new))
+          .put(Id.getDescriptor(), of(Id.class, IdWrapper::new, IdWrapper::new))
+          .put(Instant.getDescriptor(), of(Instant.class, InstantWrapper::new, InstantWrapper::new))
+          .put(Integer.getDescriptor(), of(Integer.class, IntegerWrapper::new, IntegerWrapper::new))
+          .put(
+              Markdown.getDescriptor(),
+              of(Markdown.class, MarkdownWrapper::new, MarkdownWrapper::new))
+          .put(Oid.getDescriptor(), of(Oid.class, OidWrapper::new, OidWrapper::new))
+          .put(
+              PositiveInt.getDescriptor(),
+              of(PositiveInt.class, PositiveIntWrapper::new, PositiveIntWrapper::new))
+          .put(
+              com.google.fhir.stu3.proto.String.getDescriptor(),
+              of(com.google.fhir.stu3.proto.String.class, StringWrapper::new, StringWrapper::new))
+          .put(Time.getDescriptor(), of(Time.class, TimeWrapper::new, TimeWrapper::new))
+          .put(
+              UnsignedInt.getDescriptor(),
+              of(UnsignedInt.class, UnsignedIntWrapper::new, UnsignedIntWrapper::new))
+          .put(Uri.getDescriptor(), of(Uri.class, UriWrapper::new, UriWrapper::new))
+          .put(Xhtml.getDescriptor(), of(Xhtml.class, XhtmlWrapper::new, XhtmlWrapper::new))
+          .build();
+
+  private static final ImmutableMap<String, Factory> CORE_TYPES_BY_NAME = createCoreTypesByName();
+
+  // Explicitly registered types.
+  private static final ConcurrentMap<Descriptor, Factory> REGISTERED = new ConcurrentHashMap<>();
+  // All types looked up so far, never evicted, like a DescriptorCache.
+  private static final ConcurrentMap<Descriptor, Factory> CACHE =
+      new ConcurrentHashMap<>(CORE_TYPES);
+
+  private static ImmutableMap<String, Factory> createCoreTypesByName() {
+    ImmutableMap.Builder<String, Factory> byName = ImmutableMap.builder();
+    for (Map.Entry<Descriptor, Factory> entry : CORE_TYPES.entrySet()) {
+      byName.put(entry.getKey().getName(), entry.getValue());
+    }
+    return byName.build();
+  }
+
+  private static <T extends MessageOrBuilder> Factory of(
+      Class<T> type,
+      Function<T, PrimitiveWrapper<?>> wrap,
+      Function<String, PrimitiveWrapper<?>> parse) {
+    return new Factory() {
+      @Override
+      public PrimitiveWrapper<?> wrap(MessageOrBuilder message, ZoneId defaultTimeZone) {
+        return wrap.apply(type.cast(message));
+      }
+
+      @Override
+      public PrimitiveWrapper<?> parse(String jsonValue, ZoneId defaultTimeZone) {
+        return parse.apply(jsonValue);
+      }
+    };
+  }
+
+  /**
+   * Registers the factory for an additional primitive type. Throws an IllegalArgumentException if
+   * the type already has a factory.
+   */
+  public static void register(Descriptor descriptor, Factory factory) {
+    if (CORE_TYPES.containsKey(descriptor)
+        || REGISTERED.putIfAbsent(descriptor, factory) != null) {
+      throw new IllegalArgumentException(
+          "Primitive type " + descriptor.getFullName() + " is already registered");
+    }
+    CACHE.put(descriptor, factory);
+  }
+
+  /**
+   * Returns the factory for the given primitive type. Throws an IllegalArgumentException if there
+   * is none.
+   */
+  public static Factory forType(Descriptor descriptor) {
+    Factory factory = CACHE.get(descriptor);
+    if (factory == null) {
+      factory = resolve(descriptor);
+      CACHE.putIfAbsent(descriptor, factory);
+    }
+    return factory;
+  }
+
+  private static Factory resolve(Descriptor descriptor) {
+    Factory factory = REGISTERED.get(descriptor);
+    if (factory != null) {
+      return factory;
+    }
+    if (AnnotationUtils.getValuesetUrl(descriptor) != null) {
+      return SPECIALIZED_CODE_FACTORY;
+    }
+    factory = CORE_TYPES_BY_NAME.get(descriptor.getName());
+    if (factory == null) {
+      throw new IllegalArgumentException(
+          "Unexpected primitive FHIR type: " + descriptor.getName());
+    }
+    return factory;
+  }
+}
@@ -0,0 +1,173 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableMap;
+import com.google.fhir.stu3.proto.Id;
+import com.google.fhir.stu3.proto.ReferenceId;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.util.Map;
+
+/**
+ * The fields of one reference type: the uri and fragment fields, and the typed ReferenceId fields,
+ * such as patient_id, with the name of the resource type each of them refers to, such as
+ * "Patient". These are derived from the field names once per type, instead of for every printed
+ * or parsed reference.
+ *
+ * <p>Relative references are split with {@link #setRelativeReference}, which finds the field for
+ * the resource type in a hash table of the type names, without taking the type out of the uri.
+ */
+final class ReferenceFields {
+
+  private static final DescriptorCache<Descriptor, ReferenceFields> CACHE =
+      new DescriptorCache<>(ReferenceFields::new);
+
+  private static final String HISTORY = "_history";
+
+  private final FieldDescriptor uriField;
+  private final FieldDescriptor fragmentField;
+  private final ImmutableMap<FieldDescriptor, String> resourceTypes;
+  // The typed fields by field name without the "_id" suffix, e.g. "medication_request".
+  private final ImmutableMap<String, FieldDescriptor> fieldsByName;
+  // An open addressing hash table of the resource type names and their fields, with the hash
+  // codes of String, so that types can be looked up by their position in a uri.
+  private final String[] tableTypes;
+  private final FieldDescriptor[] tableFields;
+
+  private ReferenceFields(Descriptor descriptor) {
+    if (!AnnotationUtils.isReference(descriptor)) {
+      throw new IllegalArgumentException(
+          "Message type " + descriptor.getFullName() + " is not a reference.");
+    }
+    this.uriField = descriptor.findFieldByName("uri");
+    this.fragmentField = descriptor.findFieldByName("fragment");
+    ImmutableMap.Builder<FieldDescriptor, String> resourceTypes = ImmutableMap.builder();
+    ImmutableMap.Builder<String, FieldDescriptor> fieldsByName = ImmutableMap.builder();
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (field.getContainingOneof() != null
+          && field.getType() == FieldDescriptor.Type.MESSAGE
+          && field.getMessageType().equals(ReferenceId.getDescriptor())
+          && field.getName().endsWith("_id")) {
+        // Convert to CamelCase and strip out the trailing "Id"
+        String type = CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, field.getName());
+        resourceTypes.put(field, type.substring(0, type.length() - 2));
+        fieldsByName.put(field.getName().substring(0, field.getName().length() - 3), field);
+      }
+    }
+    this.resourceTypes = resourceTypes.build();
+    this.fieldsByName = fieldsByName.build();
+
+    int size = Integer.highestOneBit(Math.max(1, this.resourceTypes.size()) * 4);
+    this.tableTypes = new String[size];
+    this.tableFields = new FieldDescriptor[size];
+    for (Map.Entry<FieldDescriptor, String> entry : this.resourceTypes.entrySet()) {
+      int slot = entry.getValue().hashCode() & (size - 1);
+      while (tableTypes[slot] != null) {
+        slot = (slot + 1) & (size - 1);
+      }
+      tableTypes[slot] = entry.getValue();
+      tableFields[slot] = entry.getKey();
+    }
+  }
+
+  /** Returns the (shared) ReferenceFields of the given reference type. */
+  static ReferenceFields of(Descriptor descriptor) {
+    return CACHE.get(descriptor);
+  }
+
+  /** The uri field, which holds references which are not split into their parts. */
+  FieldDescriptor getUriField() {
+    return uriField;
+  }
+
+  /** The fragment field, which holds internal references without their leading '#'. */
+  FieldDescriptor getFragmentField() {
+    return fragmentField;
+  }
+
+  /** Returns the resource type a typed ReferenceId field refers to, or null for other fields. */
+  String getResourceType(FieldDescriptor field) {
+    return resourceTypes.get(field);
+  }
+
+  /**
+   * Returns the typed ReferenceId field for the resource type in uri[start, end), or null if there
+   * is none. Types are matched like their field names were looked up before, by converting them
+   * from UpperCamel to lower_underscore, so that for example "patient" also maps to patient_id.
+   * Only these unusual spellings allocate.
+   */
+  FieldDescriptor getReferenceIdField(String uri, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + uri.charAt(i);
+    }
+    int mask = tableTypes.length - 1;
+    for (int slot = hash & mask; tableTypes[slot] != null; slot = (slot + 1) & mask) {
+      String type = tableTypes[slot];
+      if (type.length() == end - start && uri.regionMatches(start, type, 0, type.length())) {
+        return tableFields[slot];
+      }
+    }
+    StringBuilder name = new StringBuilder(end - start + 4);
+    for (int i = start; i < end; i++) {
+      char c = uri.charAt(i);
+      if (i > start && Ascii.isUpperCase(c)) {
+        name.append('_');
+      }
+      name.append(Ascii.toLowerCase(c));
+    }
+    return fieldsByName.get(name.toString());
+  }
+
+  /**
+   * Sets the typed ReferenceId field on the builder if the uri is a relative reference of the form
+   * "Type/id" or "Type/id/_history/version" to a known resource type, which clears the uri field.
+   * Returns whether it did. The uri is scanned in place; only the id and version are copied out.
+   */
+  boolean setRelativeReference(Message.Builder builder, String uri) {
+    int typeEnd = uri.indexOf('/');
+    if (typeEnd < 0) {
+      return false;
+    }
+    int idEnd = uri.indexOf('/', typeEnd + 1);
+    int versionStart = -1;
+    if (idEnd >= 0) {
+      int historyEnd = uri.indexOf('/', idEnd + 1);
+      if (historyEnd != idEnd + 1 + HISTORY.length()
+          || !uri.startsWith(HISTORY, idEnd + 1)
+          || uri.indexOf('/', historyEnd + 1) >= 0) {
+        return false;
+      }
+      versionStart = historyEnd + 1;
+    } else {
+      idEnd = uri.length();
+    }
+    FieldDescriptor field = getReferenceIdField(uri, 0, typeEnd);
+    if (field == null) {
+      return false;
+    }
+    ReferenceId.Builder refId =
+        ReferenceId.newBuilder().setValue(uri.substring(typeEnd + 1, idEnd));
+    if (versionStart >= 0) {
+      refId.setHistory(Id.newBuilder().setValue(uri.substring(versionStart)));
+    }
+    FieldAccessors.setField(builder, field, refId.build());
+    return true;
+  }
+}
@@ -0,0 +1,270 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A map from absolute references, such as "urn:uuid:...", to relative references, such as
+ * "Patient/example", which is kept on disk instead of on the heap, so that it can hold the
+ * references of a whole corpus of resources.
+ *
+ * <p>The keys and values are appended to a data file, and found through an open addressing hash
+ * table in a memory-mapped file, whose slots hold the hash and length of a key and the position of
+ * its record. Lookups only read the data file for slots whose hash and length match, so a lookup
+ * usually takes one read, served from the page cache for recently used records. Both files are
+ * temporary, and deleted when the index is closed. Methods are synchronized, so an index can be
+ * shared between threads, but lookups do not run in parallel.
+ *
+ * <p>Java has no public API to unmap a file, so a mapping is released only when its buffer is
+ * garbage collected. When the table grows, the old table file is closed and deleted right away,
+ * but its mapping, and the disk space of the file, stay until then. Since the table doubles each
+ * time, the old mappings together are never larger than the current one, so at most twice the
+ * size of the table is held in address space and on disk. Closing the index drops the current
+ * mapping in the same way.
+ */
+final class ReferenceIndex implements Closeable {
+
+  // Each slot is [int hash][int key length][long record position + 1], 0 meaning empty.
+  private static final int SLOT_SIZE = 16;
+  // The table is mapped in chunks, since a single mapping is limited to 2GB.
+  private static final int CHUNK_SHIFT = 30;
+  private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+  private static final int INITIAL_CAPACITY = 1 << 16;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private final Path directory;
+  private final FileChannel data;
+  private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+  // The size of the data written to the file; the write buffer holds the records after it.
+  private long flushedSize = 0;
+  private ByteBuffer readBuffer = ByteBuffer.allocate(256);
+
+  private FileChannel tableFile;
+  private MappedByteBuffer[] table;
+  private long capacity;
+  private long size = 0;
+
+  private ReferenceIndex(Path directory) throws IOException {
+    this.directory = directory;
+    this.data = openTemporaryFile(directory, ".data");
+    allocateTable(INITIAL_CAPACITY);
+  }
+
+  /** Creates an empty index, whose files are created in the given directory. */
+  static ReferenceIndex create(Path directory) throws IOException {
+    return new ReferenceIndex(directory);
+  }
+
+  private static FileChannel openTemporaryFile(Path directory, String suffix) throws IOException {
+    Path file = Files.createTempFile(directory, "references", suffix);
+    return FileChannel.open(
+        file,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.DELETE_ON_CLOSE);
+  }
+
+  private void allocateTable(long newCapacity) throws IOException {
+    tableFile = openTemporaryFile(directory, ".table");
+    long bytes = newCapacity * SLOT_SIZE;
+    table = new MappedByteBuffer[(int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT)];
+    for (int i = 0; i < table.length; i++) {
+      long start = (long) i << CHUNK_SHIFT;
+      table[i] =
+          tableFile.map(
+              FileChannel.MapMode.READ_WRITE, start, Math.min(bytes - start, 1L << CHUNK_SHIFT));
+    }
+    capacity = newCapacity;
+  }
+
+  /** The number of keys in the index. */
+  synchronized long size() {
+    return size;
+  }
+
+  /** Maps the key to the value, replacing any value it was mapped to before. */
+  synchronized void put(String key, String value) throws IOException {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    int hash = hash(key);
+    long slot = find(hash, keyBytes);
+    if (getRecord(slot) == 0) {
+      if (size + 1 > capacity / 2) {
+        grow();
+        slot = find(hash, keyBytes);
+      }
+      size++;
+    }
+    long record = append(keyBytes, value.getBytes(UTF_8));
+    setSlot(slot, hash, keyBytes.length, record + 1);
+  }
+
+  /** Returns the value the key is mapped to, or null if there is none. */
+  synchronized String get(String key) throws IOException {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    long record = getRecord(find(hash(key), keyBytes));
+    if (record == 0) {
+      return null;
+    }
+    long valuePosition = record - 1 + 4 + keyBytes.length;
+    int valueLength = read(valuePosition, 4).getInt();
+    ByteBuffer value = read(valuePosition + 4, valueLength);
+    return new String(value.array(), value.position(), valueLength, UTF_8);
+  }
+
+  /** Returns the slot of the key, or the empty slot where it would be added. */
+  private long find(int hash, byte[] keyBytes) throws IOException {
+    long mask = capacity - 1;
+    for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+      long record = getRecord(slot);
+      if (record == 0) {
+        return slot;
+      }
+      ByteBuffer chunk = table[(int) ((slot * SLOT_SIZE) >>> CHUNK_SHIFT)];
+      int index = (int) ((slot * SLOT_SIZE) & CHUNK_MASK);
+      if (chunk.getInt(index) == hash
+          && chunk.getInt(index + 4) == keyBytes.length
+          && keyEquals(record - 1, keyBytes)) {
+        return slot;
+      }
+    }
+  }
+
+  private boolean keyEquals(long position, byte[] keyBytes) throws IOException {
+    ByteBuffer key = read(position + 4, keyBytes.length);
+    for (int i = 0; i < keyBytes.length; i++) {
+      if (key.get() != keyBytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long getRecord(long slot) {
+    long position = slot * SLOT_SIZE;
+    return table[(int) (position >>> CHUNK_SHIFT)].getLong((int) (position & CHUNK_MASK) + 8);
+  }
+
+  private void setSlot(long slot, int hash, int keyLength, long record) {
+    long position = slot * SLOT_SIZE;
+    ByteBuffer chunk = table[(int) (position >>> CHUNK_SHIFT)];
+    int index = (int) (position & CHUNK_MASK);
+    chunk.putInt(index, hash);
+    chunk.putInt(index + 4, keyLength);
+    chunk.putLong(index + 8, record);
+  }
+
+  /** Doubles the table. Slots hold the hashes of their keys, so no records are read. */
+  private void grow() throws IOException {
+    FileChannel oldTableFile = tableFile;
+    MappedByteBuffer[] oldTable = table;
+    long oldCapacity = capacity;
+    allocateTable(capacity * 2);
+    long mask = capacity - 1;
+    for (long oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+      long position = oldSlot * SLOT_SIZE;
+      ByteBuffer chunk = oldTable[(int) (position >>> CHUNK_SHIFT)];
+      int index = (int) (position & CHUNK_MASK);
+      long record = chunk.getLong(index + 8);
+      if (record != 0) {
+        int hash = chunk.getInt(index);
+        long slot = hash & mask;
+        while (getRecord(slot) != 0) {
+          slot = (slot + 1) & mask;
+        }
+        setSlot(slot, hash, chunk.getInt(index + 4), record);
+      }
+    }
+    // The old mapping stays valid until it is garbage collected, see the class comment, but its
+    // file is deleted now.
+    oldTableFile.close();
+  }
+
+  /** Appends a record of the key and value, and returns its position. */
+  private long append(byte[] keyBytes, byte[] valueBytes) throws IOException {
+    long position = flushedSize + writeBuffer.position();
+    int length = 8 + keyBytes.length + valueBytes.length;
+    if (length > writeBuffer.remaining()) {
+      flush();
+    }
+    ByteBuffer record = length > writeBuffer.capacity() ? ByteBuffer.allocate(length) : writeBuffer;
+    record.putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+    if (record != writeBuffer) {
+      record.flip();
+      writeFully(record, flushedSize);
+      flushedSize += length;
+    }
+    return position;
+  }
+
+  private void flush() throws IOException {
+    writeBuffer.flip();
+    int length = writeBuffer.remaining();
+    writeFully(writeBuffer, flushedSize);
+    flushedSize += length;
+    writeBuffer.clear();
+  }
+
+  private void writeFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += data.write(buffer, position);
+    }
+  }
+
+  /** Reads length bytes of the data at the given position, into a buffer valid until the next. */
+  private ByteBuffer read(long position, int length) throws IOException {
+    if (position + length > flushedSize) {
+      flush();
+    }
+    if (readBuffer.capacity() < length) {
+      readBuffer = ByteBuffer.allocate(Math.max(length, 2 * readBuffer.capacity()));
+    }
+    readBuffer.clear().limit(length);
+    while (readBuffer.hasRemaining()) {
+      if (data.read(readBuffer, position + readBuffer.position()) < 0) {
+        throw new EOFException("Truncated reference index at " + position);
+      }
+    }
+    readBuffer.flip();
+    return readBuffer;
+  }
+
+  private static int hash(String key) {
+    int hash = key.hashCode();
+    // Spread the high bits, since only the low bits select a slot.
+    return hash ^ (hash >>> 16);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    Arrays.fill(table, null);
+    try {
+      tableFile.close();
+    } finally {
+      data.close();
+    }
+  }
+}
@@ -0,0 +1,687 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.fhir.stu3.proto.Bundle;
+import com.google.fhir.stu3.proto.BundleTypeCode;
+import com.google.fhir.stu3.proto.ContainedResource;
+import com.google.fhir.stu3.proto.Extension;
+import com.google.fhir.stu3.proto.Id;
+import com.google.fhir.stu3.proto.Uri;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Generates synthetic FHIR resources, for load and throughput tests which cannot download a real
+ * corpus. Resources are built by walking the descriptors of their protos: fields required by FHIR
+ * are always set, other fields with a configurable probability, choice types get one of their
+ * alternatives, and specialized codes one of the values of their valueset. Primitive values are
+ * generated per type and parsed by the same wrappers as the json parser, so they match the
+ * value_regex of their type. References point to resources generated earlier, as relative
+ * references, or within a Bundle as "urn:uuid:" references to the fullUrl of an earlier entry.
+ *
+ * <p>A generator with the same seed and settings always produces the same resources, so load
+ * tests are reproducible. The resources satisfy the types, value_regex and cardinality annotations
+ * of the protos, but not the invariants FHIR expresses as FHIRPath constraints. A generator is not
+ * thread-safe; use one per thread, with different seeds.
+ */
+public final class ResourceGenerator {
+
+  // From the maximum depth on, only required fields are set. Required fields can nest, so this many
+  // more levels are allowed before fields are dropped, even required ones.
+  private static final int DEPTH_SLACK = 4;
+  // References point to one of the most recently generated resources.
+  private static final int REFERENCE_WINDOW = 1024;
+  // Extensions are given one of this many urls per value type, each url keeping one value type.
+  private static final int EXTENSION_URLS_PER_TYPE = 4;
+  private static final String EXTENSION_URL_PREFIX =
+      "http://example.org/fhir/StructureDefinition/synthetic-";
+
+  private static final ImmutableMap<String, FieldDescriptor> CONTAINED_FIELDS;
+
+  static {
+    ImmutableMap.Builder<String, FieldDescriptor> fields = ImmutableMap.builder();
+    for (FieldDescriptor field : ContainedResource.getDescriptor().getFields()) {
+      fields.put(field.getMessageType().getName(), field);
+    }
+    CONTAINED_FIELDS = fields.build();
+  }
+
+  private static final String[] WORDS = {
+    "acute", "allergy", "ankle", "blood", "bone", "care", "chest", "chronic", "clinic", "cough",
+    "daily", "dose", "early", "family", "fever", "follow", "heart", "home", "injury", "joint",
+    "knee", "left", "liver", "lung", "mild", "morning", "nurse", "oral", "pain", "patient",
+    "plan", "pressure", "rash", "renal", "right", "routine", "severe", "skin", "stable", "test",
+    "therapy", "urgent", "visit", "ward", "weekly", "wound", "Smith", "Jones", "Garcia", "Chen",
+  };
+  private static final String[] TIME_ZONES = {"Z", "+00:00", "+10:00", "-05:00", "+05:30"};
+  private static final String[] MIME_TYPES = {
+    "application/json", "application/pdf", "image/png", "text/plain"
+  };
+  private static final String[] LANGUAGES = {"de", "en", "en-AU", "en-US", "es", "fr", "zh"};
+
+  private final SplittableRandom random;
+  private final int maxDepth;
+  private final double fieldProbability;
+  private final int maxRepeated;
+  private final double extensionDensity;
+  private final int referenceFanOut;
+  private final ImmutableList<Descriptor> resourceTypes;
+  private final ZoneId defaultTimeZone;
+
+  private final Targets corpusTargets = new Targets();
+  private final Targets bundleTargets = new Targets();
+  // The resources references point to, which within a Bundle are the earlier entries.
+  private Targets targets = corpusTargets;
+  private boolean inBundle = false;
+  private int referencesLeft;
+  private final StringBuilder text = new StringBuilder();
+
+  private ResourceGenerator(Builder builder) {
+    this.random = new SplittableRandom(builder.seed);
+    this.maxDepth = builder.maxDepth;
+    this.fieldProbability = builder.fieldProbability;
+    this.maxRepeated = builder.maxRepeated;
+    this.extensionDensity = builder.extensionDensity;
+    this.referenceFanOut = builder.referenceFanOut;
+    this.resourceTypes = builder.resourceTypes;
+    this.defaultTimeZone = builder.defaultTimeZone;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Settings of a {@link ResourceGenerator}. Each method returns a new Builder. */
+  public static final class Builder {
+    private long seed = 0;
+    private int maxDepth = 3;
+    private double fieldProbability = 0.3;
+    private int maxRepeated = 3;
+    private double extensionDensity = 0.05;
+    private int referenceFanOut = 4;
+    private ImmutableList<Descriptor> resourceTypes = defaultResourceTypes();
+    private ZoneId defaultTimeZone = ZoneId.systemDefault();
+
+    private Builder() {}
+
+    private Builder copy() {
+      Builder copy = new Builder();
+      copy.seed = seed;
+      copy.maxDepth = maxDepth;
+      copy.fieldProbability = fieldProbability;
+      copy.maxRepeated = maxRepeated;
+      copy.extensionDensity = extensionDensity;
+      copy.referenceFanOut = referenceFanOut;
+      copy.resourceTypes = resourceTypes;
+      copy.defaultTimeZone = defaultTimeZone;
+      return copy;
+    }
+
+    /** The seed of the random generator, which determines all output. Defaults to 0. */
+    public Builder withSeed(long seed) {
+      Builder copy = copy();
+      copy.seed = seed;
+      return copy;
+    }
+
+    /**
+     * The depth of nested elements below which optional fields are no longer set; the fields of a
+     * resource are at depth 0. Defaults to 3.
+     */
+    public Builder withMaxDepth(int maxDepth) {
+      if (maxDepth < 0) {
+        throw new IllegalArgumentException("Invalid maximum depth: " + maxDepth);
+      }
+      Builder copy = copy();
+      copy.maxDepth = maxDepth;
+      return copy;
+    }
+
+    /**
+     * The probability that an optional field is set, which together with the maximum depth and
+     * the maximum number of repeated values controls the size of the resources. Defaults to 0.3.
+     */
+    public Builder withFieldProbability(double fieldProbability) {
+      if (!(fieldProbability >= 0 && fieldProbability <= 1)) {
+        throw new IllegalArgumentException("Invalid field probability: " + fieldProbability);
+      }
+      Builder copy = copy();
+      copy.fieldProbability = fieldProbability;
+      return copy;
+    }
+
+    /** The maximum number of values given to a repeated field. Defaults to 3. */
+    public Builder withMaxRepeated(int maxRepeated) {
+      if (maxRepeated < 1) {
+        throw new IllegalArgumentException("Invalid maximum repeated count: " + maxRepeated);
+      }
+      Builder copy = copy();
+      copy.maxRepeated = maxRepeated;
+      return copy;
+    }
+
+    /**
+     * The probability that an element has an extension, and after each extension, that it has
+     * another one. This applies to primitives as well, which then print as "_field" in json.
+     * Defaults to 0.05.
+     */
+    public Builder withExtensionDensity(double extensionDensity) {
+      if (!(extensionDensity >= 0 && extensionDensity < 1)) {
+        throw new IllegalArgumentException("Invalid extension density: " + extensionDensity);
+      }
+      Builder copy = copy();
+      copy.extensionDensity = extensionDensity;
+      return copy;
+    }
+
+    /**
+     * The maximum number of references from one resource to other resources. Reference fields
+     * beyond that, or for which no earlier resource exists, only get a display text. Defaults
+     * to 4.
+     */
+    public Builder withReferenceFanOut(int referenceFanOut) {
+      if (referenceFanOut < 0) {
+        throw new IllegalArgumentException("Invalid reference fan-out: " + referenceFanOut);
+      }
+      Builder copy = copy();
+      copy.referenceFanOut = referenceFanOut;
+      return copy;
+    }
+
+    /**
+     * The resource types {@link ResourceGenerator#nextResource()} picks from, such as "Patient".
+     * Defaults to all resource types but Bundle.
+     */
+    public Builder withResourceTypes(Iterable<String> resourceTypes) {
+      ImmutableList.Builder<Descriptor> descriptors = ImmutableList.builder();
+      for (String resourceType : resourceTypes) {
+        descriptors.add(getContainedField(resourceType).getMessageType());
+      }
+      Builder copy = copy();
+      copy.resourceTypes = descriptors.build();
+      if (copy.resourceTypes.isEmpty()) {
+        throw new IllegalArgumentException("No resource types given");
+      }
+      return copy;
+    }
+
+    /** The time zone of generated Dates and DateTimes without a time. */
+    public Builder withDefaultTimeZone(ZoneId defaultTimeZone) {
+      Builder copy = copy();
+      copy.defaultTimeZone = defaultTimeZone;
+      return copy;
+    }
+
+    public ResourceGenerator build() {
+      return new ResourceGenerator(this);
+    }
+
+    private static ImmutableList<Descriptor> defaultResourceTypes() {
+      ImmutableList.Builder<Descriptor> descriptors = ImmutableList.builder();
+      for (FieldDescriptor field : CONTAINED_FIELDS.values()) {
+        if (!field.getMessageType().equals(Bundle.getDescriptor())) {
+          descriptors.add(field.getMessageType());
+        }
+      }
+      return descriptors.build();
+    }
+  }
+
+  private static FieldDescriptor getContainedField(String resourceType) {
+    FieldDescriptor field = CONTAINED_FIELDS.get(resourceType);
+    if (field == null) {
+      throw new IllegalArgumentException("Unknown resource type: " + resourceType);
+    }
+    return field;
+  }
+
+  /** Generates a resource of one of the configured types. */
+  public Message nextResource() {
+    return nextResource(resourceTypes.get(random.nextInt(resourceTypes.size())).getName());
+  }
+
+  /** Generates a resource of the given type, such as "Patient". */
+  public Message nextResource(String resourceType) {
+    FieldDescriptor containedField = getContainedField(resourceType);
+    String id = nextUuid();
+    Message resource = generateResource(containedField, id);
+    targets.add(resourceType, id);
+    return resource;
+  }
+
+  /**
+   * Generates a collection Bundle of the given number of resources of the configured types. The
+   * fullUrl of each entry is a "urn:uuid:" uri, and references only point to earlier entries of
+   * the same Bundle, by their fullUrl.
+   */
+  public Bundle nextBundle(int entryCount) {
+    bundleTargets.clear();
+    targets = bundleTargets;
+    inBundle = true;
+    try {
+      Bundle.Builder bundle =
+          Bundle.newBuilder()
+              .setId(Id.newBuilder().setValue(nextUuid()))
+              .setType(BundleTypeCode.newBuilder().setValue(BundleTypeCode.Value.COLLECTION));
+      for (int i = 0; i < entryCount; i++) {
+        FieldDescriptor containedField =
+            getContainedField(resourceTypes.get(random.nextInt(resourceTypes.size())).getName());
+        String id = nextUuid();
+        Message resource = generateResource(containedField, id);
+        targets.add(containedField.getMessageType().getName(), id);
+        ContainedResource.Builder contained = ContainedResource.newBuilder();
+        contained.setField(containedField, resource);
+        bundle
+            .addEntryBuilder()
+            .setFullUrl(Uri.newBuilder().setValue("urn:uuid:" + id))
+            .setResource(contained);
+      }
+      return bundle.build();
+    } finally {
+      targets = corpusTargets;
+      inBundle = false;
+    }
+  }
+
+  private Message generateResource(FieldDescriptor containedField, String id) {
+    Message.Builder builder = ContainedResource.newBuilder().newBuilderForField(containedField);
+    referencesLeft = referenceFanOut;
+    fill(builder, 0);
+    builder.setField(
+        TypeFields.of(builder.getDescriptorForType()).resourceIdField,
+        Id.newBuilder().setValue(id).build());
+    return builder.build();
+  }
+
+  /** Sets fields of the builder, and returns whether it set any. */
+  private boolean fill(Message.Builder builder, int depth) {
+    Descriptor descriptor = builder.getDescriptorForType();
+    if (AnnotationUtils.isPrimitiveType(descriptor)) {
+      fillPrimitive(builder);
+      FieldDescriptor extensionField = MessageFields.of(descriptor).getExtensionField();
+      if (extensionField != null) {
+        addExtensions(builder, extensionField);
+      }
+      return true;
+    }
+    if (AnnotationUtils.isReference(descriptor)) {
+      fillReference(builder);
+      return true;
+    }
+    TypeFields fields = TypeFields.of(descriptor);
+    if (fields.isChoice) {
+      // From the maximum depth on, choose one of the primitive alternatives.
+      FieldDescriptor[] alternatives = depth < maxDepth ? fields.fields : fields.fallbackFields;
+      return setField(builder, alternatives[random.nextInt(alternatives.length)], depth);
+    }
+    if (depth > maxDepth + DEPTH_SLACK) {
+      return false;
+    }
+    boolean set = false;
+    for (int i = 0; i < fields.fields.length; i++) {
+      if (fields.required[i] || (depth < maxDepth && random.nextDouble() < fieldProbability)) {
+        set |= setField(builder, fields.fields[i], depth);
+      }
+    }
+    if (fields.extensionField != null) {
+      set |= addExtensions(builder, fields.extensionField);
+    }
+    if (!set && fields.fallbackFields.length > 0) {
+      // Elements must have a value or children, so set one field, preferring primitives.
+      set =
+          setField(
+              builder, fields.fallbackFields[random.nextInt(fields.fallbackFields.length)], depth);
+    }
+    return set;
+  }
+
+  private boolean setField(Message.Builder builder, FieldDescriptor field, int depth) {
+    int count = field.isRepeated() ? 1 + random.nextInt(maxRepeated) : 1;
+    boolean set = false;
+    for (int i = 0; i < count; i++) {
+      Message.Builder value = FieldAccessors.newBuilderForField(builder, field);
+      if (fill(value, depth + 1)) {
+        if (field.isRepeated()) {
+          FieldAccessors.addRepeatedField(builder, field, value.build());
+        } else {
+          FieldAccessors.setField(builder, field, value.build());
+        }
+        set = true;
+      }
+    }
+    return set;
+  }
+
+  private boolean addExtensions(Message.Builder builder, FieldDescriptor field) {
+    boolean added = false;
+    while (random.nextDouble() < extensionDensity) {
+      FieldAccessors.addRepeatedField(builder, field, nextExtension());
+      added = true;
+    }
+    return added;
+  }
+
+  /** Returns an extension with a primitive value, whose type is determined by its url. */
+  private Extension nextExtension() {
+    FieldDescriptor[] alternatives = TypeFields.of(Extension.Value.getDescriptor()).fallbackFields;
+    FieldDescriptor alternative = alternatives[random.nextInt(alternatives.length)];
+    Extension.Value.Builder value = Extension.Value.newBuilder();
+    Message.Builder primitive = value.newBuilderForField(alternative);
+    // The value gets no extensions, which would make this a complex extension.
+    fillPrimitive(primitive);
+    value.setField(alternative, primitive.build());
+    return Extension.newBuilder()
+        .setUrl(
+            Uri.newBuilder()
+                .setValue(
+                    EXTENSION_URL_PREFIX
+                        + alternative.getJsonName()
+                        + "-"
+                        + random.nextInt(EXTENSION_URLS_PER_TYPE)))
+        .setValue(value)
+        .build();
+  }
+
+  private void fillPrimitive(Message.Builder builder) {
+    Descriptor descriptor = builder.getDescriptorForType();
+    FieldDescriptor valueField = MessageFields.of(descriptor).getValueField();
+    if (valueField != null && valueField.getType() == FieldDescriptor.Type.ENUM) {
+      // The first value of each code enum is INVALID_UNINITIALIZED.
+      List<EnumValueDescriptor> values = valueField.getEnumType().getValues();
+      builder.setField(valueField, values.get(1 + random.nextInt(values.size() - 1)));
+    } else {
+      PrimitiveWrappers.forType(descriptor)
+          .parse(primitiveValue(descriptor), defaultTimeZone)
+          .copyInto(builder);
+    }
+  }
+
+  private void fillReference(Message.Builder builder) {
+    Descriptor descriptor = builder.getDescriptorForType();
+    ReferenceFields fields = ReferenceFields.of(descriptor);
+    int target = -1;
+    if (referencesLeft > 0) {
+      target = targets.pick(AnnotationUtils.getReferenceTypes(descriptor), random);
+    }
+    if (target >= 0) {
+      referencesLeft--;
+      String uri =
+          inBundle
+              ? "urn:uuid:" + targets.ids[target]
+              : targets.types[target] + "/" + targets.ids[target];
+      if (inBundle || !fields.setRelativeReference(builder, uri)) {
+        FieldAccessors.setField(
+            builder,
+            fields.getUriField(),
+            com.google.fhir.stu3.proto.String.newBuilder().setValue(uri).build());
+      }
+    }
+    if (target < 0 || random.nextDouble() < fieldProbability) {
+      FieldAccessors.setField(
+          builder,
+          TypeFields.of(descriptor).referenceDisplayField,
+          com.google.fhir.stu3.proto.String.newBuilder().setValue(words(1, 3)).build());
+    }
+  }
+
+  /** Returns a json value of the given primitive type, as a String. */
+  private String primitiveValue(Descriptor descriptor) {
+    text.setLength(0);
+    switch (descriptor.getName()) {
+      case "Base64Binary":
+        byte[] bytes = new byte[1 + random.nextInt(48)];
+        for (int i = 0; i < bytes.length; i++) {
+          bytes[i] = (byte) random.nextInt(256);
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+      case "Boolean":
+        return random.nextBoolean() ? "true" : "false";
+      case "Code":
+        return word();
+      case "Date":
+        appendDate(random.nextInt(3));
+        return text.toString();
+      case "DateTime":
+        int precision = random.nextInt(5);
+        appendDate(Math.min(precision, 2));
+        if (precision > 2) {
+          appendTime(precision == 4);
+          text.append(TIME_ZONES[random.nextInt(TIME_ZONES.length)]);
+        }
+        return text.toString();
+      case "Decimal":
+        if (random.nextInt(8) == 0) {
+          text.append('-');
+        }
+        text.append(random.nextInt(10000));
+        int scale = random.nextInt(4);
+        if (scale > 0) {
+          text.append('.');
+          appendPadded(random.nextInt(1000), scale);
+        }
+        return text.toString();
+      case "Id":
+        return nextUuid();
+      case "Instant":
+        appendDate(2);
+        appendTime(random.nextBoolean());
+        text.append(TIME_ZONES[random.nextInt(TIME_ZONES.length)]);
+        return text.toString();
+      case "Integer":
+        return Integer.toString(random.nextInt(2001) - 1000);
+      case "Markdown":
+        return "*" + words(1, 2) + "* " + words(2, 12);
+      case "Oid":
+        return "urn:oid:2.16.840.1.113883." + (1 + random.nextInt(20)) + "." + random.nextInt(100);
+      case "PositiveInt":
+        return Integer.toString(1 + random.nextInt(10000));
+      case "String":
+        return words(1, 6);
+      case "Time":
+        appendTime(false);
+        return text.substring(1);
+      case "UnsignedInt":
+        return Integer.toString(random.nextInt(10001));
+      case "Uri":
+        return "http://example.org/fhir/" + word() + "/" + random.nextInt(100);
+      case "Uuid":
+        return "urn:uuid:" + nextUuid();
+      case "Xhtml":
+        return "<div xmlns=\"http://www.w3.org/1999/xhtml\"><p>" + words(1, 12) + "</p></div>";
+      case "MimeTypeCode":
+        return MIME_TYPES[random.nextInt(MIME_TYPES.length)];
+      case "LanguageCode":
+        return LANGUAGES[random.nextInt(LANGUAGES.length)];
+      default:
+        if (AnnotationUtils.getValuesetUrl(descriptor) != null) {
+          return word();
+        }
+        throw new IllegalArgumentException(
+            "Unsupported primitive type: " + descriptor.getFullName());
+    }
+  }
+
+  /** Appends a year, year and month, or full date, for precision 0, 1 or 2. */
+  private void appendDate(int precision) {
+    text.append(1920 + random.nextInt(110));
+    if (precision > 0) {
+      text.append('-');
+      appendPadded(1 + random.nextInt(12), 2);
+    }
+    if (precision > 1) {
+      text.append('-');
+      appendPadded(1 + random.nextInt(28), 2);
+    }
+  }
+
+  /** Appends "Thh:mm:ss", with milliseconds if requested. */
+  private void appendTime(boolean milliseconds) {
+    text.append('T');
+    appendPadded(random.nextInt(24), 2);
+    text.append(':');
+    appendPadded(random.nextInt(60), 2);
+    text.append(':');
+    appendPadded(random.nextInt(60), 2);
+    if (milliseconds) {
+      text.append('.');
+      appendPadded(random.nextInt(1000), 3);
+    }
+  }
+
+  private void appendPadded(int value, int width) {
+    for (int limit = 10; width > 1; width--, limit *= 10) {
+      if (value < limit) {
+        text.append('0');
+      }
+    }
+    text.append(value);
+  }
+
+  private String word() {
+    return WORDS[random.nextInt(WORDS.length)];
+  }
+
+  private String words(int min, int max) {
+    StringBuilder words = new StringBuilder(word());
+    for (int count = min + random.nextInt(max - min + 1); count > 1; count--) {
+      words.append(' ').append(word());
+    }
+    return words.toString();
+  }
+
+  private String nextUuid() {
+    // A version 4 UUID, from the generator's own random source.
+    return new UUID(
+            (random.nextLong() & ~0xf000L) | 0x4000L,
+            (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L)
+        .toString();
+  }
+
+  /** The most recently generated resources, which references may point to. */
+  private static final class Targets {
+    final String[] types = new String[REFERENCE_WINDOW];
+    final String[] ids = new String[REFERENCE_WINDOW];
+    private int count = 0;
+
+    void add(String type, String id) {
+      types[count % REFERENCE_WINDOW] = type;
+      ids[count % REFERENCE_WINDOW] = id;
+      // Stay above the window size, so the index keeps wrapping instead of overflowing.
+      count = count + 1 == 2 * REFERENCE_WINDOW ? REFERENCE_WINDOW : count + 1;
+    }
+
+    void clear() {
+      count = 0;
+    }
+
+    /**
+     * Returns the index of a target of one of the given types, where "Resource" or no types at
+     * all allow any type, or -1 if none was found.
+     */
+    int pick(List<String> allowedTypes, SplittableRandom random) {
+      int size = Math.min(count, REFERENCE_WINDOW);
+      if (size == 0) {
+        return -1;
+      }
+      boolean anyType = allowedTypes.isEmpty() || allowedTypes.contains("Resource");
+      // Sample a few targets instead of scanning the window for ones of the allowed types.
+      for (int attempt = 0; attempt < 8; attempt++) {
+        int index = random.nextInt(size);
+        if (anyType || allowedTypes.contains(types[index])) {
+          return index;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /** The fields the generator sets on one message type, computed once per type. */
+  private static final class TypeFields {
+    private static final DescriptorCache<Descriptor, TypeFields> CACHE =
+        new DescriptorCache<>(TypeFields::new);
+
+    // The fields set like any other, with whether FHIR requires them.
+    final FieldDescriptor[] fields;
+    final boolean[] required;
+    // The fields to set when none was chosen: the primitive ones if there are any, else all.
+    final FieldDescriptor[] fallbackFields;
+    // The extension field, which is filled according to the extension density, or null.
+    final FieldDescriptor extensionField;
+    // Whether this is the wrapper message of a choice type, which has one oneof of all fields.
+    final boolean isChoice;
+    // The id field of a resource, which is set by the generator, or null.
+    final FieldDescriptor resourceIdField;
+    // The display field of a Reference, or null.
+    final FieldDescriptor referenceDisplayField;
+
+    private TypeFields(Descriptor descriptor) {
+      List<FieldDescriptor> fields = new ArrayList<>();
+      List<FieldDescriptor> primitiveFields = new ArrayList<>();
+      FieldDescriptor extensionField = null;
+      boolean isResource = AnnotationUtils.isResource(descriptor);
+      for (FieldDescriptor field : descriptor.getFields()) {
+        if (field.getType() != FieldDescriptor.Type.MESSAGE
+            || field.getMessageType().equals(ContainedResource.getDescriptor())
+            || field.getName().equals("modifier_extension")
+            || field.getName().equals("id")) {
+          // Contained resources and modifier extensions would change the meaning of the resource,
+          // and element ids are neither children nor values, which elements must have. The ids of
+          // resources are set by the generator.
+          continue;
+        }
+        if (field.getMessageType().equals(Extension.getDescriptor())) {
+          // Extensions of extensions would make the extension complex, which is not supported.
+          if (!descriptor.equals(Extension.getDescriptor())) {
+            extensionField = field;
+          }
+          continue;
+        }
+        fields.add(field);
+        if (AnnotationUtils.isPrimitiveType(field.getMessageType())) {
+          primitiveFields.add(field);
+        }
+      }
+      this.fields = fields.toArray(new FieldDescriptor[0]);
+      this.required = new boolean[this.fields.length];
+      for (int i = 0; i < this.fields.length; i++) {
+        required[i] = AnnotationUtils.isRequiredByFhir(this.fields[i]);
+      }
+      this.fallbackFields =
+          (primitiveFields.isEmpty() ? fields : primitiveFields).toArray(new FieldDescriptor[0]);
+      this.extensionField = extensionField;
+      this.isChoice =
+          descriptor.getOneofs().size() == 1
+              && descriptor.getOneofs().get(0).getFieldCount() == descriptor.getFields().size();
+      this.resourceIdField = isResource ? descriptor.findFieldByName("id") : null;
+      this.referenceDisplayField =
+          AnnotationUtils.isReference(descriptor) ? descriptor.findFieldByName("display") : null;
+    }
+
+    static TypeFields of(Descriptor descriptor) {
+      return CACHE.get(descriptor);
+    }
+  }
+}
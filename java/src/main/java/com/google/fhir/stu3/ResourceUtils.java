@@ -14,19 +14,17 @@
 
 package com.google.fhir.stu3;
 
-import com.google.common.base.CaseFormat;
-import com.google.common.base.Splitter;
 import com.google.fhir.stu3.proto.Bundle;
+import com.google.fhir.stu3.proto.BundleOrBuilder;
 import com.google.fhir.stu3.proto.ContainedResource;
 import com.google.fhir.stu3.proto.Id;
-import com.google.fhir.stu3.proto.ReferenceId;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Message;
-import java.util.ArrayList;
-import java.util.Collection;
+import com.google.protobuf.MessageOrBuilder;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 /** Helper methods for handling FHIR resource protos. */
 public final class ResourceUtils {
@@ -52,9 +50,9 @@ public final class ResourceUtils {
   }
 
   public static Message getContainedResource(ContainedResource resource) {
-    Collection<Object> values = resource.getAllFields().values();
-    if (values.size() == 1) {
-      return (Message) values.iterator().next();
+    FieldDescriptor field = MessageFields.getOnlySetField(resource);
+    if (field != null) {
+      return (Message) resource.getField(field);
     } else {
       return null;
     }
@@ -65,8 +63,14 @@ public final class ResourceUtils {
    * targets of the references are also present in the bundle.
    */
   public static Bundle resolveBundleReferences(Bundle bundle) {
+    return (Bundle) resolveReferences(bundle, getReferenceMap(bundle));
+  }
+
+  /** Returns the relative reference to each entry of the bundle which has a fullUrl, by fullUrl. */
+  static Map<String, String> getReferenceMap(BundleOrBuilder bundle) {
     Map<String, String> referenceMap = new HashMap<>();
-    for (Bundle.Entry entry : bundle.getEntryList()) {
+    for (int i = 0; i < bundle.getEntryCount(); i++) {
+      Bundle.Entry entry = bundle.getEntry(i);
       if (entry.hasFullUrl()) {
         Message resource = ResourceUtils.getContainedResource(entry.getResource());
         String resourceType = ResourceUtils.getResourceType(resource);
@@ -75,64 +79,130 @@ public final class ResourceUtils {
         referenceMap.put(entry.getFullUrl().getValue(), relativeReference);
       }
     }
-    return (Bundle) replaceReferences(bundle, referenceMap);
+    return referenceMap;
   }
 
-  private static Message replaceOneReference(Message message, Map<String, String> referenceMap) {
-    FieldDescriptor uri = message.getDescriptorForType().findFieldByName("uri");
-    if (!message.hasField(uri)) {
-      return message;
+  /*
+   * Replace any references in the provided message which are keys of the reference map by the
+   * corresponding relative references. This is the per-message version of
+   * resolveBundleReferences, for when the map was built ahead of time.
+   */
+  public static Message resolveReferences(Message message, Map<String, String> referenceMap) {
+    return resolveReferences(message, referenceMap::get);
+  }
+
+  /*
+   * Like resolveReferences, but rewrites the references in the given builder, without building
+   * the message first.
+   */
+  static void resolveReferences(Message.Builder builder, Map<String, String> referenceMap) {
+    resolveReferences(builder, referenceMap::get);
+  }
+
+  /*
+   * Like resolveReferences, but looks up the relative references with a function, which returns
+   * null for references it has no replacement for.
+   */
+  static Message resolveReferences(Message message, Function<String, String> referenceLookup) {
+    Message.Builder builder = new ReferenceRewriter(message, referenceLookup).rewrite();
+    return builder == null ? message : builder.build();
+  }
+
+  static void resolveReferences(
+      Message.Builder builder, Function<String, String> referenceLookup) {
+    new ReferenceRewriter(builder, referenceLookup).rewrite();
+  }
+
+  /**
+   * Replaces the references below one message whose uri has a relative reference. The message
+   * is read without copying it, and only its set message fields are walked. Builders are only
+   * taken for the messages on the path to a replaced reference, as nested builders of a
+   * single builder of the whole message, so each changed message is copied and built once.
+   */
+  private static final class ReferenceRewriter {
+    private final MessageOrBuilder root;
+    private final Function<String, String> referenceLookup;
+    // The path to the message being walked: the field and index (-1 for singular fields) of the
+    // message at each depth in its parent, and its builder, once one was needed.
+    private FieldDescriptor[] pathFields = new FieldDescriptor[16];
+    private int[] pathIndices = new int[16];
+    private Message.Builder[] builders = new Message.Builder[16];
+
+    ReferenceRewriter(MessageOrBuilder root, Function<String, String> referenceLookup) {
+      this.root = root;
+      this.referenceLookup = referenceLookup;
     }
-    String oldValue = ((com.google.fhir.stu3.proto.String) message.getField(uri)).getValue();
-    if (!referenceMap.containsKey(oldValue)) {
-      return message;
+
+    /** Rewrites the references, and returns the builder of the root, or null if none changed. */
+    Message.Builder rewrite() {
+      rewriteFields(root, 0);
+      return builders[0];
     }
-    Message.Builder builder = message.toBuilder();
-    String newValue = referenceMap.get(oldValue);
-    builder.setField(
-        uri, com.google.fhir.stu3.proto.String.newBuilder().setValue(newValue).build());
-    return splitIfRelativeReference(builder);
-  }
 
-  private static Message replaceReferences(Message message, Map<String, String> referenceMap) {
-    Message.Builder builder = null;
-    for (Map.Entry<FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
-      if (field.getKey().getType() == FieldDescriptor.Type.MESSAGE) {
-        Object newValue = field.getValue();
-        if (field.getKey().isRepeated()) {
-          List<Message> newList = new ArrayList<>();
-          for (Message item : (List<Message>) field.getValue()) {
-            Message newItem;
-            if (AnnotationUtils.isReference(item)) {
-              newItem = replaceOneReference(item, referenceMap);
-            } else {
-              newItem = replaceReferences(item, referenceMap);
-            }
-            if (newItem != item) {
-              newValue = newList;
+    private void rewriteFields(MessageOrBuilder message, int depth) {
+      MessageFields fields = MessageFields.of(message.getDescriptorForType());
+      for (int n = 0; n < fields.messageFieldCount(); n++) {
+        int i = fields.messageFieldIndex(n);
+        if (fields.isSet(message, i)) {
+          FieldDescriptor field = fields.get(i);
+          if (field.isRepeated()) {
+            int count = FieldAccessors.getRepeatedFieldCount(message, field);
+            for (int index = 0; index < count; index++) {
+              Message value = (Message) message.getRepeatedField(field, index);
+              rewriteValue(value, depth + 1, field, index);
             }
-            newList.add(newItem);
-          }
-        } else {
-          Message value = (Message) field.getValue();
-          if (AnnotationUtils.isReference(field.getKey().getMessageType())) {
-            newValue = replaceOneReference(value, referenceMap);
           } else {
-            newValue = replaceReferences(value, referenceMap);
-          }
-        }
-        if (newValue != field.getValue()) {
-          if (builder == null) {
-            builder = message.toBuilder();
+            rewriteValue((Message) message.getField(field), depth + 1, field, -1);
           }
-          builder.setField(field.getKey(), newValue);
         }
       }
     }
-    if (builder == null) {
-      return message;
-    } else {
-      return builder.build();
+
+    private void rewriteValue(Message value, int depth, FieldDescriptor field, int index) {
+      if (depth == pathFields.length) {
+        pathFields = Arrays.copyOf(pathFields, depth * 2);
+        pathIndices = Arrays.copyOf(pathIndices, depth * 2);
+        builders = Arrays.copyOf(builders, depth * 2);
+      }
+      pathFields[depth] = field;
+      pathIndices[depth] = index;
+      builders[depth] = null;
+      if (AnnotationUtils.isReference(value.getDescriptorForType())) {
+        rewriteReference(value, depth);
+      } else {
+        rewriteFields(value, depth);
+      }
+    }
+
+    private void rewriteReference(Message reference, int depth) {
+      ReferenceFields referenceFields = ReferenceFields.of(reference.getDescriptorForType());
+      FieldDescriptor uri = referenceFields.getUriField();
+      if (!FieldAccessors.hasField(reference, uri)) {
+        return;
+      }
+      String oldValue = ((com.google.fhir.stu3.proto.String) reference.getField(uri)).getValue();
+      String newValue = referenceLookup.apply(oldValue);
+      if (newValue == null) {
+        return;
+      }
+      setRelativeReference(getBuilder(depth), referenceFields, newValue);
+    }
+
+    private Message.Builder getBuilder(int depth) {
+      if (builders[depth] == null) {
+        if (depth == 0) {
+          builders[0] =
+              root instanceof Message.Builder
+                  ? (Message.Builder) root
+                  : ((Message) root).toBuilder();
+        } else if (pathIndices[depth] < 0) {
+          builders[depth] = getBuilder(depth - 1).getFieldBuilder(pathFields[depth]);
+        } else {
+          builders[depth] =
+              getBuilder(depth - 1).getRepeatedFieldBuilder(pathFields[depth], pathIndices[depth]);
+        }
+      }
+      return builders[depth];
     }
   }
 
@@ -141,34 +211,42 @@ public final class ResourceUtils {
    * the patientId field getting the value "ABCD".
    */
   public static Message splitIfRelativeReference(Message.Builder builder) {
-    FieldDescriptor uri = builder.getDescriptorForType().findFieldByName("uri");
-    if (!builder.hasField(uri)) {
-      return builder.build();
-    }
-    String string = ((com.google.fhir.stu3.proto.String) builder.getField(uri)).getValue();
-    if (string.startsWith("#")) {
-      FieldDescriptor fragment = builder.getDescriptorForType().findFieldByName("fragment");
-      return builder
-          .setField(
-              fragment,
-              com.google.fhir.stu3.proto.String.newBuilder().setValue(string.substring(1)).build())
-          .build();
-    }
-    // Look for references of type "ResourceType/ResourceId"
-    List<String> parts = Splitter.on('/').splitToList(string);
-    if (parts.size() == 2 || (parts.size() == 4 && "_history".equals(parts.get(2)))) {
-      String resourceFieldName =
-          CaseFormat.UPPER_CAMEL.to(CaseFormat.LOWER_UNDERSCORE, parts.get(0)) + "_id";
-      FieldDescriptor field = builder.getDescriptorForType().findFieldByName(resourceFieldName);
-      if (field != null) {
-        ReferenceId.Builder refId = ReferenceId.newBuilder().setValue(parts.get(1));
-        if (parts.size() == 4) {
-          refId.setHistory(Id.newBuilder().setValue(parts.get(3)).build());
-        }
-        return builder.setField(field, refId.build()).build();
-      }
+    ReferenceFields fields = ReferenceFields.of(builder.getDescriptorForType());
+    FieldDescriptor uri = fields.getUriField();
+    if (FieldAccessors.hasField(builder, uri)) {
+      splitRelativeReference(
+          builder,
+          fields,
+          ((com.google.fhir.stu3.proto.String) builder.getField(uri)).getValue());
     }
-    // Keep the uri field.
     return builder.build();
   }
+
+  /** Replaces the uri of the given reference by a relative reference, split into its parts. */
+  static void setRelativeReference(Message.Builder reference, String relativeReference) {
+    setRelativeReference(
+        reference, ReferenceFields.of(reference.getDescriptorForType()), relativeReference);
+  }
+
+  private static void setRelativeReference(
+      Message.Builder reference, ReferenceFields fields, String relativeReference) {
+    FieldAccessors.setField(
+        reference,
+        fields.getUriField(),
+        com.google.fhir.stu3.proto.String.newBuilder().setValue(relativeReference).build());
+    splitRelativeReference(reference, fields, relativeReference);
+  }
+
+  private static void splitRelativeReference(
+      Message.Builder builder, ReferenceFields fields, String uri) {
+    if (uri.startsWith("#")) {
+      FieldAccessors.setField(
+          builder,
+          fields.getFragmentField(),
+          com.google.fhir.stu3.proto.String.newBuilder().setValue(uri.substring(1)).build());
+      return;
+    }
+    // Look for references of type "ResourceType/ResourceId", and otherwise keep the uri field.
+    fields.setRelativeReference(builder, uri);
+  }
 }
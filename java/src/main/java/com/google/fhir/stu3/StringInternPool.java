@@ -0,0 +1,178 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.stu3.proto.Coding;
+import com.google.fhir.stu3.proto.ContainedResource;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of the string values of selected primitive fields, which a {@link JsonFormat.Parser} uses
+ * to share one copy of values that repeat across many resources, such as Coding.system URIs. The
+ * pool is bounded: once it is full, new values are no longer added, but values already in the pool
+ * are still shared. Concurrent callers may add a few values beyond the bound. This class is thread
+ * safe.
+ */
+final class StringInternPool {
+
+  /** The fields and primitive types whose values are interned, and the pool size. Immutable. */
+  static final class Scope {
+    private static final Splitter PATH_SPLITTER = Splitter.on('.');
+
+    private final int maxSize;
+    private final ImmutableSet<FieldDescriptor> fields;
+    private final ImmutableSet<Descriptor> types;
+
+    private Scope(
+        int maxSize, ImmutableSet<FieldDescriptor> fields, ImmutableSet<Descriptor> types) {
+      this.maxSize = maxSize;
+      this.fields = fields;
+      this.types = types;
+    }
+
+    /**
+     * Returns the scope of a pool with up to maxSize values, for the given FHIR paths, such as
+     * "Coding.system" or "Observation.component.valueString", and FHIR primitive type names, such
+     * as "uri". A path starts with the name of a resource or data type, and selects a primitive
+     * field of that type wherever it occurs.
+     */
+    static Scope of(int maxSize, Iterable<String> pathsAndTypes) {
+      if (maxSize <= 0) {
+        throw new IllegalArgumentException("Invalid intern pool size: " + maxSize);
+      }
+      ImmutableSet.Builder<FieldDescriptor> fields = ImmutableSet.builder();
+      ImmutableSet.Builder<Descriptor> types = ImmutableSet.builder();
+      for (String name : pathsAndTypes) {
+        if (name.indexOf('.') >= 0) {
+          fields.add(findField(name));
+        } else {
+          types.add(findPrimitiveType(name));
+        }
+      }
+      return new Scope(maxSize, fields.build(), types.build());
+    }
+
+    /** Whether values of the given primitive field are interned. */
+    boolean covers(FieldDescriptor field) {
+      return fields.contains(field) || types.contains(field.getMessageType());
+    }
+
+    private static FieldDescriptor findField(String path) {
+      List<String> elements = PATH_SPLITTER.splitToList(path);
+      Descriptor descriptor = findType(elements.get(0));
+      if (descriptor == null) {
+        throw new IllegalArgumentException("Unknown type in path " + path);
+      }
+      FieldDescriptor field = null;
+      for (String element : elements.subList(1, elements.size())) {
+        JsonFieldMap.Entry entry =
+            descriptor == null ? null : JsonFieldMap.of(descriptor).get(element);
+        if (entry == null) {
+          throw new IllegalArgumentException("Invalid path " + path + ": " + element);
+        }
+        field = entry.isChoiceType() ? entry.getChoiceField() : entry.getField();
+        descriptor =
+            field.getType() == FieldDescriptor.Type.MESSAGE ? field.getMessageType() : null;
+      }
+      if (descriptor == null || !hasStringValue(descriptor)) {
+        throw new IllegalArgumentException("Path " + path + " is not a string primitive field");
+      }
+      return field;
+    }
+
+    private static Descriptor findPrimitiveType(String name) {
+      for (Descriptor descriptor : Coding.getDescriptor().getFile().getMessageTypes()) {
+        if (CaseFormat.UPPER_CAMEL.to(CaseFormat.LOWER_CAMEL, descriptor.getName()).equals(name)
+            && hasStringValue(descriptor)) {
+          return descriptor;
+        }
+      }
+      throw new IllegalArgumentException("Unknown string primitive type: " + name);
+    }
+
+    private static Descriptor findType(String name) {
+      for (FieldDescriptor field : ContainedResource.getDescriptor().getFields()) {
+        if (field.getMessageType().getName().equals(name)) {
+          return field.getMessageType();
+        }
+      }
+      return Coding.getDescriptor().getFile().findMessageTypeByName(name);
+    }
+
+    private static boolean hasStringValue(Descriptor descriptor) {
+      FieldDescriptor valueField = descriptor.findFieldByName("value");
+      return AnnotationUtils.isPrimitiveType(descriptor)
+          && valueField != null
+          && valueField.getType() == FieldDescriptor.Type.STRING;
+    }
+  }
+
+  private final Scope scope;
+  private final ConcurrentMap<String, String> pool = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  StringInternPool(Scope scope) {
+    this.scope = scope;
+  }
+
+  /** Whether values of the given primitive field are interned. */
+  boolean covers(FieldDescriptor field) {
+    return scope.covers(field);
+  }
+
+  /** Returns the pooled copy of the given value, adding it to the pool if there is room. */
+  String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    String pooled = pool.get(value);
+    if (pooled != null) {
+      hits.increment();
+      return pooled;
+    }
+    misses.increment();
+    if (pool.size() < scope.maxSize) {
+      pooled = pool.putIfAbsent(value, value);
+      if (pooled != null) {
+        return pooled;
+      }
+    }
+    return value;
+  }
+
+  /** The number of values which were found in the pool. */
+  long getHits() {
+    return hits.sum();
+  }
+
+  /** The number of values which were not found in the pool. */
+  long getMisses() {
+    return misses.sum();
+  }
+
+  /** The number of values in the pool. */
+  int getSize() {
+    return pool.size();
+  }
+}
@@ -18,14 +18,10 @@ import com.google.common.collect.ImmutableMap;
 import com.google.fhir.stu3.proto.Time;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
-import java.util.regex.Pattern;
 
 /** A wrapper around the Time FHIR primitive type. */
 public class TimeWrapper extends PrimitiveWrapper<Time> {
 
-  private static final Pattern TIME_PATTERN =
-      Pattern.compile(AnnotationUtils.getValueRegexForPrimitiveType(Time.getDefaultInstance()));
   private static final Time NULL_TIME =
       Time.newBuilder().addExtension(getNoValueExtension()).build();
 
@@ -48,22 +44,20 @@ public class TimeWrapper extends PrimitiveWrapper<Time> {
   }
 
   private static Time parseAndValidate(String input) {
-    validateUsingPattern(TIME_PATTERN, input);
-    try {
-      return buildTime(LocalTime.parse(input, SECOND), Time.Precision.SECOND);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+    DateTimeScanner scanner = new DateTimeScanner(input);
+    int precision = scanner.scanTime();
+    if (precision == DateTimeScanner.MALFORMED) {
+      throw new IllegalArgumentException("Invalid input: " + input);
     }
-    try {
-      return buildTime(LocalTime.parse(input), Time.Precision.MILLISECOND);
-    } catch (DateTimeParseException e) {
-      // Fall through.
+    if (precision == DateTimeScanner.INVALID) {
+      throw new IllegalArgumentException("Invalid Time: " + input);
     }
-    throw new IllegalArgumentException("Invalid Time: " + input);
-  }
-
-  private static Time buildTime(LocalTime time, Time.Precision precision) {
-    return Time.newBuilder().setValueUs(time.toNanoOfDay() / 1000L).setPrecision(precision).build();
+    Time.Precision timePrecision =
+        precision == DateTimeScanner.SECOND ? Time.Precision.SECOND : Time.Precision.MILLISECOND;
+    return Time.newBuilder()
+        .setValueUs(scanner.getMicrosOfDay())
+        .setPrecision(timePrecision)
+        .build();
   }
 
   @Override
@@ -15,13 +15,12 @@
 package com.google.fhir.stu3;
 
 import com.google.fhir.stu3.proto.UnsignedInt;
-import java.util.regex.Pattern;
 
 /** A wrapper around the UnsignedInt FHIR primitive type. */
 public class UnsignedIntWrapper extends NumericTypeWrapper<UnsignedInt> {
 
-  private static final Pattern UNSIGNED_INT_PATTERN =
-      Pattern.compile(
+  private static final DfaMatcher UNSIGNED_INT_PATTERN =
+      DfaMatcher.compile(
           AnnotationUtils.getValueRegexForPrimitiveType(UnsignedInt.getDefaultInstance()));
   private static final UnsignedInt NULL_UNSIGNED_INT =
       UnsignedInt.newBuilder().addExtension(getNoValueExtension()).build();
@@ -14,12 +14,17 @@
 
 package com.google.fhir.stu3;
 
+import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.fhir.stu3.proto.AbstractTypeCode;
+import com.google.fhir.stu3.proto.Annotations.StructureDefinitionKindValue;
 import com.google.fhir.stu3.proto.Base64Binary;
 import com.google.fhir.stu3.proto.Boolean;
 import com.google.fhir.stu3.proto.Code;
+import com.google.fhir.stu3.proto.ElementDefinitionBindingName;
+import com.google.fhir.stu3.proto.Observation;
 import com.google.fhir.stu3.proto.Patient;
 import com.google.fhir.stu3.proto.Reference;
 import com.google.protobuf.DescriptorProtos.DescriptorProto;
@@ -71,4 +76,63 @@ public final class AnnotationUtilsTest {
     assertTrue(AnnotationUtils.isReference(Reference.getDefaultInstance()));
     assertTrue(AnnotationUtils.isReference(Reference.getDescriptor().toProto()));
   }
+
+  @Test
+  public void getValueRegexForPrimitiveType() {
+    assertThat(AnnotationUtils.getValueRegexForPrimitiveType(Code.getDescriptor()))
+        .isEqualTo(AnnotationUtils.getValueRegexForPrimitiveType(Code.getDescriptor().toProto()));
+    assertThat(AnnotationUtils.getValueRegexForPrimitiveType(Code.getDescriptor())).isNotNull();
+    assertThat(AnnotationUtils.getValueRegexForPrimitiveType(Patient.getDescriptor())).isNull();
+  }
+
+  @Test
+  public void getStructureDefinitionKind() {
+    assertThat(AnnotationUtils.getStructureDefinitionKind(Patient.getDescriptor()))
+        .isEqualTo(StructureDefinitionKindValue.KIND_RESOURCE);
+    assertThat(AnnotationUtils.getStructureDefinitionKind(Reference.getDescriptor()))
+        .isEqualTo(StructureDefinitionKindValue.KIND_COMPLEX_TYPE);
+    assertThat(AnnotationUtils.getStructureDefinitionKind(DescriptorProto.getDescriptor()))
+        .isEqualTo(StructureDefinitionKindValue.KIND_UNKNOWN);
+  }
+
+  @Test
+  public void getReferenceTypes() {
+    assertThat(AnnotationUtils.getReferenceTypes(Reference.getDescriptor())).isNotEmpty();
+    assertThat(AnnotationUtils.getReferenceTypes(Patient.getDescriptor())).isEmpty();
+  }
+
+  @Test
+  public void getValuesetUrl() {
+    assertThat(AnnotationUtils.getValuesetUrl(AbstractTypeCode.getDescriptor()))
+        .isEqualTo("http://hl7.org/fhir/ValueSet/abstract-types");
+    assertThat(AnnotationUtils.getValuesetUrl(Code.getDescriptor())).isNull();
+  }
+
+  @Test
+  public void getProfileBaseAndStructureDefinitionUrl() {
+    assertThat(AnnotationUtils.getProfileBase(ElementDefinitionBindingName.getDescriptor()))
+        .isEqualTo("Extension");
+    assertThat(
+            AnnotationUtils.getStructureDefinitionUrl(ElementDefinitionBindingName.getDescriptor()))
+        .isEqualTo("http://hl7.org/fhir/StructureDefinition/elementdefinition-bindingName");
+    assertThat(AnnotationUtils.getProfileBase(Patient.getDescriptor())).isEmpty();
+    assertThat(AnnotationUtils.getStructureDefinitionUrl(DescriptorProto.getDescriptor()))
+        .isNull();
+  }
+
+  @Test
+  public void isChoiceType() {
+    assertTrue(
+        AnnotationUtils.isChoiceType(Observation.getDescriptor().findFieldByName("value")));
+    assertFalse(
+        AnnotationUtils.isChoiceType(Observation.getDescriptor().findFieldByName("status")));
+  }
+
+  @Test
+  public void isRequiredByFhir() {
+    assertTrue(
+        AnnotationUtils.isRequiredByFhir(Observation.getDescriptor().findFieldByName("status")));
+    assertFalse(
+        AnnotationUtils.isRequiredByFhir(Observation.getDescriptor().findFieldByName("value")));
+  }
 }
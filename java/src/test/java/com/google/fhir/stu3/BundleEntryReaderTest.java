@@ -0,0 +1,160 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.devtools.build.runfiles.Runfiles;
+import com.google.fhir.stu3.proto.Bundle;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.fhir.stu3.proto.Patient;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link BundleEntryReader}. */
+@RunWith(JUnit4.class)
+public final class BundleEntryReaderTest {
+
+  // Entries refer to each other by urn:uuid, and the bundle has fields after its entries.
+  private static final String UUID_BUNDLE =
+      "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+          + "{\"fullUrl\": \"urn:uuid:1234\","
+          + " \"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\", \"active\": true}},"
+          + "{\"fullUrl\": \"urn:uuid:5678\", \"resource\": {\"resourceType\": \"Observation\","
+          + " \"status\": \"final\", \"code\": {\"text\": \"weight\"},"
+          + " \"subject\": {\"reference\": \"urn:uuid:1234\"}, \"id\": \"o1\"}}"
+          + "], \"total\": 2}";
+
+  private JsonFormat.Parser parser;
+  private Runfiles runfiles;
+
+  private String loadJson(String filename) throws IOException {
+    File file =
+        new File(runfiles.rlocation("com_google_fhir/testdata/stu3/examples/" + filename));
+    return Files.asCharSource(file, StandardCharsets.UTF_8).read();
+  }
+
+  private static List<Bundle.Entry> readAll(BundleEntryReader reader) throws IOException {
+    List<Bundle.Entry> entries = new ArrayList<>();
+    while (reader.hasNext()) {
+      entries.add(reader.next());
+    }
+    return entries;
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    parser = JsonFormat.Parser.newBuilder().build();
+    runfiles = Runfiles.create();
+  }
+
+  /** The entries must match those of the parsed bundle, with or without resolved references. */
+  @Test
+  public void readEntries() throws Exception {
+    String json = loadJson("bundle-example.json");
+    Bundle.Builder bundle = Bundle.newBuilder();
+    parser.merge(json, bundle);
+
+    assertThat(readAll(new BundleEntryReader(parser, new StringReader(json))))
+        .containsExactlyElementsIn(bundle.getEntryList())
+        .inOrder();
+    assertThat(
+            readAll(
+                new BundleEntryReader(
+                    parser,
+                    new StringReader(json),
+                    BundleEntryReader.readReferenceMap(new StringReader(json)))))
+        .containsExactlyElementsIn(
+            ResourceUtils.resolveBundleReferences(bundle.build()).getEntryList())
+        .inOrder();
+  }
+
+  @Test
+  public void readReferenceMap() throws Exception {
+    assertThat(BundleEntryReader.readReferenceMap(new StringReader(UUID_BUNDLE)))
+        .containsExactly("urn:uuid:1234", "Patient/p1", "urn:uuid:5678", "Observation/o1");
+  }
+
+  @Test
+  public void resolveUuidReferences() throws Exception {
+    BundleEntryReader reader =
+        new BundleEntryReader(
+            parser,
+            new StringReader(UUID_BUNDLE),
+            ImmutableMap.of("urn:uuid:1234", "Patient/p1"));
+    assertThat(reader.hasNext()).isTrue();
+    Patient patient = (Patient) reader.nextResource();
+    assertThat(patient.getId().getValue()).isEqualTo("p1");
+    Observation observation = reader.nextContainedResource().getObservation();
+    assertThat(observation.getSubject().getPatientId().getValue()).isEqualTo("p1");
+    assertThat(observation.getSubject().hasUri()).isFalse();
+    assertThat(reader.hasNext()).isFalse();
+    reader.close();
+  }
+
+  /** The entries read count towards the total of the projection statistics, like the skipped. */
+  @Test
+  public void projectionStatsCountTheBundle() throws Exception {
+    JsonFormat.Parser projectingParser =
+        JsonFormat.Parser.newBuilder().withProjection(ImmutableList.of("Patient.id")).build();
+    BundleEntryReader reader =
+        new BundleEntryReader(projectingParser, new StringReader(UUID_BUNDLE));
+    assertThat(readAll(reader)).hasSize(2);
+    reader.close();
+    JsonFormat.Parser.ProjectionStats stats = projectingParser.getProjectionStats();
+    assertThat(stats.getTotalBytes())
+        .isEqualTo(UUID_BUNDLE.getBytes(StandardCharsets.UTF_8).length);
+    assertThat(stats.getSkippedBytes()).isGreaterThan(0L);
+    assertThat(stats.getSkippedBytes()).isLessThan(stats.getTotalBytes());
+  }
+
+  @Test
+  public void readEmptyBundle() throws Exception {
+    BundleEntryReader reader =
+        new BundleEntryReader(
+            parser, new StringReader("{\"resourceType\": \"Bundle\", \"entry\": []}"));
+    assertThat(reader.hasNext()).isFalse();
+    try {
+      reader.next();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void readOtherResourceType() throws Exception {
+    BundleEntryReader reader =
+        new BundleEntryReader(parser, new StringReader("{\"resourceType\": \"Patient\"}"));
+    try {
+      reader.hasNext();
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,90 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.fhir.stu3.proto.Bundle;
+import com.google.fhir.stu3.proto.ContainedResource;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link BundleReferences}. */
+@RunWith(JUnit4.class)
+public final class BundleReferencesTest {
+
+  private static final String UUID_BUNDLE =
+      "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+          + "{\"fullUrl\": \"urn:uuid:1234\","
+          + " \"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\"}},"
+          + "{\"fullUrl\": \"urn:uuid:5678\", \"resource\": {\"resourceType\": \"Observation\","
+          + " \"id\": \"o1\", \"status\": \"final\", \"code\": {\"text\": \"weight\"},"
+          + " \"subject\": {\"reference\": \"urn:uuid:1234\"},"
+          + " \"performer\": [{\"reference\": \"urn:uuid:1234\"}]}}"
+          + "]}";
+
+  private static final FieldDescriptor ENTRY = Bundle.getDescriptor().findFieldByName("entry");
+  private static final FieldDescriptor RESOURCE =
+      Bundle.Entry.getDescriptor().findFieldByName("resource");
+  private static final FieldDescriptor OBSERVATION =
+      ContainedResource.getDescriptor().findFieldByName("observation");
+  private static final FieldDescriptor SUBJECT =
+      Observation.getDescriptor().findFieldByName("subject");
+
+  private Bundle.Builder bundle;
+
+  @Before
+  public void setUp() {
+    bundle = Bundle.newBuilder();
+    JsonFormat.getParser().merge(UUID_BUNDLE, bundle);
+  }
+
+  /** Records the subject of the observation, with the given uri. */
+  private static BundleReferences subjectReference(String uri) {
+    BundleReferences references = new BundleReferences();
+    references.enter(ENTRY, 1);
+    references.enter(RESOURCE, -1);
+    references.enter(OBSERVATION, -1);
+    references.enter(SUBJECT, -1);
+    references.add(uri);
+    references.exit();
+    references.exit();
+    references.exit();
+    references.exit();
+    return references;
+  }
+
+  @Test
+  public void resolveRecordedReferencesOnly() {
+    subjectReference("urn:uuid:1234").resolve(bundle);
+    Observation observation = bundle.getEntry(1).getResource().getObservation();
+    assertThat(observation.getSubject().getPatientId().getValue()).isEqualTo("p1");
+    assertThat(observation.getSubject().hasUri()).isFalse();
+    // References which were not recorded are left as they are.
+    assertThat(observation.getPerformer(0).getUri().getValue()).isEqualTo("urn:uuid:1234");
+  }
+
+  @Test
+  public void resolveWholeBundleIfPathsMoved() {
+    subjectReference("urn:uuid:other").resolve(bundle);
+    Observation observation = bundle.getEntry(1).getResource().getObservation();
+    assertThat(observation.getSubject().getPatientId().getValue()).isEqualTo("p1");
+    assertThat(observation.getPerformer(0).getPatientId().getValue()).isEqualTo("p1");
+  }
+}
@@ -0,0 +1,87 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.fhir.stu3.proto.AbstractTypeCode;
+import com.google.fhir.stu3.proto.Annotations;
+import com.google.fhir.stu3.proto.ObservationStatusCode;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link CodeEnumMap}. */
+@RunWith(JUnit4.class)
+public final class CodeEnumMapTest {
+
+  @Test
+  public void allCodesRoundTrip() {
+    int tested = 0;
+    for (Descriptor type : ObservationStatusCode.getDescriptor().getFile().getMessageTypes()) {
+      FieldDescriptor valueField = type.findFieldByName("value");
+      if (valueField == null || valueField.getType() != FieldDescriptor.Type.ENUM) {
+        continue;
+      }
+      EnumDescriptor enumType = valueField.getEnumType();
+      CodeEnumMap map = CodeEnumMap.of(enumType);
+      assertThat(CodeEnumMap.of(enumType)).isSameAs(map);
+      for (EnumValueDescriptor value : enumType.getValues()) {
+        if (value.getNumber() == 0) {
+          continue;
+        }
+        String code = map.getCode(value);
+        if (value.getOptions().hasExtension(Annotations.fhirOriginalCode)) {
+          assertThat(code).isEqualTo(value.getOptions().getExtension(Annotations.fhirOriginalCode));
+        } else {
+          assertThat(code).isEqualTo(value.getName().toLowerCase().replace('_', '-'));
+        }
+        assertThat(map.getValue(code)).isSameAs(value);
+        tested++;
+      }
+    }
+    assertThat(tested).isGreaterThan(1000);
+  }
+
+  @Test
+  public void getValue() {
+    CodeEnumMap map = CodeEnumMap.of(ObservationStatusCode.Value.getDescriptor());
+    assertThat(map.getValue("entered-in-error"))
+        .isSameAs(ObservationStatusCode.Value.ENTERED_IN_ERROR.getValueDescriptor());
+    // Names are matched in any case.
+    assertThat(map.getValue("Entered-In-Error"))
+        .isSameAs(ObservationStatusCode.Value.ENTERED_IN_ERROR.getValueDescriptor());
+    assertThat(map.getValue("invalid-uninitialized")).isNull();
+    assertThat(map.getValue("bogus")).isNull();
+
+    // Values with an original code are only matched by that code.
+    map = CodeEnumMap.of(AbstractTypeCode.Value.getDescriptor());
+    assertThat(map.getValue("Type")).isSameAs(AbstractTypeCode.Value.TYPE.getValueDescriptor());
+    assertThat(map.getValue("type")).isNull();
+    assertThat(map.getValue("TYPE")).isNull();
+  }
+
+  @Test
+  public void getCodeOfUnknownValue() {
+    EnumDescriptor enumType = ObservationStatusCode.Value.getDescriptor();
+    EnumValueDescriptor unknown = enumType.findValueByNumberCreatingIfUnknown(1000);
+    assertThat(CodeEnumMap.of(enumType).getCode(unknown))
+        .isEqualTo(unknown.getName().toLowerCase().replace('_', '-'));
+  }
+}
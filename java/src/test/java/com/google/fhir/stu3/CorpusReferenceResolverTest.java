@@ -0,0 +1,133 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.fhir.stu3.proto.Bundle;
+import com.google.fhir.stu3.proto.CodeableConcept;
+import com.google.fhir.stu3.proto.Coding;
+import com.google.fhir.stu3.proto.Extension;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.fhir.stu3.proto.Reference;
+import com.google.fhir.stu3.proto.ReferenceId;
+import com.google.fhir.stu3.proto.Uri;
+import java.io.StringReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link CorpusReferenceResolver}. */
+@RunWith(JUnit4.class)
+public final class CorpusReferenceResolverTest {
+
+  // The observation refers to a patient in the other bundle, and to a patient in neither.
+  private static final String OBSERVATIONS =
+      "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+          + "{\"fullUrl\": \"urn:uuid:5678\", \"resource\": {\"resourceType\": \"Observation\","
+          + " \"id\": \"o1\", \"status\": \"final\", \"code\": {\"text\": \"weight\"},"
+          + " \"subject\": {\"reference\": \"urn:uuid:1234\"},"
+          + " \"performer\": [{\"reference\": \"urn:uuid:0000\"},"
+          + " {\"reference\": \"http://example.com/Practitioner/1\"}]}}]}";
+  private static final String PATIENTS =
+      "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+          + "{\"fullUrl\": \"urn:uuid:1234\","
+          + " \"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\"}}]}";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void resolveAcrossBundles() throws Exception {
+    JsonFormat.Parser parser = JsonFormat.getParser();
+    try (CorpusReferenceResolver resolver =
+        CorpusReferenceResolver.create(temporaryFolder.getRoot().toPath())) {
+      resolver.indexBundle(new StringReader(OBSERVATIONS));
+      resolver.indexBundle(new StringReader(PATIENTS));
+      assertThat(resolver.getIndexedCount()).isEqualTo(2);
+
+      Observation observation;
+      try (BundleEntryReader reader =
+          resolver.newEntryReader(parser, new StringReader(OBSERVATIONS))) {
+        observation = reader.nextContainedResource().getObservation();
+        assertThat(reader.hasNext()).isFalse();
+      }
+      assertThat(observation.getSubject().getPatientId().getValue()).isEqualTo("p1");
+      assertThat(observation.getPerformer(0).getUri().getValue()).isEqualTo("urn:uuid:0000");
+      assertThat(observation.getPerformer(1).getUri().getValue())
+          .isEqualTo("http://example.com/Practitioner/1");
+      assertThat(resolver.getResolvedCount()).isEqualTo(1);
+      assertThat(resolver.getUnresolvedCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void resolveParsedResources() throws Exception {
+    try (CorpusReferenceResolver resolver =
+        CorpusReferenceResolver.create(temporaryFolder.getRoot().toPath())) {
+      resolver.indexBundle(new StringReader(PATIENTS));
+      Bundle.Builder bundle = Bundle.newBuilder();
+      JsonFormat.getParser().merge(OBSERVATIONS, bundle);
+      Observation observation = bundle.getEntry(0).getResource().getObservation();
+
+      Observation resolved = (Observation) resolver.resolveReferences(observation);
+      assertThat(resolved)
+          .isEqualTo(
+              observation
+                  .toBuilder()
+                  .setSubject(
+                      Reference.newBuilder()
+                          .setPatientId(
+                              ReferenceId.newBuilder().setValue("p1")))
+                  .build());
+      assertThat(resolver.resolveReferences(resolved.getCode())).isSameAs(resolved.getCode());
+    }
+  }
+
+  @Test
+  public void resolveReferenceInNestedExtension() throws Exception {
+    try (CorpusReferenceResolver resolver =
+        CorpusReferenceResolver.create(temporaryFolder.getRoot().toPath())) {
+      resolver.indexBundle(new StringReader(PATIENTS));
+      Observation observation =
+          Observation.newBuilder()
+              .setCode(
+                  CodeableConcept.newBuilder()
+                      .addCoding(
+                          Coding.newBuilder()
+                              .addExtension(
+                                  Extension.newBuilder()
+                                      .setUrl(Uri.newBuilder().setValue("http://example.com/e"))
+                                      .setValue(
+                                          Extension.Value.newBuilder()
+                                              .setReference(
+                                                  Reference.newBuilder()
+                                                      .setUri(
+                                                          com.google.fhir.stu3.proto.String
+                                                              .newBuilder()
+                                                              .setValue("urn:uuid:1234")))))))
+              .build();
+
+      Observation resolved = (Observation) resolver.resolveReferences(observation);
+      assertThat(
+              resolved.getCode().getCoding(0).getExtension(0).getValue().getReference())
+          .isEqualTo(
+              Reference.newBuilder()
+                  .setPatientId(ReferenceId.newBuilder().setValue("p1"))
+                  .build());
+    }
+  }
+}
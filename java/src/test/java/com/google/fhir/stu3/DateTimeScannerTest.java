@@ -0,0 +1,190 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.Year;
+import java.time.ZoneId;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DateTimeScanner}. */
+@RunWith(JUnit4.class)
+public final class DateTimeScannerTest {
+
+  private static final ZoneId SYDNEY = ZoneId.of("Australia/Sydney");
+
+  private static long epochMicros(String offsetDateTime) {
+    return OffsetDateTime.parse(offsetDateTime).toInstant().toEpochMilli() * 1000L;
+  }
+
+  private static long startOfDayMicros(LocalDate date, ZoneId zone) {
+    return date.atStartOfDay().atZone(zone).toInstant().toEpochMilli() * 1000L;
+  }
+
+  @Test
+  public void scanDates() {
+    DateTimeScanner scanner = new DateTimeScanner("2018");
+    assertThat(scanner.scanDate()).isEqualTo(DateTimeScanner.YEAR);
+    assertThat(scanner.getEpochMicros(SYDNEY))
+        .isEqualTo(startOfDayMicros(LocalDate.of(2018, 1, 1), SYDNEY));
+
+    scanner = new DateTimeScanner("2016-02");
+    assertThat(scanner.scanDate()).isEqualTo(DateTimeScanner.MONTH);
+    assertThat(scanner.getEpochMicros(SYDNEY))
+        .isEqualTo(startOfDayMicros(LocalDate.of(2016, 2, 1), SYDNEY));
+
+    scanner = new DateTimeScanner("2016-02-29");
+    assertThat(scanner.scanDate()).isEqualTo(DateTimeScanner.DAY);
+    assertThat(scanner.getEpochMicros(ZoneId.of("UTC")))
+        .isEqualTo(startOfDayMicros(LocalDate.of(2016, 2, 29), ZoneId.of("UTC")));
+
+    // Negative years are supported, and "-0000" only as a year.
+    scanner = new DateTimeScanner("-0044-03-15");
+    assertThat(scanner.scanDate()).isEqualTo(DateTimeScanner.DAY);
+    assertThat(scanner.getEpochMicros(SYDNEY))
+        .isEqualTo(startOfDayMicros(LocalDate.of(-44, 3, 15), SYDNEY));
+    scanner = new DateTimeScanner("-0000");
+    assertThat(scanner.scanDate()).isEqualTo(DateTimeScanner.YEAR);
+    assertThat(scanner.getEpochMicros(SYDNEY))
+        .isEqualTo(startOfDayMicros(Year.of(0).atDay(1), SYDNEY));
+    assertThat(new DateTimeScanner("-0000-01").scanDate()).isEqualTo(DateTimeScanner.INVALID);
+  }
+
+  @Test
+  public void scanInvalidDates() {
+    assertThat(new DateTimeScanner("2018-02-29").scanDate()).isEqualTo(DateTimeScanner.INVALID);
+    assertThat(new DateTimeScanner("2018-04-31").scanDate()).isEqualTo(DateTimeScanner.INVALID);
+    assertThat(new DateTimeScanner("2018-01-00").scanDate()).isEqualTo(DateTimeScanner.INVALID);
+
+    for (String input :
+        new String[] {"", "18", "2018-", "2018-1", "2018-13", "2018-01-32", "2018/01/01"}) {
+      assertThat(new DateTimeScanner(input).scanDate()).isEqualTo(DateTimeScanner.MALFORMED);
+    }
+    // Dates must not have a time.
+    assertThat(new DateTimeScanner("2018-01-01T00:00:00Z").scanDate())
+        .isEqualTo(DateTimeScanner.MALFORMED);
+  }
+
+  @Test
+  public void scanDateTimes() {
+    String input = "2018-03-28T10:15:30+11:00";
+    DateTimeScanner scanner = new DateTimeScanner(input);
+    assertThat(scanner.scanDateTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(scanner.getEpochMicros()).isEqualTo(epochMicros(input));
+    assertThat(scanner.getTimezone()).isEqualTo("+11:00");
+
+    // Fractions are truncated to milliseconds.
+    input = "1969-12-31T23:59:59.123456789-03:30";
+    scanner = new DateTimeScanner(input);
+    assertThat(scanner.scanDateTime()).isEqualTo(DateTimeScanner.MILLISECOND);
+    assertThat(scanner.getEpochMicros()).isEqualTo(epochMicros(input));
+    assertThat(scanner.getTimezone()).isEqualTo("-03:30");
+
+    scanner = new DateTimeScanner("2018-03-28T10:15:30Z");
+    assertThat(scanner.scanDateTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(scanner.getTimezone()).isEqualTo("Z");
+    scanner = new DateTimeScanner("2018-03-28T10:15:30-00:00");
+    assertThat(scanner.scanDateTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(scanner.getTimezone()).isEqualTo("-00:00");
+
+    // Dates are dateTimes, but not instants.
+    assertThat(new DateTimeScanner("2018-03").scanDateTime()).isEqualTo(DateTimeScanner.MONTH);
+    assertThat(new DateTimeScanner("2018-03").scanInstant()).isEqualTo(DateTimeScanner.MALFORMED);
+  }
+
+  @Test
+  public void timezonesAreShared() {
+    DateTimeScanner first = new DateTimeScanner("2018-03-28T10:15:30+10:30");
+    DateTimeScanner second = new DateTimeScanner("2017-01-01T00:00:00.000+10:30");
+    DateTimeScanner negative = new DateTimeScanner("2017-01-01T00:00:00-10:30");
+    assertThat(first.scanDateTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(second.scanDateTime()).isEqualTo(DateTimeScanner.MILLISECOND);
+    assertThat(negative.scanDateTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(second.getTimezone()).isSameAs(first.getTimezone());
+    assertThat(negative.getTimezone()).isEqualTo("-10:30");
+
+    DateTimeScanner plusZero = new DateTimeScanner("2018-03-28T10:15:30+00:00");
+    DateTimeScanner minusZero = new DateTimeScanner("2018-03-28T10:15:30-00:00");
+    assertThat(plusZero.scanDateTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(minusZero.scanDateTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(plusZero.getTimezone()).isEqualTo("+00:00");
+    assertThat(minusZero.getTimezone()).isEqualTo("-00:00");
+  }
+
+  /** Second precision dateTimes were parsed with a lenient formatter, which we need to match. */
+  @Test
+  public void scanDateTimesLikeJavaTime() {
+    DateTimeScanner scanner = new DateTimeScanner("2018-02-30T10:00:00Z");
+    assertThat(scanner.scanDateTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(scanner.getEpochMicros()).isEqualTo(epochMicros("2018-02-28T10:00:00Z"));
+    assertThat(new DateTimeScanner("2018-02-30T10:00:00.5Z").scanDateTime())
+        .isEqualTo(DateTimeScanner.INVALID);
+
+    // Years before 1 were parsed by the ISO parser, which reported millisecond precision.
+    scanner = new DateTimeScanner("0000-01-01T00:00:00Z");
+    int precision = scanner.scanDateTime();
+    assertThat(scanner.getReportedPrecision(precision)).isEqualTo(DateTimeScanner.MILLISECOND);
+    assertThat(scanner.getEpochMicros()).isEqualTo(epochMicros("0000-01-01T00:00:00Z"));
+    assertThat(new DateTimeScanner("-0000-01-01T00:00:00Z").scanDateTime())
+        .isEqualTo(DateTimeScanner.INVALID);
+
+    // At most nanoseconds are supported.
+    assertThat(new DateTimeScanner("2018-01-01T00:00:00.1234567891Z").scanInstant())
+        .isEqualTo(DateTimeScanner.INVALID);
+  }
+
+  @Test
+  public void scanInvalidDateTimes() {
+    for (String input :
+        new String[] {
+          "2018-01-01T",
+          "2018-01-01T10:00:00",
+          "2018-01-01T24:00:00Z",
+          "2018-01-01T10:60:00Z",
+          "2018-01-01T10:00:00.Z",
+          "2018-01-01T10:00:00+14:01",
+          "2018-01-01T10:00:00+1:00",
+          "2018-01T10:00:00Z",
+          "2018-01-01 10:00:00Z",
+        }) {
+      assertThat(new DateTimeScanner(input).scanDateTime()).isEqualTo(DateTimeScanner.MALFORMED);
+    }
+  }
+
+  @Test
+  public void scanTimes() {
+    DateTimeScanner scanner = new DateTimeScanner("23:59:59");
+    assertThat(scanner.scanTime()).isEqualTo(DateTimeScanner.SECOND);
+    assertThat(scanner.getMicrosOfDay())
+        .isEqualTo(LocalTime.of(23, 59, 59).toNanoOfDay() / 1000L);
+
+    scanner = new DateTimeScanner("10:00:00.1234567");
+    assertThat(scanner.scanTime()).isEqualTo(DateTimeScanner.MILLISECOND);
+    assertThat(scanner.getMicrosOfDay())
+        .isEqualTo(LocalTime.parse("10:00:00.1234567").toNanoOfDay() / 1000L);
+
+    assertThat(new DateTimeScanner("10:00:00.1234567891").scanTime())
+        .isEqualTo(DateTimeScanner.INVALID);
+    assertThat(new DateTimeScanner("24:00:00").scanTime()).isEqualTo(DateTimeScanner.MALFORMED);
+    assertThat(new DateTimeScanner("10:00").scanTime()).isEqualTo(DateTimeScanner.MALFORMED);
+    assertThat(new DateTimeScanner("10:00:00Z").scanTime()).isEqualTo(DateTimeScanner.MALFORMED);
+  }
+}
@@ -109,4 +109,25 @@ public final class DecimalWrapperTest {
     input = Decimal.newBuilder().setValue("0.00").build();
     assertThat(new DecimalWrapper(input).toString()).isEqualTo("0.00");
   }
+
+  /** Printing skips the BigDecimal for numbers which it would print unchanged. */
+  @Test
+  public void canonicalDecimals() {
+    for (String integer : new String[] {"0", "-0", "7", "-7", "10", "00", "01", "-", ""}) {
+      for (String fraction :
+          new String[] {"", ".", ".0", ".5", ".50", ".000000", ".0000000", ".000001", ".0000001"}) {
+        String input = integer + fraction;
+        boolean canonical;
+        try {
+          canonical = new BigDecimal(input).toString().equals(input);
+        } catch (NumberFormatException e) {
+          canonical = false;
+        }
+        assertThat(NumericTypeWrapper.isCanonical(input)).named(input).isEqualTo(canonical);
+      }
+    }
+    assertThat(NumericTypeWrapper.isCanonical("1e3")).isFalse();
+    assertThat(NumericTypeWrapper.isCanonical("+1")).isFalse();
+    assertThat(NumericTypeWrapper.isCanonical("1.5x")).isFalse();
+  }
 }
@@ -0,0 +1,152 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.devtools.build.runfiles.Runfiles;
+import com.google.fhir.stu3.proto.Code;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.protobuf.Descriptors.Descriptor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DfaMatcher}. */
+@RunWith(JUnit4.class)
+public final class DfaMatcherTest {
+
+  /** Checks that the matcher and java.util.regex agree on the given inputs. */
+  private static void assertSameMatches(String regex, Iterable<String> inputs) {
+    DfaMatcher matcher = DfaMatcher.compile(regex);
+    Pattern pattern = Pattern.compile(regex);
+    for (String input : inputs) {
+      assertWithMessage("Matching '%s' against %s", input, regex)
+          .that(matcher.matches(input))
+          .isEqualTo(pattern.matcher(input).matches());
+    }
+  }
+
+  /** Returns random strings made of chars of the regex and a few others. */
+  private static List<String> randomInputs(String regex, Random random) {
+    String alphabet = regex + "aZ09 \t\n.-:+_é ";
+    List<String> inputs = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder input = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        input.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      inputs.add(input.toString());
+    }
+    return inputs;
+  }
+
+  /** Returns the decoded json strings, and the raw lines, of the validation test data. */
+  private static List<String> readValidationInputs() throws IOException {
+    Path directory =
+        Paths.get(Runfiles.create().rlocation("com_google_fhir/testdata/stu3/validation/"));
+    List<String> inputs = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.ndjson")) {
+      for (Path file : files) {
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+          inputs.add(line);
+          JsonElement json = new JsonParser().parse(line);
+          if (json.isJsonPrimitive()) {
+            inputs.add(json.getAsString());
+          }
+        }
+      }
+    }
+    return inputs;
+  }
+
+  @Test
+  public void valueRegexConformance() throws IOException {
+    List<String> inputs = readValidationInputs();
+    assertThat(inputs).isNotEmpty();
+    Random random = new Random(42);
+    int tested = 0;
+    for (Descriptor descriptor : Code.getDescriptor().getFile().getMessageTypes()) {
+      String regex = AnnotationUtils.getValueRegexForPrimitiveType(descriptor);
+      if (regex == null || regex.isEmpty()) {
+        continue;
+      }
+      assertSameMatches(regex, inputs);
+      assertSameMatches(regex, randomInputs(regex, random));
+      tested++;
+    }
+    assertThat(tested).isAtLeast(10);
+  }
+
+  @Test
+  public void supportedSyntax() {
+    Random random = new Random(42);
+    String[] regexes = {
+      "abc",
+      "a|b|",
+      "(ab)*c+d?",
+      "(?:a|bc){2,3}",
+      "a{2,}b{0,1}?",
+      "[^a-c\\s][\\d\\-][\\w.]*",
+      "\\S\\D\\W.",
+      "\\.\\+\\(\\t",
+      "[-a][a-][\\]\\\\]",
+      "(a*)*b",
+    };
+    for (String regex : regexes) {
+      assertSameMatches(regex, randomInputs(regex, random));
+    }
+  }
+
+  @Test
+  public void unsupportedSyntax() {
+    String[] regexes = {
+      "^a$", "a(?=b)", "a*+", "\\p{L}", "[a[b]]", "[a&&b]", "(a", "a)", "*", "a{2,1}", "\\1", "[]"
+    };
+    for (String regex : regexes) {
+      try {
+        DfaMatcher.compile(regex);
+        fail("Unexpected compile success for " + regex);
+      } catch (IllegalArgumentException e) {
+        assertThat(e).hasMessageThat().contains("Unsupported regex");
+      }
+    }
+  }
+
+  @Test
+  public void matchingTakesLinearTime() {
+    // This input makes java.util.regex backtrack exponentially on the code value_regex.
+    String input = Strings.repeat("a ", 10000) + " ";
+    DfaMatcher code =
+        DfaMatcher.compile(AnnotationUtils.getValueRegexForPrimitiveType(Code.getDescriptor()));
+    assertThat(code.matches(input)).isFalse();
+    assertThat(code.matches(input.trim())).isTrue();
+  }
+}
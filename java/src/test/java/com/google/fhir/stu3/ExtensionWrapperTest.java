@@ -18,8 +18,13 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.io.Files;
 import com.google.devtools.build.runfiles.Runfiles;
+import com.google.fhir.stu3.proto.Base64SeparatorStride;
+import com.google.fhir.stu3.proto.Boolean;
+import com.google.fhir.stu3.proto.Code;
 import com.google.fhir.stu3.proto.Extension;
+import com.google.fhir.stu3.proto.PositiveInt;
 import com.google.fhir.stu3.proto.PrimitiveHasNoValue;
+import com.google.fhir.stu3.proto.Uri;
 import com.google.protobuf.Message;
 import com.google.protobuf.TextFormat;
 import java.io.File;
@@ -88,4 +93,89 @@ public final class ExtensionWrapperTest {
     testExpand("primitive_has_no_value", PrimitiveHasNoValue.newBuilder());
     testExpand("empty", PrimitiveHasNoValue.newBuilder());
   }
+
+  private static PrimitiveHasNoValue noValue(boolean value) {
+    return PrimitiveHasNoValue.newBuilder()
+        .setValueBoolean(Boolean.newBuilder().setValue(value))
+        .build();
+  }
+
+  private static final Base64SeparatorStride STRIDE =
+      Base64SeparatorStride.newBuilder()
+          .setSeparator(com.google.fhir.stu3.proto.String.newBuilder().setValue("  "))
+          .setStride(PositiveInt.newBuilder().setValue(64))
+          .build();
+
+  private static final Extension OTHER =
+      Extension.newBuilder()
+          .setUrl(Uri.newBuilder().setValue("http://example.com/extension"))
+          .build();
+
+  /** Test looking up extensions of several types, in one list. */
+  @Test
+  public void getMatchingExtensions() {
+    Code code =
+        Code.newBuilder()
+            .addAllExtension(ExtensionWrapper.of().add(noValue(true)).build())
+            .addExtension(OTHER)
+            .addAllExtension(ExtensionWrapper.of().add(STRIDE).add(noValue(false)).build())
+            .build();
+    ExtensionWrapper wrapper = ExtensionWrapper.fromExtensionsIn(code);
+    java.util.List<PrimitiveHasNoValue> noValues =
+        wrapper.getMatchingExtensions(PrimitiveHasNoValue.getDefaultInstance());
+    assertThat(noValues).containsExactly(noValue(true), noValue(false)).inOrder();
+    // From the second lookup on, results are kept until the extensions change.
+    java.util.List<PrimitiveHasNoValue> kept =
+        wrapper.getMatchingExtensions(PrimitiveHasNoValue.getDefaultInstance());
+    assertThat(kept).isEqualTo(noValues);
+    java.util.List<PrimitiveHasNoValue> third =
+        wrapper.getMatchingExtensions(PrimitiveHasNoValue.getDefaultInstance());
+    assertThat(third.get(0)).isSameAs(kept.get(0));
+    // Each caller gets its own list, which it may modify.
+    third.clear();
+    assertThat(wrapper.getMatchingExtensions(PrimitiveHasNoValue.getDefaultInstance()))
+        .isEqualTo(noValues);
+    assertThat(wrapper.getMatchingExtensions(Base64SeparatorStride.getDefaultInstance()))
+        .containsExactly(STRIDE);
+
+    wrapper.clearMatchingExtensions(Base64SeparatorStride.getDefaultInstance());
+    assertThat(wrapper.getMatchingExtensions(Base64SeparatorStride.getDefaultInstance()))
+        .isEmpty();
+    assertThat(wrapper.getMatchingExtensions(PrimitiveHasNoValue.getDefaultInstance()))
+        .containsExactly(noValue(true), noValue(false))
+        .inOrder();
+    assertThat(wrapper.build()).hasSize(3);
+    // The message itself is unchanged.
+    assertThat(code.getExtensionCount()).isEqualTo(4);
+  }
+
+  /** Test that the extensions of a message are only copied when they are modified. */
+  @Test
+  public void extensionsOfMessagesAreCopiedOnWrite() {
+    Code code = Code.newBuilder().addExtension(OTHER).build();
+    ExtensionWrapper wrapper = ExtensionWrapper.fromExtensionsIn(code);
+    wrapper.clearMatchingExtensions(PrimitiveHasNoValue.getDefaultInstance());
+    // The list built is a modifiable copy, not the message's own.
+    java.util.List<Extension> built = wrapper.build();
+    assertThat(built).isNotSameAs(code.getExtensionList());
+    assertThat(built).containsExactly(OTHER);
+    built.clear();
+    assertThat(wrapper.build()).containsExactly(OTHER);
+
+    wrapper.add(noValue(true));
+    assertThat(wrapper.build()).hasSize(2);
+    assertThat(code.getExtensionList()).containsExactly(OTHER);
+    assertThat(wrapper.getMatchingExtensions(PrimitiveHasNoValue.getDefaultInstance()))
+        .containsExactly(noValue(true));
+  }
+
+  /** Test that the extensions of a builder are copied, since the builder may change. */
+  @Test
+  public void extensionsOfBuildersAreCopied() {
+    Code.Builder code = Code.newBuilder().addExtension(OTHER);
+    ExtensionWrapper wrapper = ExtensionWrapper.fromExtensionsIn(code);
+    code.addAllExtension(ExtensionWrapper.of().add(noValue(true)).build());
+    assertThat(wrapper.build()).containsExactly(OTHER);
+    assertThat(wrapper.getMatchingExtensions(PrimitiveHasNoValue.getDefaultInstance())).isEmpty();
+  }
 }
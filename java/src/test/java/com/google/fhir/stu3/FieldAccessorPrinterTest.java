@@ -0,0 +1,155 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.fhir.stu3.proto.AccountStatusCode;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.fhir.stu3.proto.String;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link FieldAccessorPrinter}. */
+@RunWith(JUnit4.class)
+public final class FieldAccessorPrinterTest {
+
+  private static final java.lang.String ACCESSOR_PACKAGE = "com.google.fhir.stu3.proto.accessor.";
+
+  private void checkJavaNames(Descriptor descriptor, java.lang.String className)
+      throws ClassNotFoundException {
+    Class<?> messageClass = Class.forName(className);
+    for (FieldDescriptor field : descriptor.getFields()) {
+      java.lang.String getter =
+          "get"
+              + FieldAccessorPrinter.getJavaName(field.toProto())
+              + (field.isRepeated() ? "List" : "");
+      try {
+        messageClass.getMethod(getter);
+      } catch (NoSuchMethodException e) {
+        fail("No method " + getter + " for field " + field.getFullName());
+      }
+    }
+    for (Descriptor nested : descriptor.getNestedTypes()) {
+      checkJavaNames(nested, className + "$" + nested.getName());
+    }
+  }
+
+  /** The accessor names we compute must match what protoc generated for the FHIR protos. */
+  @Test
+  public void javaNamesMatchGeneratedCode() throws Exception {
+    for (FileDescriptor file :
+        new FileDescriptor[] {
+          Observation.getDescriptor().getFile(),
+          String.getDescriptor().getFile(),
+          AccountStatusCode.getDescriptor().getFile()
+        }) {
+      for (Descriptor descriptor : file.getMessageTypes()) {
+        checkJavaNames(descriptor, "com.google.fhir.stu3.proto." + descriptor.getName());
+      }
+    }
+  }
+
+  @Test
+  public void printResources() {
+    ImmutableMap<java.lang.String, java.lang.String> accessors =
+        new FieldAccessorPrinter().print(Observation.getDescriptor().getFile().toProto());
+    assertThat(accessors).hasSize(Observation.getDescriptor().getFile().getMessageTypes().size());
+
+    java.lang.String source = accessors.get(ACCESSOR_PACKAGE + "ObservationAccessor");
+    assertThat(source).contains("package com.google.fhir.stu3.proto.accessor;");
+    assertThat(source).contains("public final class ObservationAccessor implements FieldAccessor");
+    assertThat(source).contains("if (m.hasStatus()) {");
+    assertThat(source).contains("if (m.getIdentifierCount() > 0) {");
+    assertThat(source).contains("visitor.visit(STATUS_FIELD, m.getStatus());");
+    assertThat(source).contains("visitor.visit(IDENTIFIER_FIELD, m.getIdentifierList());");
+    assertThat(source).contains("      case 19:\n        return m.getValue();\n");
+    assertThat(source).contains("b.addIdentifier((com.google.fhir.stu3.proto.Identifier) value);");
+    assertThat(source)
+        .contains("return com.google.fhir.stu3.proto.Observation.Value.newBuilder();");
+    // Nested messages get nested accessors.
+    assertThat(source)
+        .contains("  public static final class ComponentAccessor implements FieldAccessor");
+  }
+
+  @Test
+  public void printScalarFields() {
+    java.lang.String source =
+        new FieldAccessorPrinter()
+            .print(String.getDescriptor().getFile().toProto())
+            .get(ACCESSOR_PACKAGE + "StringAccessor");
+    assertThat(source).contains("if (!m.getValue().isEmpty()) {");
+    assertThat(source).contains("b.setValue((java.lang.String) value);");
+
+    source =
+        new FieldAccessorPrinter()
+            .print(AccountStatusCode.getDescriptor().getFile().toProto())
+            .get(ACCESSOR_PACKAGE + "AccountStatusCodeAccessor");
+    assertThat(source).contains("if (m.getValueValue() != 0) {");
+    assertThat(source)
+        .contains(
+            "visitor.visit(VALUE_FIELD, VALUE_FIELD.getEnumType()"
+                + ".findValueByNumberCreatingIfUnknown(m.getValueValue()));");
+  }
+
+  @Test
+  public void printRequiresJavaMultipleFiles() {
+    FileDescriptorProto.Builder file = Observation.getDescriptor().getFile().toProto().toBuilder();
+    file.getOptionsBuilder().setJavaMultipleFiles(false);
+    try {
+      new FieldAccessorPrinter().print(file.build());
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void accessorClassName() {
+    assertThat(FieldAccessors.getAccessorClassName("com.google.fhir.stu3.proto", "Observation"))
+        .isEqualTo(ACCESSOR_PACKAGE + "ObservationAccessor");
+    assertThat(
+            FieldAccessors.getAccessorClassName(
+                "com.google.fhir.stu3.proto", "Observation.Component"))
+        .isEqualTo(ACCESSOR_PACKAGE + "ObservationAccessor$ComponentAccessor");
+  }
+
+  @Test
+  public void reflectionAccessor() {
+    Observation observation =
+        Observation.newBuilder().setComment(String.newBuilder().setValue("comment")).build();
+    FieldAccessor accessor = new FieldAccessors.ReflectionAccessor(Observation.getDescriptor());
+    FieldDescriptor comment = Observation.getDescriptor().findFieldByName("comment");
+    assertThat(accessor.getAllFields(observation)).isEqualTo(observation.getAllFields());
+    assertThat(accessor.hasField(observation, comment)).isTrue();
+    assertThat(accessor.getField(observation, comment)).isEqualTo(observation.getComment());
+    Map<FieldDescriptor, Object> fields = new LinkedHashMap<>();
+    accessor.forEachSetField(observation, fields::put);
+    assertThat(fields).containsExactlyEntriesIn(observation.getAllFields()).inOrder();
+
+    Observation.Builder builder = Observation.newBuilder();
+    accessor.setField(builder, comment, observation.getComment());
+    assertThat(builder.build()).isEqualTo(observation);
+  }
+}
@@ -0,0 +1,141 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.Files;
+import com.google.devtools.build.runfiles.Runfiles;
+import com.google.fhir.stu3.proto.Claim;
+import com.google.fhir.stu3.proto.Encounter;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.fhir.stu3.proto.Patient;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.TextFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests JsonFormat with the generated field accessors of the STU3 protos on the classpath, which
+ * the BUILD file provides through the stu3_field_accessors library.
+ */
+@RunWith(JUnit4.class)
+public final class GeneratedFieldAccessorsTest {
+
+  private JsonFormat.Parser jsonParser;
+  private JsonFormat.Printer jsonPrinter;
+  private Runfiles runfiles;
+
+  @Before
+  public void setUp() throws IOException {
+    jsonParser =
+        JsonFormat.Parser.newBuilder().withDefaultTimeZone(ZoneId.of("Australia/Sydney")).build();
+    jsonPrinter = JsonFormat.getPrinter().withDefaultTimeZone(ZoneId.of("Australia/Sydney"));
+    runfiles = Runfiles.create();
+  }
+
+  private String load(String filename) throws IOException {
+    File file =
+        new File(runfiles.rlocation("com_google_fhir/testdata/stu3/examples/" + filename));
+    return Files.asCharSource(file, StandardCharsets.UTF_8).read();
+  }
+
+  /** Asserts that the generated accessor for the given type is used, instead of reflection. */
+  private static void assertGeneratedAccessor(Descriptor descriptor) {
+    FieldAccessor accessor = FieldAccessors.of(descriptor);
+    assertThat(accessor).isNotInstanceOf(FieldAccessors.ReflectionAccessor.class);
+    String messageName =
+        descriptor.getFullName().substring(descriptor.getFile().getPackage().length() + 1);
+    assertThat(accessor.getClass().getName())
+        .isEqualTo(
+            FieldAccessors.getAccessorClassName(
+                descriptor.getFile().getOptions().getJavaPackage(), messageName));
+    assertThat(accessor.getDescriptor()).isSameAs(descriptor);
+  }
+
+  /**
+   * Asserts that the generated accessors read the same fields and values as protobuf reflection,
+   * for the message and every message below it.
+   */
+  private static void assertSameFieldsAsReflection(MessageOrBuilder message) {
+    FieldAccessor accessor = FieldAccessors.of(message.getDescriptorForType());
+    Map<FieldDescriptor, Object> fields = new LinkedHashMap<>();
+    accessor.forEachSetField(message, fields::put);
+    assertThat(fields).containsExactlyEntriesIn(message.getAllFields()).inOrder();
+    for (Map.Entry<FieldDescriptor, Object> entry : fields.entrySet()) {
+      FieldDescriptor field = entry.getKey();
+      assertThat(accessor.getField(message, field)).isEqualTo(message.getField(field));
+      if (field.getType() != FieldDescriptor.Type.MESSAGE) {
+        continue;
+      }
+      if (field.isRepeated()) {
+        for (Object element : (List<?>) entry.getValue()) {
+          assertSameFieldsAsReflection((MessageOrBuilder) element);
+        }
+      } else {
+        assertSameFieldsAsReflection((MessageOrBuilder) entry.getValue());
+      }
+    }
+  }
+
+  /** Parses and prints the given example, and compares against the golden files. */
+  private void testRoundTrip(String name, Message.Builder builder) throws IOException {
+    assertGeneratedAccessor(builder.getDescriptorForType());
+
+    String json = load(name + ".json");
+    Message.Builder parsed = builder.clone();
+    jsonParser.merge(json, parsed);
+    Message.Builder expected = builder.clone();
+    TextFormat.getParser().merge(load(name + ".prototxt"), expected);
+    assertThat(parsed.build()).isEqualTo(expected.build());
+    assertSameFieldsAsReflection(parsed);
+
+    assertThat(jsonPrinter.print(expected)).isEqualTo(json);
+  }
+
+  @Test
+  public void roundTripClaim() throws Exception {
+    testRoundTrip("claim-example", Claim.newBuilder());
+  }
+
+  @Test
+  public void roundTripEncounter() throws Exception {
+    testRoundTrip("encounter-example", Encounter.newBuilder());
+  }
+
+  @Test
+  public void roundTripObservation() throws Exception {
+    testRoundTrip("observation-example", Observation.newBuilder());
+    assertGeneratedAccessor(Observation.Component.getDescriptor());
+    assertGeneratedAccessor(com.google.fhir.stu3.proto.String.getDescriptor());
+  }
+
+  @Test
+  public void roundTripPatient() throws Exception {
+    testRoundTrip("patient-example", Patient.newBuilder());
+  }
+}
@@ -0,0 +1,75 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.fhir.stu3.proto.Observation;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link JsonFieldMap}. */
+@RunWith(JUnit4.class)
+public final class JsonFieldMapTest {
+
+  @Test
+  public void regularField() {
+    JsonFieldMap.Entry entry = JsonFieldMap.of(Observation.getDescriptor()).get("status");
+    assertThat(entry.getField()).isEqualTo(Observation.getDescriptor().findFieldByName("status"));
+    assertThat(entry.isChoiceType()).isFalse();
+    assertThat(entry.getChoiceField()).isNull();
+  }
+
+  @Test
+  public void primitiveExtensionField() {
+    JsonFieldMap fieldMap = JsonFieldMap.of(Observation.getDescriptor());
+    assertThat(fieldMap.get("_status")).isSameAs(fieldMap.get("status"));
+    // Only primitive fields carry extensions this way.
+    assertThat(fieldMap.get("_code")).isNull();
+  }
+
+  @Test
+  public void choiceField() {
+    JsonFieldMap.Entry entry = JsonFieldMap.of(Observation.getDescriptor()).get("valueQuantity");
+    assertThat(entry.isChoiceType()).isTrue();
+    assertThat(entry.getField()).isEqualTo(Observation.getDescriptor().findFieldByName("value"));
+    assertThat(entry.getChoiceField())
+        .isEqualTo(Observation.Value.getDescriptor().findFieldByName("quantity"));
+    assertThat(JsonFieldMap.of(Observation.getDescriptor()).get("value")).isNull();
+  }
+
+  @Test
+  public void choicePrimitiveExtensionField() {
+    JsonFieldMap fieldMap = JsonFieldMap.of(Observation.getDescriptor());
+    JsonFieldMap.Entry entry = fieldMap.get("_valueString");
+    assertThat(entry.getField()).isEqualTo(Observation.getDescriptor().findFieldByName("value"));
+    assertThat(entry.getChoiceField())
+        .isEqualTo(Observation.Value.getDescriptor().findFieldByName("string_value"));
+    assertThat(fieldMap.get("value_string")).isNull();
+    assertThat(fieldMap.get("_valueQuantity")).isNull();
+  }
+
+  @Test
+  public void unknownField() {
+    assertThat(JsonFieldMap.of(Observation.getDescriptor()).get("noSuchField")).isNull();
+  }
+
+  @Test
+  public void sharedInstance() {
+    assertThat(JsonFieldMap.of(Observation.getDescriptor()))
+        .isSameAs(JsonFieldMap.of(Observation.getDescriptor()));
+  }
+}
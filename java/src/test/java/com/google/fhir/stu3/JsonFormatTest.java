@@ -15,7 +15,9 @@
 package com.google.fhir.stu3;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.Files;
 import com.google.devtools.build.runfiles.Runfiles;
 import com.google.fhir.stu3.proto.Account;
@@ -37,6 +39,7 @@ import com.google.fhir.stu3.proto.Claim;
 import com.google.fhir.stu3.proto.ClaimResponse;
 import com.google.fhir.stu3.proto.ClinicalImpression;
 import com.google.fhir.stu3.proto.CodeSystem;
+import com.google.fhir.stu3.proto.Coding;
 import com.google.fhir.stu3.proto.Communication;
 import com.google.fhir.stu3.proto.CommunicationRequest;
 import com.google.fhir.stu3.proto.CompartmentDefinition;
@@ -44,6 +47,7 @@ import com.google.fhir.stu3.proto.Composition;
 import com.google.fhir.stu3.proto.ConceptMap;
 import com.google.fhir.stu3.proto.Condition;
 import com.google.fhir.stu3.proto.Consent;
+import com.google.fhir.stu3.proto.ContainedResource;
 import com.google.fhir.stu3.proto.Contract;
 import com.google.fhir.stu3.proto.Coverage;
 import com.google.fhir.stu3.proto.DataElement;
@@ -72,6 +76,9 @@ import com.google.fhir.stu3.proto.GraphDefinition;
 import com.google.fhir.stu3.proto.Group;
 import com.google.fhir.stu3.proto.GuidanceResponse;
 import com.google.fhir.stu3.proto.HealthcareService;
+import com.google.fhir.stu3.proto.HumanName;
+import com.google.fhir.stu3.proto.Id;
+import com.google.fhir.stu3.proto.Identifier;
 import com.google.fhir.stu3.proto.ImagingManifest;
 import com.google.fhir.stu3.proto.ImagingStudy;
 import com.google.fhir.stu3.proto.Immunization;
@@ -112,6 +119,8 @@ import com.google.fhir.stu3.proto.ProcessResponse;
 import com.google.fhir.stu3.proto.Provenance;
 import com.google.fhir.stu3.proto.Questionnaire;
 import com.google.fhir.stu3.proto.QuestionnaireResponse;
+import com.google.fhir.stu3.proto.Reference;
+import com.google.fhir.stu3.proto.ReferenceId;
 import com.google.fhir.stu3.proto.ReferralRequest;
 import com.google.fhir.stu3.proto.RelatedPerson;
 import com.google.fhir.stu3.proto.RequestGroup;
@@ -139,14 +148,21 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.stream.JsonReader;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
 import com.google.protobuf.Message.Builder;
+import com.google.protobuf.MessageOrBuilder;
 import com.google.protobuf.TextFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.ZoneId;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeSet;
 import org.junit.Before;
@@ -158,6 +174,7 @@ import org.junit.runners.JUnit4;
 @RunWith(JUnit4.class)
 public class JsonFormatTest {
   private JsonFormat.Parser jsonParser;
+  private JsonFormat.Parser streamingJsonParser;
   private JsonFormat.Printer jsonPrinter;
   private TextFormat.Parser textParser;
   private Runfiles runfiles;
@@ -185,6 +202,17 @@ public class JsonFormatTest {
     mergeText(name + ".prototxt", textBuilder);
 
     assertThat(jsonBuilder.build().toString()).isEqualTo(textBuilder.build().toString());
+
+    // The streaming parser must produce exactly the same result.
+    Builder streamingBuilder = builder.clone();
+    streamingJsonParser.merge(loadJson(name + ".json"), streamingBuilder);
+    assertThat(streamingBuilder.build().toString()).isEqualTo(textBuilder.build().toString());
+
+    // As must parsing the undecoded bytes.
+    Builder bytesBuilder = builder.clone();
+    streamingJsonParser.merge(
+        ByteBuffer.wrap(loadJson(name + ".json").getBytes(StandardCharsets.UTF_8)), bytesBuilder);
+    assertThat(bytesBuilder.build().toString()).isEqualTo(textBuilder.build().toString());
   }
 
   private JsonElement canonicalize(JsonElement element) {
@@ -225,12 +253,35 @@ public class JsonFormatTest {
     // Print the proto as json and compare.
     String jsonTest = jsonPrinter.print(textBuilder);
     assertThat(jsonTest).isEqualTo(jsonGolden);
+
+    // Printing UTF-8 bytes directly must produce exactly the same result.
+    assertWritesLikePrint(jsonPrinter, textBuilder);
+    assertWritesLikePrint(jsonPrinter.omittingInsignificantWhitespace(), textBuilder);
+  }
+
+  private static void assertWritesLikePrint(JsonFormat.Printer printer, MessageOrBuilder message)
+      throws IOException {
+    byte[] expected = printer.print(message).getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    printer.writeTo(message, stream);
+    assertThat(stream.toByteArray()).isEqualTo(expected);
+
+    ByteBuffer buffer = ByteBuffer.allocate(expected.length + 3);
+    buffer.put((byte) '[');
+    printer.writeTo(message, buffer);
+    assertThat(buffer.position()).isEqualTo(expected.length + 1);
+    assertThat(Arrays.copyOfRange(buffer.array(), 1, expected.length + 1)).isEqualTo(expected);
   }
 
   @Before
   public void setUp() throws IOException {
     jsonParser =
         JsonFormat.Parser.newBuilder().withDefaultTimeZone(ZoneId.of("Australia/Sydney")).build();
+    streamingJsonParser =
+        JsonFormat.Parser.newBuilder()
+            .withDefaultTimeZone(ZoneId.of("Australia/Sydney"))
+            .withStreaming()
+            .build();
     jsonPrinter = JsonFormat.getPrinter().withDefaultTimeZone(ZoneId.of("Australia/Sydney"));
     textParser = TextFormat.getParser();
     runfiles = Runfiles.create();
@@ -242,6 +293,306 @@ public class JsonFormatTest {
     testParse("json-edge-cases", Patient.newBuilder());
   }
 
+  /** Test that the streaming parser handles contained resources whose resourceType is last. */
+  @Test
+  public void parseContainedResourceWithTrailingResourceType() throws Exception {
+    String json = "{\"id\": \"example\", \"active\": true, \"resourceType\": \"Patient\"}";
+    ContainedResource.Builder expected = ContainedResource.newBuilder();
+    jsonParser.merge(json, expected);
+    ContainedResource.Builder streaming = ContainedResource.newBuilder();
+    streamingJsonParser.merge(json, streaming);
+    assertThat(streaming.build()).isEqualTo(expected.build());
+    assertThat(streaming.getPatient().getId().getValue()).isEqualTo("example");
+  }
+
+  /** Test that a primitive choice type may have both a value and extensions. */
+  @Test
+  public void parseChoiceTypePrimitiveWithExtension() throws Exception {
+    String json =
+        "{\"resourceType\": \"Observation\", \"status\": \"final\", \"code\": {\"text\": \"x\"},"
+            + " \"valueString\": \"mild\", \"_valueString\": {\"extension\": ["
+            + "{\"url\": \"http://example.org/severity\", \"valueCode\": \"low\"}]}}";
+    for (JsonFormat.Parser parser : new JsonFormat.Parser[] {jsonParser, streamingJsonParser}) {
+      Observation.Builder observation = Observation.newBuilder();
+      parser.merge(json, observation);
+      assertThat(observation.getValue().getStringValue().getValue()).isEqualTo("mild");
+      assertThat(observation.getValue().getStringValue().getExtension(0).getUrl().getValue())
+          .isEqualTo("http://example.org/severity");
+      assertThat(jsonPrinter.print(observation)).contains("\"_valueString\"");
+    }
+  }
+
+  /** Test parsing UTF-8 encoded input from streams and direct buffers. */
+  @Test
+  public void parseUtf8Bytes() throws Exception {
+    String json = loadJson("json-edge-cases.json");
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    Patient.Builder expected = Patient.newBuilder();
+    jsonParser.merge(json, expected);
+
+    for (JsonFormat.Parser parser : new JsonFormat.Parser[] {jsonParser, streamingJsonParser}) {
+      Patient.Builder fromStream = Patient.newBuilder();
+      parser.merge(new ByteArrayInputStream(bytes), fromStream);
+      assertThat(fromStream.build()).isEqualTo(expected.build());
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 2);
+      buffer.put((byte) ' ').put(bytes).put((byte) ' ');
+      buffer.position(1).limit(bytes.length + 1);
+      Patient.Builder fromBuffer = Patient.newBuilder();
+      parser.merge(buffer, fromBuffer);
+      assertThat(fromBuffer.build()).isEqualTo(expected.build());
+      // The buffer is read without being consumed.
+      assertThat(buffer.position()).isEqualTo(1);
+    }
+  }
+
+  /** Test parsing buffers with surrogate pairs around the end of each block of decoded chars. */
+  @Test
+  public void parseUtf8BytesWithSurrogatePairs() throws Exception {
+    for (int padding = 990; padding < 1030; padding++) {
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < padding; i++) {
+        text.append('x');
+      }
+      text.append("\ud83d\ude00\u00e9\ud83d\ude00");
+      String json =
+          "{\"resourceType\": \"Patient\", \"name\": [{\"text\": \"" + text + "\"}]}";
+      for (JsonFormat.Parser parser : new JsonFormat.Parser[] {jsonParser, streamingJsonParser}) {
+        Patient.Builder fromBuffer = Patient.newBuilder();
+        parser.merge(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)), fromBuffer);
+        assertThat(fromBuffer.getName(0).getText().getValue()).isEqualTo(text.toString());
+      }
+    }
+  }
+
+  /** Test that a parser with a projection only materializes the selected fields. */
+  @Test
+  public void parseWithProjection() throws Exception {
+    String json = loadJson("observation-example.json");
+    Observation.Builder full = Observation.newBuilder();
+    jsonParser.merge(json, full);
+    Observation expected =
+        Observation.newBuilder()
+            .setCode(full.getCode())
+            .setValue(Observation.Value.newBuilder().setQuantity(full.getValue().getQuantity()))
+            .build();
+
+    for (JsonFormat.Parser.Builder builder :
+        new JsonFormat.Parser.Builder[] {
+          JsonFormat.Parser.newBuilder(), JsonFormat.Parser.newBuilder().withStreaming()
+        }) {
+      JsonFormat.Parser parser =
+          builder
+              .withProjection(ImmutableList.of("Observation.code", "Observation.valueQuantity"))
+              .build();
+      Observation.Builder projected = Observation.newBuilder();
+      parser.merge(json, projected);
+      assertThat(projected.build()).isEqualTo(expected);
+
+      JsonFormat.Parser.ProjectionStats stats = parser.getProjectionStats();
+      assertThat(stats.getTotalBytes()).isEqualTo(json.getBytes(StandardCharsets.UTF_8).length);
+      assertThat(stats.getSkippedBytes()).isGreaterThan(0L);
+      assertThat(stats.getMaterializedBytes() + stats.getSkippedBytes())
+          .isEqualTo(stats.getTotalBytes());
+
+      // The same selection as a field mask.
+      parser =
+          builder
+              .withProjection(
+                  Observation.getDescriptor(),
+                  FieldMask.newBuilder().addPaths("code").addPaths("value.quantity").build())
+              .build();
+      projected = Observation.newBuilder();
+      parser.merge(json, projected);
+      assertThat(projected.build()).isEqualTo(expected);
+    }
+  }
+
+  /** Test that skipped fields are not validated, and unselected resources are kept empty. */
+  @Test
+  public void parseWithProjectionSkipsUnselectedFields() throws Exception {
+    String json =
+        "{\"resourceType\": \"Patient\", \"id\": \"example\", \"active\": \"invalid\"}";
+    for (boolean streaming : new boolean[] {false, true}) {
+      JsonFormat.Parser.Builder builder =
+          streaming
+              ? JsonFormat.Parser.newBuilder().withStreaming()
+              : JsonFormat.Parser.newBuilder();
+      ContainedResource.Builder patient = ContainedResource.newBuilder();
+      builder.withProjection(ImmutableList.of("Patient.id")).build().merge(json, patient);
+      assertThat(patient.getPatient().getId().getValue()).isEqualTo("example");
+      assertThat(patient.getPatient().hasActive()).isFalse();
+
+      ContainedResource.Builder other = ContainedResource.newBuilder();
+      JsonFormat.Parser parser = builder.withProjection(ImmutableList.of("Observation")).build();
+      parser.merge(json, other);
+      assertThat(other.hasPatient()).isTrue();
+      assertThat(other.getPatient()).isEqualTo(Patient.getDefaultInstance());
+      long skippedBytes = parser.getProjectionStats().getSkippedBytes();
+      if (streaming) {
+        // The skipped values were read ahead with the names before them, so only the names count.
+        assertThat(skippedBytes).isEqualTo("\"id\":".length() + "\"active\":".length());
+      } else {
+        assertThat(skippedBytes)
+            .isEqualTo("\"id\":\"example\"".length() + "\"active\":\"invalid\"".length());
+      }
+    }
+  }
+
+  /** Test that invalid projection paths are rejected. */
+  @Test
+  public void projectionWithInvalidPath() throws Exception {
+    for (String path :
+        new String[] {"Unknown.id", "Observation.unknown", "Observation.code.unknown"}) {
+      try {
+        JsonFormat.Parser.newBuilder().withProjection(ImmutableList.of(path));
+        fail("Expected an IllegalArgumentException for " + path);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  /** Test that a parser with string interning shares equal values between parsed resources. */
+  @Test
+  public void parseWithStringInterning() throws Exception {
+    String json =
+        "{\"resourceType\": \"Observation\", \"status\": \"final\", \"code\": {\"coding\": "
+            + "[{\"system\": \"http://loinc.org\", \"code\": \"15074-8\"}]}, "
+            + "\"valueQuantity\": {\"value\": 6.3, \"unit\": \"mmol/l\", "
+            + "\"system\": \"http://unitsofmeasure.org\", \"code\": \"mmol/L\"}}";
+    for (JsonFormat.Parser.Builder builder :
+        new JsonFormat.Parser.Builder[] {
+          JsonFormat.Parser.newBuilder(), JsonFormat.Parser.newBuilder().withStreaming()
+        }) {
+      JsonFormat.Parser parser =
+          builder.withStringInterning(100, ImmutableList.of("Coding.system", "code")).build();
+      Observation.Builder first = Observation.newBuilder();
+      parser.merge(json, first);
+      Observation.Builder second = Observation.newBuilder();
+      parser.merge(json, second);
+      Observation.Builder expected = Observation.newBuilder();
+      jsonParser.merge(json, expected);
+      assertThat(second.build()).isEqualTo(expected.build());
+
+      assertThat(second.getCode().getCoding(0).getSystem().getValue())
+          .isSameAs(first.getCode().getCoding(0).getSystem().getValue());
+      assertThat(second.getCode().getCoding(0).getCode().getValue())
+          .isSameAs(first.getCode().getCoding(0).getCode().getValue());
+      assertThat(second.getValue().getQuantity().getCode().getValue())
+          .isSameAs(first.getValue().getQuantity().getCode().getValue());
+      // Quantity.system is not in scope.
+      assertThat(second.getValue().getQuantity().getSystem().getValue())
+          .isNotSameAs(first.getValue().getQuantity().getSystem().getValue());
+
+      JsonFormat.Parser.InternStats stats = parser.getInternStats();
+      assertThat(stats.getMisses()).isEqualTo(3);
+      assertThat(stats.getHits()).isEqualTo(3);
+      assertThat(stats.getSize()).isEqualTo(3);
+    }
+    assertThat(jsonParser.getInternStats().getMisses()).isEqualTo(0);
+  }
+
+  /** Test that the string intern pool stops growing when it is full. */
+  @Test
+  public void stringInterningIsBounded() throws Exception {
+    JsonFormat.Parser parser =
+        JsonFormat.Parser.newBuilder()
+            .withStringInterning(2, ImmutableList.of("Coding.code"))
+            .build();
+    String[] codes = {"a", "b", "c", "a", "c"};
+    Coding[] parsed = new Coding[codes.length];
+    for (int i = 0; i < codes.length; i++) {
+      Coding.Builder coding = Coding.newBuilder();
+      parser.merge("{\"code\": \"" + codes[i] + "\"}", coding);
+      parsed[i] = coding.build();
+    }
+    assertThat(parsed[3].getCode().getValue()).isSameAs(parsed[0].getCode().getValue());
+    assertThat(parsed[4].getCode().getValue()).isNotSameAs(parsed[2].getCode().getValue());
+    assertThat(parsed[4].getCode().getValue()).isEqualTo("c");
+    assertThat(parser.getInternStats().getSize()).isEqualTo(2);
+    assertThat(parser.getInternStats().getHits()).isEqualTo(1);
+    assertThat(parser.getInternStats().getMisses()).isEqualTo(4);
+  }
+
+  /** Test that invalid string interning scopes are rejected. */
+  @Test
+  public void stringInterningWithInvalidScope() throws Exception {
+    for (String scope :
+        new String[] {
+          "Unknown.id", "Observation.unknown", "Observation.code", "Observation.status", "boolean",
+          "unknown"
+        }) {
+      try {
+        JsonFormat.Parser.newBuilder().withStringInterning(10, ImmutableList.of(scope));
+        fail("Expected an IllegalArgumentException for " + scope);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+    try {
+      JsonFormat.Parser.newBuilder().withStringInterning(0, ImmutableList.of("uri"));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  /** Test that bundle references are resolved while parsing like by ResourceUtils. */
+  @Test
+  public void parseWithBundleReferenceResolution() throws Exception {
+    String uuidBundle =
+        "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+            + "{\"fullUrl\": \"urn:uuid:1234\","
+            + " \"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\"}},"
+            + "{\"fullUrl\": \"urn:uuid:5678\", \"resource\": {\"resourceType\": \"Observation\","
+            + " \"id\": \"o1\", \"status\": \"final\", \"code\": {\"text\": \"weight\"},"
+            + " \"subject\": {\"reference\": \"urn:uuid:1234\"},"
+            + " \"performer\": [{\"reference\": \"urn:uuid:9999\"},"
+            + " {\"reference\": \"urn:uuid:1234\"}],"
+            + " \"extension\": [{\"url\": \"http://example.com/source\","
+            + " \"valueReference\": {\"reference\": \"urn:uuid:5678\"}}]}}"
+            + "]}";
+    for (String json :
+        new String[] {
+          uuidBundle,
+          loadJson("bundle-example.json"),
+          loadJson("document-example-dischargesummary.json")
+        }) {
+      Bundle.Builder unresolved = Bundle.newBuilder();
+      jsonParser.merge(json, unresolved);
+      Bundle expected = ResourceUtils.resolveBundleReferences(unresolved.build());
+      for (JsonFormat.Parser.Builder builder :
+          new JsonFormat.Parser.Builder[] {
+            JsonFormat.Parser.newBuilder(), JsonFormat.Parser.newBuilder().withStreaming()
+          }) {
+        Bundle.Builder resolved = Bundle.newBuilder();
+        builder
+            .withDefaultTimeZone(ZoneId.of("Australia/Sydney"))
+            .withBundleReferenceResolution()
+            .build()
+            .merge(json, resolved);
+        assertThat(resolved.build()).isEqualTo(expected);
+      }
+    }
+
+    Bundle.Builder bundle = Bundle.newBuilder();
+    jsonParser.merge(uuidBundle, bundle);
+    Observation observation =
+        ResourceUtils.resolveBundleReferences(bundle.build()).getEntry(1).getResource()
+            .getObservation();
+    assertThat(observation.getSubject().getPatientId().getValue()).isEqualTo("p1");
+    assertThat(observation.getPerformer(0).getUri().getValue()).isEqualTo("urn:uuid:9999");
+    assertThat(observation.getPerformer(1).getPatientId().getValue()).isEqualTo("p1");
+    assertThat(
+            observation.getExtension(0).getValue().getReference().getObservationId().getValue())
+        .isEqualTo("o1");
+
+    // Bundles without references to their entries are returned as they are.
+    Bundle noReferences = Bundle.newBuilder().addEntry(bundle.getEntry(0)).build();
+    assertThat(ResourceUtils.resolveBundleReferences(noReferences)).isSameAs(noReferences);
+  }
+
   /**
    * Test printing JSON edge cases. Since this json file is not sorted in any particular way, we
    * sort the json objects directly and compare them instead of comparing the raw strings.
@@ -255,6 +606,96 @@ public class JsonFormatTest {
     assertThat(canonicalizeJson(jsonTest)).isEqualTo(canonicalizeJson(jsonGolden));
   }
 
+  @Test
+  public void writeEscapedStrings() throws Exception {
+    Patient patient =
+        Patient.newBuilder()
+            .setId(Id.newBuilder().setValue("example"))
+            .addName(
+                HumanName.newBuilder()
+                    .setText(
+                        com.google.fhir.stu3.proto.String.newBuilder()
+                            .setValue("tab\t \"quoted\" back\\slash \u0001\u001f\u007f </>")
+                            .build())
+                    .addGiven(
+                        com.google.fhir.stu3.proto.String.newBuilder()
+                            .setValue("Zo\u00eb \u0141ukasz \u2028\u2029 \u20ac \ud83d\ude00")
+                            .build())
+                    .addGiven(
+                        com.google.fhir.stu3.proto.String.newBuilder()
+                            .setValue("unpaired \ud83d and \ude00")
+                            .build()))
+            .build();
+    assertWritesLikePrint(jsonPrinter, patient);
+    assertWritesLikePrint(jsonPrinter.omittingInsignificantWhitespace(), patient);
+
+    // Large messages are written through the stream's buffer in several chunks.
+    Patient.Builder large = patient.toBuilder();
+    for (int i = 0; i < 1000; i++) {
+      large.addName(patient.getName(0));
+    }
+    assertWritesLikePrint(jsonPrinter, large);
+  }
+
+  @Test
+  public void printSplitReferences() throws Exception {
+    JsonFormat.Printer printer = jsonPrinter.omittingInsignificantWhitespace();
+    Reference reference =
+        Reference.newBuilder().setPatientId(ReferenceId.newBuilder().setValue("example")).build();
+    assertThat(printer.print(reference)).isEqualTo("{\"reference\":\"Patient/example\"}");
+
+    reference =
+        Reference.newBuilder()
+            .setId(com.google.fhir.stu3.proto.String.newBuilder().setValue("r1"))
+            .setMedicationRequestId(
+                ReferenceId.newBuilder()
+                    .setValue("a\"b")
+                    .setHistory(Id.newBuilder().setValue("2")))
+            .setDisplay(com.google.fhir.stu3.proto.String.newBuilder().setValue("Display"))
+            .build();
+    assertThat(printer.print(reference))
+        .isEqualTo(
+            "{\"id\":\"r1\",\"reference\":\"MedicationRequest/a\\\"b/_history/2\","
+                + "\"display\":\"Display\"}");
+
+    reference =
+        Reference.newBuilder()
+            .setFragment(com.google.fhir.stu3.proto.String.newBuilder().setValue("p1"))
+            .build();
+    assertThat(printer.print(reference)).isEqualTo("{\"reference\":\"#p1\"}");
+
+    // Split references are printed like the same reference with a uri.
+    com.google.fhir.stu3.proto.String display =
+        com.google.fhir.stu3.proto.String.newBuilder().setValue("Values").build();
+    Reference split =
+        Reference.newBuilder()
+            .setValueSetId(ReferenceId.newBuilder().setValue("vs"))
+            .setDisplay(display)
+            .build();
+    Reference unsplit =
+        Reference.newBuilder()
+            .setUri(com.google.fhir.stu3.proto.String.newBuilder().setValue("ValueSet/vs"))
+            .setDisplay(display)
+            .build();
+    assertThat(jsonPrinter.print(split)).isEqualTo(jsonPrinter.print(unsplit));
+  }
+
+  @Test
+  public void writeToFullBuffer() throws Exception {
+    Patient.Builder patient = Patient.newBuilder();
+    mergeText("patient-example.prototxt", patient);
+    int length = jsonPrinter.print(patient).getBytes(StandardCharsets.UTF_8).length;
+
+    ByteBuffer buffer = ByteBuffer.allocate(length - 1);
+    buffer.put((byte) '[');
+    try {
+      jsonPrinter.writeTo(patient, buffer);
+      fail("Expected BufferOverflowException");
+    } catch (BufferOverflowException expected) {
+      assertThat(buffer.position()).isEqualTo(1);
+    }
+  }
+
   /* Resource tests start here. */
 
   /** Test parsing of the Account FHIR resource. */
@@ -0,0 +1,110 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.fhir.stu3.proto.CodeableConcept;
+import com.google.fhir.stu3.proto.Coding;
+import com.google.fhir.stu3.proto.ContainedResource;
+import com.google.fhir.stu3.proto.Id;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.fhir.stu3.proto.ObservationStatusCode;
+import com.google.fhir.stu3.proto.Reference;
+import com.google.fhir.stu3.proto.ReferenceId;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.MessageOrBuilder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link MessageFields}. */
+@RunWith(JUnit4.class)
+public final class MessageFieldsTest {
+
+  private static Map<FieldDescriptor, Object> visitSetFields(MessageOrBuilder message) {
+    Map<FieldDescriptor, Object> fields = new LinkedHashMap<>();
+    MessageFields.forEachSetField(message, fields::put);
+    return fields;
+  }
+
+  private static Observation.Builder createObservation() {
+    return Observation.newBuilder()
+        .setId(Id.newBuilder().setValue("example"))
+        .setStatus(ObservationStatusCode.newBuilder().setValue(ObservationStatusCode.Value.FINAL))
+        .addCategory(CodeableConcept.newBuilder().addCoding(Coding.getDefaultInstance()))
+        .addCategory(CodeableConcept.getDefaultInstance())
+        .setSubject(Reference.newBuilder().setPatientId(ReferenceId.newBuilder().setValue("1")))
+        .setValue(
+            Observation.Value.newBuilder()
+                .setStringValue(com.google.fhir.stu3.proto.String.newBuilder().setValue("a")));
+  }
+
+  @Test
+  public void visitsFieldsLikeGetAllFields() {
+    Observation.Builder builder = createObservation();
+    Observation observation = builder.build();
+    assertThat(visitSetFields(observation))
+        .containsExactlyEntriesIn(observation.getAllFields())
+        .inOrder();
+    assertThat(visitSetFields(builder)).containsExactlyEntriesIn(builder.getAllFields()).inOrder();
+    assertThat(visitSetFields(observation.getValue()))
+        .containsExactlyEntriesIn(observation.getValue().getAllFields())
+        .inOrder();
+
+    DynamicMessage dynamic = DynamicMessage.newBuilder(observation).build();
+    assertThat(visitSetFields(dynamic)).containsExactlyEntriesIn(dynamic.getAllFields()).inOrder();
+    assertThat(visitSetFields(Observation.getDefaultInstance())).isEmpty();
+  }
+
+  @Test
+  public void fieldsAreOrderedByNumber() {
+    MessageFields fields = MessageFields.of(Observation.getDescriptor());
+    assertThat(fields.size()).isEqualTo(Observation.getDescriptor().getFields().size());
+    for (int i = 1; i < fields.size(); i++) {
+      assertThat(fields.get(i).getNumber()).isGreaterThan(fields.get(i - 1).getNumber());
+    }
+    assertThat(MessageFields.of(Observation.getDescriptor())).isSameAs(fields);
+  }
+
+  @Test
+  public void messageFields() {
+    MessageFields fields = MessageFields.of(com.google.fhir.stu3.proto.String.getDescriptor());
+    List<String> names = new ArrayList<>();
+    for (int n = 0; n < fields.messageFieldCount(); n++) {
+      names.add(fields.get(fields.messageFieldIndex(n)).getName());
+    }
+    assertThat(names).containsExactly("id", "extension").inOrder();
+  }
+
+  @Test
+  public void getOnlySetField() {
+    Observation observation = createObservation().build();
+    assertThat(MessageFields.getOnlySetField(observation.getValue()))
+        .isEqualTo(Observation.Value.getDescriptor().findFieldByName("string_value"));
+    assertThat(MessageFields.getOnlySetField(observation)).isNull();
+    assertThat(MessageFields.getOnlySetField(ContainedResource.getDefaultInstance())).isNull();
+
+    ContainedResource contained =
+        ContainedResource.newBuilder().setObservation(observation).build();
+    assertThat(MessageFields.getOnlySetField(contained))
+        .isEqualTo(ContainedResource.getDescriptor().findFieldByName("observation"));
+  }
+}
@@ -0,0 +1,226 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.fhir.stu3.proto.Boolean;
+import com.google.fhir.stu3.proto.Code;
+import com.google.fhir.stu3.proto.Decimal;
+import com.google.fhir.stu3.proto.Element;
+import com.google.fhir.stu3.proto.Extension;
+import com.google.fhir.stu3.proto.ObservationStatusCode;
+import com.google.fhir.stu3.proto.PrimitiveHasNoValue;
+import com.google.fhir.stu3.proto.Uri;
+import com.google.gson.JsonPrimitive;
+import com.google.protobuf.DynamicMessage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.ZoneId;
+import java.util.function.Predicate;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PrimitiveWrapper}. */
+@RunWith(JUnit4.class)
+public final class PrimitiveWrapperTest {
+
+  private static final ZoneId TIME_ZONE = ZoneId.of("Australia/Sydney");
+  private static final int ITERATIONS = 10000;
+  private static final int MAX_ROUNDS = 200;
+
+  private com.sun.management.ThreadMXBean threadBean;
+  // Keeps the results of the measured calls alive.
+  private int trueCount;
+
+  @Before
+  public void setUp() {
+    threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  }
+
+  /**
+   * Returns the fewest bytes per call that the check allocated in a round of calls. Rounds are
+   * repeated until the JIT has had a chance to remove allocations of temporary objects, such as
+   * boxed return values of reflective calls, which are not what we want to measure.
+   */
+  private <T> double allocatedBytesPerCall(T input, Predicate<T> check) {
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    long threadId = Thread.currentThread().getId();
+    double minimum = Double.MAX_VALUE;
+    for (int round = 0; round < MAX_ROUNDS && minimum > 0; round++) {
+      long before = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < ITERATIONS; i++) {
+        if (check.test(input)) {
+          trueCount++;
+        }
+      }
+      long after = threadBean.getThreadAllocatedBytes(threadId);
+      minimum = Math.min(minimum, (double) (after - before) / ITERATIONS);
+    }
+    return minimum;
+  }
+
+  @Test
+  public void primitivesWithoutExtensionsDoNotAllocate() {
+    PrimitiveWrapper<?>[] wrappers = {
+      new UriWrapper("http://loinc.org"),
+      new StringWrapper("text"),
+      new CodeWrapper("final"),
+      new DecimalWrapper("1.50"),
+      new DateTimeWrapper("2018-03-28T10:15:30+10:00", TIME_ZONE),
+      new Base64BinaryWrapper("aGVsbG8="),
+    };
+    for (PrimitiveWrapper<?> wrapper : wrappers) {
+      assertThat(allocatedBytesPerCall(wrapper, PrimitiveWrapper::hasValue)).isEqualTo(0.0);
+      assertThat(allocatedBytesPerCall(wrapper, w -> w.getElement() == null)).isEqualTo(0.0);
+      assertThat(allocatedBytesPerCall(wrapper.getWrapped(), PrimitiveWrapper::hasValue))
+          .isEqualTo(0.0);
+    }
+    ObservationStatusCode code =
+        ObservationStatusCode.newBuilder().setValue(ObservationStatusCode.Value.FINAL).build();
+    assertThat(allocatedBytesPerCall(code, PrimitiveWrapper::hasValue)).isEqualTo(0.0);
+  }
+
+  @Test
+  public void primitivesWithExtensionsAreMeasured() {
+    // Makes sure that allocatedBytesPerCall sees the allocations of the slower path.
+    PrimitiveWrapper<?> wrapper =
+        new UriWrapper(
+            Uri.newBuilder()
+                .setValue("http://loinc.org")
+                .addExtension(
+                    Extension.newBuilder()
+                        .setUrl(Uri.newBuilder().setValue("http://example.com/extension"))
+                        .setValue(
+                            Extension.Value.newBuilder()
+                                .setBoolean(Boolean.newBuilder().setValue(true))))
+                .build());
+    assertThat(allocatedBytesPerCall(wrapper, w -> w.getElement() == null)).isGreaterThan(0.0);
+  }
+
+  /** A TextGenerator which escapes strings like gson, without indentation. */
+  private static final class StringTextGenerator implements JsonFormat.TextGenerator {
+    private final StringBuilder output = new StringBuilder();
+
+    @Override
+    public void indent() {}
+
+    @Override
+    public void outdent() {}
+
+    @Override
+    public void print(CharSequence text) {
+      output.append(text);
+    }
+
+    @Override
+    public void print(JsonFormat.Token token) {
+      output.append(token);
+    }
+
+    @Override
+    public void printString(CharSequence text) {
+      output.append(new JsonPrimitive(text.toString()));
+    }
+  }
+
+  @Test
+  public void printJsonLikeToJson() throws IOException {
+    PrimitiveWrapper<?>[] wrappers = {
+      new BooleanWrapper("true"),
+      new BooleanWrapper("false"),
+      new IntegerWrapper("-12"),
+      new PositiveIntWrapper("42"),
+      new UnsignedIntWrapper("0"),
+      new DecimalWrapper("1.50"),
+      new DecimalWrapper("-0.0"),
+      new DecimalWrapper("0.00000001"),
+      new DecimalWrapper(Decimal.newBuilder().setValue("1e3").build()),
+      new StringWrapper("tab\t \"quoted\" \u2028"),
+      new CodeWrapper("final"),
+      new UriWrapper("http://loinc.org"),
+      new DateTimeWrapper("2018-03-28T10:15:30+10:00", TIME_ZONE),
+      new Base64BinaryWrapper("aGVsbG8="),
+    };
+    for (PrimitiveWrapper<?> wrapper : wrappers) {
+      StringTextGenerator generator = new StringTextGenerator();
+      wrapper.printJson(generator);
+      assertThat(generator.output.toString()).isEqualTo(wrapper.toJson().toString());
+    }
+  }
+
+  @Test
+  public void hasValue() {
+    assertThat(new UriWrapper("http://loinc.org").hasValue()).isTrue();
+    assertThat(new UriWrapper((String) null).hasValue()).isFalse();
+    assertThat(new CodeWrapper((String) null).hasValue()).isFalse();
+
+    // Other extensions do not affect the value.
+    Extension other =
+        Extension.newBuilder()
+            .setUrl(Uri.newBuilder().setValue("http://example.com/extension"))
+            .build();
+    assertThat(PrimitiveWrapper.hasValue(Code.newBuilder().addExtension(other))).isTrue();
+
+    // Neither do PrimitiveHasNoValue extensions which are false.
+    Extension noValue = new CodeWrapper((String) null).getWrapped().getExtension(0);
+    Extension falseNoValue =
+        noValue
+            .toBuilder()
+            .setValue(Extension.Value.newBuilder().setBoolean(Boolean.newBuilder()))
+            .build();
+    assertThat(PrimitiveWrapper.hasValue(Code.newBuilder().addExtension(falseNoValue))).isTrue();
+    Code.Builder code =
+        Code.newBuilder().addExtension(other).addExtension(falseNoValue).addExtension(noValue);
+    assertThat(PrimitiveWrapper.hasValue(code)).isFalse();
+    assertThat(AnnotationUtils.getStructureDefinitionUrl(PrimitiveHasNoValue.getDescriptor()))
+        .isEqualTo(noValue.getUrl().getValue());
+
+    // Messages which are not generated are read with protobuf reflection.
+    DynamicMessage dynamic = DynamicMessage.newBuilder(Code.getDescriptor()).build();
+    assertThat(PrimitiveWrapper.hasValue(dynamic)).isTrue();
+    dynamic =
+        dynamic.toBuilder()
+            .addRepeatedField(Code.getDescriptor().findFieldByName("extension"), noValue)
+            .build();
+    assertThat(PrimitiveWrapper.hasValue(dynamic)).isFalse();
+  }
+
+  @Test
+  public void getElement() {
+    Extension other =
+        Extension.newBuilder()
+            .setUrl(Uri.newBuilder().setValue("http://example.com/extension"))
+            .build();
+    assertThat(new UriWrapper("http://loinc.org").getElement()).isNull();
+    // The PrimitiveHasNoValue extension is internal.
+    assertThat(new UriWrapper((String) null).getElement()).isNull();
+
+    Uri uri =
+        Uri.newBuilder()
+            .setId(com.google.fhir.stu3.proto.String.newBuilder().setValue("a"))
+            .setValue("http://loinc.org")
+            .build();
+    assertThat(new UriWrapper(uri).getElement())
+        .isEqualTo(Element.newBuilder().setId(uri.getId()).build());
+    uri = uri.toBuilder().clearId().addExtension(other).build();
+    assertThat(new UriWrapper(uri).getElement())
+        .isEqualTo(Element.newBuilder().addExtension(other).build());
+  }
+}
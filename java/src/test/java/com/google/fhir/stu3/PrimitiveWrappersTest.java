@@ -0,0 +1,144 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.fhir.stu3.proto.Id;
+import com.google.fhir.stu3.proto.ObservationStatusCode;
+import com.google.gson.JsonPrimitive;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.MessageOrBuilder;
+import java.time.ZoneId;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PrimitiveWrappers}. */
+@RunWith(JUnit4.class)
+public final class PrimitiveWrappersTest {
+
+  private static final ZoneId TIME_ZONE = ZoneId.of("Australia/Sydney");
+
+  /** Returns a message type with a string value, in a new DescriptorPool. */
+  private static Descriptor newMessageType(String name) throws DescriptorValidationException {
+    FileDescriptorProto file =
+        FileDescriptorProto.newBuilder()
+            .setName("test/" + name + ".proto")
+            .setPackage("test")
+            .setSyntax("proto3")
+            .addMessageType(
+                DescriptorProto.newBuilder()
+                    .setName(name)
+                    .addField(
+                        FieldDescriptorProto.newBuilder()
+                            .setName("value")
+                            .setNumber(1)
+                            .setType(FieldDescriptorProto.Type.TYPE_STRING)))
+            .build();
+    return FileDescriptor.buildFrom(file, new FileDescriptor[0]).findMessageTypeByName(name);
+  }
+
+  @Test
+  public void coreTypes() {
+    PrimitiveWrapper<?> wrapper =
+        PrimitiveWrappers.forType(Id.getDescriptor()).parse("abc", TIME_ZONE);
+    assertThat(wrapper).isInstanceOf(IdWrapper.class);
+    assertThat(wrapper.getWrapped()).isEqualTo(Id.newBuilder().setValue("abc").build());
+    assertThat(PrimitiveWrappers.forType(Id.getDescriptor()).wrap(wrapper.getWrapped(), TIME_ZONE))
+        .isInstanceOf(IdWrapper.class);
+  }
+
+  @Test
+  public void specializedCodes() {
+    ObservationStatusCode code =
+        ObservationStatusCode.newBuilder().setValue(ObservationStatusCode.Value.FINAL).build();
+    PrimitiveWrappers.Factory factory = PrimitiveWrappers.forType(code.getDescriptorForType());
+    assertThat(factory.wrap(code, TIME_ZONE).toJson()).isEqualTo(new JsonPrimitive("final"));
+    ObservationStatusCode.Builder parsed = ObservationStatusCode.newBuilder();
+    factory.parse("final", TIME_ZONE).copyInto(parsed);
+    assertThat(parsed.build()).isEqualTo(code);
+  }
+
+  @Test
+  public void typesAreResolvedByName() throws DescriptorValidationException {
+    Descriptor descriptor = newMessageType("Id");
+    assertThat(PrimitiveWrappers.forType(descriptor))
+        .isSameAs(PrimitiveWrappers.forType(Id.getDescriptor()));
+  }
+
+  @Test
+  public void unknownType() throws DescriptorValidationException {
+    try {
+      PrimitiveWrappers.forType(newMessageType("Unknown"));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("Unknown");
+    }
+  }
+
+  @Test
+  public void registerAdditionalType() throws DescriptorValidationException {
+    Descriptor descriptor = newMessageType("ProfiledId");
+    PrimitiveWrappers.Factory factory =
+        new PrimitiveWrappers.Factory() {
+          @Override
+          public PrimitiveWrapper<?> wrap(MessageOrBuilder message, ZoneId defaultTimeZone) {
+            return new IdWrapper(
+                (String) message.getField(message.getDescriptorForType().findFieldByName("value")));
+          }
+
+          @Override
+          public PrimitiveWrapper<?> parse(String jsonValue, ZoneId defaultTimeZone) {
+            return new IdWrapper(jsonValue);
+          }
+        };
+    PrimitiveWrappers.register(descriptor, factory);
+    assertThat(PrimitiveWrappers.forType(descriptor)).isSameAs(factory);
+
+    DynamicMessage message =
+        DynamicMessage.newBuilder(descriptor)
+            .setField(descriptor.findFieldByName("value"), "abc")
+            .build();
+    assertThat(JsonFormat.primitiveWrapperOf(message, TIME_ZONE).toJson())
+        .isEqualTo(new JsonPrimitive("abc"));
+    assertThat(JsonFormat.parseAndWrap(new JsonPrimitive("abc"), message, TIME_ZONE).getWrapped())
+        .isEqualTo(Id.newBuilder().setValue("abc").build());
+
+    try {
+      PrimitiveWrappers.register(descriptor, factory);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("already registered");
+    }
+  }
+
+  @Test
+  public void coreTypesCannotBeReplaced() {
+    try {
+      PrimitiveWrappers.register(Id.getDescriptor(), PrimitiveWrappers.forType(Id.getDescriptor()));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("already registered");
+    }
+  }
+}
@@ -0,0 +1,147 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.base.Splitter;
+import com.google.fhir.stu3.proto.Id;
+import com.google.fhir.stu3.proto.Reference;
+import com.google.fhir.stu3.proto.ReferenceId;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ReferenceFields}. */
+@RunWith(JUnit4.class)
+public final class ReferenceFieldsTest {
+
+  private static final ReferenceFields FIELDS = ReferenceFields.of(Reference.getDescriptor());
+
+  private static Reference.Builder withUri(String uri) {
+    return Reference.newBuilder()
+        .setUri(com.google.fhir.stu3.proto.String.newBuilder().setValue(uri));
+  }
+
+  /** How ResourceUtils split relative references before ReferenceFields. */
+  private static Message splitWithCaseFormat(Message.Builder builder, String uri) {
+    List<String> parts = Splitter.on('/').splitToList(uri);
+    if (parts.size() == 2 || (parts.size() == 4 && "_history".equals(parts.get(2)))) {
+      String resourceFieldName =
+          CaseFormat.UPPER_CAMEL.to(CaseFormat.LOWER_UNDERSCORE, parts.get(0)) + "_id";
+      FieldDescriptor field = builder.getDescriptorForType().findFieldByName(resourceFieldName);
+      if (field != null) {
+        ReferenceId.Builder refId = ReferenceId.newBuilder().setValue(parts.get(1));
+        if (parts.size() == 4) {
+          refId.setHistory(Id.newBuilder().setValue(parts.get(3)).build());
+        }
+        return builder.setField(field, refId.build()).build();
+      }
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void resourceTypes() {
+    assertThat(FIELDS.getResourceType(Reference.getDescriptor().findFieldByName("patient_id")))
+        .isEqualTo("Patient");
+    assertThat(
+            FIELDS.getResourceType(
+                Reference.getDescriptor().findFieldByName("medication_request_id")))
+        .isEqualTo("MedicationRequest");
+    assertThat(FIELDS.getResourceType(FIELDS.getUriField())).isNull();
+    assertThat(FIELDS.getResourceType(FIELDS.getFragmentField())).isNull();
+    assertThat(ReferenceFields.of(Reference.getDescriptor())).isSameAs(FIELDS);
+  }
+
+  @Test
+  public void splitLikeCaseFormat() {
+    String[] uris = {
+      "Patient/123",
+      "MedicationRequest/a.b-c",
+      "Patient/123/_history/2",
+      "patient/123",
+      "medicationRequest/1",
+      "Medication_request/1",
+      "PATIENT/1",
+      "Unknown/1",
+      "Patient",
+      "Patient/",
+      "/123",
+      "Patient//_history/",
+      "Patient/123/_history",
+      "Patient/123/history/2",
+      "Patient/123/_history/2/3",
+      "Patient/123/_historyx/2",
+      "http://example.com/Patient/123",
+      "urn:uuid:6f1c2d3e",
+    };
+    for (String uri : uris) {
+      Reference.Builder builder = withUri(uri);
+      boolean split = FIELDS.setRelativeReference(builder, uri);
+      Message expected = splitWithCaseFormat(withUri(uri), uri);
+      assertThat(builder.build()).isEqualTo(expected);
+      assertThat(split).isEqualTo(!builder.hasUri());
+    }
+  }
+
+  @Test
+  public void splitIfRelativeReference() {
+    assertThat(ResourceUtils.splitIfRelativeReference(withUri("Patient/123/_history/2")))
+        .isEqualTo(
+            Reference.newBuilder()
+                .setPatientId(
+                    ReferenceId.newBuilder()
+                        .setValue("123")
+                        .setHistory(Id.newBuilder().setValue("2")))
+                .build());
+    assertThat(ResourceUtils.splitIfRelativeReference(withUri("#p1")))
+        .isEqualTo(
+            Reference.newBuilder()
+                .setFragment(com.google.fhir.stu3.proto.String.newBuilder().setValue("p1"))
+                .build());
+    assertThat(ResourceUtils.splitIfRelativeReference(withUri("Unknown/1")))
+        .isEqualTo(withUri("Unknown/1").build());
+  }
+
+  @Test
+  public void typeLookupDoesNotAllocate() {
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    String uri = "MedicationRequest/123";
+    long threadId = Thread.currentThread().getId();
+    long minimum = Long.MAX_VALUE;
+    int found = 0;
+    for (int round = 0; round < 200 && minimum > 0; round++) {
+      long before = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < 10000; i++) {
+        if (FIELDS.getReferenceIdField(uri, 0, 17) != null) {
+          found++;
+        }
+      }
+      minimum = Math.min(minimum, threadBean.getThreadAllocatedBytes(threadId) - before);
+    }
+    assertThat(found).isGreaterThan(0);
+    assertThat(minimum).isEqualTo(0L);
+  }
+}
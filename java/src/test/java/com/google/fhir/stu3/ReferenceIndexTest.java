@@ -0,0 +1,86 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ReferenceIndex}. */
+@RunWith(JUnit4.class)
+public final class ReferenceIndexTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void putAndGet() throws Exception {
+    try (ReferenceIndex index = ReferenceIndex.create(temporaryFolder.getRoot().toPath())) {
+      assertThat(index.get("urn:uuid:1")).isNull();
+      index.put("urn:uuid:1", "Patient/1");
+      index.put("urn:uuid:2", "Observation/2");
+      index.put("urn:uuid:1", "Patient/one");
+      index.put("urn:uuid:é漢", "Patient/é");
+      index.put("", "Patient/empty");
+      assertThat(index.size()).isEqualTo(4);
+      assertThat(index.get("urn:uuid:1")).isEqualTo("Patient/one");
+      assertThat(index.get("urn:uuid:2")).isEqualTo("Observation/2");
+      assertThat(index.get("urn:uuid:é漢")).isEqualTo("Patient/é");
+      assertThat(index.get("")).isEqualTo("Patient/empty");
+      assertThat(index.get("urn:uuid:3")).isNull();
+    }
+  }
+
+  /** Test that the index keeps all entries when its table grows, with colliding hash codes. */
+  @Test
+  public void growsBeyondInitialCapacity() throws Exception {
+    Map<String, String> expected = new HashMap<>();
+    try (ReferenceIndex index = ReferenceIndex.create(temporaryFolder.getRoot().toPath())) {
+      for (int i = 0; i < 100000; i++) {
+        // "Aa" and "BB" have the same hash code.
+        String key = "urn:uuid:" + (i % 2 == 0 ? "Aa" : "BB") + (i / 2);
+        String value = "Patient/" + i;
+        index.put(key, value);
+        expected.put(key, value);
+      }
+      // A record larger than the write buffer.
+      String longKey = "urn:uuid:" + Strings.repeat("x", 100000);
+      index.put(longKey, "Patient/long");
+      expected.put(longKey, "Patient/long");
+
+      assertThat(index.size()).isEqualTo(expected.size());
+      for (Map.Entry<String, String> entry : expected.entrySet()) {
+        assertThat(index.get(entry.getKey())).isEqualTo(entry.getValue());
+      }
+      assertThat(index.get("urn:uuid:Aa50000")).isNull();
+    }
+  }
+
+  @Test
+  public void closeDeletesFiles() throws Exception {
+    File directory = temporaryFolder.newFolder();
+    ReferenceIndex index = ReferenceIndex.create(directory.toPath());
+    index.put("urn:uuid:1", "Patient/1");
+    index.close();
+    assertThat(directory.list()).isEmpty();
+  }
+}
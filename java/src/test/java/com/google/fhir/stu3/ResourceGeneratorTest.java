@@ -0,0 +1,131 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.fhir.stu3.proto.Bundle;
+import com.google.fhir.stu3.proto.ContainedResource;
+import com.google.fhir.stu3.proto.Observation;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ResourceGenerator}. */
+@RunWith(JUnit4.class)
+public final class ResourceGeneratorTest {
+
+  private static final ZoneId DEFAULT_TIME_ZONE = ZoneId.of("Australia/Sydney");
+
+  private static ResourceGenerator.Builder settings() {
+    return ResourceGenerator.newBuilder()
+        .withDefaultTimeZone(DEFAULT_TIME_ZONE)
+        .withExtensionDensity(0.2);
+  }
+
+  @Test
+  public void sameSeedGeneratesSameResources() {
+    ResourceGenerator first = settings().withSeed(42).build();
+    ResourceGenerator second = settings().withSeed(42).build();
+    ResourceGenerator other = settings().withSeed(43).build();
+    boolean differs = false;
+    for (int i = 0; i < 20; i++) {
+      Message resource = first.nextResource();
+      assertThat(second.nextResource()).isEqualTo(resource);
+      differs |= !other.nextResource().equals(resource);
+    }
+    assertThat(differs).isTrue();
+  }
+
+  @Test
+  public void everyResourceTypeRoundTrips() throws Exception {
+    ResourceGenerator generator = settings().build();
+    JsonFormat.Printer printer = JsonFormat.getPrinter().withDefaultTimeZone(DEFAULT_TIME_ZONE);
+    JsonFormat.Parser parser =
+        JsonFormat.Parser.newBuilder().withDefaultTimeZone(DEFAULT_TIME_ZONE).build();
+    for (FieldDescriptor field : ContainedResource.getDescriptor().getFields()) {
+      String resourceType = field.getMessageType().getName();
+      if (resourceType.equals("Bundle")) {
+        continue;
+      }
+      Message resource = generator.nextResource(resourceType);
+      assertThat(resource.getDescriptorForType()).isEqualTo(field.getMessageType());
+      assertThat(ResourceUtils.getResourceId(resource)).isNotEmpty();
+      Message.Builder parsed = resource.newBuilderForType();
+      parser.merge(printer.print(resource), parsed);
+      assertThat(parsed.build()).isEqualTo(resource);
+    }
+  }
+
+  @Test
+  public void requiredFieldsAreSet() {
+    ResourceGenerator generator = settings().withFieldProbability(0).build();
+    for (int i = 0; i < 10; i++) {
+      Observation observation = (Observation) generator.nextResource("Observation");
+      assertThat(observation.hasStatus()).isTrue();
+      assertThat(observation.hasCode()).isTrue();
+    }
+  }
+
+  @Test
+  public void bundleReferencesPointToEarlierEntries() throws Exception {
+    ResourceGenerator generator =
+        settings()
+            .withResourceTypes(ImmutableList.of("Patient", "Observation", "Encounter"))
+            .withReferenceFanOut(8)
+            .build();
+    Bundle bundle = generator.nextBundle(50);
+    assertThat(bundle.getEntryCount()).isEqualTo(50);
+    Set<String> fullUrls = new HashSet<>();
+    for (Bundle.Entry entry : bundle.getEntryList()) {
+      fullUrls.add(entry.getFullUrl().getValue());
+    }
+    assertThat(fullUrls).hasSize(50);
+
+    Bundle resolved = ResourceUtils.resolveBundleReferences(bundle);
+    String json = JsonFormat.getPrinter().print(resolved);
+    assertThat(json).contains("\"reference\": \"Patient/");
+    assertThat(json).doesNotContain("\"reference\": \"urn:uuid:");
+  }
+
+  @Test
+  public void invalidSettingsAreRejected() {
+    try {
+      ResourceGenerator.newBuilder().withMaxDepth(-1);
+      fail("Expected an IllegalArgumentException for a negative depth");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      ResourceGenerator.newBuilder().withExtensionDensity(1);
+      fail("Expected an IllegalArgumentException for an extension density of 1");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      ResourceGenerator.newBuilder().withResourceTypes(ImmutableList.of("Patient", "Nothing"));
+      fail("Expected an IllegalArgumentException for an unknown resource type");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+}
@@ -38,17 +38,25 @@ import org.junit.runners.JUnit4;
 public final class ValidationTest {
 
   private JsonFormat.Parser jsonParser;
+  private JsonFormat.Parser streamingJsonParser;
   private Runfiles runfiles;
 
   /** Parse the given line, expecting it to be valid. */
   private void expectValid(java.lang.String line, Builder builder) throws IOException {
-    jsonParser.merge(line, builder);
+    jsonParser.merge(line, builder.clone());
+    streamingJsonParser.merge(line, builder.clone());
   }
 
   /** Parse the given line, expecting it to be invalid. */
   private void expectInvalid(java.lang.String line, Builder builder) throws IOException {
+    expectInvalid(jsonParser, line, builder.clone());
+    expectInvalid(streamingJsonParser, line, builder.clone());
+  }
+
+  private void expectInvalid(JsonFormat.Parser parser, java.lang.String line, Builder builder)
+      throws IOException {
     try {
-      jsonParser.merge(line, builder);
+      parser.merge(line, builder);
       fail("Unexpected parse success for input: '" + line + "', result is " + builder.toString());
     } catch (IllegalArgumentException exception) {
       assertThat(exception).hasMessageThat().contains("Invalid");
@@ -80,6 +88,7 @@ public final class ValidationTest {
   @Before
   public void setUp() throws IOException {
     jsonParser = JsonFormat.getParser();
+    streamingJsonParser = JsonFormat.Parser.newBuilder().withStreaming().build();
     runfiles = Runfiles.create();
   }
 
@@ -0,0 +1,144 @@
+//    Copyright 2018 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.stu3.custom;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.fhir.stu3.JsonFormat;
+import com.google.fhir.stu3.NumericTypeWrapper;
+import com.google.fhir.stu3.PrimitiveWrapper;
+import com.google.fhir.stu3.PrimitiveWrappers;
+import com.google.fhir.stu3.proto.Annotations;
+import com.google.fhir.stu3.proto.Annotations.StructureDefinitionKindValue;
+import com.google.fhir.stu3.proto.Extension;
+import com.google.gson.JsonPrimitive;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.MessageOptions;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.MessageOrBuilder;
+import java.math.BigDecimal;
+import java.time.ZoneId;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests a primitive wrapper defined outside of the com.google.fhir.stu3 package, which can
+ * override the public toJson() but not the printer's package-private fast path.
+ */
+@RunWith(JUnit4.class)
+public final class CustomNumericWrapperTest {
+
+  /** A numeric primitive which stores an amount in cents, and is printed in units. */
+  private static final class CentsWrapper extends NumericTypeWrapper<DynamicMessage> {
+    CentsWrapper(DynamicMessage message) {
+      super(message);
+    }
+
+    @Override
+    protected String printValue() {
+      DynamicMessage message = getWrapped();
+      return (String) message.getField(message.getDescriptorForType().findFieldByName("value"));
+    }
+
+    @Override
+    public BigDecimal toBigDecimal() {
+      return new BigDecimal(printValue()).movePointLeft(2);
+    }
+
+    @Override
+    public JsonPrimitive toJson() {
+      return new JsonPrimitive(toBigDecimal());
+    }
+  }
+
+  /** Returns a holder message type with one field of a new "Cents" primitive type. */
+  private static Descriptor newHolderType() throws DescriptorValidationException {
+    FileDescriptor datatypes = Extension.getDescriptor().getFile();
+    FileDescriptorProto file =
+        FileDescriptorProto.newBuilder()
+            .setName("test/cents.proto")
+            .setPackage("test")
+            .setSyntax("proto3")
+            .addDependency(datatypes.getName())
+            .addMessageType(
+                DescriptorProto.newBuilder()
+                    .setName("Cents")
+                    .setOptions(
+                        MessageOptions.newBuilder()
+                            .setExtension(
+                                Annotations.structureDefinitionKind,
+                                StructureDefinitionKindValue.KIND_PRIMITIVE_TYPE))
+                    .addField(
+                        FieldDescriptorProto.newBuilder()
+                            .setName("value")
+                            .setNumber(1)
+                            .setType(FieldDescriptorProto.Type.TYPE_STRING))
+                    .addField(
+                        FieldDescriptorProto.newBuilder()
+                            .setName("extension")
+                            .setNumber(2)
+                            .setLabel(FieldDescriptorProto.Label.LABEL_REPEATED)
+                            .setType(FieldDescriptorProto.Type.TYPE_MESSAGE)
+                            .setTypeName("." + Extension.getDescriptor().getFullName())))
+            .addMessageType(
+                DescriptorProto.newBuilder()
+                    .setName("Holder")
+                    .addField(
+                        FieldDescriptorProto.newBuilder()
+                            .setName("amount")
+                            .setNumber(1)
+                            .setType(FieldDescriptorProto.Type.TYPE_MESSAGE)
+                            .setTypeName(".test.Cents")))
+            .build();
+    return FileDescriptor.buildFrom(file, new FileDescriptor[] {datatypes})
+        .findMessageTypeByName("Holder");
+  }
+
+  @Test
+  public void printUsesOverriddenToJson() throws Exception {
+    Descriptor holderType = newHolderType();
+    Descriptor centsType = holderType.findFieldByName("amount").getMessageType();
+    PrimitiveWrappers.register(
+        centsType,
+        new PrimitiveWrappers.Factory() {
+          @Override
+          public PrimitiveWrapper<?> wrap(MessageOrBuilder message, ZoneId defaultTimeZone) {
+            return new CentsWrapper((DynamicMessage) message);
+          }
+
+          @Override
+          public PrimitiveWrapper<?> parse(String jsonValue, ZoneId defaultTimeZone) {
+            throw new UnsupportedOperationException();
+          }
+        });
+
+    DynamicMessage cents =
+        DynamicMessage.newBuilder(centsType)
+            .setField(centsType.findFieldByName("value"), "1234")
+            .build();
+    DynamicMessage holder =
+        DynamicMessage.newBuilder(holderType)
+            .setField(holderType.findFieldByName("amount"), cents)
+            .build();
+    assertThat(JsonFormat.getPrinter().omittingInsignificantWhitespace().print(holder))
+        .isEqualTo("{\"amount\":12.34}");
+  }
+}